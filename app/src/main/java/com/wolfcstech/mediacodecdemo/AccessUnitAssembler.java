@@ -0,0 +1,322 @@
+package com.wolfcstech.mediacodecdemo;
+
+import android.media.MediaCodec;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Groups an Annex-B H.264 byte stream, fed in chunks of any size, into access units. Each
+ * access unit is accumulated in a pooled {@link FrameBuffer} and start codes are searched
+ * incrementally in the accumulated bytes, so a start code split across two chunks is still
+ * found. Parameter sets that arrive ahead of a slice are delivered as a unit of their own
+ * flagged {@link MediaCodec#BUFFER_FLAG_CODEC_CONFIG}, access units with an IDR slice are
+ * flagged {@link MediaCodec#BUFFER_FLAG_KEY_FRAME}.
+ *
+ * <p>Without {@link #setFlushOnChunkEnd(boolean)} an access unit is only known to be
+ * complete once the first NAL unit of the next one arrives. Buffers are taken from the pool
+ * without waiting, so a stopping receive thread is never stuck in here: with every buffer
+ * out, the bytes at hand are dropped and assembly resumes at the next start code. Not thread
+ * safe.
+ */
+public class AccessUnitAssembler {
+    private final FrameBufferPool mPool;
+    private final FrameBufferPool.FrameReceivedListener mListener;
+    private final int mInitialCapacity;
+
+    private boolean mFlushOnChunkEnd = false;
+
+    private FrameBuffer mFrame;
+    /** Where to resume the start code search in the current frame. */
+    private int mScanPosition;
+    private boolean mSeenStartCode;
+    private boolean mHasSlice;
+    private boolean mHasKeyFrame;
+    private boolean mHasConfig;
+    private long mFramePtsUs;
+    private long mChunkPtsUs;
+    private int mNextIndex = 0;
+
+    private long mNalCount = 0;
+    private long mAccessUnitCount = 0;
+    private long mKeyFrameCount = 0;
+    private long mSkippedBytes = 0;
+    private long mDroppedBytes = 0;
+
+    /**
+     * @param initialCapacity the capacity to request for each access unit, buffers are
+     *                        replaced by larger ones when an access unit outgrows it.
+     */
+    public AccessUnitAssembler(FrameBufferPool pool, FrameBufferPool.FrameReceivedListener listener,
+                               int initialCapacity) {
+        mPool = pool;
+        mListener = listener;
+        mInitialCapacity = initialCapacity;
+    }
+
+    /**
+     * Treat the end of every chunk that contains a slice as the end of the access unit, for
+     * transports that already send one access unit per message. Saves a frame of latency.
+     */
+    public void setFlushOnChunkEnd(boolean flushOnChunkEnd) {
+        mFlushOnChunkEnd = flushOnChunkEnd;
+    }
+
+    /**
+     * Append the bytes between position and limit of {@code chunk}, consuming them, and deliver
+     * every access unit they complete.
+     */
+    public void feed(ByteBuffer chunk) {
+        feed(chunk, 0);
+    }
+
+    /**
+     * Like {@link #feed(ByteBuffer)}, for a chunk that carried a presentation time. Each access
+     * unit gets the time of the chunk it starts in.
+     */
+    public void feed(ByteBuffer chunk, long presentationTimeUs) {
+        mChunkPtsUs = presentationTimeUs;
+        if (mFrame == null && !startFrame(chunk.remaining())) {
+            dropChunk(chunk);
+            return;
+        }
+        ByteBuffer data = mFrame.data();
+        if (data.remaining() < chunk.remaining()) {
+            if (!growFrame(data.position() + chunk.remaining())) {
+                mDroppedBytes += data.position();
+                reset();
+                dropChunk(chunk);
+                return;
+            }
+            data = mFrame.data();
+        }
+        data.put(chunk);
+        scan();
+        if (mFlushOnChunkEnd && mHasSlice) {
+            flush();
+        }
+    }
+
+    /**
+     * Deliver the access unit accumulated so far, if it holds any NAL unit.
+     */
+    public void flush() {
+        if (mFrame == null) {
+            return;
+        }
+        if (mSeenStartCode) {
+            emit(mFrame.data().position());
+        } else {
+            mSkippedBytes += mFrame.data().position();
+            mFrame.data().clear();
+            mScanPosition = 0;
+        }
+    }
+
+    /**
+     * Drop the partial access unit and return its buffer to the pool.
+     */
+    public void reset() {
+        if (mFrame != null) {
+            mFrame.release();
+            mFrame = null;
+        }
+    }
+
+    private void dropChunk(ByteBuffer chunk) {
+        mDroppedBytes += chunk.remaining();
+        chunk.position(chunk.limit());
+    }
+
+    /**
+     * @return false, leaving no current frame, if the pool had no buffer to spare.
+     */
+    private boolean startFrame(int minCapacity) {
+        mFrame = mPool.tryAcquire(Math.max(minCapacity, mInitialCapacity));
+        if (mFrame == null) {
+            return false;
+        }
+        mScanPosition = 0;
+        mSeenStartCode = false;
+        mHasSlice = false;
+        mHasKeyFrame = false;
+        mHasConfig = false;
+        mFramePtsUs = mChunkPtsUs;
+        return true;
+    }
+
+    /**
+     * @return false, keeping the current frame, if the pool had no buffer to spare.
+     */
+    private boolean growFrame(int capacity) {
+        FrameBuffer old = mFrame;
+        ByteBuffer oldData = old.data();
+        FrameBuffer grown = mPool.tryAcquire(Math.max(capacity, oldData.capacity() * 2));
+        if (grown == null) {
+            return false;
+        }
+        mFrame = grown;
+        oldData.flip();
+        mFrame.data().put(oldData);
+        old.release();
+        return true;
+    }
+
+    private void scan() {
+        ByteBuffer data = mFrame.data();
+        int end = data.position();
+        int startCode;
+        while ((startCode = H264.findStartCode(data, mScanPosition, end)) >= 0) {
+            int header = startCode + 3;
+            // The slice header's first byte is needed as well to spot the first slice.
+            if (header + 1 >= end) {
+                mScanPosition = startCode;
+                return;
+            }
+            if (!mSeenStartCode && startCode > 0) {
+                discardLeadingBytes(startCode);
+                data = mFrame.data();
+                end = data.position();
+                continue;
+            }
+
+            int type = H264.nalType(data.get(header));
+            if (startsNewAccessUnit(type, data.get(header + 1))) {
+                if (!splitAt(startCode)) {
+                    return;
+                }
+                data = mFrame.data();
+                end = data.position();
+                header = 3;
+            }
+            mSeenStartCode = true;
+            mNalCount++;
+            noteNalType(type);
+            mScanPosition = header;
+        }
+        // Keep the last two bytes, they may begin a start code completed by the next chunk.
+        if (!mSeenStartCode && end > 2) {
+            discardLeadingBytes(end - 2);
+        } else {
+            mScanPosition = Math.max(mScanPosition, end - 2);
+        }
+    }
+
+    private boolean startsNewAccessUnit(int type, int firstPayloadByte) {
+        if (!mSeenStartCode) {
+            return false;
+        }
+        boolean isSlice = type >= H264.NAL_SLICE && type <= H264.NAL_IDR_SLICE;
+        boolean isConfig = type == H264.NAL_SPS || type == H264.NAL_PPS;
+        if (mHasSlice) {
+            // first_mb_in_slice is ue(v), a leading 1 bit encodes 0.
+            return isSlice ? (firstPayloadByte & 0x80) != 0
+                    : type == H264.NAL_AUD || type == H264.NAL_SEI || isConfig
+                    || (type >= 14 && type <= 18);
+        }
+        return mHasConfig && !isConfig;
+    }
+
+    private void discardLeadingBytes(int count) {
+        ByteBuffer data = mFrame.data();
+        data.flip();
+        data.position(count);
+        data.compact();
+        mSkippedBytes += count;
+        mScanPosition = 0;
+    }
+
+    /**
+     * Deliver the bytes before {@code startCode} and carry the rest over into a new frame.
+     *
+     * @return false if there was no buffer for the rest, which is dropped.
+     */
+    private boolean splitAt(int startCode) {
+        FrameBuffer completed = mFrame;
+        int flags = currentFlags();
+        long ptsUs = mFramePtsUs;
+        ByteBuffer completedData = completed.data();
+        int end = completedData.position();
+        if (!startFrame(end - startCode)) {
+            mDroppedBytes += end - startCode;
+            deliver(completed, startCode, flags, ptsUs);
+            return false;
+        }
+        completedData.limit(end);
+        completedData.position(startCode);
+        mFrame.data().put(completedData);
+        deliver(completed, startCode, flags, ptsUs);
+        return true;
+    }
+
+    private void emit(int end) {
+        FrameBuffer completed = mFrame;
+        mFrame = null;
+        deliver(completed, end, currentFlags(), mFramePtsUs);
+    }
+
+    private int currentFlags() {
+        int flags = 0;
+        if (mHasKeyFrame) {
+            flags |= MediaCodec.BUFFER_FLAG_KEY_FRAME;
+        }
+        if (mHasConfig && !mHasSlice) {
+            flags |= MediaCodec.BUFFER_FLAG_CODEC_CONFIG;
+        }
+        return flags;
+    }
+
+    private void noteNalType(int type) {
+        if (type == H264.NAL_IDR_SLICE) {
+            mHasKeyFrame = true;
+            mHasSlice = true;
+        } else if (type >= H264.NAL_SLICE && type < H264.NAL_IDR_SLICE) {
+            mHasSlice = true;
+        } else if (type == H264.NAL_SPS || type == H264.NAL_PPS) {
+            mHasConfig = true;
+        }
+    }
+
+    private void deliver(FrameBuffer frame, int end, int flags, long ptsUs) {
+        ByteBuffer data = frame.data();
+        // Trailing zeros belong to a four-byte start code or are stuffing.
+        while (end > 0 && data.get(end - 1) == 0) {
+            end--;
+        }
+        data.limit(end);
+        data.position(0);
+        frame.setFlags(flags);
+        frame.setPresentationTimeUs(ptsUs);
+        frame.setIndex(mNextIndex++);
+        mAccessUnitCount++;
+        if ((flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0) {
+            mKeyFrameCount++;
+        }
+        mListener.onFrameReceived(frame);
+    }
+
+    public long getNalCount() {
+        return mNalCount;
+    }
+
+    public long getAccessUnitCount() {
+        return mAccessUnitCount;
+    }
+
+    public long getKeyFrameCount() {
+        return mKeyFrameCount;
+    }
+
+    /**
+     * Bytes dropped because no start code preceded them.
+     */
+    public long getSkippedBytes() {
+        return mSkippedBytes;
+    }
+
+    /**
+     * Bytes dropped because the listener held every pooled buffer.
+     */
+    public long getDroppedBytes() {
+        return mDroppedBytes;
+    }
+}
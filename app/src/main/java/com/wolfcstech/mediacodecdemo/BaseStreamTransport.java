@@ -0,0 +1,75 @@
+package com.wolfcstech.mediacodecdemo;
+
+/**
+ * Holds the frame sink of a {@link StreamTransport} and counts what passes through it. The
+ * transport's receiver delivers to this object, which forwards to the sink.
+ */
+abstract class BaseStreamTransport implements StreamTransport,
+        FrameBufferPool.FrameReceivedListener {
+    private final String mName;
+    protected FrameBufferPool mPool;
+    private FrameBufferPool.FrameReceivedListener mSink;
+    protected volatile ConnectionSupervisor.Listener mConnectionListener;
+    private volatile LatencyTracer mLatencyTracer;
+
+    private volatile long mReceivedFrameCount = 0;
+    private volatile long mReceivedBytes = 0;
+
+    BaseStreamTransport(String name) {
+        mName = name;
+    }
+
+    @Override
+    public String getName() {
+        return mName;
+    }
+
+    @Override
+    public void setFrameSink(FrameBufferPool pool, FrameBufferPool.FrameReceivedListener sink) {
+        mPool = pool;
+        mSink = sink;
+    }
+
+    @Override
+    public void setConnectionListener(ConnectionSupervisor.Listener listener) {
+        mConnectionListener = listener;
+    }
+
+    @Override
+    public void setLatencyTracer(LatencyTracer tracer) {
+        mLatencyTracer = tracer;
+    }
+
+    @Override
+    public void onFrameReceived(FrameBuffer frame) {
+        // Only the receiving thread writes the counters.
+        mReceivedFrameCount++;
+        mReceivedBytes += frame.size();
+        LatencyTracer tracer = mLatencyTracer;
+        if (tracer != null) {
+            tracer.mark(LatencyTracer.frameId(frame.getPresentationTimeUs()),
+                    LatencyTracer.STAGE_RECEIVED);
+        }
+        mSink.onFrameReceived(frame);
+    }
+
+    /**
+     * For transports without a connection of their own to supervise.
+     */
+    protected void notifyHealthChanged(int previousState, int state) {
+        ConnectionSupervisor.Listener listener = mConnectionListener;
+        if (listener != null) {
+            listener.onHealthChanged(previousState, state);
+        }
+    }
+
+    @Override
+    public long getReceivedFrameCount() {
+        return mReceivedFrameCount;
+    }
+
+    @Override
+    public long getReceivedBytes() {
+        return mReceivedBytes;
+    }
+}
@@ -0,0 +1,96 @@
+package com.wolfcstech.mediacodecdemo;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A lock-free bounded multi-producer multi-consumer ring. Every slot carries a sequence
+ * number telling whether it is ready to be written or read for the current lap, so offer and
+ * poll only contend on a single compare-and-set.
+ */
+public class BoundedFrameQueue implements FrameQueue {
+    private final int mCapacity;
+    private final int mMask;
+    private final AtomicReferenceArray<FrameBuffer> mSlots;
+    private final AtomicLongArray mSequences;
+    private final AtomicLong mEnqueuePos = new AtomicLong();
+    private final AtomicLong mDequeuePos = new AtomicLong();
+
+    /**
+     * @param capacity rounded up to the next power of two.
+     */
+    public BoundedFrameQueue(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        mCapacity = size;
+        mMask = size - 1;
+        mSlots = new AtomicReferenceArray<>(size);
+        mSequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            mSequences.set(i, i);
+        }
+    }
+
+    @Override
+    public boolean offer(FrameBuffer frame) {
+        long pos = mEnqueuePos.get();
+        for (;;) {
+            int slot = (int) (pos & mMask);
+            long diff = mSequences.get(slot) - pos;
+            if (diff == 0) {
+                if (mEnqueuePos.compareAndSet(pos, pos + 1)) {
+                    mSlots.lazySet(slot, frame);
+                    mSequences.set(slot, pos + 1);
+                    return true;
+                }
+                pos = mEnqueuePos.get();
+            } else if (diff < 0) {
+                return false;
+            } else {
+                pos = mEnqueuePos.get();
+            }
+        }
+    }
+
+    @Override
+    public FrameBuffer poll() {
+        long pos = mDequeuePos.get();
+        for (;;) {
+            int slot = (int) (pos & mMask);
+            long diff = mSequences.get(slot) - (pos + 1);
+            if (diff == 0) {
+                if (mDequeuePos.compareAndSet(pos, pos + 1)) {
+                    FrameBuffer frame = mSlots.get(slot);
+                    mSlots.lazySet(slot, null);
+                    mSequences.set(slot, pos + mCapacity);
+                    return frame;
+                }
+                pos = mDequeuePos.get();
+            } else if (diff < 0) {
+                return null;
+            } else {
+                pos = mDequeuePos.get();
+            }
+        }
+    }
+
+    @Override
+    public int size() {
+        long size = mEnqueuePos.get() - mDequeuePos.get();
+        if (size < 0) {
+            return 0;
+        }
+        return (int) Math.min(size, mCapacity);
+    }
+
+    @Override
+    public int capacity() {
+        return mCapacity;
+    }
+}
@@ -2,15 +2,16 @@ package com.wolfcstech.mediacodecdemo;
 
 import android.app.Activity;
 import android.content.Context;
+import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.graphics.ImageFormat;
 import android.hardware.Camera;
+import android.media.Image;
 import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
 import android.media.MediaDataSource;
 import android.media.MediaExtractor;
 import android.media.MediaFormat;
-import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Environment;
@@ -23,11 +24,13 @@ import android.widget.FrameLayout;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.CountDownLatch;
 
 public class CameraActivity extends Activity implements CameraPreview.FrameListener,
-        SurfaceHolder.Callback, View.OnClickListener, TCPStreamReceiver.StreamReceivedListener {
+        SurfaceHolder.Callback, View.OnClickListener, FrameBufferPool.FrameReceivedListener,
+        EncoderFeeder.EncodedDataListener, EncoderFeeder.FrameReleaser,
+        DecoderConfigurator.Listener, StreamPublisher.SyncFrameListener, KeyFrameGate.Listener,
+        ConnectionSupervisor.Listener {
     private static final String TAG = "CameraActivity";
 
     private static final String SAMPLE = Environment.getExternalStorageDirectory() + "/screen.mp4";
@@ -35,14 +38,78 @@ public class CameraActivity extends Activity implements CameraPreview.FrameListe
     static final int OUTPUT_WIDTH = 1280;
     static final int OUTPUT_HEIGHT = 960;
 
+    // The demo server does not announce the size of the file it streams.
+    private static final long SAMPLE_STREAM_SIZE = 1967007;
+    private static final long PLAYBACK_START_BYTES = 256 * 1024;
+    // Streams that are larger, or of unknown size, are spilled to a mapped file.
+    private static final long IN_MEMORY_STREAM_LIMIT = 8 * 1024 * 1024;
+
+    private static final int STREAM_SERVER_PORT = 18960;
+
+    /** Intent extra naming the stream transport, one of the {@link StreamTransports} names. */
+    public static final String EXTRA_TRANSPORT = "transport";
+    /** Intent extra with the host to receive the stream from. */
+    public static final String EXTRA_STREAM_HOST = "stream_host";
+    private static final String DEFAULT_STREAM_HOST = "10.242.24.174";
+    /**
+     * Boolean intent extra, whether the file stream server ends its packets in a CRC-32C,
+     * see {@link StreamSender#setChecksum(boolean)}. The demo server does not.
+     */
+    public static final String EXTRA_FILE_STREAM_CHECKSUM = "file_stream_checksum";
+
+    // Deep enough to hold packets back for a retransmission round trip.
+    private static final int REORDER_WINDOW_PACKETS = 256;
+    private static final int NACK_INTERVAL_MS = 10;
+    private static final int NACK_RETRY_MS = 40;
+    private static final int NACK_DEADLINE_MS = 200;
+    private static final int READ_AHEAD_BLOCK_SIZE = 64 * 1024;
+    private static final int READ_AHEAD_BLOCKS = 16;
+    private static final int READ_AHEAD_PREFETCH_BLOCKS = 4;
+    // The most data and parity packets per block the stream server may send.
+    private static final int FEC_MAX_BLOCK_SIZE = 32;
+    private static final int FEC_MAX_PARITY_COUNT = 4;
+    private static final int UDP_RECEIVE_BATCH_SIZE = 32;
+    private static final int UDP_RECEIVE_BUFFER_SIZE = 2 * 1024 * 1024;
+
     String VIDEO_FORMAT = "video/avc";
     int VIDEO_FRAME_PER_SECOND = 30;
     int VIDEO_I_FRAME_INTERVAL = 10;
     int VIDEO_BITRATE = 3000 * 1000;
 
     private MediaCodec mEncoder;
-    private MediaCodec mDecoder;
+    private EncoderFeeder mEncoderFeeder;
+    private String mTransportName = StreamTransports.TCP;
+    private String mStreamHost = DEFAULT_STREAM_HOST;
+    private boolean mFileStreamChecksum = false;
+    // Published to the encoder drain thread.
+    private volatile StreamPublisher mStreamSender;
+    private final FrameBufferPool mEncodedFramePool = new FrameBufferPool(32, 64 * 1024, true);
+    // Created, configured, stopped and released on mDecoderThread only.
+    private volatile MediaCodec mDecoder;
+    private Surface mDecoderSurface;
+    private volatile DecoderConfigurator mDecoderConfigurator;
+    private final KeyFrameGate mKeyFrameGate = new KeyFrameGate();
+    private volatile boolean mDecoderStarted = false;
     private MediaExtractor mExtractor;
+    private volatile DecodePipeline mDecodePipeline;
+    private JitterBuffer mJitterBuffer;
+    // Room for a full jitter buffer, the frames inside the decoder and one being assembled.
+    private FrameBufferPool mFrameBufferPool = new FrameBufferPool(32, 128 * 1024, true);
+    private final LatencyTracer mLatencyTracer = new LatencyTracer(128);
+    private volatile NackRequester mNackRequester;
+    private volatile ReadAheadMediaDataSource mReadAheadSource;
+
+    private static final long METRICS_REPORT_INTERVAL_MS = 10000;
+    private final MetricsRegistry mMetrics = MetricsRegistry.getDefault();
+    private final MetricsReporter mMetricsReporter = new MetricsReporter(mMetrics);
+    private final MetricsRegistry.Meter mReceivedFrames = mMetrics.meter("stream.received.frames");
+    private final MetricsRegistry.Meter mReceivedBytes = mMetrics.meter("stream.received.bytes");
+    private final MetricsRegistry.Meter mEncodedFrames = mMetrics.meter("stream.encoded.frames");
+    private final MetricsRegistry.Meter mEncodedBytes = mMetrics.meter("stream.encoded.bytes");
+    private final MetricsRegistry.Counter mDroppedEncodedFrames =
+            mMetrics.counter("stream.encoded.dropped");
+    private final MetricsRegistry.Counter mCorruptPackets =
+            mMetrics.counter("file.corrupt.packets");
     private int mCount = 1;
     private long mTimeoutUs = 10000l;
 
@@ -50,14 +117,51 @@ public class CameraActivity extends Activity implements CameraPreview.FrameListe
     private CameraPreview mPreview;
     private SurfaceView mDecodePreview;
 
+    // Each receiver blocks its thread, so the live stream and the file stream get one each.
+    private final MediaThread mStreamThread =
+            new MediaThread("StreamReceive", MediaThread.PRIORITY_NETWORK);
+    private final MediaThread mFileStreamThread =
+            new MediaThread("FileStreamReceive", MediaThread.PRIORITY_NETWORK);
+    // Kept busy draining the encoder.
+    private final MediaThread mEncoderDrainThread =
+            new MediaThread("EncoderDrain", MediaThread.PRIORITY_CODEC);
+    // Owns the decoder, so a reconfigure from the stream never races a teardown from the UI.
+    private final MediaThread mDecoderThread =
+            new MediaThread("DecoderControl", MediaThread.PRIORITY_CODEC);
+    // Prefetches for the extractor, so it runs at the codec's priority.
+    private final MediaThread mReadAheadThread =
+            new MediaThread("ReadAhead", MediaThread.PRIORITY_CODEC);
+    private StreamReceiveTask mStreamReceiveTask;
     private StreamRequestTask mStreamRequestTask;
+    private NetworkMediaDataSource mNetworkDataSource;
+    private final SegmentPool mSegmentPool = new SegmentPool(SegmentedMediaDataStore.SEGMENT_SIZE, 64);
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_camera);
 
+        Intent intent = getIntent();
+        if (intent != null) {
+            if (intent.getStringExtra(EXTRA_TRANSPORT) != null) {
+                mTransportName = intent.getStringExtra(EXTRA_TRANSPORT);
+            }
+            if (intent.getStringExtra(EXTRA_STREAM_HOST) != null) {
+                mStreamHost = intent.getStringExtra(EXTRA_STREAM_HOST);
+            }
+            mFileStreamChecksum = intent.getBooleanExtra(EXTRA_FILE_STREAM_CHECKSUM, false);
+        }
+
         createEncoder();
+        startStreamSender();
+        mEncoderDrainThread.start();
+        mEncoderDrainThread.post(mEncoderFeeder.new DrainTask());
+        mDecoderThread.start();
+        mStreamThread.start();
+        mFileStreamThread.start();
+        mReadAheadThread.start();
+        registerGauges();
+        mMetricsReporter.start(METRICS_REPORT_INTERVAL_MS);
 
         FrameLayout preview = (FrameLayout) findViewById(R.id.camera_preview);
         // Create an instance of Camera
@@ -76,6 +180,71 @@ public class CameraActivity extends Activity implements CameraPreview.FrameListe
         findViewById(R.id.button_capture).setOnClickListener(this);
     }
 
+    private void registerGauges() {
+        mMetrics.gauge("decode.queue.depth", new MetricsRegistry.Gauge() {
+            @Override
+            public long getValue() {
+                DecodePipeline pipeline = mDecodePipeline;
+                return pipeline != null ? pipeline.getQueueDepth() : 0;
+            }
+        });
+        mMetrics.gauge("decode.dropped.frames", new MetricsRegistry.Gauge() {
+            @Override
+            public long getValue() {
+                DecodePipeline pipeline = mDecodePipeline;
+                return pipeline != null ? pipeline.getDroppedCount() : 0;
+            }
+        });
+        mMetrics.gauge("decode.rendered.frames", new MetricsRegistry.Gauge() {
+            @Override
+            public long getValue() {
+                DecodePipeline pipeline = mDecodePipeline;
+                return pipeline != null ? pipeline.getRenderedCount() : 0;
+            }
+        });
+        mMetrics.gauge("pool.received.outstanding", new MetricsRegistry.Gauge() {
+            @Override
+            public long getValue() {
+                return mFrameBufferPool.getOutstandingCount();
+            }
+        });
+        mMetrics.gauge("readahead.hit.percent", new MetricsRegistry.Gauge() {
+            @Override
+            public long getValue() {
+                ReadAheadMediaDataSource source = mReadAheadSource;
+                return source != null ? Math.round(source.getHitRatio() * 100) : 0;
+            }
+        });
+        mMetrics.gauge("readahead.prefetched.bytes", new MetricsRegistry.Gauge() {
+            @Override
+            public long getValue() {
+                ReadAheadMediaDataSource source = mReadAheadSource;
+                return source != null ? source.getPrefetchedBytes() : 0;
+            }
+        });
+        mMetrics.gauge("nack.recovered.packets", new MetricsRegistry.Gauge() {
+            @Override
+            public long getValue() {
+                NackRequester requester = mNackRequester;
+                return requester != null ? requester.getRecoveredCount() : 0;
+            }
+        });
+        mMetrics.gauge("nack.late.packets", new MetricsRegistry.Gauge() {
+            @Override
+            public long getValue() {
+                NackRequester requester = mNackRequester;
+                return requester != null ? requester.getLateCount() : 0;
+            }
+        });
+        mMetrics.gauge("nack.abandoned.packets", new MetricsRegistry.Gauge() {
+            @Override
+            public long getValue() {
+                NackRequester requester = mNackRequester;
+                return requester != null ? requester.getAbandonedCount() : 0;
+            }
+        });
+    }
+
     private void createEncoder() {
         // video output dimension
         int mWidth = OUTPUT_WIDTH;
@@ -98,19 +267,218 @@ public class CameraActivity extends Activity implements CameraPreview.FrameListe
         mEncoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
 
         mEncoder.start();
+
+        mEncoderFeeder = new EncoderFeeder(mEncoder);
+        mEncoderFeeder.setEncodedDataListener(this);
+        mEncoderFeeder.setFrameReleaser(this);
+        final int width = mWidth;
+        final int height = mHeight;
+        mEncoderFeeder.setColorConverterFactory(new EncoderFeeder.ColorConverterFactory() {
+            @Override
+            public YuvConverter createColorConverter(Image inputImage) {
+                return CameraActivity.this.createColorConverter(mEncoder.getInputFormat(),
+                        inputImage, width, height);
+            }
+        });
     }
 
-    private void createDecoder(Surface surface) {
+    /**
+     * The camera delivers NV21, convert it to the layout the encoder settled on for
+     * COLOR_FormatYUV420Flexible. The planes of its first input image tell the layout when the
+     * input format still only says flexible.
+     */
+    private YuvConverter createColorConverter(MediaFormat inputFormat, Image inputImage,
+                                              int width, int height) {
+        int colorFormat = MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Planar;
+        int stride = width;
+        int sliceHeight = height;
+        if (inputFormat != null) {
+            if (inputFormat.containsKey(MediaFormat.KEY_COLOR_FORMAT)) {
+                colorFormat = inputFormat.getInteger(MediaFormat.KEY_COLOR_FORMAT);
+            }
+            if (inputFormat.containsKey(MediaFormat.KEY_STRIDE)) {
+                stride = Math.max(width, inputFormat.getInteger(MediaFormat.KEY_STRIDE));
+            }
+            if (inputFormat.containsKey(MediaFormat.KEY_SLICE_HEIGHT)) {
+                sliceHeight = Math.max(height, inputFormat.getInteger(MediaFormat.KEY_SLICE_HEIGHT));
+            }
+        }
+        boolean semiPlanar =
+                colorFormat == MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar;
+        if (colorFormat == MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Flexible
+                && inputImage != null) {
+            Image.Plane[] planes = inputImage.getPlanes();
+            stride = Math.max(width, planes[0].getRowStride());
+            // Interleaved chroma samples sit two bytes apart.
+            semiPlanar = planes[1].getPixelStride() == 2;
+            int chromaStride = semiPlanar ? stride : stride / 2;
+            if (planes[1].getRowStride() != chromaStride) {
+                Log.w(TAG, "Unexpected chroma row stride " + planes[1].getRowStride()
+                        + " for luma row stride " + stride);
+            }
+        }
+        int outputFormat = semiPlanar ? YuvConverter.FORMAT_NV12 : YuvConverter.FORMAT_I420;
+        return new YuvConverter(width, height, stride, sliceHeight, outputFormat, null,
+                Runtime.getRuntime().availableProcessors());
+    }
+
+    private void startStreamSender() {
+        StreamPublisher streamSender = StreamTransports.createPublisher(mTransportName);
+        streamSender.setSyncFrameListener(this);
         try {
-            mDecoder = MediaCodec.createDecoderByType(VIDEO_FORMAT);
+            streamSender.start(STREAM_SERVER_PORT);
+            mStreamSender = streamSender;
         } catch (IOException e) {
-            e.printStackTrace();
+            Log.e(TAG, "Cannot publish the camera stream", e);
         }
-        int mWidth = 1080;
-        int mHeight = 800;
-        MediaFormat mediaFormat = MediaFormat.createVideoFormat(VIDEO_FORMAT, mWidth, mHeight);
-        mDecoder.configure(mediaFormat, surface, null, 0);
+    }
+
+    @Override
+    public void onSyncFrameNeeded() {
+        MediaCodec encoder = mEncoder;
+        if (encoder == null) {
+            return;
+        }
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+        try {
+            encoder.setParameters(params);
+        } catch (IllegalStateException e) {
+            Log.w(TAG, "Cannot request a sync frame", e);
+        }
+    }
+
+    /**
+     * Create the decoder, which is configured once the stream's first SPS and PPS arrive.
+     */
+    private void createDecoder(final Surface surface) {
+        mDecoderThread.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mDecoder = MediaCodec.createDecoderByType(VIDEO_FORMAT);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                mDecoderSurface = surface;
+                mDecoderStarted = false;
+            }
+        });
+        mDecoderConfigurator = new DecoderConfigurator(this);
+        mKeyFrameGate.setListener(this);
+    }
+
+    /**
+     * Run {@code task} on the decoder thread and wait for it to finish, or to be dropped by
+     * the thread quitting.
+     */
+    private void runOnDecoderThread(final Runnable task) {
+        final CountDownLatch done = new CountDownLatch(1);
+        boolean posted = mDecoderThread.post(new MediaThread.Cancellable() {
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                } finally {
+                    done.countDown();
+                }
+            }
+
+            @Override
+            public void cancel() {
+                done.countDown();
+            }
+        });
+        if (!posted) {
+            return;
+        }
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Stop the pipeline and the decoder and release the decoder. Call on the decoder thread.
+     */
+    private void releaseDecoder() {
+        stopDecodePipeline();
+        if (mDecoder != null) {
+            if (mDecoderStarted) {
+                mDecoder.stop();
+            }
+            mDecoder.release();
+            mDecoder = null;
+        }
+        mDecoderStarted = false;
+    }
+
+    @Override
+    public void onHealthChanged(int previousState, int state) {
+        Log.i(TAG, "Stream connection " + ConnectionSupervisor.stateName(previousState) + " -> "
+                + ConnectionSupervisor.stateName(state));
+        if (state == ConnectionSupervisor.STATE_CONNECTED) {
+            // Called on the receiving thread, before the first frame of the connection.
+            mKeyFrameGate.startJoin();
+        }
+    }
+
+    @Override
+    public void onFirstKeyFrame(long timeToFirstFrameUs, long droppedFrames) {
+        Log.i(TAG, "First key frame " + timeToFirstFrameUs / 1000 + " ms after joining, "
+                + droppedFrames + " frames dropped before it");
+    }
+
+    @Override
+    public void onConfigurationChanged(final SequenceParameterSet sps, final ByteBuffer csd0,
+                                       final ByteBuffer csd1) {
+        Log.i(TAG, "Configuring decoder for " + sps.getWidth() + "x" + sps.getHeight()
+                + " profile " + sps.getProfileIdc() + " level " + sps.getLevelIdc());
+        // The reconfigured decoder has no reference frames.
+        mKeyFrameGate.close();
+        // Called on the receiving thread, which waits so the frame that carried the new
+        // configuration goes to the new pipeline.
+        runOnDecoderThread(new Runnable() {
+            @Override
+            public void run() {
+                configureDecoder(sps, csd0, csd1);
+            }
+        });
+    }
+
+    private void configureDecoder(SequenceParameterSet sps, ByteBuffer csd0, ByteBuffer csd1) {
+        stopDecodePipeline();
+        if (mDecoder == null) {
+            Log.w(TAG, "No decoder to configure");
+            return;
+        }
+        // Stopping and configuring again keeps the codec instance, which is much faster
+        // than releasing it and creating a new one.
+        if (mDecoderStarted) {
+            mDecoder.stop();
+            mDecoderStarted = false;
+        }
+        mDecoder.configure(DecoderConfigurator.createFormat(VIDEO_FORMAT, sps, csd0, csd1),
+                mDecoderSurface, null, 0);
         mDecoder.start();
+        mDecoderStarted = true;
+
+        mJitterBuffer = new JitterBuffer(16, VIDEO_FRAME_PER_SECOND, JitterBuffer.TARGET_LOW_LATENCY);
+        mDecodePipeline = new DecodePipeline(new MediaCodecAdapter(mDecoder),
+                mJitterBuffer, DropPolicy.DROP_OLDEST);
+        mDecodePipeline.setLatencyTracer(mLatencyTracer);
+        mDecodePipeline.start();
+    }
+
+    private void stopDecodePipeline() {
+        if (mDecodePipeline != null) {
+            mDecodePipeline.stop();
+            Log.i(TAG, String.valueOf(mDecodePipeline.getInputThreadStats()));
+            Log.i(TAG, String.valueOf(mDecodePipeline.getRenderThreadStats()));
+            Log.i(TAG, "Latency:\n" + mLatencyTracer.dump());
+            mDecodePipeline = null;
+        }
     }
 
     /** Check if this device has a camera */
@@ -184,7 +552,35 @@ public class CameraActivity extends Activity implements CameraPreview.FrameListe
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        mMetricsReporter.stop();
+        mMetricsReporter.report();
+        // Quitting cancels the receive tasks, which closes their sockets.
+        mStreamThread.quit();
+        mFileStreamThread.quit();
+        mReadAheadThread.quit();
+        mEncoderDrainThread.quit();
+        // The receivers are gone, nothing reconfigures the decoder any more.
+        runOnDecoderThread(new Runnable() {
+            @Override
+            public void run() {
+                releaseDecoder();
+            }
+        });
+        mDecoderThread.quit();
+        Log.i(TAG, mStreamThread.getStats().toString());
+        Log.i(TAG, mFileStreamThread.getStats().toString());
+        Log.i(TAG, mReadAheadThread.getStats().toString());
+        Log.i(TAG, mEncoderDrainThread.getStats().toString());
+        Log.i(TAG, mDecoderThread.getStats().toString());
+        mStreamReceiveTask = null;
+        mStreamRequestTask = null;
+        if (mStreamSender != null) {
+            mStreamSender.stop();
+            mStreamSender = null;
+        }
         mCamera.release();
+        mEncoder.stop();
+        mEncoder.release();
     }
 
     public void decodeSample(byte[] data, int offset, int size, long presentationTimeUs, int flags) {
@@ -234,34 +630,44 @@ public class CameraActivity extends Activity implements CameraPreview.FrameListe
         mDecoder.start();
     }
 
-    private void createNetworkMediaExtractorDecoder(Surface surface, MediaDataSource dataSource) {
-        mExtractor = new MediaExtractor();
+    private void createNetworkMediaExtractorDecoder(final Surface surface,
+                                                    MediaDataSource dataSource) {
+        // Parsing waits for the stream, so it stays off the decoder thread.
+        final MediaExtractor extractor = new MediaExtractor();
         try {
-            mExtractor.setDataSource(dataSource);
+            extractor.setDataSource(dataSource);
         } catch (IOException e) {
             e.printStackTrace();
         }
-        MediaCodec decoder = null;
-        for (int i = 0; i < mExtractor.getTrackCount(); i++) {
-            MediaFormat format = mExtractor.getTrackFormat(i);
-            String mime = format.getString(MediaFormat.KEY_MIME);
-            if (mime.startsWith("video/")) {
-                mExtractor.selectTrack(i);
-
-                try {
-                    decoder = MediaCodec.createDecoderByType(mime);
-                } catch (IOException e) {
-                    e.printStackTrace();
+        runOnDecoderThread(new Runnable() {
+            @Override
+            public void run() {
+                releaseDecoder();
+                mExtractor = extractor;
+                MediaCodec decoder = null;
+                for (int i = 0; i < extractor.getTrackCount(); i++) {
+                    MediaFormat format = extractor.getTrackFormat(i);
+                    String mime = format.getString(MediaFormat.KEY_MIME);
+                    if (mime.startsWith("video/")) {
+                        extractor.selectTrack(i);
+
+                        try {
+                            decoder = MediaCodec.createDecoderByType(mime);
+                        } catch (IOException e) {
+                            e.printStackTrace();
+                        }
+
+                        decoder.configure(format, surface, null, 0);
+                        break;
+                    }
                 }
-
-                decoder.configure(format, mDecodePreview.getHolder().getSurface(), null, 0);
-                break;
+                if (decoder != null) {
+                    decoder.start();
+                    mDecoderStarted = true;
+                }
+                mDecoder = decoder;
             }
-        }
-        if (decoder != null) {
-            decoder.start();
-        }
-        mDecoder = decoder;
+        });
     }
 
     private void decodeMediaExtractorSample() {
@@ -314,52 +720,51 @@ public class CameraActivity extends Activity implements CameraPreview.FrameListe
     }
 
     private void writeEncodedData(ByteBuffer outputBuffer, MediaCodec.BufferInfo bufferInfo) {
-        if (mDecoder == null) {
+        StreamPublisher streamSender = mStreamSender;
+        if (streamSender == null) {
             return;
         }
-//        decodeMediaExtractorSample();
-
-        // Ref http://blog.csdn.net/halleyzhang3/article/details/11473961
-//        ByteBuffer[] inputBuffers = mDecoder.getInputBuffers();
-//        int inputBufferIndex = mDecoder.dequeueInputBuffer(-1);
-//        if (inputBufferIndex >= 0) {
-//            ByteBuffer inputBuffer = inputBuffers[inputBufferIndex];
-//            inputBuffer.clear();
-//            inputBuffer.put(outputBuffer);
-//            mDecoder.queueInputBuffer(inputBufferIndex, 0, bufferInfo.size,
-//                    mCount * 1000000 / VIDEO_FRAME_PER_SECOND, 0);
-//            mCount++;
-//        }
-//
-//        MediaCodec.BufferInfo decodeBufferInfo = new MediaCodec.BufferInfo();
-//        int outputBufferIndex = mDecoder.dequeueOutputBuffer(decodeBufferInfo,0);
-//        while (outputBufferIndex >= 0) {
-//            mDecoder.releaseOutputBuffer(outputBufferIndex, true);
-//            outputBufferIndex = mDecoder.dequeueOutputBuffer(decodeBufferInfo, 0);
-//        }
+        long frameId = LatencyTracer.frameId(bufferInfo.presentationTimeUs);
+        mLatencyTracer.mark(frameId, LatencyTracer.STAGE_ENCODED);
+        mEncodedFrames.mark();
+        mEncodedBytes.mark(bufferInfo.size);
+        FrameBuffer frame = mEncodedFramePool.tryAcquire(bufferInfo.size);
+        if (frame == null) {
+            // The senders are holding every buffer, the stream resumes from a sync frame.
+            mDroppedEncodedFrames.increment();
+            onSyncFrameNeeded();
+            return;
+        }
+        ByteBuffer data = frame.data();
+        data.put(outputBuffer);
+        data.flip();
+        frame.setPresentationTimeUs(bufferInfo.presentationTimeUs);
+        frame.setFlags(bufferInfo.flags);
+        streamSender.sendFrame(frame);
+        mLatencyTracer.mark(frameId, LatencyTracer.STAGE_SENT);
     }
 
     @Override
     public void onFrame(byte[] buf, int offset, int length, int flag) {
-        ByteBuffer[] inputBuffers = mEncoder.getInputBuffers();
-        ByteBuffer[] outputBuffers = mEncoder.getOutputBuffers();
+        // The capture time doubles as the frame's presentation time, which the transports
+        // carry to the receiving end, and its trace id.
+        long captureNanos = mPreview.getFrameTimeNanos();
+        long ptsUs = captureNanos / 1000;
+        long frameId = LatencyTracer.frameId(ptsUs);
+        mLatencyTracer.mark(frameId, LatencyTracer.STAGE_CAPTURE, captureNanos);
+        mEncoderFeeder.feed(buf, offset, length, ptsUs);
+        mLatencyTracer.mark(frameId, LatencyTracer.STAGE_ENCODER_INPUT);
+    }
 
-        int inputBufferIndex = mEncoder.dequeueInputBuffer(-1);
-        if (inputBufferIndex >= 0) {
-            ByteBuffer inputBuffer = inputBuffers[inputBufferIndex];
-            inputBuffer.clear();
-            inputBuffer.put(buf, offset, length);
-            mEncoder.queueInputBuffer(inputBufferIndex, 0, length, 0, 0);
-        }
+    @Override
+    public void releaseFrame(byte[] frame) {
+        // The feeder has copied the frame out, the camera can fill it again.
+        mPreview.releaseFrame(frame);
+    }
 
-        MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
-        int outputBufferIndex = mEncoder.dequeueOutputBuffer(bufferInfo, 0);
-        while (outputBufferIndex >= 0) {
-            ByteBuffer outputBuffer = outputBuffers[outputBufferIndex];
-            writeEncodedData(outputBuffer, bufferInfo);
-            mEncoder.releaseOutputBuffer(outputBufferIndex, false);
-            outputBufferIndex = mEncoder.dequeueOutputBuffer(bufferInfo, 0);
-        }
+    @Override
+    public void onEncodedData(ByteBuffer data, MediaCodec.BufferInfo info) {
+        writeEncodedData(data, info);
     }
 
     @Override
@@ -370,11 +775,14 @@ public class CameraActivity extends Activity implements CameraPreview.FrameListe
 
 //        final NetworkMediaDataSource dataSource = new NetworkMediaDataSource();
 //        mStreamRequestTask = new StreamRequestTask(dataSource);
-//        mStreamRequestTask.execute();
+//        mFileStreamThread.post(mStreamRequestTask);
 
 
-        TCPStreamRequestTask task = new TCPStreamRequestTask();
-        task.execute();
+        if (mStreamReceiveTask != null) {
+            mStreamReceiveTask.cancel();
+        }
+        mStreamReceiveTask = new StreamReceiveTask(StreamTransports.createTransport(mTransportName));
+        mStreamThread.post(mStreamReceiveTask);
     }
 
     @Override
@@ -389,198 +797,152 @@ public class CameraActivity extends Activity implements CameraPreview.FrameListe
     @Override
     public void onClick(View v) {
         if (mStreamRequestTask != null) {
-            mStreamRequestTask.stopStreamReceive();
+            mStreamRequestTask.cancel();
             mStreamRequestTask = null;
-
-            if (mExtractor != null) {
-                mExtractor.release();
-                mExtractor = null;
-            }
-            if (mDecoder != null) {
-                mDecoder.stop();
-                mDecoder.release();
-                mDecoder = null;
+            mDecoderThread.post(new Runnable() {
+                @Override
+                public void run() {
+                    releaseDecoder();
+                    if (mExtractor != null) {
+                        mExtractor.release();
+                        mExtractor = null;
+                    }
+                }
+            });
+            if (mNetworkDataSource != null) {
+                try {
+                    mNetworkDataSource.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                mNetworkDataSource = null;
             }
         } else {
-            NetworkMediaDataSource dataSource = new NetworkMediaDataSource();
-            mStreamRequestTask = new StreamRequestTask(dataSource);
-            mStreamRequestTask.execute();
-            createNetworkMediaExtractorDecoder(mDecodePreview.getHolder().getSurface(), dataSource);
+            mDecoderThread.post(new Runnable() {
+                @Override
+                public void run() {
+                    stopDecodePipeline();
+                }
+            });
+            NetworkMediaDataSource dataSource = new NetworkMediaDataSource(
+                    createMediaDataStore(SAMPLE_STREAM_SIZE));
+            dataSource.setExpectedSize(SAMPLE_STREAM_SIZE);
+            dataSource.setListener(PLAYBACK_START_BYTES, new NetworkMediaDataSource.Listener() {
+                @Override
+                public void onPlaybackReady(NetworkMediaDataSource dataSource) {
+                    final ReadAheadMediaDataSource readAhead = new ReadAheadMediaDataSource(
+                            dataSource, READ_AHEAD_BLOCK_SIZE, READ_AHEAD_BLOCKS,
+                            READ_AHEAD_PREFETCH_BLOCKS, mReadAheadThread);
+                    mReadAheadSource = readAhead;
+                    new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            createNetworkMediaExtractorDecoder(
+                                    mDecodePreview.getHolder().getSurface(), readAhead);
+                        }
+                    }, "ExtractorSetup").start();
+                }
+            });
+            mNetworkDataSource = dataSource;
+            // Parity repairs what it can at once, the rest is asked for again.
+            NackRequester nackRequester = new NackRequester(REORDER_WINDOW_PACKETS,
+                    NACK_INTERVAL_MS, NACK_RETRY_MS, NACK_DEADLINE_MS,
+                    new PacketReorderBuffer(REORDER_WINDOW_PACKETS, 1400, dataSource));
+            mNackRequester = nackRequester;
+            StreamReceiver.StreamDataReceivedListener listener = new FecDecoder(
+                    FEC_MAX_BLOCK_SIZE, FEC_MAX_PARITY_COUNT, 1400, nackRequester);
+            if (mFileStreamChecksum) {
+                // Damaged packets are dropped first, so they get repaired like lost ones.
+                listener = new StreamVerifier(listener, new StreamVerifier.Listener() {
+                    @Override
+                    public void onCorruption(int index, int size) {
+                        mCorruptPackets.increment();
+                        Log.w(TAG, "Packet " + index + " arrived corrupt, " + size + " bytes");
+                    }
+                });
+            }
+            mStreamRequestTask = new StreamRequestTask(listener, nackRequester);
+            mFileStreamThread.post(mStreamRequestTask);
         }
     }
 
-    @Override
-    public void onDataReceived(ByteBuffer byteBuffer) {
-        int size = byteBuffer.limit() - byteBuffer.position();
-        Log.i(TAG, "Receive stream data from video server " + size + " bytes this time");
-        ByteBuffer[] inputBuffers = mDecoder.getInputBuffers();
-        int inputBufferIndex = mDecoder.dequeueInputBuffer(-1);
-        if (inputBufferIndex >= 0) {
-            ByteBuffer inputBuffer = inputBuffers[inputBufferIndex];
-            inputBuffer.clear();
-            inputBuffer.put(byteBuffer);
-            mDecoder.queueInputBuffer(inputBufferIndex, 0, size,
-                    mCount * 1000000 / VIDEO_FRAME_PER_SECOND, 0);
-            mCount++;
+    private MediaDataStore createMediaDataStore(long expectedSize) {
+        if (expectedSize >= 0 && expectedSize <= IN_MEMORY_STREAM_LIMIT) {
+            return new SegmentedMediaDataStore(mSegmentPool);
         }
+        try {
+            return new MappedFileMediaDataStore(getCacheDir(), 256 * 1024, 4 * 1024 * 1024, 4,
+                    1024 * 1024);
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot spill stream to file, keeping it in memory", e);
+            return new SegmentedMediaDataStore(mSegmentPool);
+        }
+    }
 
-        mDecodePreview.postDelayed(new Runnable() {
-            @Override
-            public void run() {
-                MediaCodec.BufferInfo decodeBufferInfo = new MediaCodec.BufferInfo();
-                int outputBufferIndex = mDecoder.dequeueOutputBuffer(decodeBufferInfo, 0);
-                while (outputBufferIndex >= 0) {
-                    mDecoder.releaseOutputBuffer(outputBufferIndex, true);
-                    outputBufferIndex = mDecoder.dequeueOutputBuffer(decodeBufferInfo, 0);
-                }
-            }
-        }, 50);
+    @Override
+    public void onFrameReceived(FrameBuffer frame) {
+        // The receive loop never returns to the stream thread, sample its CPU time here.
+        MediaThread.sampleCpuTime();
+        mReceivedFrames.mark();
+        mReceivedBytes.mark(frame.size());
+        DecoderConfigurator configurator = mDecoderConfigurator;
+        if (configurator == null || !configurator.onFrame(frame) || !mKeyFrameGate.admit(frame)) {
+            frame.release();
+            return;
+        }
+        DecodePipeline decodePipeline = mDecodePipeline;
+        if (decodePipeline == null) {
+            frame.release();
+            return;
+        }
+        // The jitter buffer schedules by the capture time the transport carried, or stamps an
+        // arrival time on frames that came without one.
+        decodePipeline.submit(frame);
     }
 
-    private class TCPStreamRequestTask extends AsyncTask<Void, Void, Void> {
-        private TCPStreamReceiver mStreamReceiver;
+    private class StreamReceiveTask implements MediaThread.Cancellable {
+        private final StreamTransport mTransport;
 
-        public TCPStreamRequestTask() {
-            mStreamReceiver = new TCPStreamReceiver();
-            mStreamReceiver.setDataReceivedListener(CameraActivity.this);
+        public StreamReceiveTask(StreamTransport transport) {
+            mTransport = transport;
+            mTransport.setFrameSink(mFrameBufferPool, CameraActivity.this);
+            mTransport.setConnectionListener(CameraActivity.this);
+            mTransport.setLatencyTracer(mLatencyTracer);
         }
 
         @Override
-        protected Void doInBackground(Void... params) {
-//            mStreamReceiver.requestStreamData("10.240.252.17", 18960);
-            mStreamReceiver.requestStreamData("10.242.24.174", 18960);
-            return null;
+        public void run() {
+            Log.i(TAG, "Receiving over " + mTransport.getName() + " from " + mStreamHost);
+            mTransport.receive(mStreamHost, STREAM_SERVER_PORT);
         }
 
-        public void stopStreamReceive() {
-            mStreamReceiver.stop();
+        @Override
+        public void cancel() {
+            mTransport.stop();
         }
     }
 
-    private class StreamRequestTask extends AsyncTask<Void, Void, Void> {
+    private class StreamRequestTask implements MediaThread.Cancellable {
         private StreamReceiver.StreamDataReceivedListener mDataReceivedListener;
         private StreamReceiver mStreamReceiver;
 
-        public StreamRequestTask(StreamReceiver.StreamDataReceivedListener dataReceivedListener) {
+        public StreamRequestTask(StreamReceiver.StreamDataReceivedListener dataReceivedListener,
+                                 NackRequester nackRequester) {
             mDataReceivedListener = dataReceivedListener;
             mStreamReceiver = new StreamReceiver();
+            mStreamReceiver.setBatchReceive(UDP_RECEIVE_BATCH_SIZE, UDP_RECEIVE_BUFFER_SIZE);
             mStreamReceiver.setDataReceivedListener(mDataReceivedListener);
+            mStreamReceiver.setNackRequester(nackRequester);
         }
 
         @Override
-        protected Void doInBackground(Void... params) {
+        public void run() {
             mStreamReceiver.requestStreamData("10.240.252.17", 18960);
-            return null;
-        }
-
-        public void stopStreamReceive() {
-            mStreamReceiver.stop();
-        }
-    }
-
-    private class NetworkMediaDataSource extends MediaDataSource implements
-            StreamReceiver.StreamDataReceivedListener {
-        private long dataTotalLen = 0;
-
-        private MessageDigest mMD5Digest;
-
-
-        private byte[] mMediaData;
-
-        private NetworkMediaDataSource() {
-            mMediaData = new byte[5000000];
-
-            try {
-                mMD5Digest = MessageDigest.getInstance("MD5");
-
-            } catch (NoSuchAlgorithmException e) {
-            }
-        }
-
-        @Override
-        public int readAt(long position, byte[] buffer, int offset, int size) throws IOException {
-            int readLen;
-            if (position >= getSize()) {
-                readLen = -1;
-            } else if (position < dataTotalLen && position + size >= dataTotalLen) {
-                readLen = (int) (dataTotalLen - position);
-            } else {
-                readLen = size;
-            }
-            if (readLen > 0) {
-                System.arraycopy(mMediaData, (int) position, buffer, offset, readLen);
-            }
-//            Log.i(TAG, "Packet read length = " + dataTotalLen + " position = " + position
-//                    + " size " + size + " readLen = " + readLen);
-            return readLen;
-        }
-
-        private char[] sHexChar = { '0', '1', '2', '3', '4', '5', '6', '7',
-                '8', '9', 'a', 'b', 'c', 'd', 'e', 'f' };
-
-        public String toHexString(byte[] b) {
-            StringBuilder sb = new StringBuilder(b.length * 2);
-            for (int i = 0; i < b.length; i++) {
-                sb.append(sHexChar[(b[i] & 0xf0) >>> 4]);
-                sb.append(sHexChar[b[i] & 0x0f]);
-            }
-            return sb.toString();
-        }
-
-        @Override
-        public long getSize() throws IOException {
-            return 1967007;
         }
 
         @Override
-        public void close() throws IOException {
-
-        }
-
-        private void testRead() {
-            byte[] buffer = new byte[4096];
-            int pos = 0;
-            int readlen;
-            MessageDigest mReadMD5Digest = null;
-            try {
-                mReadMD5Digest = MessageDigest.getInstance("MD5");
-            } catch (NoSuchAlgorithmException e) {
-            }
-            try {
-                while ((readlen = readAt(pos, buffer, 0, 4096)) >= 0) {
-                    mReadMD5Digest.update(buffer, 0, readlen);
-                    pos += readlen;
-                }
-                byte[] digest = mReadMD5Digest.digest();
-                String md5 = toHexString(digest);
-                Log.i(TAG, "Read data md5 = " + md5);
-            } catch (IOException e) {
-            }
-
-        }
-
-        @Override
-        public void onStreamDataReceived(int index, byte[] data, int offset, int size) {
-            System.arraycopy(data, offset, mMediaData, (int) dataTotalLen, size);
-            dataTotalLen += size;
-
-            if (dataTotalLen % 700000 == 0) {
-                Log.i(TAG, "Recv packet length = " + dataTotalLen + " index = " + index);
-            }
-            try {
-                if (dataTotalLen >= getSize()) {
-                    // || size != 1400
-                    Log.i(TAG, "Recv packet length = " + dataTotalLen + " index = " + index);
-                    mMD5Digest.update(mMediaData, 0, (int) dataTotalLen);
-                    byte[] digest = mMD5Digest.digest();
-                    String md5 = toHexString(digest);
-                    Log.i(TAG, "Recv data md5 = " + md5);
-
-                    createNetworkMediaExtractorDecoder(mDecodePreview.getHolder().getSurface(), this);
-                }
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+        public void cancel() {
+            mStreamReceiver.stop();
         }
     }
 }
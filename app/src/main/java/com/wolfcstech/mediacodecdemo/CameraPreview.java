@@ -1,6 +1,7 @@
 package com.wolfcstech.mediacodecdemo;
 
 import android.content.Context;
+import android.graphics.ImageFormat;
 import android.hardware.Camera;
 import android.util.Log;
 import android.view.SurfaceHolder;
@@ -16,11 +17,33 @@ public class CameraPreview extends SurfaceView implements SurfaceHolder.Callback
         Camera.PreviewCallback {
     private static final String TAG = "CameraPreview";
 
+    private static final int DEFAULT_PREVIEW_BUFFER_COUNT = 3;
+
     private FrameListener mFrameListener;
 
     private SurfaceHolder mHolder;
     private Camera mCamera;
-    private byte[] mPreviewBuffer = new byte[1280 * 960 * 3 / 2];
+    private int mPreviewFormat;
+
+    // Ring of preview buffers, each either queued with the camera or held by the listener.
+    private int mPreviewBufferCount = DEFAULT_PREVIEW_BUFFER_COUNT;
+    private byte[][] mPreviewBuffers = new byte[0][];
+    private boolean[] mBufferHeld = new boolean[0];
+    private int mQueuedBufferCount = 0;
+
+    // Intervals to learn the camera's actual frame rate from before judging gaps.
+    private static final int WARMUP_FRAMES = 8;
+
+    // Exponentially weighted mean of the measured frame interval, the camera's actual rate
+    // rather than the top of its fps range, which it falls short of in low light.
+    private long mFrameIntervalNanos = 0;
+    private int mMeasuredIntervals = 0;
+    private long mLastFrameNanos = 0;
+    private volatile long mFrameTimeNanos = 0;
+
+    private volatile long mDeliveredFrameCount = 0;
+    private volatile long mDroppedFrameCount = 0;
+    private volatile long mStarvationCount = 0;
 
     public CameraPreview(Context context, Camera camera) {
         super(context);
@@ -34,6 +57,17 @@ public class CameraPreview extends SurfaceView implements SurfaceHolder.Callback
         mHolder.setType(SurfaceHolder.SURFACE_TYPE_PUSH_BUFFERS);
     }
 
+    /**
+     * Set how many preview buffers circulate between the camera and the listener, takes
+     * effect the next time the preview starts.
+     */
+    public void setPreviewBufferCount(int count) {
+        if (count <= 0) {
+            throw new IllegalArgumentException("count must be positive");
+        }
+        mPreviewBufferCount = count;
+    }
+
     public void surfaceCreated(SurfaceHolder holder) {
         // The Surface has been created, now tell the camera where to draw the preview.
         try {
@@ -41,8 +75,7 @@ public class CameraPreview extends SurfaceView implements SurfaceHolder.Callback
         } catch (IOException e) {
             e.printStackTrace();
         }
-        mCamera.addCallbackBuffer(mPreviewBuffer);
-        mCamera.setPreviewCallbackWithBuffer(this);
+        queuePreviewBuffers();
         mCamera.startPreview();
     }
 
@@ -72,14 +105,63 @@ public class CameraPreview extends SurfaceView implements SurfaceHolder.Callback
         // start preview with new settings
         try {
             mCamera.setPreviewDisplay(holder);
-            mCamera.addCallbackBuffer(mPreviewBuffer);
-            mCamera.setPreviewCallbackWithBuffer(this);
+            queuePreviewBuffers();
             mCamera.startPreview();
         } catch (Exception e){
             Log.d(TAG, "Error starting camera preview: " + e.getMessage());
         }
     }
 
+    /**
+     * Size the buffer ring from the negotiated preview parameters and hand every buffer the
+     * listener does not hold to the camera. Reads the parameters once per preview start, as
+     * getParameters() is an IPC and a parse of the whole parameter set.
+     */
+    private synchronized void queuePreviewBuffers() {
+        Camera.Parameters parameters = mCamera.getParameters();
+        mPreviewFormat = parameters.getPreviewFormat();
+        Camera.Size previewSize = parameters.getPreviewSize();
+        int bufferSize = previewSize.width * previewSize.height
+                * ImageFormat.getBitsPerPixel(mPreviewFormat) / 8;
+
+        if (mPreviewBuffers.length != mPreviewBufferCount
+                || (mPreviewBuffers.length > 0 && mPreviewBuffers[0].length != bufferSize)) {
+            // Buffers still held by the listener are left to the garbage collector.
+            mPreviewBuffers = new byte[mPreviewBufferCount][];
+            mBufferHeld = new boolean[mPreviewBufferCount];
+            for (int i = 0; i < mPreviewBufferCount; i++) {
+                mPreviewBuffers[i] = new byte[bufferSize];
+            }
+        }
+
+        // Resetting the callback drops whatever the camera still had queued.
+        mCamera.setPreviewCallbackWithBuffer(null);
+        mCamera.setPreviewCallbackWithBuffer(this);
+        mQueuedBufferCount = 0;
+        for (int i = 0; i < mPreviewBuffers.length; i++) {
+            if (!mBufferHeld[i]) {
+                mCamera.addCallbackBuffer(mPreviewBuffers[i]);
+                mQueuedBufferCount++;
+            }
+        }
+        mLastFrameNanos = 0;
+        mFrameIntervalNanos = 0;
+        mMeasuredIntervals = 0;
+    }
+
+    private int indexOfBuffer(byte[] buffer) {
+        for (int i = 0; i < mPreviewBuffers.length; i++) {
+            if (mPreviewBuffers[i] == buffer) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public int getPreviewFormat() {
+        return mPreviewFormat;
+    }
+
     public void setFrameListener(FrameListener frameListener) {
         mFrameListener = frameListener;
     }
@@ -87,14 +169,101 @@ public class CameraPreview extends SurfaceView implements SurfaceHolder.Callback
     @Override
     public void onPreviewFrame(byte[] data, Camera camera) {
 //        Log.i(TAG, "onPreviewFrame, data length = " + data.length);
-        camera.getParameters().getPreviewFormat();
+        long now = System.nanoTime();
+        synchronized (this) {
+            int index = indexOfBuffer(data);
+            if (index >= 0) {
+                mBufferHeld[index] = true;
+                mQueuedBufferCount--;
+                if (mQueuedBufferCount == 0) {
+                    // The camera has nowhere to put the next frame until one comes back.
+                    mStarvationCount++;
+                }
+            }
+            if (mLastFrameNanos != 0) {
+                onFrameInterval(now - mLastFrameNanos);
+            }
+            mLastFrameNanos = now;
+        }
+        mDeliveredFrameCount++;
+        mFrameTimeNanos = now;
+
         if (mFrameListener != null) {
             mFrameListener.onFrame(data, 0, data.length, 0);
+        } else {
+            releaseFrame(data);
+        }
+    }
+
+    /**
+     * The camera drops frames silently when it has no buffer, so infer them from gaps in the
+     * measured frame interval.
+     */
+    private void onFrameInterval(long interval) {
+        if (mMeasuredIntervals < WARMUP_FRAMES) {
+            mMeasuredIntervals++;
+            mFrameIntervalNanos = mFrameIntervalNanos == 0 ? interval
+                    : mFrameIntervalNanos + (interval - mFrameIntervalNanos) / mMeasuredIntervals;
+            return;
+        }
+        if (interval > mFrameIntervalNanos * 3 / 2) {
+            mDroppedFrameCount += (interval + mFrameIntervalNanos / 2) / mFrameIntervalNanos - 1;
+            // A gap still pulls the mean up a little, so a camera that really slowed down is
+            // followed instead of counted as dropping every other frame.
+            interval = Math.min(interval, 2 * mFrameIntervalNanos);
+        }
+        mFrameIntervalNanos += (interval - mFrameIntervalNanos) / 16;
+    }
+
+    /**
+     * Give a frame buffer back to the camera once its content has been consumed. May be
+     * called from any thread.
+     */
+    public synchronized void releaseFrame(byte[] buffer) {
+        int index = indexOfBuffer(buffer);
+        if (index < 0 || !mBufferHeld[index]) {
+            return;
         }
-        mCamera.addCallbackBuffer(mPreviewBuffer);
+        mBufferHeld[index] = false;
+        mCamera.addCallbackBuffer(buffer);
+        mQueuedBufferCount++;
+    }
+
+    /**
+     * When the frame being, or last, delivered to the listener arrived from the camera, on
+     * the {@link System#nanoTime()} clock.
+     */
+    public long getFrameTimeNanos() {
+        return mFrameTimeNanos;
+    }
+
+    public long getDeliveredFrameCount() {
+        return mDeliveredFrameCount;
+    }
+
+    /**
+     * Frames the camera is estimated to have dropped, judged by gaps in frame arrival.
+     */
+    public long getDroppedFrameCount() {
+        return mDroppedFrameCount;
+    }
+
+    /**
+     * Times the camera was left without a free buffer.
+     */
+    public long getStarvationCount() {
+        return mStarvationCount;
+    }
+
+    public synchronized int getQueuedBufferCount() {
+        return mQueuedBufferCount;
     }
 
     public interface FrameListener {
+        /**
+         * The listener must pass {@code buf} to {@link #releaseFrame(byte[])} once it has
+         * consumed the frame, possibly later and on another thread.
+         */
         void onFrame(byte[] buf, int offset, int length, int flag);
     }
 }
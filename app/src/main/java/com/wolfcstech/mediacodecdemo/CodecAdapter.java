@@ -0,0 +1,29 @@
+package com.wolfcstech.mediacodecdemo;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The subset of {@link android.media.MediaCodec} a pipeline stage drives, so the stage can
+ * run against a fake codec on the JVM.
+ */
+public interface CodecAdapter {
+    int INFO_TRY_AGAIN_LATER = -1;
+
+    int dequeueInputBuffer(long timeoutUs);
+
+    ByteBuffer getInputBuffer(int index);
+
+    void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags);
+
+    /**
+     * @return an output buffer index, or a negative {@code MediaCodec.INFO_*} code.
+     */
+    int dequeueOutputBuffer(long timeoutUs);
+
+    /**
+     * The presentation time of the buffer last returned by {@link #dequeueOutputBuffer(long)}.
+     */
+    long getOutputPresentationTimeUs();
+
+    void releaseOutputBuffer(int index, boolean render);
+}
@@ -0,0 +1,217 @@
+package com.wolfcstech.mediacodecdemo;
+
+import java.util.Random;
+
+/**
+ * Connection health and retry pacing for a receiver that reconnects to its server. The
+ * receiver reports connection events; the supervisor tracks the health state, tells listeners
+ * about transitions, measures how long reconnecting took, and hands out jittered exponential
+ * backoff delays so a flapping server is neither hammered nor given up on.
+ *
+ * <p>The backoff only resets once a connection has stayed up for the stable period, so a
+ * server that accepts and immediately drops connections still gets backed off from.
+ */
+public class ConnectionSupervisor {
+    public static final int STATE_IDLE = 0;
+    public static final int STATE_CONNECTING = 1;
+    public static final int STATE_CONNECTED = 2;
+    public static final int STATE_BACKOFF = 3;
+    public static final int STATE_STOPPED = 4;
+
+    public static final int DEFAULT_CONNECT_TIMEOUT_MS = 3000;
+    public static final int DEFAULT_READ_TIMEOUT_MS = 5000;
+
+    private final long mInitialBackoffMs;
+    private final long mMaxBackoffMs;
+    private final double mJitter;
+    private final long mStablePeriodMs;
+    private final JitterBuffer.Clock mClock;
+    private final Random mRandom;
+
+    private int mConnectTimeoutMs = DEFAULT_CONNECT_TIMEOUT_MS;
+    private int mReadTimeoutMs = DEFAULT_READ_TIMEOUT_MS;
+    private volatile Listener mListener;
+
+    private volatile int mState = STATE_IDLE;
+    private int mConsecutiveFailures = 0;
+    private long mConnectedAtNanos;
+    /** When the connection was lost, -1 while connected or before the first connection. */
+    private long mLostAtNanos = -1;
+
+    private volatile long mConnectAttemptCount = 0;
+    private volatile long mFailedAttemptCount = 0;
+    private volatile long mReconnectCount = 0;
+    private volatile long mLastReconnectLatencyMs = 0;
+    private volatile long mMaxReconnectLatencyMs = 0;
+    private volatile long mTotalReconnectLatencyMs = 0;
+
+    public ConnectionSupervisor() {
+        this(250, 30000, 0.5, 10000, JitterBuffer.Clock.SYSTEM, new Random());
+    }
+
+    /**
+     * @param jitter the fraction of each delay that is randomized, between 0 and 1.
+     * @param stablePeriodMs how long a connection must last to reset the backoff.
+     */
+    ConnectionSupervisor(long initialBackoffMs, long maxBackoffMs, double jitter,
+                         long stablePeriodMs, JitterBuffer.Clock clock, Random random) {
+        if (initialBackoffMs <= 0 || maxBackoffMs < initialBackoffMs || jitter < 0 || jitter > 1) {
+            throw new IllegalArgumentException("invalid backoff parameters");
+        }
+        mInitialBackoffMs = initialBackoffMs;
+        mMaxBackoffMs = maxBackoffMs;
+        mJitter = jitter;
+        mStablePeriodMs = stablePeriodMs;
+        mClock = clock;
+        mRandom = random;
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    public void setTimeouts(int connectTimeoutMs, int readTimeoutMs) {
+        mConnectTimeoutMs = connectTimeoutMs;
+        mReadTimeoutMs = readTimeoutMs;
+    }
+
+    public int getConnectTimeoutMs() {
+        return mConnectTimeoutMs;
+    }
+
+    /**
+     * How long a connection may go without receiving anything before it is considered dead.
+     */
+    public int getReadTimeoutMs() {
+        return mReadTimeoutMs;
+    }
+
+    public void onConnecting() {
+        mConnectAttemptCount++;
+        setState(STATE_CONNECTING);
+    }
+
+    public void onConnected() {
+        long now = mClock.nanoTime();
+        mConnectedAtNanos = now;
+        if (mLostAtNanos >= 0) {
+            long latencyMs = (now - mLostAtNanos) / 1000000;
+            mLastReconnectLatencyMs = latencyMs;
+            mMaxReconnectLatencyMs = Math.max(mMaxReconnectLatencyMs, latencyMs);
+            mTotalReconnectLatencyMs += latencyMs;
+            mReconnectCount++;
+            mLostAtNanos = -1;
+        }
+        setState(STATE_CONNECTED);
+    }
+
+    /**
+     * Report that a connection attempt failed or an established connection was lost.
+     *
+     * @return how long to wait before the next attempt, in milliseconds.
+     */
+    public long onDisconnected() {
+        long now = mClock.nanoTime();
+        if (mState == STATE_CONNECTED) {
+            if ((now - mConnectedAtNanos) / 1000000 >= mStablePeriodMs) {
+                mConsecutiveFailures = 0;
+            }
+            mLostAtNanos = now;
+        } else {
+            mFailedAttemptCount++;
+        }
+        long delayMs = nextBackoffMs();
+        mConsecutiveFailures++;
+        setState(STATE_BACKOFF);
+        return delayMs;
+    }
+
+    public void onStopped() {
+        setState(STATE_STOPPED);
+    }
+
+    private long nextBackoffMs() {
+        long delayMs = mInitialBackoffMs << Math.min(mConsecutiveFailures, 30);
+        if (delayMs <= 0 || delayMs > mMaxBackoffMs) {
+            delayMs = mMaxBackoffMs;
+        }
+        // Spread the retries of many clients instead of letting them reconnect in lockstep.
+        long jitterMs = (long) (delayMs * mJitter * mRandom.nextDouble());
+        return delayMs - jitterMs;
+    }
+
+    private void setState(int state) {
+        int previous = mState;
+        if (previous == state) {
+            return;
+        }
+        mState = state;
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onHealthChanged(previous, state);
+        }
+    }
+
+    public int getState() {
+        return mState;
+    }
+
+    public long getConnectAttemptCount() {
+        return mConnectAttemptCount;
+    }
+
+    /**
+     * Attempts that never got connected.
+     */
+    public long getFailedAttemptCount() {
+        return mFailedAttemptCount;
+    }
+
+    /**
+     * Connections re-established after one was lost.
+     */
+    public long getReconnectCount() {
+        return mReconnectCount;
+    }
+
+    /**
+     * Milliseconds from losing the connection to being connected again, for the last
+     * reconnect.
+     */
+    public long getLastReconnectLatencyMs() {
+        return mLastReconnectLatencyMs;
+    }
+
+    public long getMaxReconnectLatencyMs() {
+        return mMaxReconnectLatencyMs;
+    }
+
+    public long getAverageReconnectLatencyMs() {
+        long count = mReconnectCount;
+        return count > 0 ? mTotalReconnectLatencyMs / count : 0;
+    }
+
+    public static String stateName(int state) {
+        switch (state) {
+            case STATE_IDLE:
+                return "IDLE";
+            case STATE_CONNECTING:
+                return "CONNECTING";
+            case STATE_CONNECTED:
+                return "CONNECTED";
+            case STATE_BACKOFF:
+                return "BACKOFF";
+            case STATE_STOPPED:
+                return "STOPPED";
+            default:
+                return "UNKNOWN";
+        }
+    }
+
+    public interface Listener {
+        /**
+         * Called on the receiving thread on every health state transition.
+         */
+        void onHealthChanged(int previousState, int state);
+    }
+}
@@ -0,0 +1,119 @@
+package com.wolfcstech.mediacodecdemo;
+
+import java.nio.ByteBuffer;
+import java.util.zip.Checksum;
+
+/**
+ * CRC-32C (Castagnoli), the checksum of iSCSI and ext4. {@code java.util.zip.CRC32C} only
+ * arrived with Java 9, so this is the slicing-by-8 table method: eight table loads per eight
+ * bytes instead of one per byte, several times faster than a byte-wise loop.
+ */
+public final class Crc32c implements Checksum {
+    private static final int POLYNOMIAL = 0x82F63B78;
+
+    // TABLE[k][b] is the CRC of byte b followed by k zero bytes.
+    private static final int[][] TABLE = new int[8][256];
+
+    static {
+        for (int b = 0; b < 256; b++) {
+            int crc = b;
+            for (int i = 0; i < 8; i++) {
+                crc = (crc & 1) != 0 ? crc >>> 1 ^ POLYNOMIAL : crc >>> 1;
+            }
+            TABLE[0][b] = crc;
+        }
+        for (int b = 0; b < 256; b++) {
+            for (int k = 1; k < 8; k++) {
+                int previous = TABLE[k - 1][b];
+                TABLE[k][b] = previous >>> 8 ^ TABLE[0][previous & 0xFF];
+            }
+        }
+    }
+
+    private int mCrc = 0;
+
+    @Override
+    public void update(int b) {
+        mCrc = update(mCrc, b);
+    }
+
+    @Override
+    public void update(byte[] data, int offset, int length) {
+        mCrc = update(mCrc, data, offset, length);
+    }
+
+    public void update(byte[] data) {
+        mCrc = update(mCrc, data, 0, data.length);
+    }
+
+    @Override
+    public long getValue() {
+        return mCrc & 0xFFFFFFFFL;
+    }
+
+    @Override
+    public void reset() {
+        mCrc = 0;
+    }
+
+    /**
+     * The CRC of {@code length} bytes of {@code data}.
+     */
+    public static int compute(byte[] data, int offset, int length) {
+        return update(0, data, offset, length);
+    }
+
+    /**
+     * Continue {@code crc}, the CRC of the bytes so far, with one more byte.
+     */
+    public static int update(int crc, int b) {
+        crc = ~crc;
+        crc = crc >>> 8 ^ TABLE[0][(crc ^ b) & 0xFF];
+        return ~crc;
+    }
+
+    /**
+     * Continue {@code crc}, the CRC of the bytes so far, with the remaining bytes of
+     * {@code buffer}, leaving its position untouched.
+     */
+    public static int update(int crc, ByteBuffer buffer) {
+        if (buffer.hasArray()) {
+            return update(crc, buffer.array(), buffer.arrayOffset() + buffer.position(),
+                    buffer.remaining());
+        }
+        int[] t0 = TABLE[0];
+        crc = ~crc;
+        for (int i = buffer.position(); i < buffer.limit(); i++) {
+            crc = crc >>> 8 ^ t0[(crc ^ buffer.get(i)) & 0xFF];
+        }
+        return ~crc;
+    }
+
+    /**
+     * Continue {@code crc}, the CRC of the bytes so far, with {@code length} bytes of
+     * {@code data}.
+     */
+    public static int update(int crc, byte[] data, int offset, int length) {
+        int[] t0 = TABLE[0];
+        int[] t1 = TABLE[1];
+        int[] t2 = TABLE[2];
+        int[] t3 = TABLE[3];
+        int[] t4 = TABLE[4];
+        int[] t5 = TABLE[5];
+        int[] t6 = TABLE[6];
+        int[] t7 = TABLE[7];
+        crc = ~crc;
+        int end = offset + length;
+        for (; end - offset >= 8; offset += 8) {
+            int low = crc ^ (data[offset] & 0xFF | (data[offset + 1] & 0xFF) << 8
+                    | (data[offset + 2] & 0xFF) << 16 | data[offset + 3] << 24);
+            crc = t7[low & 0xFF] ^ t6[low >>> 8 & 0xFF] ^ t5[low >>> 16 & 0xFF] ^ t4[low >>> 24]
+                    ^ t3[data[offset + 4] & 0xFF] ^ t2[data[offset + 5] & 0xFF]
+                    ^ t1[data[offset + 6] & 0xFF] ^ t0[data[offset + 7] & 0xFF];
+        }
+        for (; offset < end; offset++) {
+            crc = crc >>> 8 ^ t0[(crc ^ data[offset]) & 0xFF];
+        }
+        return ~crc;
+    }
+}
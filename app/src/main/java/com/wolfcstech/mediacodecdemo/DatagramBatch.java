@@ -0,0 +1,85 @@
+package com.wolfcstech.mediacodecdemo;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Indexed datagrams drained from the socket in one wakeup. The packet buffers are
+ * preallocated and reused for the next batch, so a listener must consume or copy them before
+ * returning. Heap buffers let a byte array consumer read the packets in place.
+ */
+public class DatagramBatch {
+    private final ByteBuffer[] mPackets;
+    private final int[] mIndices;
+    private int mCount = 0;
+
+    public DatagramBatch(int capacity, int maxPacketSize, boolean direct) {
+        mPackets = new ByteBuffer[capacity];
+        for (int i = 0; i < capacity; i++) {
+            mPackets[i] = direct ? ByteBuffer.allocateDirect(maxPacketSize)
+                    : ByteBuffer.allocate(maxPacketSize);
+        }
+        mIndices = new int[capacity];
+    }
+
+    public int capacity() {
+        return mPackets.length;
+    }
+
+    public int size() {
+        return mCount;
+    }
+
+    public int getIndex(int i) {
+        return mIndices[i];
+    }
+
+    /**
+     * The payload of the {@code i}th datagram, positioned past the index header.
+     */
+    public ByteBuffer getPayload(int i) {
+        return mPackets[i];
+    }
+
+    /**
+     * The whole {@code i}th datagram, rewound to include the first four bytes that
+     * {@link #getIndex(int)} was read from. For packet formats without an index header.
+     */
+    public ByteBuffer getDatagram(int i) {
+        ByteBuffer packet = mPackets[i];
+        packet.position(0);
+        return packet;
+    }
+
+    void clear() {
+        mCount = 0;
+    }
+
+    boolean isFull() {
+        return mCount == mPackets.length;
+    }
+
+    /**
+     * The buffer the next datagram should be received into.
+     */
+    ByteBuffer nextPacketBuffer() {
+        ByteBuffer packet = mPackets[mCount];
+        packet.clear();
+        return packet;
+    }
+
+    /**
+     * Commit the datagram just received into {@link #nextPacketBuffer()}.
+     *
+     * @return false if it is too short to carry an index and was discarded.
+     */
+    boolean commit() {
+        ByteBuffer packet = mPackets[mCount];
+        packet.flip();
+        if (packet.remaining() < 4) {
+            return false;
+        }
+        mIndices[mCount] = packet.getInt();
+        mCount++;
+        return true;
+    }
+}
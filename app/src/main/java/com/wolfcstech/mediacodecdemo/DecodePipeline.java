@@ -0,0 +1,286 @@
+package com.wolfcstech.mediacodecdemo;
+
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Decouples frame reception from decoding. Receivers {@link #submit(FrameBuffer)} frames into
+ * a bounded {@link FrameQueue} without blocking, one thread feeds the codec input from the
+ * queue and another drains and renders the codec output. Both loops run on
+ * {@link MediaThread}s, at {@link MediaThread#PRIORITY_CODEC} and
+ * {@link MediaThread#PRIORITY_RENDER} unless {@link #setThreadPriorities(int, int)} says
+ * otherwise. The input thread's queue latency is the time a frame spent in the queue.
+ */
+public class DecodePipeline {
+    private static final String TAG = "DecodePipeline";
+
+    private static final long CODEC_TIMEOUT_US = 10000;
+    private static final long IDLE_PARK_NANOS = 5000000;
+
+    private final CodecAdapter mCodec;
+    private final FrameQueue mQueue;
+    private final DropPolicy mDropPolicy;
+    private final int mHighWatermark;
+    private final int mLowWatermark;
+
+    private Listener mListener;
+    private volatile LatencyTracer mLatencyTracer;
+
+    private int mInputPriority = MediaThread.PRIORITY_CODEC;
+    private int mRenderPriority = MediaThread.PRIORITY_RENDER;
+
+    private volatile boolean mRunning = false;
+    private MediaThread mInputThread;
+    private MediaThread mOutputThread;
+    private volatile Thread mInputLoopThread;
+
+    private final AtomicBoolean mCongested = new AtomicBoolean();
+    private final AtomicLong mSubmittedCount = new AtomicLong();
+    private final AtomicLong mDroppedCount = new AtomicLong();
+    private volatile long mQueuedCount = 0;
+    private volatile long mRenderedCount = 0;
+
+    public DecodePipeline(CodecAdapter codec, FrameQueue queue, DropPolicy dropPolicy) {
+        mCodec = codec;
+        mQueue = queue;
+        mDropPolicy = dropPolicy;
+        mHighWatermark = Math.max(1, queue.capacity() * 3 / 4);
+        mLowWatermark = queue.capacity() / 4;
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Mark frames in {@code tracer} as they are queued to the codec and rendered, keyed by
+     * {@link LatencyTracer#frameId(long)} of their presentation time. The transport marks
+     * them received.
+     */
+    public void setLatencyTracer(LatencyTracer tracer) {
+        mLatencyTracer = tracer;
+    }
+
+    /**
+     * Set the Android priorities of the codec input and render threads, taking effect on the
+     * next {@link #start()}.
+     */
+    public synchronized void setThreadPriorities(int inputPriority, int renderPriority) {
+        mInputPriority = inputPriority;
+        mRenderPriority = renderPriority;
+    }
+
+    public synchronized void start() {
+        if (mRunning) {
+            return;
+        }
+        mRunning = true;
+        mInputThread = new MediaThread("DecodeInput", mInputPriority);
+        mOutputThread = new MediaThread("DecodeOutput", mRenderPriority);
+        mInputThread.start();
+        mOutputThread.start();
+        mInputLoopThread = mInputThread.getThread();
+        mInputThread.post(new Runnable() {
+            @Override
+            public void run() {
+                feedInput();
+            }
+        });
+        mOutputThread.post(new Runnable() {
+            @Override
+            public void run() {
+                drainOutput();
+            }
+        });
+    }
+
+    /**
+     * Stop both loops and release every frame still queued. The codec itself is left to the
+     * caller.
+     */
+    public synchronized void stop() {
+        if (!mRunning) {
+            return;
+        }
+        mRunning = false;
+        LockSupport.unpark(mInputLoopThread);
+        mInputThread.quit();
+        mOutputThread.quit();
+        mInputLoopThread = null;
+
+        FrameBuffer frame;
+        while ((frame = mQueue.poll()) != null) {
+            frame.release();
+        }
+    }
+
+    /**
+     * Hand a frame to the pipeline, which takes over the caller's reference. Never blocks;
+     * when the queue is full the {@link DropPolicy} picks the frame to drop.
+     *
+     * @return false if {@code frame} itself was dropped.
+     */
+    public boolean submit(FrameBuffer frame) {
+        mSubmittedCount.incrementAndGet();
+        frame.setEnqueueTimeNanos(System.nanoTime());
+        while (!mQueue.offer(frame)) {
+            FrameBuffer victim = mDropPolicy.selectVictim(mQueue, frame);
+            drop(victim);
+            if (victim == frame) {
+                return false;
+            }
+        }
+
+        if (mQueue.size() >= mHighWatermark && mCongested.compareAndSet(false, true)) {
+            Listener listener = mListener;
+            if (listener != null) {
+                listener.onBackpressureChanged(true);
+            }
+        }
+        Thread inputThread = mInputLoopThread;
+        if (inputThread != null) {
+            LockSupport.unpark(inputThread);
+        }
+        return true;
+    }
+
+    private void drop(FrameBuffer frame) {
+        mDroppedCount.incrementAndGet();
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onFrameDropped(frame);
+        }
+        frame.release();
+    }
+
+    private void feedInput() {
+        MediaThread.Stats stats = mInputThread.getStats();
+        try {
+            while (mRunning) {
+                MediaThread.sampleCpuTime();
+                FrameBuffer frame = mQueue.poll();
+                if (frame == null) {
+                    LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                    continue;
+                }
+                stats.recordQueueLatency(System.nanoTime() - frame.getEnqueueTimeNanos());
+                if (mQueue.size() <= mLowWatermark && mCongested.compareAndSet(true, false)) {
+                    Listener listener = mListener;
+                    if (listener != null) {
+                        listener.onBackpressureChanged(false);
+                    }
+                }
+                try {
+                    queueFrame(frame);
+                } finally {
+                    frame.release();
+                }
+            }
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "Codec input failed", e);
+        }
+    }
+
+    private void queueFrame(FrameBuffer frame) {
+        int index = CodecAdapter.INFO_TRY_AGAIN_LATER;
+        while (mRunning && index < 0) {
+            index = mCodec.dequeueInputBuffer(CODEC_TIMEOUT_US);
+        }
+        if (index < 0) {
+            return;
+        }
+
+        ByteBuffer inputBuffer = mCodec.getInputBuffer(index);
+        inputBuffer.clear();
+        ByteBuffer data = frame.data();
+        int size = data.remaining();
+        if (size > inputBuffer.remaining()) {
+            // Give the input buffer back empty rather than feed the codec a truncated frame.
+            mCodec.queueInputBuffer(index, 0, 0, frame.getPresentationTimeUs(), 0);
+            mDroppedCount.incrementAndGet();
+            return;
+        }
+        int position = data.position();
+        inputBuffer.put(data);
+        data.position(position);
+        // Marked before queueing, the render thread may mark the frame rendered right after.
+        LatencyTracer tracer = mLatencyTracer;
+        if (tracer != null) {
+            tracer.mark(LatencyTracer.frameId(frame.getPresentationTimeUs()),
+                    LatencyTracer.STAGE_DECODER_INPUT);
+        }
+        mCodec.queueInputBuffer(index, 0, size, frame.getPresentationTimeUs(), frame.getFlags());
+        mQueuedCount++;
+    }
+
+    private void drainOutput() {
+        try {
+            while (mRunning) {
+                MediaThread.sampleCpuTime();
+                int index = mCodec.dequeueOutputBuffer(CODEC_TIMEOUT_US);
+                if (index >= 0) {
+                    mCodec.releaseOutputBuffer(index, true);
+                    mRenderedCount++;
+                    LatencyTracer tracer = mLatencyTracer;
+                    if (tracer != null) {
+                        tracer.mark(LatencyTracer.frameId(mCodec.getOutputPresentationTimeUs()),
+                                LatencyTracer.STAGE_RENDERED);
+                    }
+                }
+            }
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "Codec output failed", e);
+        }
+    }
+
+    /**
+     * Stats of the codec input thread, null before the first {@link #start()}.
+     */
+    public synchronized MediaThread.Stats getInputThreadStats() {
+        return mInputThread != null ? mInputThread.getStats() : null;
+    }
+
+    /**
+     * Stats of the render thread, null before the first {@link #start()}.
+     */
+    public synchronized MediaThread.Stats getRenderThreadStats() {
+        return mOutputThread != null ? mOutputThread.getStats() : null;
+    }
+
+    public int getQueueDepth() {
+        return mQueue.size();
+    }
+
+    public long getSubmittedCount() {
+        return mSubmittedCount.get();
+    }
+
+    public long getDroppedCount() {
+        return mDroppedCount.get();
+    }
+
+    public long getQueuedCount() {
+        return mQueuedCount;
+    }
+
+    public long getRenderedCount() {
+        return mRenderedCount;
+    }
+
+    public interface Listener {
+        /**
+         * Called before the dropped frame is released.
+         */
+        void onFrameDropped(FrameBuffer frame);
+
+        /**
+         * Called when the queue rises past its high watermark or falls back under its low
+         * watermark, so producers can throttle.
+         */
+        void onBackpressureChanged(boolean congested);
+    }
+}
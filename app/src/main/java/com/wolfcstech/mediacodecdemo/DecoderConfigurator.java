@@ -0,0 +1,206 @@
+package com.wolfcstech.mediacodecdemo;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Watches the access units on their way to the decoder for in-band SPS and PPS, and asks for
+ * the decoder to be configured from them. The listener is only called again when a new SPS
+ * changes what the decoder was configured for; repeated or merely cosmetic parameter sets
+ * are passed on in-band. Frames that arrive before the first configuration are rejected, the
+ * decoder could not use them anyway.
+ *
+ * <p>Once configured, only frames flagged as codec config or key frame are scanned, and
+ * unflagged frames that start with an SPS, as sent by transports that do not carry flags.
+ * Not thread safe, call from the receiving thread.
+ */
+public class DecoderConfigurator {
+    private static final String TAG = "DecoderConfigurator";
+
+    private static final byte[] START_CODE = {0, 0, 0, 1};
+
+    private final Listener mListener;
+
+    private SequenceParameterSet mSps;
+    private byte[] mSpsNal;
+    private byte[] mPpsNal;
+    private boolean mConfigured = false;
+
+    private byte[] mPendingSpsNal;
+    private SequenceParameterSet mPendingSps;
+
+    private long mRejectedCount = 0;
+    private long mReconfigureCount = 0;
+
+    public DecoderConfigurator(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Inspect a frame, calling the listener first if it carries a new configuration.
+     *
+     * @return false if the frame arrived before any configuration and should be dropped.
+     */
+    public boolean onFrame(FrameBuffer frame) {
+        boolean mayCarryConfig = (frame.getFlags()
+                & (MediaCodec.BUFFER_FLAG_CODEC_CONFIG | MediaCodec.BUFFER_FLAG_KEY_FRAME)) != 0;
+        if (mayCarryConfig || !mConfigured || startsWithSps(frame.data())) {
+            scan(frame.data());
+        }
+        if (!mConfigured) {
+            mRejectedCount++;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Forget the current configuration, the next SPS and PPS will be reported again.
+     */
+    public void reset() {
+        mConfigured = false;
+        mSps = null;
+        mSpsNal = null;
+        mPpsNal = null;
+        mPendingSps = null;
+        mPendingSpsNal = null;
+    }
+
+    private static boolean startsWithSps(ByteBuffer data) {
+        // Look no further than a four-byte start code, slices are not worth searching.
+        int limit = Math.min(data.limit(), data.position() + START_CODE.length + 1);
+        int start = H264.findNalStart(data, data.position(), limit);
+        return start >= 0 && start < limit && H264.nalType(data.get(start)) == H264.NAL_SPS;
+    }
+
+    private void scan(ByteBuffer data) {
+        int limit = data.limit();
+        int start = H264.findNalStart(data, data.position(), limit);
+        while (start >= 0 && start < limit) {
+            int next = H264.findNalStart(data, start, limit);
+            int end = next >= 0 ? H264.nalEnd(data, start, next) : limit;
+            int type = H264.nalType(data.get(start));
+            if (type == H264.NAL_SPS) {
+                onSps(data, start, end);
+            } else if (type == H264.NAL_PPS) {
+                onPps(data, start, end);
+            } else if (type >= H264.NAL_SLICE && type <= H264.NAL_IDR_SLICE) {
+                // Parameter sets always precede the slices that use them.
+                break;
+            }
+            start = next;
+        }
+    }
+
+    private void onSps(ByteBuffer data, int from, int to) {
+        if (mPendingSpsNal != null ? sameBytes(mPendingSpsNal, data, from, to)
+                : mSpsNal != null && sameBytes(mSpsNal, data, from, to)) {
+            return;
+        }
+        SequenceParameterSet sps;
+        try {
+            sps = SequenceParameterSet.parse(data, from, to);
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "Ignoring malformed SPS: " + e.getMessage());
+            return;
+        }
+        mPendingSps = sps;
+        mPendingSpsNal = copy(data, from, to);
+    }
+
+    private void onPps(ByteBuffer data, int from, int to) {
+        SequenceParameterSet pendingSps = mPendingSps;
+        if (pendingSps == null) {
+            // A PPS update alone never needs the decoder reconfigured.
+            return;
+        }
+        boolean reconfigure = !mConfigured || mSps.requiresReconfigure(pendingSps);
+        mSpsNal = mPendingSpsNal;
+        mSps = pendingSps;
+        mPendingSps = null;
+        mPendingSpsNal = null;
+        if (!reconfigure) {
+            return;
+        }
+        mPpsNal = copy(data, from, to);
+        mConfigured = true;
+        mReconfigureCount++;
+        mListener.onConfigurationChanged(mSps, withStartCode(mSpsNal), withStartCode(mPpsNal));
+    }
+
+    private static boolean sameBytes(byte[] bytes, ByteBuffer data, int from, int to) {
+        if (bytes.length != to - from) {
+            return false;
+        }
+        for (int i = 0; i < bytes.length; i++) {
+            if (bytes[i] != data.get(from + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte[] copy(ByteBuffer data, int from, int to) {
+        byte[] bytes = new byte[to - from];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = data.get(from + i);
+        }
+        return bytes;
+    }
+
+    private static ByteBuffer withStartCode(byte[] nal) {
+        ByteBuffer csd = ByteBuffer.allocate(START_CODE.length + nal.length);
+        csd.put(START_CODE).put(nal);
+        csd.flip();
+        return csd;
+    }
+
+    /**
+     * Build the decoder format for {@code sps}, primed with the parameter sets so the decoder
+     * can start on the first key frame.
+     */
+    public static MediaFormat createFormat(String mime, SequenceParameterSet sps,
+                                           ByteBuffer csd0, ByteBuffer csd1) {
+        MediaFormat format = MediaFormat.createVideoFormat(mime, sps.getWidth(), sps.getHeight());
+        format.setByteBuffer("csd-0", csd0);
+        format.setByteBuffer("csd-1", csd1);
+        // An uncompressed 4:2:0 frame bounds any access unit worth decoding.
+        format.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE,
+                sps.getCodedWidth() * sps.getCodedHeight() * 3 / 2);
+        double frameRate = sps.getFrameRate();
+        if (frameRate > 0) {
+            format.setInteger(MediaFormat.KEY_FRAME_RATE, (int) Math.round(frameRate));
+        }
+        return format;
+    }
+
+    public boolean isConfigured() {
+        return mConfigured;
+    }
+
+    public SequenceParameterSet getSequenceParameterSet() {
+        return mSps;
+    }
+
+    /**
+     * Frames dropped because no configuration had been seen yet.
+     */
+    public long getRejectedCount() {
+        return mRejectedCount;
+    }
+
+    public long getReconfigureCount() {
+        return mReconfigureCount;
+    }
+
+    public interface Listener {
+        /**
+         * The decoder has to be (re)configured before the frame being inspected is queued.
+         * {@code csd0} and {@code csd1} hold the SPS and PPS with start codes.
+         */
+        void onConfigurationChanged(SequenceParameterSet sps, ByteBuffer csd0, ByteBuffer csd1);
+    }
+}
@@ -0,0 +1,34 @@
+package com.wolfcstech.mediacodecdemo;
+
+/**
+ * Decides which frame to give up when a {@link FrameQueue} is full.
+ */
+public interface DropPolicy {
+    /**
+     * @return the frame to drop, either {@code incoming} or one taken out of {@code queue}.
+     * The caller releases the returned frame and, if it was not {@code incoming}, offers
+     * {@code incoming} again.
+     */
+    FrameBuffer selectVictim(FrameQueue queue, FrameBuffer incoming);
+
+    /**
+     * Keep what is queued and drop the new frame.
+     */
+    DropPolicy DROP_NEWEST = new DropPolicy() {
+        @Override
+        public FrameBuffer selectVictim(FrameQueue queue, FrameBuffer incoming) {
+            return incoming;
+        }
+    };
+
+    /**
+     * Drop the oldest queued frame to favour latency.
+     */
+    DropPolicy DROP_OLDEST = new DropPolicy() {
+        @Override
+        public FrameBuffer selectVictim(FrameQueue queue, FrameBuffer incoming) {
+            FrameBuffer oldest = queue.poll();
+            return oldest != null ? oldest : incoming;
+        }
+    };
+}
@@ -0,0 +1,233 @@
+package com.wolfcstech.mediacodecdemo;
+
+import android.media.Image;
+import android.media.MediaCodec;
+import android.os.Debug;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Feeds camera frames to the encoder from the preview callback without blocking it. A frame
+ * that finds no free input buffer is dropped rather than stalling the camera. Encoder output
+ * is drained into one reused {@link MediaCodec.BufferInfo} by a {@link DrainTask} on a codec
+ * thread of its own, so it leaves as soon as it is ready instead of waiting for the next
+ * camera frame.
+ *
+ * <p>Records how long each feed takes and, when allocation tracking is on, how many objects
+ * the calling thread allocated while feeding, which should stay at zero.
+ */
+public class EncoderFeeder {
+    private static final long DRAIN_TIMEOUT_US = 10000;
+
+    private final MediaCodec mEncoder;
+    private final MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
+    private EncodedDataListener mListener;
+    private FrameReleaser mFrameReleaser;
+    private ColorConverterFactory mConverterFactory;
+    private YuvConverter mConverter;
+
+    private boolean mTrackAllocations = false;
+
+    private volatile long mFedCount = 0;
+    private volatile long mDroppedCount = 0;
+    private volatile long mTotalFeedNanos = 0;
+    private volatile long mMaxFeedNanos = 0;
+    private volatile long mTotalAllocations = 0;
+    private volatile long mTrackedFrames = 0;
+
+    public EncoderFeeder(MediaCodec encoder) {
+        mEncoder = encoder;
+    }
+
+    public void setEncodedDataListener(EncodedDataListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Convert every camera frame straight into the encoder's input buffer with a converter
+     * {@code factory} makes once the first input buffer, and so its layout, is known. Frames
+     * are passed through untouched without a factory, or when it returns null.
+     */
+    public void setColorConverterFactory(ColorConverterFactory factory) {
+        mConverterFactory = factory;
+    }
+
+    /**
+     * Give each camera frame back through {@code releaser} as soon as its bytes have been
+     * converted or copied out, before the encoder input buffer is even queued.
+     */
+    public void setFrameReleaser(FrameReleaser releaser) {
+        mFrameReleaser = releaser;
+    }
+
+    private void releaseFrame(byte[] frame) {
+        if (mFrameReleaser != null) {
+            mFrameReleaser.releaseFrame(frame);
+        }
+    }
+
+    /**
+     * Count allocations on the feeding thread, only meant for debugging as it uses the
+     * deprecated {@link Debug#startAllocCounting()}.
+     */
+    @SuppressWarnings("deprecation")
+    public void setAllocationTracking(boolean trackAllocations) {
+        mTrackAllocations = trackAllocations;
+        if (trackAllocations) {
+            Debug.startAllocCounting();
+        } else {
+            Debug.stopAllocCounting();
+        }
+    }
+
+    /**
+     * Copy a camera frame into the encoder. The frame is handed to the {@link FrameReleaser}
+     * whether it was fed or dropped.
+     *
+     * @return false if the frame was dropped because the encoder had no free input buffer.
+     */
+    @SuppressWarnings("deprecation")
+    public boolean feed(byte[] buf, int offset, int length, long presentationTimeUs) {
+        long startNanos = System.nanoTime();
+        int startAllocations = mTrackAllocations ? Debug.getThreadAllocCount() : 0;
+
+        boolean fed = false;
+        int index = mEncoder.dequeueInputBuffer(0);
+        if (index >= 0) {
+            if (mConverterFactory != null) {
+                // Read before getInputBuffer(), which invalidates the image.
+                mConverter = mConverterFactory.createColorConverter(mEncoder.getInputImage(index));
+                mConverterFactory = null;
+            }
+            ByteBuffer inputBuffer = mEncoder.getInputBuffer(index);
+            int size = mConverter != null ? mConverter.getOutputSize() : length;
+            if (inputBuffer != null && size <= inputBuffer.remaining()) {
+                if (mConverter != null) {
+                    mConverter.convert(buf, inputBuffer);
+                } else {
+                    inputBuffer.put(buf, offset, length);
+                }
+                releaseFrame(buf);
+                mEncoder.queueInputBuffer(index, 0, size, presentationTimeUs, 0);
+                fed = true;
+            } else {
+                releaseFrame(buf);
+                mEncoder.queueInputBuffer(index, 0, 0, presentationTimeUs, 0);
+            }
+        } else {
+            releaseFrame(buf);
+        }
+
+        long feedNanos = System.nanoTime() - startNanos;
+        if (fed) {
+            mFedCount++;
+        } else {
+            mDroppedCount++;
+        }
+        mTotalFeedNanos += feedNanos;
+        if (feedNanos > mMaxFeedNanos) {
+            mMaxFeedNanos = feedNanos;
+        }
+        if (mTrackAllocations) {
+            mTotalAllocations += Debug.getThreadAllocCount() - startAllocations;
+            mTrackedFrames++;
+        }
+        return fed;
+    }
+
+    /**
+     * Hand every output buffer that is ready to the listener, waiting up to
+     * {@code timeoutUs} for the first one. Format and buffer changes do not end the drain.
+     */
+    public void drainOutput(long timeoutUs) {
+        for (;;) {
+            int index = mEncoder.dequeueOutputBuffer(mBufferInfo, timeoutUs);
+            if (index == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                return;
+            }
+            if (index < 0) {
+                // INFO_OUTPUT_FORMAT_CHANGED or INFO_OUTPUT_BUFFERS_CHANGED, output may follow.
+                continue;
+            }
+            ByteBuffer outputBuffer = mEncoder.getOutputBuffer(index);
+            if (outputBuffer != null && mListener != null) {
+                outputBuffer.position(mBufferInfo.offset);
+                outputBuffer.limit(mBufferInfo.offset + mBufferInfo.size);
+                mListener.onEncodedData(outputBuffer, mBufferInfo);
+            }
+            mEncoder.releaseOutputBuffer(index, false);
+            timeoutUs = 0;
+        }
+    }
+
+    /**
+     * Drains the encoder until cancelled, to be posted to a {@link MediaThread} of its own as
+     * it keeps that thread busy. The listener is called on that thread.
+     */
+    public class DrainTask implements MediaThread.Cancellable {
+        private volatile boolean mCancelled = false;
+
+        @Override
+        public void run() {
+            try {
+                while (!mCancelled) {
+                    drainOutput(DRAIN_TIMEOUT_US);
+                }
+            } catch (IllegalStateException e) {
+                // The encoder was stopped under us.
+                if (!mCancelled) {
+                    throw e;
+                }
+            }
+        }
+
+        @Override
+        public void cancel() {
+            mCancelled = true;
+        }
+    }
+
+    public long getFedCount() {
+        return mFedCount;
+    }
+
+    public long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    public long getAverageFeedMicros() {
+        long frames = mFedCount + mDroppedCount;
+        return frames == 0 ? 0 : mTotalFeedNanos / frames / 1000;
+    }
+
+    public long getMaxFeedMicros() {
+        return mMaxFeedNanos / 1000;
+    }
+
+    /**
+     * Average objects allocated per feed while allocation tracking was on.
+     */
+    public double getAllocationsPerFrame() {
+        long frames = mTrackedFrames;
+        return frames == 0 ? 0 : (double) mTotalAllocations / frames;
+    }
+
+    public interface ColorConverterFactory {
+        /**
+         * @param inputImage the first input buffer seen as an image, to read the plane layout
+         *                   from, or null if the codec cannot provide one.
+         */
+        YuvConverter createColorConverter(Image inputImage);
+    }
+
+    public interface FrameReleaser {
+        void releaseFrame(byte[] frame);
+    }
+
+    public interface EncodedDataListener {
+        /**
+         * {@code data} and {@code info} are only valid until this returns.
+         */
+        void onEncodedData(ByteBuffer data, MediaCodec.BufferInfo info);
+    }
+}
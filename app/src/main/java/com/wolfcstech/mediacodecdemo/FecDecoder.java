@@ -0,0 +1,274 @@
+package com.wolfcstech.mediacodecdemo;
+
+/**
+ * Rebuilds lost datagrams of an indexed stream from the parity packets a {@link FecEncoder}
+ * interleaves with it. Data packets pass straight through to the downstream listener and are
+ * kept in a window of preallocated slots; once a block's parity covers its losses, the lost
+ * packets are rebuilt and delivered late, so put a {@link PacketReorderBuffer} downstream.
+ * Parity packets are consumed here.
+ *
+ * <p>Works on streams without parity too, at the cost of copying each packet into the window.
+ * Not thread safe, meant to be called from the receiving thread only.
+ */
+public class FecDecoder implements StreamReceiver.StreamDataReceivedListener {
+    private static final int PARITY_BLOCK_SLOTS = 16;
+
+    private final StreamReceiver.StreamDataReceivedListener mDownstream;
+    private final int mMaxBlockSize;
+    private final int mMaxParityCount;
+    private final int mMaxSymbolSize;
+    private final byte[][] mMatrix;
+
+    // Recent data packets by index, each as 2-byte length then payload.
+    private final int mWindowMask;
+    private final byte[][] mData;
+    private final int[] mDataIndex;
+    private final boolean[] mDataValid;
+    private int mHighestIndex;
+    private boolean mStarted = false;
+
+    // Parity of the blocks still waiting for enough packets.
+    private final int[] mBlockFirst = new int[PARITY_BLOCK_SLOTS];
+    private final int[] mBlockSize = new int[PARITY_BLOCK_SLOTS];
+    private final int[] mBlockParitySize = new int[PARITY_BLOCK_SLOTS];
+    private final boolean[] mBlockPending = new boolean[PARITY_BLOCK_SLOTS];
+    private final int[] mBlockMissing = new int[PARITY_BLOCK_SLOTS];
+    private final long[] mBlockAge = new long[PARITY_BLOCK_SLOTS];
+    private final byte[][][] mBlockParity;
+    private final boolean[][] mBlockParityValid;
+    private long mParityPacketsSeen = 0;
+
+    // Scratch space for solving one block.
+    private final int[] mMissing;
+    private final int[] mRows;
+    private final int[][] mSystem;
+    private final int[][] mInverse;
+    private final byte[][] mSyndromes;
+    private final byte[] mRecovered;
+
+    private long mRecoveredCount = 0;
+    private long mUnrecoverableCount = 0;
+
+    /**
+     * @param maxBlockSize the most data packets per block the sender uses.
+     * @param maxParityCount the most parity packets per block the sender uses.
+     * @param maxPayloadSize the largest datagram payload, excluding the index.
+     */
+    public FecDecoder(int maxBlockSize, int maxParityCount, int maxPayloadSize,
+                      StreamReceiver.StreamDataReceivedListener downstream) {
+        mDownstream = downstream;
+        mMaxBlockSize = maxBlockSize;
+        mMaxParityCount = maxParityCount;
+        mMaxSymbolSize = FecEncoder.LENGTH_SIZE + maxPayloadSize;
+        mMatrix = GaloisField.parityMatrix(maxParityCount, maxBlockSize);
+
+        // Keep a few blocks, so parity arriving after the next block's data still helps.
+        int window = Integer.highestOneBit(Math.max(64, maxBlockSize * 4) * 2 - 1);
+        mWindowMask = window - 1;
+        mData = new byte[window][mMaxSymbolSize];
+        mDataIndex = new int[window];
+        mDataValid = new boolean[window];
+
+        mBlockParity = new byte[PARITY_BLOCK_SLOTS][maxParityCount][mMaxSymbolSize];
+        mBlockParityValid = new boolean[PARITY_BLOCK_SLOTS][maxParityCount];
+
+        mMissing = new int[maxParityCount];
+        mRows = new int[maxParityCount];
+        mSystem = new int[maxParityCount][maxParityCount];
+        mInverse = new int[maxParityCount][maxParityCount];
+        mSyndromes = new byte[maxParityCount][mMaxSymbolSize];
+        mRecovered = new byte[mMaxSymbolSize];
+    }
+
+    @Override
+    public void onStreamDataReceived(int index, byte[] data, int offset, int size) {
+        if ((index & FecEncoder.PARITY_FLAG) != 0) {
+            onParity(index & ~FecEncoder.PARITY_FLAG, data, offset, size);
+            return;
+        }
+        mDownstream.onStreamDataReceived(index, data, offset, size);
+        if (size > mMaxSymbolSize - FecEncoder.LENGTH_SIZE) {
+            return;
+        }
+        if (!mStarted || index - mHighestIndex > 0) {
+            mStarted = true;
+            mHighestIndex = index;
+        }
+        store(index, data, offset, size);
+
+        for (int slot = 0; slot < PARITY_BLOCK_SLOTS; slot++) {
+            if (mBlockPending[slot] && index - mBlockFirst[slot] >= 0
+                    && index - mBlockFirst[slot] < mBlockSize[slot]) {
+                tryRecover(slot);
+            }
+        }
+    }
+
+    private void store(int index, byte[] data, int offset, int size) {
+        int slot = index & mWindowMask;
+        byte[] symbol = mData[slot];
+        symbol[0] = (byte) (size >>> 8);
+        symbol[1] = (byte) size;
+        System.arraycopy(data, offset, symbol, FecEncoder.LENGTH_SIZE, size);
+        mDataIndex[slot] = index;
+        mDataValid[slot] = true;
+    }
+
+    private boolean hasData(int index) {
+        int slot = index & mWindowMask;
+        return mDataValid[slot] && mDataIndex[slot] == index;
+    }
+
+    private void onParity(int first, byte[] data, int offset, int size) {
+        if (size < FecEncoder.PARITY_HEADER_SIZE - StreamHeader.SIZE) {
+            return;
+        }
+        int blockSize = data[offset] & 0xFF;
+        int parityCount = data[offset + 1] & 0xFF;
+        int row = data[offset + 2] & 0xFF;
+        int paritySize = size - (FecEncoder.PARITY_HEADER_SIZE - StreamHeader.SIZE);
+        if (blockSize == 0 || blockSize > mMaxBlockSize || parityCount > mMaxParityCount
+                || row >= parityCount || paritySize > mMaxSymbolSize) {
+            return;
+        }
+        if (mStarted && mHighestIndex - first > mWindowMask / 2) {
+            // Its data has already left the window.
+            return;
+        }
+
+        int slot = findBlock(first, blockSize, paritySize);
+        if (slot < 0) {
+            return;
+        }
+        if (!mBlockParityValid[slot][row]) {
+            System.arraycopy(data, offset + FecEncoder.PARITY_HEADER_SIZE - StreamHeader.SIZE,
+                    mBlockParity[slot][row], 0, paritySize);
+            mBlockParityValid[slot][row] = true;
+            tryRecover(slot);
+        }
+    }
+
+    /**
+     * The slot holding block {@code first}, taking the oldest slot for a new block.
+     *
+     * @return -1 if the block was already done with.
+     */
+    private int findBlock(int first, int blockSize, int paritySize) {
+        int oldest = 0;
+        for (int slot = 0; slot < PARITY_BLOCK_SLOTS; slot++) {
+            if (mBlockAge[slot] != 0 && mBlockFirst[slot] == first
+                    && mBlockSize[slot] == blockSize) {
+                return mBlockPending[slot] ? slot : -1;
+            }
+            if (mBlockAge[slot] < mBlockAge[oldest]) {
+                oldest = slot;
+            }
+        }
+        if (mBlockPending[oldest]) {
+            // Counted when last tried, its data may have left the window since.
+            mUnrecoverableCount += mBlockMissing[oldest];
+        }
+        mBlockFirst[oldest] = first;
+        mBlockSize[oldest] = blockSize;
+        mBlockParitySize[oldest] = paritySize;
+        mBlockPending[oldest] = true;
+        mBlockMissing[oldest] = 0;
+        mBlockAge[oldest] = ++mParityPacketsSeen;
+        boolean[] valid = mBlockParityValid[oldest];
+        for (int row = 0; row < valid.length; row++) {
+            valid[row] = false;
+        }
+        return oldest;
+    }
+
+    private void tryRecover(int slot) {
+        int first = mBlockFirst[slot];
+        int blockSize = mBlockSize[slot];
+        int missing = 0;
+        for (int i = 0; i < blockSize; i++) {
+            if (!hasData(first + i)) {
+                if (missing < mMaxParityCount) {
+                    mMissing[missing] = i;
+                }
+                missing++;
+            }
+        }
+        mBlockMissing[slot] = missing;
+        if (missing == 0) {
+            mBlockPending[slot] = false;
+            return;
+        }
+        if (missing > mMaxParityCount) {
+            return;
+        }
+        int rows = 0;
+        boolean[] valid = mBlockParityValid[slot];
+        for (int row = 0; row < valid.length && rows < missing; row++) {
+            if (valid[row]) {
+                mRows[rows++] = row;
+            }
+        }
+        if (rows < missing) {
+            return;
+        }
+
+        // Take the received packets out of each parity, leaving a combination of the lost
+        // ones, then solve for them.
+        int symbolSize = mBlockParitySize[slot];
+        for (int r = 0; r < missing; r++) {
+            int row = mRows[r];
+            byte[] syndrome = mSyndromes[r];
+            System.arraycopy(mBlockParity[slot][row], 0, syndrome, 0, symbolSize);
+            for (int i = 0; i < blockSize; i++) {
+                int index = first + i;
+                if (hasData(index)) {
+                    byte[] symbol = mData[index & mWindowMask];
+                    int length = Math.min(symbolSize, FecEncoder.LENGTH_SIZE + symbolLength(symbol));
+                    GaloisField.addMul(syndrome, 0, symbol, 0, length, mMatrix[row][i] & 0xFF);
+                }
+            }
+            for (int m = 0; m < missing; m++) {
+                mSystem[r][m] = mMatrix[row][mMissing[m]] & 0xFF;
+            }
+        }
+        if (!GaloisField.invert(mSystem, mInverse, missing)) {
+            return;
+        }
+        mBlockPending[slot] = false;
+        for (int m = 0; m < missing; m++) {
+            for (int i = 0; i < symbolSize; i++) {
+                mRecovered[i] = 0;
+            }
+            for (int r = 0; r < missing; r++) {
+                GaloisField.addMul(mRecovered, 0, mSyndromes[r], 0, symbolSize, mInverse[m][r]);
+            }
+            int length = symbolLength(mRecovered);
+            if (FecEncoder.LENGTH_SIZE + length > symbolSize) {
+                mUnrecoverableCount++;
+                continue;
+            }
+            int index = first + mMissing[m];
+            store(index, mRecovered, FecEncoder.LENGTH_SIZE, length);
+            mRecoveredCount++;
+            mDownstream.onStreamDataReceived(index, mRecovered, FecEncoder.LENGTH_SIZE, length);
+        }
+    }
+
+    private static int symbolLength(byte[] symbol) {
+        return (symbol[0] & 0xFF) << 8 | symbol[1] & 0xFF;
+    }
+
+    /**
+     * Packets rebuilt from parity.
+     */
+    public long getRecoveredCount() {
+        return mRecoveredCount;
+    }
+
+    /**
+     * Packets lost in blocks that had too few parity packets to rebuild them.
+     */
+    public long getUnrecoverableCount() {
+        return mUnrecoverableCount;
+    }
+}
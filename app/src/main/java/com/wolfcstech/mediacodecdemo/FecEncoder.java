@@ -0,0 +1,125 @@
+package com.wolfcstech.mediacodecdemo;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Computes Reed-Solomon parity over blocks of consecutive indexed datagrams, so a
+ * {@link FecDecoder} can rebuild up to {@code parityCount} lost packets per block without a
+ * retransmission. A block holds up to {@code blockSize} packets; {@link #flush} closes it
+ * early, e.g. at the end of a frame so its parity is not held back.
+ *
+ * <p>A parity packet is an indexed datagram whose index has the top bit set:
+ * <pre>
+ * 0x80000000 | first index (4) | packet count (1) | parity count (1) | parity row (1) | 0 (1)
+ * parity of the 2-byte big-endian lengths (2) | parity of the payloads, zero padded (n)
+ * </pre>
+ * Data indices must therefore stay below 2^31. Not thread safe.
+ */
+public class FecEncoder {
+    static final int PARITY_FLAG = 0x80000000;
+    static final int PARITY_HEADER_SIZE = 8;
+    static final int LENGTH_SIZE = 2;
+
+    private final int mBlockSize;
+    private final int mParityCount;
+    private final int mMaxPayloadSize;
+    private final byte[][] mMatrix;
+
+    // Each data packet as length then payload, and the parity accumulated over them.
+    private final byte[] mSymbol;
+    private final byte[][] mParity;
+    private final ByteBuffer mPacket;
+
+    private int mFirstIndex;
+    private int mPacketCount = 0;
+    private int mMaxSymbolSize = 0;
+
+    private long mParityPacketCount = 0;
+
+    public FecEncoder(int blockSize, int parityCount, int maxPayloadSize) {
+        if (blockSize <= 0 || blockSize > 255 || parityCount <= 0 || parityCount > 255) {
+            throw new IllegalArgumentException("blockSize and parityCount must be in 1..255");
+        }
+        if (maxPayloadSize > 0xFFFF) {
+            throw new IllegalArgumentException("maxPayloadSize must fit in 16 bits");
+        }
+        mBlockSize = blockSize;
+        mParityCount = parityCount;
+        mMaxPayloadSize = maxPayloadSize;
+        mMatrix = GaloisField.parityMatrix(parityCount, blockSize);
+        mSymbol = new byte[LENGTH_SIZE + maxPayloadSize];
+        mParity = new byte[parityCount][LENGTH_SIZE + maxPayloadSize];
+        mPacket = ByteBuffer.allocateDirect(PARITY_HEADER_SIZE + LENGTH_SIZE + maxPayloadSize)
+                .order(ByteOrder.BIG_ENDIAN);
+    }
+
+    /**
+     * Add the data packet {@code index}, the remaining bytes of {@code payload}, to the current
+     * block, leaving {@code payload} untouched. Indices within a block must be consecutive.
+     * Emits the block's parity to {@code sink} once it is full.
+     */
+    public void addPacket(int index, ByteBuffer payload, RtpH264Packetizer.PacketSink sink) {
+        int length = payload.remaining();
+        if (length > mMaxPayloadSize) {
+            throw new IllegalArgumentException("payload larger than " + mMaxPayloadSize);
+        }
+        if (mPacketCount > 0 && index != mFirstIndex + mPacketCount) {
+            flush(sink);
+        }
+        if (mPacketCount == 0) {
+            mFirstIndex = index;
+        }
+        mSymbol[0] = (byte) (length >>> 8);
+        mSymbol[1] = (byte) length;
+        int position = payload.position();
+        payload.get(mSymbol, LENGTH_SIZE, length);
+        payload.position(position);
+        int symbolSize = LENGTH_SIZE + length;
+        for (int row = 0; row < mParityCount; row++) {
+            GaloisField.addMul(mParity[row], 0, mSymbol, 0, symbolSize,
+                    mMatrix[row][mPacketCount] & 0xFF);
+        }
+        mMaxSymbolSize = Math.max(mMaxSymbolSize, symbolSize);
+        if (++mPacketCount == mBlockSize) {
+            flush(sink);
+        }
+    }
+
+    /**
+     * Emit the parity of the current block, if it has any packets, and start a new one.
+     */
+    public void flush(RtpH264Packetizer.PacketSink sink) {
+        if (mPacketCount == 0) {
+            return;
+        }
+        for (int row = 0; row < mParityCount; row++) {
+            mPacket.clear();
+            mPacket.putInt(PARITY_FLAG | (mFirstIndex & ~PARITY_FLAG));
+            mPacket.put((byte) mPacketCount);
+            mPacket.put((byte) mParityCount);
+            mPacket.put((byte) row);
+            mPacket.put((byte) 0);
+            mPacket.put(mParity[row], 0, mMaxSymbolSize);
+            mPacket.flip();
+            sink.onPacket(mPacket);
+            mParityPacketCount++;
+            Arrays.fill(mParity[row], 0, mMaxSymbolSize, (byte) 0);
+        }
+        mPacketCount = 0;
+        mMaxSymbolSize = 0;
+    }
+
+    public int getBlockSize() {
+        return mBlockSize;
+    }
+
+    public int getParityCount() {
+        return mParityCount;
+    }
+
+    public long getParityPacketCount() {
+        return mParityPacketCount;
+    }
+}
@@ -0,0 +1,108 @@
+package com.wolfcstech.mediacodecdemo;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A reference counted frame buffer handed out by {@link FrameBufferPool}. The buffer returns
+ * to its pool when the last reference is released, so a holder must never touch it after
+ * calling {@link #release()}.
+ */
+public class FrameBuffer {
+    private final FrameBufferPool mPool;
+    private final AtomicInteger mRefCount = new AtomicInteger();
+
+    private ByteBuffer mData;
+    private int mIndex;
+    private long mPresentationTimeUs;
+    private int mFlags;
+    private long mEnqueueTimeNanos;
+
+    FrameBuffer(FrameBufferPool pool, int capacity, boolean direct) {
+        mPool = pool;
+        mData = direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    void reset(int capacity) {
+        if (mData.capacity() < capacity) {
+            mData = mData.isDirect() ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+        }
+        mData.clear();
+        mIndex = 0;
+        mPresentationTimeUs = 0;
+        mFlags = 0;
+        mEnqueueTimeNanos = 0;
+        mRefCount.set(1);
+    }
+
+    /**
+     * The frame payload, between position and limit once the producer has flipped it.
+     */
+    public ByteBuffer data() {
+        return mData;
+    }
+
+    public int size() {
+        return mData.remaining();
+    }
+
+    public int getIndex() {
+        return mIndex;
+    }
+
+    public void setIndex(int index) {
+        mIndex = index;
+    }
+
+    public long getPresentationTimeUs() {
+        return mPresentationTimeUs;
+    }
+
+    public void setPresentationTimeUs(long presentationTimeUs) {
+        mPresentationTimeUs = presentationTimeUs;
+    }
+
+    public int getFlags() {
+        return mFlags;
+    }
+
+    public void setFlags(int flags) {
+        mFlags = flags;
+    }
+
+    /**
+     * When the frame entered the queue it is waiting in, for queue latency.
+     */
+    public long getEnqueueTimeNanos() {
+        return mEnqueueTimeNanos;
+    }
+
+    public void setEnqueueTimeNanos(long enqueueTimeNanos) {
+        mEnqueueTimeNanos = enqueueTimeNanos;
+    }
+
+    public int refCount() {
+        return mRefCount.get();
+    }
+
+    public FrameBuffer retain() {
+        for (;;) {
+            int refCount = mRefCount.get();
+            if (refCount <= 0) {
+                throw new IllegalStateException("retain on released frame buffer");
+            }
+            if (mRefCount.compareAndSet(refCount, refCount + 1)) {
+                return this;
+            }
+        }
+    }
+
+    public void release() {
+        int refCount = mRefCount.decrementAndGet();
+        if (refCount == 0) {
+            mPool.recycle(this);
+        } else if (refCount < 0) {
+            throw new IllegalStateException("frame buffer released too many times");
+        }
+    }
+}
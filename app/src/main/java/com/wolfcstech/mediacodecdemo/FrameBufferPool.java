@@ -0,0 +1,138 @@
+package com.wolfcstech.mediacodecdemo;
+
+/**
+ * A fixed pool of {@link FrameBuffer}s, so the network thread can hand frames to the decoder
+ * and keep receiving without allocating a buffer per frame. Every buffer is allocated up front
+ * and the free ones are kept in an array ring, so at most {@code bufferCount} buffers are ever
+ * outstanding: {@link #acquire(int)} waits for one to be released, {@link #tryAcquire(int)}
+ * fails fast instead.
+ */
+public class FrameBufferPool {
+    private final FrameBuffer[] mFreeBuffers;
+    private int mHead = 0;
+    private int mFreeCount;
+
+    private long mHitCount = 0;
+    private long mMissCount = 0;
+    private long mExhaustedCount = 0;
+
+    /**
+     * @param bufferCount how many buffers to allocate, the most that can be outstanding.
+     * @param bufferCapacity the initial capacity of each buffer, buffers grow on demand.
+     * @param direct whether to allocate direct buffers.
+     */
+    public FrameBufferPool(int bufferCount, int bufferCapacity, boolean direct) {
+        if (bufferCount <= 0 || bufferCapacity <= 0) {
+            throw new IllegalArgumentException("bufferCount and bufferCapacity must be positive");
+        }
+        mFreeBuffers = new FrameBuffer[bufferCount];
+        for (int i = 0; i < bufferCount; i++) {
+            mFreeBuffers[i] = new FrameBuffer(this, bufferCapacity, direct);
+        }
+        mFreeCount = bufferCount;
+    }
+
+    /**
+     * Get a cleared buffer with room for at least {@code size} bytes and a reference count
+     * of one, waiting for one to be released if all are outstanding. Only for threads whose
+     * stall holds back the sender, a thread must never wait on buffers it holds itself. The
+     * wait ignores interrupts, so threads that must stop promptly, like the receive threads,
+     * use {@link #tryAcquire(int)} and drop instead.
+     */
+    public FrameBuffer acquire(int size) {
+        FrameBuffer buffer;
+        synchronized (this) {
+            if (mFreeCount == 0) {
+                mMissCount++;
+                boolean interrupted = false;
+                while (mFreeCount == 0) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            } else {
+                mHitCount++;
+            }
+            buffer = poll();
+        }
+        buffer.reset(size);
+        return buffer;
+    }
+
+    /**
+     * Like {@link #acquire(int)}, but returns null at once when all buffers are outstanding,
+     * for threads that should rather drop a frame than stall.
+     */
+    public FrameBuffer tryAcquire(int size) {
+        FrameBuffer buffer;
+        synchronized (this) {
+            if (mFreeCount == 0) {
+                mMissCount++;
+                mExhaustedCount++;
+                return null;
+            }
+            mHitCount++;
+            buffer = poll();
+        }
+        buffer.reset(size);
+        return buffer;
+    }
+
+    private FrameBuffer poll() {
+        FrameBuffer buffer = mFreeBuffers[mHead];
+        mFreeBuffers[mHead] = null;
+        mHead = (mHead + 1) % mFreeBuffers.length;
+        mFreeCount--;
+        return buffer;
+    }
+
+    synchronized void recycle(FrameBuffer buffer) {
+        mFreeBuffers[(mHead + mFreeCount) % mFreeBuffers.length] = buffer;
+        if (mFreeCount++ == 0) {
+            notifyAll();
+        }
+    }
+
+    public synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    /**
+     * The number of acquisitions that found every buffer outstanding.
+     */
+    public synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    /**
+     * The number of {@link #tryAcquire(int)} calls that returned null.
+     */
+    public synchronized long getExhaustedCount() {
+        return mExhaustedCount;
+    }
+
+    public synchronized int getPooledCount() {
+        return mFreeCount;
+    }
+
+    public synchronized int getOutstandingCount() {
+        return mFreeBuffers.length - mFreeCount;
+    }
+
+    public int getBufferCount() {
+        return mFreeBuffers.length;
+    }
+
+    /**
+     * Receives frames copied into pooled buffers. The listener owns one reference to each
+     * frame and must release it when done, possibly on another thread.
+     */
+    public interface FrameReceivedListener {
+        void onFrameReceived(FrameBuffer frame);
+    }
+}
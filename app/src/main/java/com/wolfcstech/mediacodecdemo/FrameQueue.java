@@ -0,0 +1,21 @@
+package com.wolfcstech.mediacodecdemo;
+
+/**
+ * A bounded handoff queue of frames between pipeline stages. Implementations must be safe
+ * for concurrent producers and consumers.
+ */
+public interface FrameQueue {
+    /**
+     * @return false if the queue is full, the caller keeps ownership of the frame then.
+     */
+    boolean offer(FrameBuffer frame);
+
+    /**
+     * @return the oldest frame or null if the queue is empty.
+     */
+    FrameBuffer poll();
+
+    int size();
+
+    int capacity();
+}
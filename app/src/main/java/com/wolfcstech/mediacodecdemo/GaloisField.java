@@ -0,0 +1,152 @@
+package com.wolfcstech.mediacodecdemo;
+
+/**
+ * Arithmetic in GF(2^8) with the polynomial 0x11D, as used by Reed-Solomon erasure codes.
+ * Addition is XOR. Multiplication is a lookup in a full 256x256 product table, so the bulk
+ * kernels do one table load per byte and allocate nothing.
+ */
+final class GaloisField {
+    private static final int POLYNOMIAL = 0x11D;
+
+    private static final int[] EXP = new int[512];
+    private static final int[] LOG = new int[256];
+    // MUL[a] is the row of products a * x for every x.
+    private static final byte[][] MUL = new byte[256][256];
+
+    static {
+        int x = 1;
+        for (int i = 0; i < 255; i++) {
+            EXP[i] = x;
+            LOG[x] = i;
+            x <<= 1;
+            if ((x & 0x100) != 0) {
+                x ^= POLYNOMIAL;
+            }
+        }
+        for (int i = 255; i < EXP.length; i++) {
+            EXP[i] = EXP[i - 255];
+        }
+        for (int a = 1; a < 256; a++) {
+            for (int b = 1; b < 256; b++) {
+                MUL[a][b] = (byte) EXP[LOG[a] + LOG[b]];
+            }
+        }
+    }
+
+    private GaloisField() {
+    }
+
+    static int mul(int a, int b) {
+        return MUL[a][b] & 0xFF;
+    }
+
+    static int inv(int a) {
+        if (a == 0) {
+            throw new ArithmeticException("0 has no inverse");
+        }
+        return EXP[255 - LOG[a]];
+    }
+
+    /**
+     * {@code dst[dstOffset + i] += coefficient * src[srcOffset + i]} for {@code length} bytes.
+     */
+    static void addMul(byte[] dst, int dstOffset, byte[] src, int srcOffset, int length,
+                       int coefficient) {
+        if (coefficient == 0) {
+            return;
+        }
+        if (coefficient == 1) {
+            for (int i = 0; i < length; i++) {
+                dst[dstOffset + i] ^= src[srcOffset + i];
+            }
+            return;
+        }
+        byte[] row = MUL[coefficient];
+        for (int i = 0; i < length; i++) {
+            dst[dstOffset + i] ^= row[src[srcOffset + i] & 0xFF];
+        }
+    }
+
+    /**
+     * {@code data[offset + i] = coefficient * data[offset + i]} for {@code length} bytes.
+     */
+    static void scale(byte[] data, int offset, int length, int coefficient) {
+        if (coefficient == 1) {
+            return;
+        }
+        byte[] row = MUL[coefficient];
+        for (int i = 0; i < length; i++) {
+            data[offset + i] = row[data[offset + i] & 0xFF];
+        }
+    }
+
+    /**
+     * The parity rows of a systematic erasure code: a Cauchy matrix with its columns scaled so
+     * the first row is all ones, which makes the first parity a plain XOR. Every square
+     * submatrix is invertible, so any {@code rows} losses in a block can be repaired. Row
+     * {@code r} and column {@code c} stand for the field elements {@code r} and
+     * {@code 255 - c}, so an entry does not depend on the matrix size: a decoder built for more
+     * parity rows or longer blocks than the sender uses shares its coefficients.
+     */
+    static byte[][] parityMatrix(int rows, int columns) {
+        if (rows + columns > 256) {
+            throw new IllegalArgumentException("at most 256 data and parity packets");
+        }
+        byte[][] matrix = new byte[rows][columns];
+        for (int column = 0; column < columns; column++) {
+            int y = 255 - column;
+            // Row 0 is 1 / (0 ^ y), so dividing the column by it multiplies by y.
+            for (int row = 0; row < rows; row++) {
+                matrix[row][column] = (byte) mul(inv(row ^ y), y);
+            }
+        }
+        return matrix;
+    }
+
+    /**
+     * Invert the {@code size}x{@code size} matrix in {@code matrix} into {@code inverse} by
+     * Gauss-Jordan elimination, destroying {@code matrix}.
+     *
+     * @return false if the matrix is singular.
+     */
+    static boolean invert(int[][] matrix, int[][] inverse, int size) {
+        for (int row = 0; row < size; row++) {
+            for (int column = 0; column < size; column++) {
+                inverse[row][column] = row == column ? 1 : 0;
+            }
+        }
+        for (int column = 0; column < size; column++) {
+            int pivot = column;
+            while (pivot < size && matrix[pivot][column] == 0) {
+                pivot++;
+            }
+            if (pivot == size) {
+                return false;
+            }
+            if (pivot != column) {
+                int[] swap = matrix[pivot];
+                matrix[pivot] = matrix[column];
+                matrix[column] = swap;
+                swap = inverse[pivot];
+                inverse[pivot] = inverse[column];
+                inverse[column] = swap;
+            }
+            int scale = inv(matrix[column][column]);
+            for (int i = 0; i < size; i++) {
+                matrix[column][i] = mul(matrix[column][i], scale);
+                inverse[column][i] = mul(inverse[column][i], scale);
+            }
+            for (int row = 0; row < size; row++) {
+                int factor = matrix[row][column];
+                if (row == column || factor == 0) {
+                    continue;
+                }
+                for (int i = 0; i < size; i++) {
+                    matrix[row][i] ^= mul(factor, matrix[column][i]);
+                    inverse[row][i] ^= mul(factor, inverse[column][i]);
+                }
+            }
+        }
+        return true;
+    }
+}
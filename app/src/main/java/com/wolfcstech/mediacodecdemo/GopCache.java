@@ -0,0 +1,105 @@
+package com.wolfcstech.mediacodecdemo;
+
+import android.media.MediaCodec;
+
+import java.util.ArrayList;
+
+/**
+ * Keeps the latest codec config and every frame since the latest key frame, so a subscriber
+ * that joins mid-stream can be sent a decodable burst instead of waiting for the next key
+ * frame. A GOP that outgrows the limits is abandoned until the next key frame, a partial GOP
+ * would not be decodable past its end. The cache holds a reference to every frame in it.
+ *
+ * <p>Not thread safe, meant for the sender's loop thread.
+ */
+public class GopCache {
+    private final int mMaxFrames;
+    private final long mMaxBytes;
+
+    private FrameBuffer mConfig;
+    private final ArrayList<FrameBuffer> mFrames = new ArrayList<>();
+    private long mBytes = 0;
+    private boolean mComplete = false;
+
+    private long mOverflowCount = 0;
+
+    public GopCache(int maxFrames, long maxBytes) {
+        mMaxFrames = maxFrames;
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Look at a frame on its way out, retaining it if it belongs in the cache.
+     */
+    public void add(FrameBuffer frame) {
+        int flags = frame.getFlags();
+        if ((flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            if (mConfig != null) {
+                mConfig.release();
+            }
+            mConfig = frame.retain();
+            return;
+        }
+        if ((flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0) {
+            clearFrames();
+            mComplete = true;
+        } else if (!mComplete) {
+            return;
+        }
+        if (mFrames.size() >= mMaxFrames || mBytes + frame.size() > mMaxBytes) {
+            clearFrames();
+            mOverflowCount++;
+            return;
+        }
+        mFrames.add(frame.retain());
+        mBytes += frame.size();
+    }
+
+    /**
+     * Whether the cache can bring a new subscriber to the current frame: it starts with a
+     * key frame and has the codec config for it.
+     */
+    public boolean isComplete() {
+        return mComplete && mConfig != null;
+    }
+
+    public FrameBuffer getConfig() {
+        return mConfig;
+    }
+
+    public int size() {
+        return mFrames.size();
+    }
+
+    public FrameBuffer get(int i) {
+        return mFrames.get(i);
+    }
+
+    public long getBytes() {
+        return mBytes;
+    }
+
+    /**
+     * GOPs abandoned for exceeding the limits.
+     */
+    public long getOverflowCount() {
+        return mOverflowCount;
+    }
+
+    public void clear() {
+        clearFrames();
+        if (mConfig != null) {
+            mConfig.release();
+            mConfig = null;
+        }
+    }
+
+    private void clearFrames() {
+        for (int i = 0; i < mFrames.size(); i++) {
+            mFrames.get(i).release();
+        }
+        mFrames.clear();
+        mBytes = 0;
+        mComplete = false;
+    }
+}
@@ -0,0 +1,80 @@
+package com.wolfcstech.mediacodecdemo;
+
+import java.nio.ByteBuffer;
+
+/**
+ * H.264 NAL unit constants and Annex-B helpers.
+ */
+public final class H264 {
+    public static final int NAL_SLICE = 1;
+    public static final int NAL_IDR_SLICE = 5;
+    public static final int NAL_SEI = 6;
+    public static final int NAL_SPS = 7;
+    public static final int NAL_PPS = 8;
+    public static final int NAL_AUD = 9;
+
+    /** RFC 6184 aggregation packet carrying several NAL units. */
+    public static final int NAL_STAP_A = 24;
+    /** RFC 6184 fragmentation unit carrying part of one NAL unit. */
+    public static final int NAL_FU_A = 28;
+
+    private H264() {
+    }
+
+    public static int nalType(int nalHeader) {
+        return nalHeader & 0x1F;
+    }
+
+    /**
+     * Find the next {@code 00 00 01} start code in {@code buf} between {@code from} and
+     * {@code to}, using absolute gets only. Eight bytes at a time are skipped while they
+     * contain no zero byte, which is nearly always the case inside coded slice data.
+     *
+     * @return the index of the first zero byte of the start code, or -1.
+     */
+    public static int findStartCode(ByteBuffer buf, int from, int to) {
+        int i = from;
+        int last = to - 2;
+        while (i < last) {
+            while (i + 8 <= to && !hasZeroByte(buf.getLong(i))) {
+                i += 8;
+            }
+            int end = Math.min(i + 8, last);
+            for (; i < end; i++) {
+                if (buf.get(i) == 0 && buf.get(i + 1) == 0 && buf.get(i + 2) == 1) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Like {@link #findStartCode(ByteBuffer, int, int)}.
+     *
+     * @return the index of the first byte after the start code, or -1.
+     */
+    public static int findNalStart(ByteBuffer buf, int from, int to) {
+        int startCode = findStartCode(buf, from, to);
+        return startCode >= 0 ? startCode + 3 : -1;
+    }
+
+    /**
+     * Whether any of the eight bytes of {@code word} is zero, in either byte order.
+     */
+    static boolean hasZeroByte(long word) {
+        return ((word - 0x0101010101010101L) & ~word & 0x8080808080808080L) != 0;
+    }
+
+    /**
+     * The end of a NAL unit that is followed by a start code at {@code nextStart}, dropping
+     * the zero bytes of the start code and any trailing zero bytes before it.
+     */
+    public static int nalEnd(ByteBuffer buf, int nalStart, int nextStart) {
+        int end = nextStart - 3;
+        while (end > nalStart && buf.get(end - 1) == 0) {
+            end--;
+        }
+        return end;
+    }
+}
@@ -0,0 +1,223 @@
+package com.wolfcstech.mediacodecdemo;
+
+import android.media.MediaCodec;
+
+/**
+ * Smooths network arrival jitter in front of the decoder. Each frame is held until its playout
+ * time, which trails the media clock by a delay that follows the measured inter-arrival jitter.
+ * A frame that carries the sender's timestamp is placed on the media clock by it and keeps
+ * it; one without is stamped with its arrival time, smoothed by the measured frame interval,
+ * so a lost frame leaves a gap instead of shifting every later frame. Codec config units pass
+ * through unstamped and are left out of the statistics.
+ *
+ * <p>Used as the {@link FrameQueue} of a {@link DecodePipeline}: {@link #poll()} only returns a
+ * frame once it is due.
+ */
+public class JitterBuffer implements FrameQueue {
+    /** Keep the delay close to the measured jitter, favouring glass-to-glass latency. */
+    public static final int TARGET_LOW_LATENCY = 0;
+    /** Keep enough delay to ride out most jitter, favouring even frame pacing. */
+    public static final int TARGET_SMOOTH = 1;
+
+    // Re-anchor the media clock when arrivals drift this far from it, e.g. after a reconnect.
+    private static final long MAX_CLOCK_OFFSET_NANOS = 1000000000L;
+
+    private final Clock mClock;
+    private final int mCapacity;
+    private final long mFrameIntervalNanos;
+    private final int mTarget;
+
+    private final FrameBuffer[] mFrames;
+    private final long[] mPlayoutNanos;
+    private int mHead = 0;
+    private int mCount = 0;
+
+    private long mBaseNanos;
+    private long mFirstSenderPtsUs;
+    private long mLastPtsNanos;
+    private long mLastArrivalNanos;
+    private long mLastPlayoutNanos;
+    private boolean mStarted = false;
+    private boolean mInUnderrun = false;
+
+    // Exponentially weighted mean and mean deviation of inter-arrival times.
+    private long mMeanIntervalNanos;
+    private long mJitterNanos = 0;
+    private long mTargetDelayNanos;
+
+    private long mLateCount = 0;
+    private long mUnderrunCount = 0;
+
+    public JitterBuffer(int capacity, int frameRate, int target) {
+        this(capacity, frameRate, target, Clock.SYSTEM);
+    }
+
+    JitterBuffer(int capacity, int frameRate, int target, Clock clock) {
+        if (capacity <= 0 || frameRate <= 0) {
+            throw new IllegalArgumentException("capacity and frameRate must be positive");
+        }
+        mCapacity = capacity;
+        mFrameIntervalNanos = 1000000000L / frameRate;
+        mTarget = target;
+        mClock = clock;
+        mFrames = new FrameBuffer[capacity];
+        mPlayoutNanos = new long[capacity];
+        mMeanIntervalNanos = mFrameIntervalNanos;
+        mTargetDelayNanos = computeTargetDelay();
+    }
+
+    @Override
+    public synchronized boolean offer(FrameBuffer frame) {
+        if (mCount == mCapacity) {
+            return false;
+        }
+        long now = mClock.nanoTime();
+        if ((frame.getFlags() & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            // Due at once, it still waits behind the frames queued ahead of it.
+            enqueue(frame, now);
+            return true;
+        }
+        long senderPtsUs = frame.getPresentationTimeUs();
+        long ptsNanos;
+        if (!mStarted) {
+            mStarted = true;
+            mBaseNanos = now;
+            mFirstSenderPtsUs = senderPtsUs;
+            ptsNanos = 0;
+        } else {
+            updateJitter(now - mLastArrivalNanos);
+            if (senderPtsUs != 0) {
+                ptsNanos = (senderPtsUs - mFirstSenderPtsUs) * 1000;
+                if (ptsNanos <= mLastPtsNanos
+                        || ptsNanos - mLastPtsNanos > MAX_CLOCK_OFFSET_NANOS) {
+                    // A restarted sender clock, carry on from the last frame.
+                    ptsNanos = mLastPtsNanos + mMeanIntervalNanos;
+                    mFirstSenderPtsUs = senderPtsUs - ptsNanos / 1000;
+                }
+            } else {
+                long predictedNanos = mLastPtsNanos + mMeanIntervalNanos;
+                ptsNanos = predictedNanos + (now - mBaseNanos - predictedNanos) / 8;
+                ptsNanos = Math.max(ptsNanos, mLastPtsNanos + 1);
+            }
+            long offset = now - (mBaseNanos + ptsNanos);
+            if (offset > MAX_CLOCK_OFFSET_NANOS || offset < -MAX_CLOCK_OFFSET_NANOS) {
+                mBaseNanos = now - ptsNanos;
+            } else {
+                // Follow a sender clock that runs slightly off ours.
+                mBaseNanos += offset / 64;
+            }
+        }
+        mLastArrivalNanos = now;
+        mLastPtsNanos = ptsNanos;
+
+        long playoutNanos = mBaseNanos + ptsNanos + mTargetDelayNanos;
+        if (playoutNanos < now) {
+            mLateCount++;
+        }
+        if (senderPtsUs == 0) {
+            frame.setPresentationTimeUs(ptsNanos / 1000);
+        }
+        enqueue(frame, playoutNanos);
+        return true;
+    }
+
+    private void enqueue(FrameBuffer frame, long playoutNanos) {
+        int tail = (mHead + mCount) % mCapacity;
+        mFrames[tail] = frame;
+        mPlayoutNanos[tail] = playoutNanos;
+        mCount++;
+    }
+
+    private void updateJitter(long intervalNanos) {
+        long deviation = Math.abs(intervalNanos - mMeanIntervalNanos);
+        mMeanIntervalNanos += (intervalNanos - mMeanIntervalNanos) / 16;
+        mJitterNanos += (deviation - mJitterNanos) / 16;
+        mTargetDelayNanos = computeTargetDelay();
+    }
+
+    private long computeTargetDelay() {
+        long delay;
+        if (mTarget == TARGET_SMOOTH) {
+            delay = mFrameIntervalNanos + 4 * mJitterNanos;
+        } else {
+            delay = 2 * mJitterNanos;
+        }
+        return Math.min(delay, (mCapacity - 1) * mFrameIntervalNanos);
+    }
+
+    @Override
+    public synchronized FrameBuffer poll() {
+        long now = mClock.nanoTime();
+        if (mCount == 0) {
+            if (mStarted && !mInUnderrun && now > mLastPlayoutNanos + mFrameIntervalNanos
+                    && mLastPlayoutNanos != 0) {
+                mInUnderrun = true;
+                mUnderrunCount++;
+            }
+            return null;
+        }
+        // Release early when full, or when a burst has piled up well past the target depth.
+        boolean overfull = mCount == mCapacity
+                || (mTarget == TARGET_LOW_LATENCY && mCount > 2 * getTargetDepth() + 1);
+        if (mPlayoutNanos[mHead] > now && !overfull) {
+            return null;
+        }
+        FrameBuffer frame = mFrames[mHead];
+        mFrames[mHead] = null;
+        mHead = (mHead + 1) % mCapacity;
+        mCount--;
+        mLastPlayoutNanos = now;
+        mInUnderrun = false;
+        return frame;
+    }
+
+    @Override
+    public synchronized int size() {
+        return mCount;
+    }
+
+    @Override
+    public int capacity() {
+        return mCapacity;
+    }
+
+    /**
+     * The number of frames the current target delay corresponds to.
+     */
+    public synchronized int getTargetDepth() {
+        return (int) ((mTargetDelayNanos + mFrameIntervalNanos - 1) / mFrameIntervalNanos);
+    }
+
+    public synchronized long getTargetDelayUs() {
+        return mTargetDelayNanos / 1000;
+    }
+
+    public synchronized long getJitterUs() {
+        return mJitterNanos / 1000;
+    }
+
+    /**
+     * Frames that arrived after the playout time the media clock had reserved for them.
+     */
+    public synchronized long getLateCount() {
+        return mLateCount;
+    }
+
+    /**
+     * Times the buffer ran dry while the next frame was already overdue.
+     */
+    public synchronized long getUnderrunCount() {
+        return mUnderrunCount;
+    }
+
+    interface Clock {
+        long nanoTime();
+
+        Clock SYSTEM = new Clock() {
+            @Override
+            public long nanoTime() {
+                return System.nanoTime();
+            }
+        };
+    }
+}
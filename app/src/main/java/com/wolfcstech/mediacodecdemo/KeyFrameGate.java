@@ -0,0 +1,134 @@
+package com.wolfcstech.mediacodecdemo;
+
+import android.media.MediaCodec;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Holds back frames a decoder cannot use yet. After {@link #startJoin()} or {@link #close()}
+ * only codec config passes until a frame containing an IDR slice arrives; from then on
+ * everything passes. Frames without flags are scanned for an IDR NAL unit while the gate is
+ * closed, so the gate also works behind transports that do not flag key frames.
+ *
+ * <p>The delay from {@link #startJoin()} to the first key frame is reported as the
+ * time-to-first-frame of the join. Not thread safe, call from the receiving thread.
+ */
+public class KeyFrameGate {
+    private final JitterBuffer.Clock mClock;
+    private Listener mListener;
+
+    private boolean mOpen = false;
+    private boolean mJoining = false;
+    private long mJoinStartNanos;
+    private long mDroppedSinceClose = 0;
+
+    private long mDroppedCount = 0;
+    private long mJoinCount = 0;
+    private volatile long mTimeToFirstFrameUs = -1;
+
+    public KeyFrameGate() {
+        this(JitterBuffer.Clock.SYSTEM);
+    }
+
+    KeyFrameGate(JitterBuffer.Clock clock) {
+        mClock = clock;
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Start a new join, for example on connecting to a stream. Closes the gate and starts the
+     * time-to-first-frame clock.
+     */
+    public void startJoin() {
+        close();
+        mJoining = true;
+        mJoinStartNanos = mClock.nanoTime();
+        mJoinCount++;
+    }
+
+    /**
+     * Close the gate after a discontinuity, such as lost frames or a decoder reconfigure,
+     * without starting a new join.
+     */
+    public void close() {
+        mOpen = false;
+        mDroppedSinceClose = 0;
+    }
+
+    /**
+     * @return false if {@code frame} cannot be decoded yet and should be dropped.
+     */
+    public boolean admit(FrameBuffer frame) {
+        if (mOpen) {
+            return true;
+        }
+        int flags = frame.getFlags();
+        if ((flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            return true;
+        }
+        if ((flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) == 0
+                && (flags != 0 || !containsIdrSlice(frame.data()))) {
+            mDroppedCount++;
+            mDroppedSinceClose++;
+            return false;
+        }
+
+        mOpen = true;
+        if (mJoining) {
+            mJoining = false;
+            long timeToFirstFrameUs = (mClock.nanoTime() - mJoinStartNanos) / 1000;
+            mTimeToFirstFrameUs = timeToFirstFrameUs;
+            Listener listener = mListener;
+            if (listener != null) {
+                listener.onFirstKeyFrame(timeToFirstFrameUs, mDroppedSinceClose);
+            }
+        }
+        return true;
+    }
+
+    private static boolean containsIdrSlice(ByteBuffer data) {
+        int limit = data.limit();
+        int start = H264.findNalStart(data, data.position(), limit);
+        while (start >= 0 && start < limit) {
+            int type = H264.nalType(data.get(start));
+            if (type == H264.NAL_IDR_SLICE) {
+                return true;
+            }
+            if (type == H264.NAL_SLICE) {
+                return false;
+            }
+            start = H264.findNalStart(data, start, limit);
+        }
+        return false;
+    }
+
+    public boolean isOpen() {
+        return mOpen;
+    }
+
+    /**
+     * Frames dropped while the gate was closed.
+     */
+    public long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    public long getJoinCount() {
+        return mJoinCount;
+    }
+
+    /**
+     * Microseconds from the last {@link #startJoin()} to its first key frame, or -1 if that
+     * key frame has not arrived yet.
+     */
+    public long getTimeToFirstFrameUs() {
+        return mJoining ? -1 : mTimeToFirstFrameUs;
+    }
+
+    public interface Listener {
+        void onFirstKeyFrame(long timeToFirstFrameUs, long droppedFrames);
+    }
+}
@@ -0,0 +1,137 @@
+package com.wolfcstech.mediacodecdemo;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies in nanoseconds with log-linear buckets, in the manner of
+ * HdrHistogram: each power of two is split into 32 linear buckets, so any value is reported
+ * within about 3% of what was recorded. Recording is lock-free and allocates nothing; the
+ * percentiles are computed on a {@link Snapshot}.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    // 2^40ns is about 18 minutes, longer values land in the last bucket.
+    private static final int MAX_SHIFT = 40 - SUB_BUCKET_BITS;
+    static final int BUCKET_COUNT = SUB_BUCKET_COUNT * (MAX_SHIFT + 2);
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mTotal = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    /**
+     * Record one latency, negative values count as zero.
+     */
+    public void record(long valueNanos) {
+        if (valueNanos < 0) {
+            valueNanos = 0;
+        }
+        mCounts.incrementAndGet(bucketIndex(valueNanos));
+        mCount.incrementAndGet();
+        mTotal.addAndGet(valueNanos);
+        long max;
+        while (valueNanos > (max = mMax.get())) {
+            if (mMax.compareAndSet(max, valueNanos)) {
+                break;
+            }
+        }
+    }
+
+    public long getCount() {
+        return mCount.get();
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mCounts.set(i, 0);
+        }
+        mCount.set(0);
+        mTotal.set(0);
+        mMax.set(0);
+    }
+
+    /**
+     * Copy the counts for reporting. Values recorded meanwhile may or may not be included.
+     */
+    public Snapshot snapshot() {
+        long[] counts = new long[BUCKET_COUNT];
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = mCounts.get(i);
+            count += counts[i];
+        }
+        return new Snapshot(counts, count, mTotal.get(), mMax.get());
+    }
+
+    static int bucketIndex(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        if (shift > MAX_SHIFT) {
+            return BUCKET_COUNT - 1;
+        }
+        // value >>> shift is in [32, 64), which picks the linear sub-bucket.
+        return SUB_BUCKET_COUNT * (shift + 1) + (int) (value >>> shift) - SUB_BUCKET_COUNT;
+    }
+
+    /**
+     * The largest value that lands in bucket {@code index}.
+     */
+    static long highestEquivalentValue(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = index / SUB_BUCKET_COUNT - 1;
+        long sub = SUB_BUCKET_COUNT + index % SUB_BUCKET_COUNT;
+        return ((sub + 1) << shift) - 1;
+    }
+
+    public static class Snapshot {
+        private final long[] mCounts;
+        private final long mCount;
+        private final long mTotal;
+        private final long mMax;
+
+        Snapshot(long[] counts, long count, long total, long max) {
+            mCounts = counts;
+            mCount = count;
+            mTotal = total;
+            mMax = max;
+        }
+
+        public long getCount() {
+            return mCount;
+        }
+
+        public long getMax() {
+            return mMax;
+        }
+
+        public long getMean() {
+            return mCount > 0 ? mTotal / mCount : 0;
+        }
+
+        /**
+         * The value at or below which {@code percentile} percent of the recorded values fall,
+         * 0 when nothing was recorded.
+         */
+        public long getValueAtPercentile(double percentile) {
+            if (mCount == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(Math.min(percentile, 100) / 100 * mCount);
+            rank = Math.max(rank, 1);
+            long seen = 0;
+            for (int i = 0; i < mCounts.length; i++) {
+                seen += mCounts[i];
+                if (seen >= rank) {
+                    return Math.min(highestEquivalentValue(i), mMax);
+                }
+            }
+            return mMax;
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package com.wolfcstech.mediacodecdemo;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Per-frame timestamps through the pipeline, from camera capture to render. Each stage marks
+ * a frame id with the time it reached that stage; when the previous stage marked the same id,
+ * the time between them goes into that stage's {@link LatencyHistogram}.
+ *
+ * <p>The timestamps live in a ring of primitive longs indexed by frame id, so marking takes no
+ * lock and allocates nothing. Every stage must be marked from one thread at a time. A frame is
+ * only followed while its slot has not been reused, i.e. within the last {@code capacity}
+ * frames or so.
+ *
+ * <p>Every stage is keyed by {@link #frameId(long)} of the frame's capture timestamp, which
+ * the transports carry as the presentation time, and the receiving transport marks
+ * {@link #STAGE_RECEIVED} as the frame comes off the socket. When one tracer sees both ends,
+ * as when the app receives its own stream, the stage into {@link #STAGE_RECEIVED} is the
+ * network hop and {@link #SPAN_END_TO_END} the glass-to-glass latency. Otherwise
+ * {@link #SPAN_SEND} from capture to send and {@link #SPAN_RECEIVE} from receive to render
+ * still cover each half.
+ */
+public class LatencyTracer {
+    public static final int STAGE_CAPTURE = 0;
+    public static final int STAGE_ENCODER_INPUT = 1;
+    public static final int STAGE_ENCODED = 2;
+    public static final int STAGE_SENT = 3;
+    public static final int STAGE_RECEIVED = 4;
+    public static final int STAGE_DECODER_INPUT = 5;
+    public static final int STAGE_RENDERED = 6;
+    public static final int STAGE_COUNT = 7;
+
+    public static final int SPAN_SEND = 0;
+    public static final int SPAN_RECEIVE = 1;
+    public static final int SPAN_END_TO_END = 2;
+
+    private static final String[] STAGE_NAMES = {"capture", "encoder input", "encoded", "sent",
+            "received", "decoder input", "rendered"};
+    private static final int[] SPAN_START = {STAGE_CAPTURE, STAGE_RECEIVED, STAGE_CAPTURE};
+    private static final int[] SPAN_END = {STAGE_SENT, STAGE_RENDERED, STAGE_RENDERED};
+    private static final String[] SPAN_NAMES = {"capture to sent", "received to rendered",
+            "capture to rendered"};
+
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+    private static final String[] PERCENTILE_NAMES = {"p50", "p90", "p99", "p99.9"};
+
+    private static final long NO_FRAME = Long.MIN_VALUE;
+
+    private final int mSlotBits;
+    // Per slot and stage: the frame id and when it reached the stage. The id is published
+    // after the time, and checked again after reading it, so a reader never pairs an id with
+    // another frame's time.
+    private final AtomicLongArray mIds;
+    private final long[] mTimes;
+    private final LatencyHistogram[] mStageHistograms = new LatencyHistogram[STAGE_COUNT];
+    private final LatencyHistogram[] mSpanHistograms = new LatencyHistogram[SPAN_END.length];
+
+    /**
+     * @param capacity how many frames can be in flight, rounded up to a power of two.
+     */
+    public LatencyTracer(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        int slotBits = Math.max(1, 32 - Integer.numberOfLeadingZeros(capacity - 1));
+        mSlotBits = slotBits;
+        int slots = 1 << slotBits;
+        mIds = new AtomicLongArray(slots * STAGE_COUNT);
+        for (int i = 0; i < slots * STAGE_COUNT; i++) {
+            mIds.set(i, NO_FRAME);
+        }
+        mTimes = new long[slots * STAGE_COUNT];
+        for (int i = 0; i < STAGE_COUNT; i++) {
+            mStageHistograms[i] = new LatencyHistogram();
+        }
+        for (int i = 0; i < mSpanHistograms.length; i++) {
+            mSpanHistograms[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * The id to mark a frame by: its presentation time on the 90 kHz RTP clock, wrapped to
+     * 32 bits. RTP carries exactly that, so every transport delivers frames that map back to
+     * the id the sender marked.
+     */
+    public static long frameId(long presentationTimeUs) {
+        return presentationTimeUs * 90 / 1000 & 0xFFFFFFFFL;
+    }
+
+    public void mark(long frameId, int stage) {
+        mark(frameId, stage, System.nanoTime());
+    }
+
+    /**
+     * Record that frame {@code frameId} reached {@code stage} at {@code timeNanos}, on the
+     * {@link System#nanoTime()} clock.
+     */
+    public void mark(long frameId, int stage, long timeNanos) {
+        int base = slot(frameId) * STAGE_COUNT;
+        // Hide the slot while its time changes.
+        mIds.lazySet(base + stage, NO_FRAME);
+        mTimes[base + stage] = timeNanos;
+        mIds.set(base + stage, frameId);
+
+        if (stage == STAGE_CAPTURE) {
+            return;
+        }
+        long previous = timeAt(base + stage - 1, frameId);
+        if (previous != NO_FRAME) {
+            mStageHistograms[stage].record(timeNanos - previous);
+        }
+        for (int span = 0; span < SPAN_END.length; span++) {
+            if (SPAN_END[span] == stage) {
+                long start = timeAt(base + SPAN_START[span], frameId);
+                if (start != NO_FRAME) {
+                    mSpanHistograms[span].record(timeNanos - start);
+                }
+            }
+        }
+    }
+
+    private long timeAt(int index, long frameId) {
+        if (mIds.get(index) != frameId) {
+            return NO_FRAME;
+        }
+        long time = mTimes[index];
+        return mIds.get(index) == frameId ? time : NO_FRAME;
+    }
+
+    private int slot(long frameId) {
+        // Fibonacci hashing spreads timestamps that advance by a whole frame interval.
+        return (int) ((frameId * 0x9E3779B97F4A7C15L) >>> (64 - mSlotBits));
+    }
+
+    /**
+     * Latency from the previous stage to {@code stage}.
+     */
+    public LatencyHistogram getStageHistogram(int stage) {
+        return mStageHistograms[stage];
+    }
+
+    public LatencyHistogram getSpanHistogram(int span) {
+        return mSpanHistograms[span];
+    }
+
+    public static String stageName(int stage) {
+        return STAGE_NAMES[stage];
+    }
+
+    public void reset() {
+        for (LatencyHistogram histogram : mStageHistograms) {
+            histogram.reset();
+        }
+        for (LatencyHistogram histogram : mSpanHistograms) {
+            histogram.reset();
+        }
+    }
+
+    /**
+     * Percentiles of every stage and span that has samples, one per line. Works on snapshots,
+     * so it can run while frames are marked.
+     */
+    public String dump() {
+        StringBuilder builder = new StringBuilder();
+        for (int stage = 1; stage < STAGE_COUNT; stage++) {
+            appendHistogram(builder, STAGE_NAMES[stage - 1] + " -> " + STAGE_NAMES[stage],
+                    mStageHistograms[stage].snapshot());
+        }
+        for (int span = 0; span < SPAN_END.length; span++) {
+            appendHistogram(builder, SPAN_NAMES[span], mSpanHistograms[span].snapshot());
+        }
+        return builder.toString();
+    }
+
+    private static void appendHistogram(StringBuilder builder, String name,
+                                        LatencyHistogram.Snapshot snapshot) {
+        if (snapshot.getCount() == 0) {
+            return;
+        }
+        builder.append(name).append(": n=").append(snapshot.getCount());
+        for (int i = 0; i < PERCENTILES.length; i++) {
+            builder.append(' ').append(PERCENTILE_NAMES[i]).append('=')
+                    .append(micros(snapshot.getValueAtPercentile(PERCENTILES[i])));
+        }
+        builder.append(" max=").append(micros(snapshot.getMax())).append(" us\n");
+    }
+
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+}
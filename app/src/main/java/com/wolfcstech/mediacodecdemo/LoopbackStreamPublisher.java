@@ -0,0 +1,103 @@
+package com.wolfcstech.mediacodecdemo;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An in-memory {@link StreamPublisher} bound to a port number in a process-wide namespace,
+ * for {@link LoopbackStreamTransport}s to subscribe to. Runs the local pipeline end to end
+ * without a network, and gives the socket transports a baseline to be benchmarked against.
+ */
+public class LoopbackStreamPublisher implements StreamPublisher {
+    private static final ConcurrentHashMap<Integer, LoopbackStreamPublisher> sBound =
+            new ConcurrentHashMap<>();
+
+    private final CopyOnWriteArrayList<LoopbackStreamTransport> mSubscribers =
+            new CopyOnWriteArrayList<>();
+    private volatile SyncFrameListener mSyncFrameListener;
+    private int mPort = -1;
+
+    private final AtomicLong mSentFrameCount = new AtomicLong();
+    private final AtomicLong mRejectedFrameCount = new AtomicLong();
+
+    static LoopbackStreamPublisher find(int port) {
+        return sBound.get(port);
+    }
+
+    @Override
+    public synchronized void start(int port) throws IOException {
+        if (mPort >= 0) {
+            return;
+        }
+        if (sBound.putIfAbsent(port, this) != null) {
+            throw new IOException("Loopback port " + port + " already in use");
+        }
+        mPort = port;
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (mPort < 0) {
+            return;
+        }
+        sBound.remove(mPort, this);
+        mPort = -1;
+        for (LoopbackStreamTransport subscriber : mSubscribers) {
+            subscriber.onPublisherStopped(this);
+        }
+        mSubscribers.clear();
+    }
+
+    @Override
+    public synchronized int getLocalPort() {
+        return mPort;
+    }
+
+    @Override
+    public void setSyncFrameListener(SyncFrameListener listener) {
+        mSyncFrameListener = listener;
+    }
+
+    void subscribe(LoopbackStreamTransport subscriber) {
+        mSubscribers.add(subscriber);
+        SyncFrameListener listener = mSyncFrameListener;
+        if (listener != null) {
+            listener.onSyncFrameNeeded();
+        }
+    }
+
+    void unsubscribe(LoopbackStreamTransport subscriber) {
+        mSubscribers.remove(subscriber);
+    }
+
+    @Override
+    public boolean sendFrame(FrameBuffer frame) {
+        try {
+            if (mPort < 0) {
+                mRejectedFrameCount.incrementAndGet();
+                return false;
+            }
+            for (LoopbackStreamTransport subscriber : mSubscribers) {
+                subscriber.deliver(frame);
+            }
+            mSentFrameCount.incrementAndGet();
+            return true;
+        } finally {
+            frame.release();
+        }
+    }
+
+    public int getSubscriberCount() {
+        return mSubscribers.size();
+    }
+
+    public long getSentFrameCount() {
+        return mSentFrameCount.get();
+    }
+
+    public long getRejectedFrameCount() {
+        return mRejectedFrameCount.get();
+    }
+}
@@ -0,0 +1,116 @@
+package com.wolfcstech.mediacodecdemo;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Receives from a {@link LoopbackStreamPublisher} in the same process. Each frame is copied
+ * into a buffer from the sink's pool, as a socket transport would, and queued for the
+ * receiving thread; when the queue is full the frame is dropped. The host is ignored.
+ */
+public class LoopbackStreamTransport extends BaseStreamTransport {
+    private static final int QUEUE_CAPACITY = 64;
+    private static final long SUBSCRIBE_RETRY_NANOS = 100000000;
+    private static final long IDLE_PARK_NANOS = 5000000;
+
+    private final FrameQueue mQueue = new BoundedFrameQueue(QUEUE_CAPACITY);
+    private volatile boolean mStop = false;
+    private volatile Thread mReceivingThread;
+    private volatile LoopbackStreamPublisher mPublisher;
+
+    private final AtomicLong mDroppedFrameCount = new AtomicLong();
+
+    public LoopbackStreamTransport() {
+        super(StreamTransports.LOOPBACK);
+    }
+
+    @Override
+    public void receive(String host, int port) {
+        mReceivingThread = Thread.currentThread();
+        try {
+            while (!mStop) {
+                LoopbackStreamPublisher publisher = LoopbackStreamPublisher.find(port);
+                if (publisher == null) {
+                    LockSupport.parkNanos(this, SUBSCRIBE_RETRY_NANOS);
+                    continue;
+                }
+                mPublisher = publisher;
+                notifyHealthChanged(ConnectionSupervisor.STATE_CONNECTING,
+                        ConnectionSupervisor.STATE_CONNECTED);
+                publisher.subscribe(this);
+                drain();
+                publisher.unsubscribe(this);
+                mPublisher = null;
+                notifyHealthChanged(ConnectionSupervisor.STATE_CONNECTED,
+                        ConnectionSupervisor.STATE_CONNECTING);
+            }
+        } finally {
+            mReceivingThread = null;
+            FrameBuffer frame;
+            while ((frame = mQueue.poll()) != null) {
+                frame.release();
+            }
+            notifyHealthChanged(ConnectionSupervisor.STATE_CONNECTING,
+                    ConnectionSupervisor.STATE_STOPPED);
+        }
+    }
+
+    private void drain() {
+        while (!mStop && mPublisher != null) {
+            FrameBuffer frame = mQueue.poll();
+            if (frame == null) {
+                LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                continue;
+            }
+            onFrameReceived(frame);
+        }
+    }
+
+    /**
+     * Called on the publishing thread.
+     */
+    void deliver(FrameBuffer frame) {
+        ByteBuffer data = frame.data();
+        FrameBuffer copy = mPool.tryAcquire(data.remaining());
+        if (copy == null) {
+            mDroppedFrameCount.incrementAndGet();
+            return;
+        }
+        copy.data().put(data.duplicate()).flip();
+        copy.setFlags(frame.getFlags());
+        copy.setPresentationTimeUs(frame.getPresentationTimeUs());
+        copy.setIndex(frame.getIndex());
+        if (!mQueue.offer(copy)) {
+            mDroppedFrameCount.incrementAndGet();
+            copy.release();
+            return;
+        }
+        Thread thread = mReceivingThread;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    void onPublisherStopped(LoopbackStreamPublisher publisher) {
+        if (mPublisher == publisher) {
+            mPublisher = null;
+        }
+    }
+
+    @Override
+    public void stop() {
+        mStop = true;
+        Thread thread = mReceivingThread;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * Frames dropped because the receiving thread fell behind.
+     */
+    public long getDroppedFrameCount() {
+        return mDroppedFrameCount.get();
+    }
+}
@@ -0,0 +1,168 @@
+package com.wolfcstech.mediacodecdemo;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Spills media data to a temporary file so memory stays bounded however long the stream is.
+ * Appends collect in a small heap window that is written out when full; reads of flushed
+ * data are served from read-only mappings of fixed size file regions.
+ *
+ * <p>At most {@code maxMappedRegions} regions stay mapped, least recently read first out.
+ * Regions that lie entirely before the latest read position, minus a retained distance for
+ * the extractor seeking back, are dropped eagerly since that data has been consumed.
+ * Dropped regions are simply mapped again if they are read later.
+ */
+public class MappedFileMediaDataStore implements MediaDataStore {
+    private final File mFile;
+    private final RandomAccessFile mRandomAccessFile;
+    private final FileChannel mChannel;
+
+    private final byte[] mWindow;
+    private int mWindowLength = 0;
+    private long mFlushedLength = 0;
+    private volatile long mLength = 0;
+
+    private final int mRegionSize;
+    private final int mMaxMappedRegions;
+    private final long mRetainBehindBytes;
+    private final LinkedHashMap<Long, MappedByteBuffer> mRegions;
+    private long mEvictedCount = 0;
+
+    /**
+     * @param directory where to create the temporary file, deleted again on close.
+     * @param heapWindowSize the bytes buffered on the heap before they are written out.
+     * @param regionSize the size of each mapping.
+     * @param maxMappedRegions the most regions mapped at a time.
+     * @param retainBehindBytes how far behind the read position consumed data stays mapped.
+     */
+    public MappedFileMediaDataStore(File directory, int heapWindowSize, int regionSize,
+                                    int maxMappedRegions, long retainBehindBytes) throws IOException {
+        mFile = File.createTempFile("stream", ".media", directory);
+        mRandomAccessFile = new RandomAccessFile(mFile, "rw");
+        mChannel = mRandomAccessFile.getChannel();
+        mWindow = new byte[heapWindowSize];
+        mRegionSize = regionSize;
+        mMaxMappedRegions = maxMappedRegions;
+        mRetainBehindBytes = retainBehindBytes;
+        mRegions = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    @Override
+    public synchronized void append(byte[] data, int offset, int size) throws IOException {
+        while (size > 0) {
+            int count = Math.min(size, mWindow.length - mWindowLength);
+            System.arraycopy(data, offset, mWindow, mWindowLength, count);
+            mWindowLength += count;
+            offset += count;
+            size -= count;
+            if (mWindowLength == mWindow.length) {
+                flushWindow();
+            }
+        }
+        mLength = mFlushedLength + mWindowLength;
+    }
+
+    private void flushWindow() throws IOException {
+        ByteBuffer window = ByteBuffer.wrap(mWindow, 0, mWindowLength);
+        long position = mFlushedLength;
+        while (window.hasRemaining()) {
+            position += mChannel.write(window, position);
+        }
+        mFlushedLength = position;
+        mWindowLength = 0;
+    }
+
+    @Override
+    public synchronized int read(long position, byte[] buffer, int offset, int size) throws IOException {
+        long length = mFlushedLength + mWindowLength;
+        if (position >= length) {
+            return 0;
+        }
+        int total = (int) Math.min(size, length - position);
+        int remaining = total;
+        while (remaining > 0) {
+            int count;
+            if (position >= mFlushedLength) {
+                count = remaining;
+                System.arraycopy(mWindow, (int) (position - mFlushedLength), buffer, offset, count);
+            } else {
+                long regionStart = position - position % mRegionSize;
+                MappedByteBuffer region = mapRegion(regionStart);
+                int regionOffset = (int) (position - regionStart);
+                count = Math.min(remaining, region.limit() - regionOffset);
+                ByteBuffer view = region.duplicate();
+                view.position(regionOffset);
+                view.get(buffer, offset, count);
+            }
+            position += count;
+            offset += count;
+            remaining -= count;
+        }
+        evictConsumed(position);
+        return total;
+    }
+
+    private MappedByteBuffer mapRegion(long regionStart) throws IOException {
+        long mappable = Math.min(mRegionSize, mFlushedLength - regionStart);
+        MappedByteBuffer region = mRegions.get(regionStart);
+        // A region mapped while it was still being filled is mapped again once it grew.
+        if (region == null || region.limit() < mappable) {
+            region = mChannel.map(FileChannel.MapMode.READ_ONLY, regionStart, mappable);
+            mRegions.put(regionStart, region);
+            if (mRegions.size() > mMaxMappedRegions) {
+                Iterator<Long> eldest = mRegions.keySet().iterator();
+                eldest.next();
+                eldest.remove();
+                mEvictedCount++;
+            }
+        }
+        return region;
+    }
+
+    private void evictConsumed(long readPosition) {
+        long consumedBefore = readPosition - mRetainBehindBytes;
+        Iterator<Map.Entry<Long, MappedByteBuffer>> it = mRegions.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Long, MappedByteBuffer> entry = it.next();
+            if (entry.getKey() + mRegionSize <= consumedBefore) {
+                it.remove();
+                mEvictedCount++;
+            }
+        }
+    }
+
+    @Override
+    public long length() {
+        return mLength;
+    }
+
+    public synchronized int getMappedRegionCount() {
+        return mRegions.size();
+    }
+
+    public synchronized long getEvictedRegionCount() {
+        return mEvictedCount;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        // Mappings are released once collected, the file can already go.
+        mRegions.clear();
+        try {
+            mChannel.close();
+            mRandomAccessFile.close();
+        } finally {
+            if (!mFile.delete()) {
+                mFile.deleteOnExit();
+            }
+        }
+    }
+}
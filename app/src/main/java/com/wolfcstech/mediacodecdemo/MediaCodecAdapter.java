@@ -0,0 +1,49 @@
+package com.wolfcstech.mediacodecdemo;
+
+import android.media.MediaCodec;
+
+import java.nio.ByteBuffer;
+
+public class MediaCodecAdapter implements CodecAdapter {
+    private final MediaCodec mCodec;
+    // Only touched from the output draining thread.
+    private final MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
+
+    public MediaCodecAdapter(MediaCodec codec) {
+        mCodec = codec;
+    }
+
+    public MediaCodec getCodec() {
+        return mCodec;
+    }
+
+    @Override
+    public int dequeueInputBuffer(long timeoutUs) {
+        return mCodec.dequeueInputBuffer(timeoutUs);
+    }
+
+    @Override
+    public ByteBuffer getInputBuffer(int index) {
+        return mCodec.getInputBuffer(index);
+    }
+
+    @Override
+    public void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags) {
+        mCodec.queueInputBuffer(index, offset, size, presentationTimeUs, flags);
+    }
+
+    @Override
+    public int dequeueOutputBuffer(long timeoutUs) {
+        return mCodec.dequeueOutputBuffer(mBufferInfo, timeoutUs);
+    }
+
+    @Override
+    public long getOutputPresentationTimeUs() {
+        return mBufferInfo.presentationTimeUs;
+    }
+
+    @Override
+    public void releaseOutputBuffer(int index, boolean render) {
+        mCodec.releaseOutputBuffer(index, render);
+    }
+}
@@ -0,0 +1,24 @@
+package com.wolfcstech.mediacodecdemo;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Append-only storage behind {@link NetworkMediaDataSource}. One thread appends while others
+ * read what has been stored so far.
+ */
+public interface MediaDataStore extends Closeable {
+    void append(byte[] data, int offset, int size) throws IOException;
+
+    /**
+     * Copy up to {@code size} stored bytes starting at {@code position}.
+     *
+     * @return the number of bytes copied, 0 if nothing is stored at {@code position} yet.
+     */
+    int read(long position, byte[] buffer, int offset, int size) throws IOException;
+
+    /**
+     * The number of bytes appended so far.
+     */
+    long length();
+}
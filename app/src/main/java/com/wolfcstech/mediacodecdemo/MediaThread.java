@@ -0,0 +1,268 @@
+package com.wolfcstech.mediacodecdemo;
+
+import android.os.Debug;
+import android.os.Process;
+import android.util.Log;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A long-lived worker running posted tasks in order at an Android scheduling priority.
+ * Receive and codec loops each get their own, so a blocking loop never holds up another
+ * and network, codec and render work are scheduled ahead of the UI.
+ *
+ * <p>Tasks that block until stopped implement {@link Cancellable}, {@link #quit()} cancels
+ * the running one and every one still queued, so their sockets are closed even if they never
+ * ran. The thread keeps {@link Stats} on its CPU time and how long tasks waited to run.
+ */
+public class MediaThread {
+    private static final String TAG = "MediaThread";
+
+    /** Socket reads must keep up with the sender or the kernel drops datagrams. */
+    public static final int PRIORITY_NETWORK = Process.THREAD_PRIORITY_URGENT_DISPLAY;
+    public static final int PRIORITY_CODEC = Process.THREAD_PRIORITY_DISPLAY;
+    public static final int PRIORITY_RENDER = Process.THREAD_PRIORITY_URGENT_DISPLAY;
+
+    private static final long QUIT_TIMEOUT_MS = 2000;
+    private static final long CPU_SAMPLE_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private static final ThreadLocal<MediaThread> sCurrent = new ThreadLocal<>();
+    private static final Task QUIT = new Task(null, 0);
+
+    private final String mName;
+    private final int mPriority;
+    private final Stats mStats;
+    private final LinkedBlockingQueue<Task> mTasks = new LinkedBlockingQueue<>();
+
+    private Thread mThread;
+    private volatile boolean mQuitting = false;
+    private volatile Runnable mRunningTask;
+
+    public MediaThread(String name, int priority) {
+        mName = name;
+        mPriority = priority;
+        mStats = new Stats(name, priority);
+    }
+
+    public synchronized void start() {
+        if (mThread != null) {
+            return;
+        }
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, mName);
+        mThread.start();
+    }
+
+    /**
+     * Queue {@code task} to run after the tasks already posted.
+     *
+     * @return false if the thread is quitting, a {@link Cancellable} task is cancelled then.
+     */
+    public boolean post(Runnable task) {
+        if (!mQuitting) {
+            mTasks.offer(new Task(task, System.nanoTime()));
+            if (!mQuitting) {
+                return true;
+            }
+        }
+        // quit() may already have drained the queue.
+        cancel(task);
+        return false;
+    }
+
+    /**
+     * Cancel the running task and everything still queued, then wait for the thread to end.
+     * Gives up waiting after a while if the running task ignores cancellation.
+     */
+    public synchronized void quit() {
+        mQuitting = true;
+        cancel(mRunningTask);
+        Task task;
+        while ((task = mTasks.poll()) != null) {
+            cancel(task.mRunnable);
+        }
+        if (mThread == null) {
+            return;
+        }
+        mTasks.offer(QUIT);
+        try {
+            mThread.join(QUIT_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (mThread.isAlive()) {
+            Log.w(TAG, mName + " did not stop within " + QUIT_TIMEOUT_MS + " ms");
+        }
+    }
+
+    /**
+     * The thread tasks run on, null before {@link #start()}.
+     */
+    public synchronized Thread getThread() {
+        return mThread;
+    }
+
+    public Stats getStats() {
+        return mStats;
+    }
+
+    /**
+     * Update the CPU time of the calling media thread, at most every 100ms. Tasks that loop
+     * for their whole life call this as they go; the time is otherwise only sampled between
+     * tasks. Does nothing on other threads.
+     */
+    public static void sampleCpuTime() {
+        MediaThread thread = sCurrent.get();
+        if (thread != null) {
+            thread.mStats.sampleCpuTime(false);
+        }
+    }
+
+    private static void cancel(Runnable task) {
+        if (task instanceof Cancellable) {
+            ((Cancellable) task).cancel();
+        }
+    }
+
+    private void loop() {
+        sCurrent.set(this);
+        try {
+            Process.setThreadPriority(mPriority);
+        } catch (IllegalArgumentException | SecurityException e) {
+            Log.w(TAG, "Cannot set priority " + mPriority + " on " + mName, e);
+        }
+        while (true) {
+            Task task;
+            try {
+                task = mTasks.take();
+            } catch (InterruptedException e) {
+                break;
+            }
+            if (task == QUIT) {
+                break;
+            }
+            // Publish the task before checking for quit, so quit() either sees it running or
+            // the task sees quit and never starts.
+            mRunningTask = task.mRunnable;
+            if (mQuitting) {
+                mRunningTask = null;
+                cancel(task.mRunnable);
+                continue;
+            }
+            mStats.recordQueueLatency(System.nanoTime() - task.mPostedNanos);
+            try {
+                task.mRunnable.run();
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Task failed on " + mName, e);
+            } finally {
+                mRunningTask = null;
+                mStats.sampleCpuTime(true);
+            }
+        }
+        mStats.sampleCpuTime(true);
+    }
+
+    private static class Task {
+        final Runnable mRunnable;
+        final long mPostedNanos;
+
+        Task(Runnable runnable, long postedNanos) {
+            mRunnable = runnable;
+            mPostedNanos = postedNanos;
+        }
+    }
+
+    /**
+     * A task that runs until it is told to stop. {@link #cancel()} is called from another
+     * thread, possibly before the task has started, and must make {@code run()} return
+     * promptly and release what it holds.
+     */
+    public interface Cancellable extends Runnable {
+        void cancel();
+    }
+
+    /**
+     * CPU time and queue latency of one thread. Written only by the thread it describes,
+     * read from anywhere.
+     */
+    public static class Stats {
+        private final String mName;
+        private final int mPriority;
+
+        private volatile long mCpuTimeNanos = 0;
+        private long mLastSampleNanos = 0;
+        private volatile long mLatencyCount = 0;
+        private volatile long mTotalLatencyNanos = 0;
+        private volatile long mMaxLatencyNanos = 0;
+
+        public Stats(String name, int priority) {
+            mName = name;
+            mPriority = priority;
+        }
+
+        /**
+         * Record how long one task or frame waited before the thread picked it up.
+         */
+        public void recordQueueLatency(long latencyNanos) {
+            mLatencyCount++;
+            mTotalLatencyNanos += latencyNanos;
+            if (latencyNanos > mMaxLatencyNanos) {
+                mMaxLatencyNanos = latencyNanos;
+            }
+        }
+
+        void sampleCpuTime(boolean force) {
+            long now = System.nanoTime();
+            if (!force && now - mLastSampleNanos < CPU_SAMPLE_INTERVAL_NANOS) {
+                return;
+            }
+            mLastSampleNanos = now;
+            long cpuTime = Debug.threadCpuTimeNanos();
+            if (cpuTime >= 0) {
+                mCpuTimeNanos = cpuTime;
+            }
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public int getPriority() {
+            return mPriority;
+        }
+
+        /**
+         * CPU time the thread has used, as of its last sample.
+         */
+        public long getCpuTimeNanos() {
+            return mCpuTimeNanos;
+        }
+
+        public long getQueueLatencyCount() {
+            return mLatencyCount;
+        }
+
+        public long getMeanQueueLatencyNanos() {
+            long count = mLatencyCount;
+            return count > 0 ? mTotalLatencyNanos / count : 0;
+        }
+
+        public long getMaxQueueLatencyNanos() {
+            return mMaxLatencyNanos;
+        }
+
+        @Override
+        public String toString() {
+            return mName + " (priority " + mPriority + "): cpu "
+                    + TimeUnit.NANOSECONDS.toMillis(mCpuTimeNanos) + " ms, "
+                    + mLatencyCount + " queued, latency mean "
+                    + TimeUnit.NANOSECONDS.toMicros(getMeanQueueLatencyNanos()) + " us max "
+                    + TimeUnit.NANOSECONDS.toMicros(mMaxLatencyNanos) + " us";
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package com.wolfcstech.mediacodecdemo;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Named counters, gauges and rate meters for the pipeline. Hot paths look their metrics up
+ * once and keep them in fields; updating one is a striped add and never logs. The numbers
+ * are read through the getters, or summarized by {@link #dump()}, which a
+ * {@link MetricsReporter} logs periodically.
+ */
+public class MetricsRegistry {
+    private static final MetricsRegistry sDefault = new MetricsRegistry(JitterBuffer.Clock.SYSTEM);
+
+    private final JitterBuffer.Clock mClock;
+    private final ConcurrentMap<String, Object> mMetrics = new ConcurrentHashMap<>();
+
+    MetricsRegistry(JitterBuffer.Clock clock) {
+        mClock = clock;
+    }
+
+    public MetricsRegistry() {
+        this(JitterBuffer.Clock.SYSTEM);
+    }
+
+    /**
+     * The registry the app's components report to.
+     */
+    public static MetricsRegistry getDefault() {
+        return sDefault;
+    }
+
+    /**
+     * The counter named {@code name}, created on first use.
+     */
+    public Counter counter(String name) {
+        Object metric = mMetrics.get(name);
+        if (metric == null) {
+            Object existing = mMetrics.putIfAbsent(name, metric = new Counter());
+            if (existing != null) {
+                metric = existing;
+            }
+        }
+        return cast(name, metric, Counter.class);
+    }
+
+    /**
+     * The rate meter named {@code name}, created on first use.
+     */
+    public Meter meter(String name) {
+        Object metric = mMetrics.get(name);
+        if (metric == null) {
+            Object existing = mMetrics.putIfAbsent(name, metric = new Meter(mClock));
+            if (existing != null) {
+                metric = existing;
+            }
+        }
+        return cast(name, metric, Meter.class);
+    }
+
+    /**
+     * Register {@code gauge} under {@code name}, replacing any gauge registered before, e.g.
+     * by a pipeline that has since been rebuilt.
+     */
+    public void gauge(String name, Gauge gauge) {
+        Object existing = mMetrics.put(name, gauge);
+        if (existing != null && !(existing instanceof Gauge)) {
+            mMetrics.put(name, existing);
+            throw new IllegalArgumentException(name + " is not a gauge");
+        }
+    }
+
+    public void remove(String name) {
+        mMetrics.remove(name);
+    }
+
+    /**
+     * The metric named {@code name}, or null.
+     */
+    public Object get(String name) {
+        return mMetrics.get(name);
+    }
+
+    private static <T> T cast(String name, Object metric, Class<T> type) {
+        if (!type.isInstance(metric)) {
+            throw new IllegalArgumentException(name + " is not a " + type.getSimpleName());
+        }
+        return type.cast(metric);
+    }
+
+    /**
+     * Start a new rate interval on every meter, see {@link Meter#getRatePerSecond()}.
+     */
+    public void tick() {
+        for (Object metric : mMetrics.values()) {
+            if (metric instanceof Meter) {
+                ((Meter) metric).tick();
+            }
+        }
+    }
+
+    /**
+     * Every metric and its current value, one per line in name order.
+     */
+    public String dump() {
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<String, Object> entry : new TreeMap<>(mMetrics).entrySet()) {
+            builder.append(entry.getKey()).append(' ');
+            Object metric = entry.getValue();
+            if (metric instanceof Counter) {
+                builder.append(((Counter) metric).getCount());
+            } else if (metric instanceof Meter) {
+                Meter meter = (Meter) metric;
+                builder.append(meter.getCount())
+                        .append(" (").append(Math.round(meter.getRatePerSecond()))
+                        .append("/s, mean ").append(Math.round(meter.getMeanRatePerSecond()))
+                        .append("/s)");
+            } else {
+                builder.append(((Gauge) metric).getValue());
+            }
+            builder.append('\n');
+        }
+        return builder.toString();
+    }
+
+    public static class Counter {
+        private final StripedCounter mCount = new StripedCounter();
+
+        public void increment() {
+            mCount.increment();
+        }
+
+        public void add(long n) {
+            mCount.add(n);
+        }
+
+        public long getCount() {
+            return mCount.sum();
+        }
+    }
+
+    /**
+     * A value read when the metrics are, e.g. a queue depth.
+     */
+    public interface Gauge {
+        long getValue();
+    }
+
+    /**
+     * Counts events and reports their rate, over the last interval between two
+     * {@link #tick()}s and over the meter's whole life.
+     */
+    public static class Meter {
+        private final JitterBuffer.Clock mClock;
+        private final StripedCounter mCount = new StripedCounter();
+        private final long mStartNanos;
+
+        private long mTickCount = 0;
+        private long mTickNanos;
+        private double mRate = 0;
+
+        Meter(JitterBuffer.Clock clock) {
+            mClock = clock;
+            mStartNanos = clock.nanoTime();
+            mTickNanos = mStartNanos;
+        }
+
+        public void mark() {
+            mCount.increment();
+        }
+
+        public void mark(long n) {
+            mCount.add(n);
+        }
+
+        public long getCount() {
+            return mCount.sum();
+        }
+
+        /**
+         * Events per second between the last two ticks, 0 before the first.
+         */
+        public synchronized double getRatePerSecond() {
+            return mRate;
+        }
+
+        public double getMeanRatePerSecond() {
+            long elapsed = mClock.nanoTime() - mStartNanos;
+            return elapsed > 0 ? getCount() * 1e9 / elapsed : 0;
+        }
+
+        synchronized void tick() {
+            long now = mClock.nanoTime();
+            long count = getCount();
+            long elapsed = now - mTickNanos;
+            if (elapsed > 0) {
+                mRate = (count - mTickCount) * 1e9 / elapsed;
+            }
+            mTickCount = count;
+            mTickNanos = now;
+        }
+    }
+}
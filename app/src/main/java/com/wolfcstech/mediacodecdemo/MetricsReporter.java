@@ -0,0 +1,63 @@
+package com.wolfcstech.mediacodecdemo;
+
+import android.util.Log;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Logs a {@link MetricsRegistry} summary at a fixed interval from a low priority thread, in
+ * place of logging on the pipeline's own threads.
+ */
+public class MetricsReporter {
+    private static final String TAG = "Metrics";
+
+    private final MetricsRegistry mRegistry;
+    private ScheduledExecutorService mExecutor;
+
+    public MetricsReporter(MetricsRegistry registry) {
+        mRegistry = registry;
+    }
+
+    public synchronized void start(long intervalMs) {
+        if (mExecutor != null) {
+            return;
+        }
+        mExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "MetricsReporter");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+        mExecutor.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                report();
+            }
+        }, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (mExecutor != null) {
+            mExecutor.shutdownNow();
+            mExecutor = null;
+        }
+    }
+
+    /**
+     * Close the current rate interval and log every metric.
+     *
+     * @return what was logged.
+     */
+    public String report() {
+        mRegistry.tick();
+        String dump = mRegistry.dump();
+        Log.i(TAG, dump);
+        return dump;
+    }
+}
@@ -0,0 +1,267 @@
+package com.wolfcstech.mediacodecdemo;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Asks the {@link StreamSender} to resend datagrams missing from an indexed stream. Watches the
+ * indices going by to a downstream listener, a {@link PacketReorderBuffer} usually, and keeps
+ * each gap in a ring of preallocated slots. {@link StreamReceiver} calls
+ * {@link #buildNack(ByteBuffer)} from its receive loop and sends what it builds back on its own
+ * socket.
+ *
+ * <p>Requests are rate limited: a NACK goes out at most once per interval, a gap is first
+ * requested one interval after it was seen so plain reordering does not trigger it, and
+ * requested again at most once per retry interval. A gap still open at its deadline is
+ * abandoned, the reorder buffer will have given up on it by then.
+ *
+ * <p>A NACK is the 4-byte magic {@code "NACK"}, a range count byte, then per range the first
+ * missing index (4) and the number of consecutive indices missing (2), big-endian. Not thread
+ * safe, meant to be called from the receiving thread only; the counts may be read from any.
+ */
+public class NackRequester implements StreamReceiver.StreamDataReceivedListener {
+    static final int NACK_MAGIC = 0x4E41434B;
+    static final int NACK_HEADER_SIZE = 5;
+    static final int RANGE_SIZE = 6;
+    static final int MAX_RANGES = 64;
+    public static final int MAX_NACK_SIZE = NACK_HEADER_SIZE + MAX_RANGES * RANGE_SIZE;
+
+    private final StreamReceiver.StreamDataReceivedListener mDownstream;
+    private final JitterBuffer.Clock mClock;
+    private final long mIntervalNanos;
+    private final long mRetryNanos;
+    private final long mDeadlineNanos;
+
+    private final int mMask;
+    private final int[] mIndex;
+    private final long[] mDetectedNanos;
+    private final long[] mRequestedNanos;
+    private final boolean[] mRequested;
+    private final boolean[] mMissing;
+    private final boolean[] mAbandoned;
+
+    private boolean mStarted = false;
+    private int mHighestIndex;
+    private int mOldestMissing;
+    private volatile int mMissingCount = 0;
+    private long mLastNackNanos;
+
+    private volatile long mNackCount = 0;
+    private volatile long mRequestedCount = 0;
+    private volatile long mRecoveredCount = 0;
+    private volatile long mLateCount = 0;
+    private volatile long mAbandonedCount = 0;
+
+    /**
+     * @param capacity how many missing packets can be tracked, rounded up to a power of two.
+     * @param intervalMs the least time between two NACKs.
+     * @param retryMs the least time between two requests for the same packet.
+     * @param deadlineMs how long after it went missing a packet is given up.
+     */
+    public NackRequester(int capacity, long intervalMs, long retryMs, long deadlineMs,
+                         StreamReceiver.StreamDataReceivedListener downstream) {
+        this(capacity, intervalMs, retryMs, deadlineMs, downstream, JitterBuffer.Clock.SYSTEM);
+    }
+
+    NackRequester(int capacity, long intervalMs, long retryMs, long deadlineMs,
+                  StreamReceiver.StreamDataReceivedListener downstream, JitterBuffer.Clock clock) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        int size = Integer.highestOneBit(capacity * 2 - 1);
+        mMask = size - 1;
+        mIndex = new int[size];
+        mDetectedNanos = new long[size];
+        mRequestedNanos = new long[size];
+        mRequested = new boolean[size];
+        mMissing = new boolean[size];
+        mAbandoned = new boolean[size];
+        mIntervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMs);
+        mRetryNanos = TimeUnit.MILLISECONDS.toNanos(retryMs);
+        mDeadlineNanos = TimeUnit.MILLISECONDS.toNanos(deadlineMs);
+        mDownstream = downstream;
+        mClock = clock;
+        mLastNackNanos = clock.nanoTime() - mIntervalNanos;
+    }
+
+    /**
+     * How often {@link #buildNack(ByteBuffer)} should be called, in milliseconds.
+     */
+    public long getIntervalMs() {
+        return TimeUnit.NANOSECONDS.toMillis(mIntervalNanos);
+    }
+
+    @Override
+    public void onStreamDataReceived(int index, byte[] data, int offset, int size) {
+        if ((index & FecEncoder.PARITY_FLAG) == 0) {
+            track(index);
+        }
+        mDownstream.onStreamDataReceived(index, data, offset, size);
+    }
+
+    private void track(int index) {
+        if (!mStarted) {
+            mStarted = true;
+            mHighestIndex = index;
+            mOldestMissing = index + 1;
+            return;
+        }
+        int distance = index - mHighestIndex;
+        if (distance > 0) {
+            long now = mClock.nanoTime();
+            // Only the newest gaps fit, the rest are given up straight away.
+            int first = Math.max(mHighestIndex + 1, index - mMask - 1);
+            mAbandonedCount += first - (mHighestIndex + 1);
+            for (int missing = first; missing != index; missing++) {
+                addMissing(missing, now);
+            }
+            mHighestIndex = index;
+            return;
+        }
+        int slot = index & mMask;
+        if (mIndex[slot] != index) {
+            return;
+        }
+        if (mMissing[slot]) {
+            mMissing[slot] = false;
+            mMissingCount--;
+            if (mRequested[slot]) {
+                mRecoveredCount++;
+            }
+        } else if (mAbandoned[slot]) {
+            mAbandoned[slot] = false;
+            mLateCount++;
+        }
+    }
+
+    private void addMissing(int index, long now) {
+        int slot = index & mMask;
+        if (mMissing[slot]) {
+            abandon(slot);
+        }
+        mIndex[slot] = index;
+        mDetectedNanos[slot] = now;
+        mRequested[slot] = false;
+        mAbandoned[slot] = false;
+        mMissing[slot] = true;
+        mMissingCount++;
+    }
+
+    private void abandon(int slot) {
+        mMissing[slot] = false;
+        mAbandoned[slot] = true;
+        mMissingCount--;
+        mAbandonedCount++;
+    }
+
+    /**
+     * Write a NACK for the packets due a request into {@code out}, flipped for sending, and
+     * abandon the packets past their deadline.
+     *
+     * @return false if no NACK is due, {@code out} is left alone then.
+     */
+    public boolean buildNack(ByteBuffer out) {
+        long now = mClock.nanoTime();
+        if (mMissingCount == 0 || now - mLastNackNanos < mIntervalNanos) {
+            return false;
+        }
+        out.clear();
+        out.putInt(NACK_MAGIC);
+        out.put((byte) 0);
+        int ranges = 0;
+        int rangeFirst = 0;
+        int rangeCount = 0;
+        int oldest = mHighestIndex + 1;
+
+        // Only the capacity indices below the highest can still be tracked.
+        int start = mOldestMissing;
+        if (mHighestIndex - start > mMask + 1) {
+            start = mHighestIndex - mMask - 1;
+        }
+        for (int index = start; index != mHighestIndex; index++) {
+            int slot = index & mMask;
+            if (!mMissing[slot] || mIndex[slot] != index) {
+                continue;
+            }
+            long age = now - mDetectedNanos[slot];
+            if (age > mDeadlineNanos) {
+                abandon(slot);
+                continue;
+            }
+            if (index - oldest < 0) {
+                oldest = index;
+            }
+            if (age < mIntervalNanos || ranges == MAX_RANGES && index != rangeFirst + rangeCount
+                    || mRequested[slot] && now - mRequestedNanos[slot] < mRetryNanos) {
+                continue;
+            }
+            if (rangeCount > 0 && index == rangeFirst + rangeCount && rangeCount < 0xFFFF) {
+                rangeCount++;
+            } else {
+                if (rangeCount > 0) {
+                    out.putInt(rangeFirst).putShort((short) rangeCount);
+                }
+                ranges++;
+                rangeFirst = index;
+                rangeCount = 1;
+            }
+            mRequested[slot] = true;
+            mRequestedNanos[slot] = now;
+            mRequestedCount++;
+        }
+        mOldestMissing = oldest;
+        if (rangeCount == 0) {
+            return false;
+        }
+        out.putInt(rangeFirst).putShort((short) rangeCount);
+        out.put(4, (byte) ranges);
+        out.flip();
+        mLastNackNanos = now;
+        mNackCount++;
+        return true;
+    }
+
+    /**
+     * Whether {@code datagram}, from its position, is a NACK.
+     */
+    static boolean isNack(ByteBuffer datagram) {
+        return datagram.remaining() >= NACK_HEADER_SIZE
+                && datagram.getInt(datagram.position()) == NACK_MAGIC;
+    }
+
+    public long getNackCount() {
+        return mNackCount;
+    }
+
+    /**
+     * Packet requests sent, a packet requested twice counts twice.
+     */
+    public long getRequestedCount() {
+        return mRequestedCount;
+    }
+
+    /**
+     * Requested packets that arrived before their deadline.
+     */
+    public long getRecoveredCount() {
+        return mRecoveredCount;
+    }
+
+    /**
+     * Packets that arrived after they were abandoned.
+     */
+    public long getLateCount() {
+        return mLateCount;
+    }
+
+    /**
+     * Packets given up on, whether they arrived later or not.
+     */
+    public long getAbandonedCount() {
+        return mAbandonedCount;
+    }
+
+    public int getMissingCount() {
+        return mMissingCount;
+    }
+}
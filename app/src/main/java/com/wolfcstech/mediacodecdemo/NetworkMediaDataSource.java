@@ -0,0 +1,187 @@
+package com.wolfcstech.mediacodecdemo;
+
+import android.media.MediaDataSource;
+import android.util.Log;
+
+import java.io.IOException;
+
+/**
+ * A {@link MediaDataSource} fed by {@link StreamReceiver} while it is being read. Reads past
+ * the received data block until the data arrives, so the extractor can start as soon as
+ * enough of the stream is buffered rather than once all of it is.
+ *
+ * <p>A CRC-32C of the stream is carried along as each packet is stored, so it is ready when
+ * the stream ends rather than hashed in one go on the receiving thread. Packets are checked
+ * against what was sent upstream by a {@link StreamVerifier}, when the sender adds checksums.
+ */
+public class NetworkMediaDataSource extends MediaDataSource implements
+        StreamReceiver.StreamDataReceivedListener {
+    private static final String TAG = "NetworkMediaDataSource";
+
+    private static final long READ_TIMEOUT_MS = 10000;
+
+    private final MediaDataStore mStore;
+    private final Object mLock = new Object();
+    private int mWaitingReaders = 0;
+
+    private volatile long mSize = -1;
+    private volatile boolean mEnded = false;
+    private volatile boolean mClosed = false;
+
+    private long mPlaybackReadyBytes = Long.MAX_VALUE;
+    private boolean mPlaybackReadyNotified = false;
+    private Listener mListener;
+
+    private final Crc32c mStreamCrc = new Crc32c();
+
+    private final SampledLog mProgressLog = new SampledLog(TAG, 5000);
+    private final MetricsRegistry.Meter mReceivedBytes =
+            MetricsRegistry.getDefault().meter("file.received.bytes");
+
+    public NetworkMediaDataSource(MediaDataStore store) {
+        mStore = store;
+    }
+
+    /**
+     * The CRC-32C of the stream received so far.
+     */
+    public long getStreamCrc() {
+        return mStreamCrc.getValue();
+    }
+
+    /**
+     * Set the stream size when the sender announced it out of band. The stream ends once
+     * that many bytes have been received.
+     */
+    public void setExpectedSize(long size) {
+        mSize = size;
+    }
+
+    /**
+     * Call {@link Listener#onPlaybackReady(NetworkMediaDataSource)} once {@code bufferedBytes}
+     * have been received, or the stream ended before that.
+     */
+    public void setListener(long bufferedBytes, Listener listener) {
+        mPlaybackReadyBytes = bufferedBytes;
+        mListener = listener;
+    }
+
+    public long getReceivedSize() {
+        return mStore.length();
+    }
+
+    @Override
+    public int readAt(long position, byte[] buffer, int offset, int size) throws IOException {
+        if (size == 0) {
+            return 0;
+        }
+        long deadline = System.currentTimeMillis() + READ_TIMEOUT_MS;
+        for (;;) {
+            long streamSize = mSize;
+            if (streamSize >= 0 && position >= streamSize) {
+                return -1;
+            }
+            int readLen = mStore.read(position, buffer, offset, size);
+            if (readLen > 0) {
+                return readLen;
+            }
+            if (mEnded || mClosed) {
+                return -1;
+            }
+
+            synchronized (mLock) {
+                long waitMs = deadline - System.currentTimeMillis();
+                if (waitMs <= 0) {
+                    Log.w(TAG, "Timed out waiting for data at " + position);
+                    return -1;
+                }
+                if (mStore.length() <= position && !mEnded && !mClosed) {
+                    mWaitingReaders++;
+                    try {
+                        mLock.wait(waitMs);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted waiting for stream data");
+                    } finally {
+                        mWaitingReaders--;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * The real stream size once it is known, -1 before that.
+     */
+    @Override
+    public long getSize() throws IOException {
+        return mSize;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mClosed = true;
+        wakeReaders();
+        mStore.close();
+    }
+
+    /**
+     * Mark the data received so far as the whole stream.
+     */
+    public void markEndOfStream() {
+        mSize = mStore.length();
+        mEnded = true;
+        wakeReaders();
+        notifyPlaybackReady();
+    }
+
+    private void wakeReaders() {
+        synchronized (mLock) {
+            if (mWaitingReaders > 0) {
+                mLock.notifyAll();
+            }
+        }
+    }
+
+    private void notifyPlaybackReady() {
+        if (!mPlaybackReadyNotified && mListener != null) {
+            mPlaybackReadyNotified = true;
+            mListener.onPlaybackReady(this);
+        }
+    }
+
+    @Override
+    public void onStreamDataReceived(int index, byte[] data, int offset, int size) {
+        long dataTotalLen;
+        try {
+            mStore.append(data, offset, size);
+            dataTotalLen = mStore.length();
+            mStreamCrc.update(data, offset, size);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to store stream data", e);
+            return;
+        }
+        wakeReaders();
+        mReceivedBytes.mark(size);
+
+        if (mProgressLog.isLoggable()) {
+            mProgressLog.i("Recv packet length = " + dataTotalLen + " index = " + index);
+        }
+        long streamSize = mSize;
+        if (streamSize >= 0 && dataTotalLen >= streamSize) {
+            Log.i(TAG, "Recv packet length = " + dataTotalLen + " index = " + index
+                    + " crc32c = " + String.format("%08x", mStreamCrc.getValue()));
+            markEndOfStream();
+        } else if (dataTotalLen >= mPlaybackReadyBytes) {
+            notifyPlaybackReady();
+        }
+    }
+
+    public interface Listener {
+        /**
+         * Called on the receiving thread, which {@link #readAt} depends on, so the extractor
+         * must be set up on another thread.
+         */
+        void onPlaybackReady(NetworkMediaDataSource dataSource);
+    }
+}
@@ -0,0 +1,213 @@
+package com.wolfcstech.mediacodecdemo;
+
+/**
+ * Restores datagram order from the packet index before handing payloads downstream. Packets
+ * ahead of the next expected index wait in a sliding window of preallocated slots; a missing
+ * packet is given up as lost once a packet a full window ahead of it arrives.
+ *
+ * <p>The first packets are held until the stream is a few packets along, and the stream starts
+ * at the lowest index seen by then, so a first packet that was overtaken is not taken for a
+ * duplicate. An index more than two windows away from the expected one, from a restarted
+ * sender say, delivers whatever is held back and starts over at that index.
+ *
+ * <p>Not thread safe, meant to be called from the receiving thread only.
+ */
+public class PacketReorderBuffer implements StreamReceiver.StreamDataReceivedListener {
+    private static final int STARTUP_HOLD_PACKETS = 16;
+
+    private final StreamReceiver.StreamDataReceivedListener mDownstream;
+
+    private final int mWindowSize;
+    private final int mMask;
+    private final byte[][] mSlotData;
+    private final int[] mSlotLength;
+    private final int[] mSlotIndex;
+    private final boolean[] mSlotFilled;
+    private final int mStartupHold;
+
+    private boolean mStarted = false;
+    private boolean mSettled = false;
+    private int mNextIndex;
+    private int mHighestIndex;
+    private int mBufferedCount = 0;
+
+    private volatile long mDeliveredCount = 0;
+    private volatile long mLostCount = 0;
+    private volatile long mDuplicateCount = 0;
+    private volatile long mReorderedCount = 0;
+    private volatile int mMaxReorderDepth = 0;
+    private volatile long mResyncCount = 0;
+
+    /**
+     * @param windowSize the number of packets that may be held back, rounded up to a power of
+     *                   two.
+     * @param slotCapacity the initial payload capacity of each slot, slots grow on demand.
+     */
+    public PacketReorderBuffer(int windowSize, int slotCapacity,
+                               StreamReceiver.StreamDataReceivedListener downstream) {
+        if (windowSize <= 0) {
+            throw new IllegalArgumentException("windowSize must be positive");
+        }
+        int size = Integer.highestOneBit(windowSize);
+        if (size < windowSize) {
+            size <<= 1;
+        }
+        mWindowSize = size;
+        mMask = size - 1;
+        mSlotData = new byte[size][];
+        for (int i = 0; i < size; i++) {
+            mSlotData[i] = new byte[slotCapacity];
+        }
+        mSlotLength = new int[size];
+        mSlotIndex = new int[size];
+        mSlotFilled = new boolean[size];
+        // An eighth of the window, enough for the reordering a stream start usually sees.
+        mStartupHold = Math.min(STARTUP_HOLD_PACKETS, size / 8);
+        mDownstream = downstream;
+    }
+
+    @Override
+    public void onStreamDataReceived(int index, byte[] data, int offset, int size) {
+        if (!mStarted) {
+            mStarted = true;
+            mNextIndex = index;
+            mHighestIndex = index - 1;
+        }
+
+        // Differences rather than comparisons, so the index may wrap around.
+        int distance = index - mNextIndex;
+        if (distance >= 2 * mWindowSize || distance < -2 * mWindowSize) {
+            flush();
+            mResyncCount++;
+            mNextIndex = index;
+            mHighestIndex = index - 1;
+            distance = 0;
+        } else if (distance < 0) {
+            if (mSettled || mHighestIndex - index >= mWindowSize) {
+                mDuplicateCount++;
+                return;
+            }
+            // Nothing delivered yet, start the stream at this packet instead.
+            mNextIndex = index;
+            distance = 0;
+        }
+        if (index - mHighestIndex < 0) {
+            int depth = mHighestIndex - index;
+            mReorderedCount++;
+            if (depth > mMaxReorderDepth) {
+                mMaxReorderDepth = depth;
+            }
+        } else {
+            mHighestIndex = index;
+        }
+
+        if (distance == 0 && mBufferedCount == 0 && mSettled) {
+            // In order with nothing held back, no need to copy.
+            deliver(index, data, offset, size);
+            mNextIndex++;
+            return;
+        }
+
+        while (index - mNextIndex >= mWindowSize) {
+            advanceHead();
+        }
+        int slot = index & mMask;
+        if (mSlotFilled[slot]) {
+            mDuplicateCount++;
+            return;
+        }
+        if (mSlotData[slot].length < size) {
+            mSlotData[slot] = new byte[size];
+        }
+        System.arraycopy(data, offset, mSlotData[slot], 0, size);
+        mSlotLength[slot] = size;
+        mSlotIndex[slot] = index;
+        mSlotFilled[slot] = true;
+        mBufferedCount++;
+
+        if (!mSettled) {
+            if (mHighestIndex - mNextIndex < mStartupHold) {
+                return;
+            }
+            mSettled = true;
+        }
+        while (mSlotFilled[mNextIndex & mMask]) {
+            advanceHead();
+        }
+    }
+
+    /**
+     * Deliver everything still held back, counting the holes as lost. Call at end of stream.
+     */
+    public void flush() {
+        mSettled = true;
+        while (mBufferedCount > 0) {
+            advanceHead();
+        }
+    }
+
+    private void advanceHead() {
+        int slot = mNextIndex & mMask;
+        if (mSlotFilled[slot]) {
+            mSlotFilled[slot] = false;
+            mBufferedCount--;
+            deliver(mSlotIndex[slot], mSlotData[slot], 0, mSlotLength[slot]);
+        } else {
+            mLostCount++;
+        }
+        mNextIndex++;
+    }
+
+    private void deliver(int index, byte[] data, int offset, int size) {
+        mDeliveredCount++;
+        mDownstream.onStreamDataReceived(index, data, offset, size);
+    }
+
+    public int getWindowSize() {
+        return mWindowSize;
+    }
+
+    public int getBufferedCount() {
+        return mBufferedCount;
+    }
+
+    public long getDeliveredCount() {
+        return mDeliveredCount;
+    }
+
+    /**
+     * Packets given up on, because the window moved past them or the buffer was flushed.
+     */
+    public long getLostCount() {
+        return mLostCount;
+    }
+
+    /**
+     * Packets received twice, or after they had already been given up as lost.
+     */
+    public long getDuplicateCount() {
+        return mDuplicateCount;
+    }
+
+    /**
+     * Packets that arrived after a packet with a higher index.
+     */
+    public long getReorderedCount() {
+        return mReorderedCount;
+    }
+
+    /**
+     * Times the index jumped too far to wait for the packets in between, and the buffer
+     * started over.
+     */
+    public long getResyncCount() {
+        return mResyncCount;
+    }
+
+    /**
+     * The largest index distance an out of order packet arrived behind the highest index.
+     */
+    public int getMaxReorderDepth() {
+        return mMaxReorderDepth;
+    }
+}
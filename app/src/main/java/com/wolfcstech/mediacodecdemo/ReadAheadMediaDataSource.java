@@ -0,0 +1,361 @@
+package com.wolfcstech.mediacodecdemo;
+
+import android.media.MediaDataSource;
+import android.util.Log;
+
+import java.io.IOException;
+
+/**
+ * A block cache in front of another {@link MediaDataSource}, for the many small and often
+ * repeated reads {@link android.media.MediaExtractor} makes while it parses MP4 boxes.
+ *
+ * <p>Reads are served from a few preallocated blocks. Once reads run sequentially the
+ * following blocks are fetched ahead on a {@link MediaThread}; random reads fetch only what
+ * they need. Eviction takes the least recently used block, sparing blocks read more than
+ * once, such as those holding the moov atom, while there are others to take.
+ *
+ * <p>A block may hold only the part of its range the upstream source had; a read past that
+ * fetches more, so reading close behind a stream still being received never waits for a whole
+ * block. Thread safe.
+ */
+public class ReadAheadMediaDataSource extends MediaDataSource {
+    private static final String TAG = "ReadAheadMediaDataSource";
+
+    private static final int STATE_EMPTY = 0;
+    private static final int STATE_LOADING = 1;
+    private static final int STATE_READY = 2;
+
+    // Reads ending where the previous one did before the stream counts as sequential.
+    private static final int SEQUENTIAL_THRESHOLD = 2;
+
+    private final MediaDataSource mUpstream;
+    private final MediaThread mThread;
+    private final int mBlockSize;
+    private final int mPrefetchBlocks;
+
+    private final byte[][] mData;
+    private final long[] mBlockPosition;
+    private final int[] mLength;
+    private final boolean[] mComplete;
+    private final int[] mState;
+    private final long[] mLastUsed;
+    private final int[] mUseCount;
+    private long mUseClock = 0;
+    private int mLastBlockRead = -1;
+
+    private long mLastReadEnd = -1;
+    private int mSequentialReads = 0;
+    // Blocks before this position have been handed to the prefetcher already.
+    private long mPrefetchEnd = 0;
+    private boolean mPrefetchScheduled = false;
+    private boolean mClosed = false;
+
+    private final Runnable mPrefetchTask = new Runnable() {
+        @Override
+        public void run() {
+            prefetch();
+        }
+    };
+
+    private volatile long mHitCount = 0;
+    private volatile long mMissCount = 0;
+    private volatile long mPrefetchedBytes = 0;
+
+    /**
+     * @param blockCount how many blocks to cache, at least two more than {@code prefetchBlocks}.
+     * @param thread where to prefetch, null to never prefetch.
+     */
+    public ReadAheadMediaDataSource(MediaDataSource upstream, int blockSize, int blockCount,
+                                    int prefetchBlocks, MediaThread thread) {
+        if (blockSize <= 0 || prefetchBlocks < 0 || blockCount < prefetchBlocks + 2) {
+            throw new IllegalArgumentException("need at least prefetchBlocks + 2 blocks");
+        }
+        mUpstream = upstream;
+        mThread = thread;
+        mBlockSize = blockSize;
+        mPrefetchBlocks = thread != null ? prefetchBlocks : 0;
+        mData = new byte[blockCount][blockSize];
+        mBlockPosition = new long[blockCount];
+        mLength = new int[blockCount];
+        mComplete = new boolean[blockCount];
+        mState = new int[blockCount];
+        mLastUsed = new long[blockCount];
+        mUseCount = new int[blockCount];
+    }
+
+    @Override
+    public int readAt(long position, byte[] buffer, int offset, int size) throws IOException {
+        if (size == 0) {
+            return 0;
+        }
+        onRead(position, size);
+        int total = 0;
+        while (total < size) {
+            int read = readBlock(position + total, buffer, offset + total, size - total);
+            if (read <= 0) {
+                break;
+            }
+            total += read;
+        }
+        return total > 0 ? total : -1;
+    }
+
+    /**
+     * Track whether reads are sequential, and keep the prefetcher ahead of them if so.
+     */
+    private synchronized void onRead(long position, int size) {
+        if (position == mLastReadEnd) {
+            mSequentialReads++;
+        } else {
+            mSequentialReads = 0;
+        }
+        mLastReadEnd = position + size;
+        if (mPrefetchBlocks == 0 || mSequentialReads < SEQUENTIAL_THRESHOLD) {
+            return;
+        }
+        long next = blockStart(mLastReadEnd) + mBlockSize;
+        long target = next + (long) (mPrefetchBlocks - 1) * mBlockSize;
+        if (mPrefetchEnd < next || mPrefetchEnd > target + mBlockSize) {
+            // Behind the reads, or left ahead by reads that jumped back.
+            mPrefetchEnd = next;
+        }
+        if (mPrefetchEnd <= target && !mPrefetchScheduled && !mClosed) {
+            mPrefetchScheduled = mThread.post(mPrefetchTask);
+        }
+    }
+
+    /**
+     * Copy what one block holds of the range, fetching it first if needed.
+     *
+     * @return the bytes copied, -1 at the end of the stream.
+     */
+    private int readBlock(long position, byte[] buffer, int offset, int size) throws IOException {
+        long start = blockStart(position);
+        int within = (int) (position - start);
+        for (;;) {
+            int block;
+            synchronized (this) {
+                block = find(start);
+                // A block being loaded serves what it has so far.
+                while (block >= 0 && mState[block] == STATE_LOADING && within >= mLength[block]) {
+                    waitForLoad();
+                    block = find(start);
+                }
+                if (block >= 0 && within < mLength[block]) {
+                    mHitCount++;
+                    return copy(block, within, buffer, offset, size);
+                }
+                if (block >= 0 && mComplete[block]) {
+                    return -1;
+                }
+                if (mClosed) {
+                    throw new IOException("closed");
+                }
+                mMissCount++;
+                if (block < 0) {
+                    block = claim(start);
+                }
+                mState[block] = STATE_LOADING;
+            }
+
+            // Fetch just past the position read, without waiting for the rest of the block.
+            try {
+                while (mLength[block] <= within && fill(block, false)) {
+                }
+            } finally {
+                loaded(block);
+            }
+            synchronized (this) {
+                if (mBlockPosition[block] != start || mState[block] == STATE_EMPTY) {
+                    // Taken for another range in between, go again.
+                    continue;
+                }
+                if (within >= mLength[block]) {
+                    return -1;
+                }
+                return copy(block, within, buffer, offset, size);
+            }
+        }
+    }
+
+    private void waitForLoad() throws IOException {
+        try {
+            wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for a block");
+        }
+    }
+
+    /**
+     * Read the rest of {@code block} from upstream, once or until it is full.
+     *
+     * @return false once nothing more can be read into it.
+     */
+    private boolean fill(int block, boolean whole) throws IOException {
+        long start = mBlockPosition[block];
+        byte[] data = mData[block];
+        do {
+            int length = mLength[block];
+            int read = mUpstream.readAt(start + length, data, length, mBlockSize - length);
+            if (read <= 0) {
+                long size = mUpstream.getSize();
+                if (size >= 0 && start + length >= size) {
+                    mComplete[block] = true;
+                }
+                return false;
+            }
+            grow(block, length + read);
+        } while (whole && mLength[block] < mBlockSize);
+        if (mLength[block] == mBlockSize) {
+            mComplete[block] = true;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Publish the bytes just read into a block being loaded. Only the loading thread writes the
+     * block and only past its length, so readers may copy up to the length meanwhile.
+     */
+    private synchronized void grow(int block, int length) {
+        mLength[block] = length;
+        notifyAll();
+    }
+
+    private synchronized void loaded(int block) {
+        mState[block] = STATE_READY;
+        notifyAll();
+    }
+
+    private void prefetch() {
+        for (;;) {
+            int block;
+            synchronized (this) {
+                long target = blockStart(mLastReadEnd) + (long) mPrefetchBlocks * mBlockSize;
+                long start = mPrefetchEnd;
+                if (mClosed || start > target) {
+                    mPrefetchScheduled = false;
+                    return;
+                }
+                mPrefetchEnd = start + mBlockSize;
+                if (find(start) >= 0) {
+                    continue;
+                }
+                block = claim(start);
+                mState[block] = STATE_LOADING;
+            }
+            try {
+                fill(block, true);
+                mPrefetchedBytes += mLength[block];
+            } catch (IOException e) {
+                Log.w(TAG, "Prefetch failed " + e.getMessage());
+            } finally {
+                loaded(block);
+            }
+        }
+    }
+
+    private long blockStart(long position) {
+        return position - position % mBlockSize;
+    }
+
+    private int find(long start) {
+        for (int block = 0; block < mData.length; block++) {
+            if (mState[block] != STATE_EMPTY && mBlockPosition[block] == start) {
+                return block;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Take the block to reuse for {@code start}: an empty one, or else the least recently used
+     * one read at most once that is not prefetched ahead of the reads, or else the least
+     * recently used of all. Never one being loaded.
+     */
+    private int claim(long start) {
+        long aheadStart = blockStart(mLastReadEnd);
+        int coldest = -1;
+        int oldest = -1;
+        for (int block = 0; block < mData.length; block++) {
+            if (mState[block] == STATE_EMPTY) {
+                coldest = block;
+                break;
+            }
+            if (mState[block] == STATE_LOADING) {
+                continue;
+            }
+            boolean ahead = mUseCount[block] == 0 && mBlockPosition[block] >= aheadStart
+                    && mBlockPosition[block] < mPrefetchEnd;
+            if (mUseCount[block] <= 1 && !ahead
+                    && (coldest < 0 || mLastUsed[block] < mLastUsed[coldest])) {
+                coldest = block;
+            }
+            if (oldest < 0 || mLastUsed[block] < mLastUsed[oldest]) {
+                oldest = block;
+            }
+        }
+        int block = coldest >= 0 ? coldest : oldest;
+        mBlockPosition[block] = start;
+        mLength[block] = 0;
+        mComplete[block] = false;
+        mUseCount[block] = 0;
+        mLastUsed[block] = ++mUseClock;
+        if (mLastBlockRead == block) {
+            mLastBlockRead = -1;
+        }
+        return block;
+    }
+
+    private int copy(int block, int within, byte[] buffer, int offset, int size) {
+        int length = Math.min(size, mLength[block] - within);
+        System.arraycopy(mData[block], within, buffer, offset, length);
+        mLastUsed[block] = ++mUseClock;
+        // Count visits rather than reads, so a block read through once in many small reads
+        // does not look hot.
+        if (block != mLastBlockRead) {
+            mUseCount[block]++;
+            mLastBlockRead = block;
+        }
+        return length;
+    }
+
+    @Override
+    public long getSize() throws IOException {
+        return mUpstream.getSize();
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            mClosed = true;
+            notifyAll();
+        }
+        mUpstream.close();
+    }
+
+    /**
+     * Block reads served without going upstream.
+     */
+    public long getHitCount() {
+        return mHitCount;
+    }
+
+    public long getMissCount() {
+        return mMissCount;
+    }
+
+    /**
+     * Hits as a share of all block reads, 0 before any.
+     */
+    public double getHitRatio() {
+        long hits = mHitCount;
+        long total = hits + mMissCount;
+        return total > 0 ? (double) hits / total : 0;
+    }
+
+    public long getPrefetchedBytes() {
+        return mPrefetchedBytes;
+    }
+}
@@ -0,0 +1,65 @@
+package com.wolfcstech.mediacodecdemo;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The most recent payloads a {@link StreamSender} sent, by packet index, so packets a
+ * {@link NackRequester} asks for can be sent again. A ring of preallocated direct buffers, the
+ * oldest payload is overwritten first. Not thread safe.
+ */
+public class RetransmitHistory {
+    private final int mMask;
+    private final ByteBuffer[] mPayloads;
+    private final int[] mIndex;
+    private final boolean[] mValid;
+
+    /**
+     * @param capacity how many packets to keep, rounded up to a power of two.
+     */
+    public RetransmitHistory(int capacity, int maxPayloadSize) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        int size = Integer.highestOneBit(capacity * 2 - 1);
+        mMask = size - 1;
+        mPayloads = new ByteBuffer[size];
+        for (int i = 0; i < size; i++) {
+            mPayloads[i] = ByteBuffer.allocateDirect(maxPayloadSize);
+        }
+        mIndex = new int[size];
+        mValid = new boolean[size];
+    }
+
+    /**
+     * Keep a copy of the remaining bytes of {@code payload}, leaving it untouched.
+     */
+    public void add(int index, ByteBuffer payload) {
+        int slot = index & mMask;
+        ByteBuffer copy = mPayloads[slot];
+        int position = payload.position();
+        copy.clear();
+        copy.put(payload);
+        copy.flip();
+        payload.position(position);
+        mIndex[slot] = index;
+        mValid[slot] = true;
+    }
+
+    /**
+     * The payload of packet {@code index}, or null if it is no longer kept. Valid until the
+     * next {@link #add}.
+     */
+    public ByteBuffer get(int index) {
+        int slot = index & mMask;
+        if (!mValid[slot] || mIndex[slot] != index) {
+            return null;
+        }
+        ByteBuffer payload = mPayloads[slot];
+        payload.position(0);
+        return payload;
+    }
+
+    public int capacity() {
+        return mMask + 1;
+    }
+}
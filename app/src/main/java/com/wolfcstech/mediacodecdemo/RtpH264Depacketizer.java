@@ -0,0 +1,311 @@
+package com.wolfcstech.mediacodecdemo;
+
+import android.media.MediaCodec;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reassembles RFC 6184 RTP packets produced by {@link RtpH264Packetizer} into Annex-B access
+ * units. Single NAL unit, STAP-A and FU-A payloads are written straight into a pooled
+ * {@link FrameBuffer}, so reassembly allocates nothing per packet. An access unit ends on the
+ * marker bit or when the RTP timestamp changes.
+ *
+ * <p>A sequence gap in the middle of a fragmented NAL unit drops that NAL unit; the rest of the
+ * access unit is still delivered. Packets arriving late or twice are discarded. Not thread safe,
+ * call from the receiving thread only.
+ */
+public class RtpH264Depacketizer {
+    public static final int DEFAULT_MAX_FRAME_SIZE = 512 * 1024;
+
+    private static final int RTP_VERSION = 2;
+
+    private final FrameBufferPool mPool;
+    private final FrameBufferPool.FrameReceivedListener mListener;
+    private final int mMaxFrameSize;
+
+    private FrameBuffer mFrame;
+    private int mFrameTimestamp;
+    private int mFrameIndex = 0;
+    private boolean mHasKeyFrame;
+    private boolean mHasSlice;
+    private boolean mHasConfig;
+    private boolean mOverflow;
+
+    private boolean mInFragment;
+    private int mFragmentStart;
+
+    private int mExpectedSequence = -1;
+
+    private byte[] mWrappedArray;
+    private ByteBuffer mWrapped;
+
+    private long mPacketCount = 0;
+    private long mLostPacketCount = 0;
+    private long mDiscardedPacketCount = 0;
+    private long mFrameCount = 0;
+    private long mDroppedFrameCount = 0;
+
+    public RtpH264Depacketizer(FrameBufferPool pool, FrameBufferPool.FrameReceivedListener listener) {
+        this(pool, listener, DEFAULT_MAX_FRAME_SIZE);
+    }
+
+    /**
+     * @param maxFrameSize the largest access unit accepted, larger ones are dropped.
+     */
+    public RtpH264Depacketizer(FrameBufferPool pool, FrameBufferPool.FrameReceivedListener listener,
+                               int maxFrameSize) {
+        mPool = pool;
+        mListener = listener;
+        mMaxFrameSize = maxFrameSize;
+    }
+
+    public void onPacket(byte[] data, int offset, int length) {
+        if (mWrappedArray != data) {
+            mWrappedArray = data;
+            mWrapped = ByteBuffer.wrap(data);
+        }
+        mWrapped.limit(offset + length);
+        mWrapped.position(offset);
+        onPacket(mWrapped);
+    }
+
+    /**
+     * Consume the RTP packet between position and limit of {@code packet}, leaving the buffer
+     * untouched.
+     */
+    public void onPacket(ByteBuffer packet) {
+        int start = packet.position();
+        int end = packet.limit();
+        if (end - start < RtpH264Packetizer.RTP_HEADER_SIZE
+                || ((packet.get(start) & 0xFF) >> 6) != RTP_VERSION) {
+            mDiscardedPacketCount++;
+            return;
+        }
+
+        int first = packet.get(start);
+        int headerSize = RtpH264Packetizer.RTP_HEADER_SIZE + 4 * (first & 0x0F);
+        if ((first & 0x10) != 0 && end - start >= headerSize + 4) {
+            int extensionWords = packet.getShort(start + headerSize + 2) & 0xFFFF;
+            headerSize += 4 + 4 * extensionWords;
+        }
+        if ((first & 0x20) != 0) {
+            end -= packet.get(end - 1) & 0xFF;
+        }
+        int payloadStart = start + headerSize;
+        if (payloadStart >= end) {
+            mDiscardedPacketCount++;
+            return;
+        }
+
+        boolean marker = (packet.get(start + 1) & 0x80) != 0;
+        int sequence = packet.getShort(start + 2) & 0xFFFF;
+        int timestamp = packet.getInt(start + 4);
+
+        if (mExpectedSequence >= 0 && sequence != mExpectedSequence) {
+            int gap = (sequence - mExpectedSequence) & 0xFFFF;
+            if (gap >= 0x8000) {
+                // Behind the expected sequence number: a late or duplicate packet.
+                mDiscardedPacketCount++;
+                return;
+            }
+            mLostPacketCount += gap;
+            abortFragment();
+        }
+        mExpectedSequence = (sequence + 1) & 0xFFFF;
+        mPacketCount++;
+
+        if (mFrame != null && timestamp != mFrameTimestamp) {
+            finishFrame();
+        }
+        if (mFrame == null && !startFrame(timestamp)) {
+            // Every buffer is out, drop the packet rather than stall the receiving thread.
+            mDiscardedPacketCount++;
+            return;
+        }
+
+        int nalHeader = packet.get(payloadStart);
+        int type = H264.nalType(nalHeader);
+        if (type >= 1 && type <= 23) {
+            abortFragment();
+            appendNal(packet, payloadStart, end);
+        } else if (type == H264.NAL_STAP_A) {
+            abortFragment();
+            int offset = payloadStart + 1;
+            while (offset + 2 <= end) {
+                int size = packet.getShort(offset) & 0xFFFF;
+                offset += 2;
+                if (size == 0 || offset + size > end) {
+                    break;
+                }
+                appendNal(packet, offset, offset + size);
+                offset += size;
+            }
+        } else if (type == H264.NAL_FU_A && payloadStart + 2 <= end) {
+            appendFragment(packet, payloadStart, end);
+        } else {
+            mDiscardedPacketCount++;
+        }
+
+        if (marker) {
+            finishFrame();
+        }
+    }
+
+    /**
+     * Deliver whatever has been reassembled of the current access unit.
+     */
+    public void flush() {
+        if (mFrame != null) {
+            finishFrame();
+        }
+    }
+
+    private boolean startFrame(int timestamp) {
+        mFrame = mPool.tryAcquire(mMaxFrameSize);
+        if (mFrame == null) {
+            mInFragment = false;
+            return false;
+        }
+        mFrameTimestamp = timestamp;
+        mHasKeyFrame = false;
+        mHasSlice = false;
+        mHasConfig = false;
+        mOverflow = false;
+        mInFragment = false;
+        return true;
+    }
+
+    private void appendNal(ByteBuffer packet, int from, int to) {
+        ByteBuffer data = mFrame.data();
+        if (data.remaining() < 4 + to - from) {
+            mOverflow = true;
+            return;
+        }
+        noteNalType(H264.nalType(packet.get(from)));
+        data.putInt(1);
+        copy(packet, from, to, data);
+    }
+
+    private void appendFragment(ByteBuffer packet, int from, int to) {
+        int indicator = packet.get(from);
+        int fuHeader = packet.get(from + 1);
+        boolean startBit = (fuHeader & 0x80) != 0;
+        boolean endBit = (fuHeader & 0x40) != 0;
+        ByteBuffer data = mFrame.data();
+
+        if (startBit) {
+            abortFragment();
+            if (data.remaining() < 5) {
+                mOverflow = true;
+                return;
+            }
+            mFragmentStart = data.position();
+            mInFragment = true;
+            data.putInt(1);
+            data.put((byte) ((indicator & 0xE0) | (fuHeader & 0x1F)));
+        } else if (!mInFragment) {
+            // The start of this NAL unit was lost.
+            mDiscardedPacketCount++;
+            return;
+        }
+
+        int size = to - from - 2;
+        if (data.remaining() < size) {
+            mOverflow = true;
+            abortFragment();
+            return;
+        }
+        copy(packet, from + 2, to, data);
+
+        if (endBit) {
+            mInFragment = false;
+            noteNalType(fuHeader & 0x1F);
+        }
+    }
+
+    private void abortFragment() {
+        if (mInFragment) {
+            mFrame.data().position(mFragmentStart);
+            mInFragment = false;
+        }
+    }
+
+    private void noteNalType(int type) {
+        if (type == H264.NAL_IDR_SLICE) {
+            mHasKeyFrame = true;
+            mHasSlice = true;
+        } else if (type >= H264.NAL_SLICE && type < H264.NAL_IDR_SLICE) {
+            mHasSlice = true;
+        } else if (type == H264.NAL_SPS || type == H264.NAL_PPS) {
+            mHasConfig = true;
+        }
+    }
+
+    private void finishFrame() {
+        abortFragment();
+        FrameBuffer frame = mFrame;
+        mFrame = null;
+        ByteBuffer data = frame.data();
+        if (mOverflow || data.position() == 0) {
+            if (mOverflow) {
+                mDroppedFrameCount++;
+            }
+            frame.release();
+            return;
+        }
+        data.flip();
+        int flags = 0;
+        if (mHasKeyFrame) {
+            flags |= MediaCodec.BUFFER_FLAG_KEY_FRAME;
+        }
+        if (mHasConfig && !mHasSlice) {
+            flags |= MediaCodec.BUFFER_FLAG_CODEC_CONFIG;
+        }
+        frame.setFlags(flags);
+        frame.setIndex(mFrameIndex++);
+        // Rounded up, so LatencyTracer.frameId() maps it back to this RTP timestamp.
+        frame.setPresentationTimeUs(((mFrameTimestamp & 0xFFFFFFFFL) * 1000 + 89) / 90);
+        mFrameCount++;
+        mListener.onFrameReceived(frame);
+    }
+
+    private static void copy(ByteBuffer src, int from, int to, ByteBuffer dst) {
+        int position = src.position();
+        int limit = src.limit();
+        src.limit(to);
+        src.position(from);
+        dst.put(src);
+        src.limit(limit);
+        src.position(position);
+    }
+
+    public long getPacketCount() {
+        return mPacketCount;
+    }
+
+    /**
+     * Packets missing from the sequence number space.
+     */
+    public long getLostPacketCount() {
+        return mLostPacketCount;
+    }
+
+    /**
+     * Packets ignored as malformed, late, duplicated or orphaned fragments, or because every
+     * pooled buffer was out.
+     */
+    public long getDiscardedPacketCount() {
+        return mDiscardedPacketCount;
+    }
+
+    public long getFrameCount() {
+        return mFrameCount;
+    }
+
+    /**
+     * Access units dropped for exceeding the maximum frame size.
+     */
+    public long getDroppedFrameCount() {
+        return mDroppedFrameCount;
+    }
+}
@@ -0,0 +1,179 @@
+package com.wolfcstech.mediacodecdemo;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Packs Annex-B H.264 access units into RTP packets following RFC 6184 non-interleaved mode:
+ * small consecutive NAL units such as SPS, PPS and SEI share one STAP-A packet, NAL units too
+ * large for one packet are split into FU-A fragments and the rest go out as single NAL unit
+ * packets. Packets are built in one reused buffer, so a {@link PacketSink} must send or copy
+ * each packet before returning.
+ */
+public class RtpH264Packetizer {
+    public static final int RTP_HEADER_SIZE = 12;
+    public static final int DEFAULT_PAYLOAD_TYPE = 96;
+
+    private final int mMaxPayloadSize;
+    private final int mPayloadType;
+    private final int mSsrc;
+    private final ByteBuffer mPacket;
+
+    private int mSequenceNumber = 0;
+
+    private int[] mNalStarts = new int[32];
+    private int[] mNalEnds = new int[32];
+    private int mNalCount;
+
+    /**
+     * @param maxPacketSize the largest RTP packet, header included, to stay below the MTU.
+     */
+    public RtpH264Packetizer(int maxPacketSize, int ssrc) {
+        this(maxPacketSize, DEFAULT_PAYLOAD_TYPE, ssrc);
+    }
+
+    public RtpH264Packetizer(int maxPacketSize, int payloadType, int ssrc) {
+        if (maxPacketSize <= RTP_HEADER_SIZE + 2) {
+            throw new IllegalArgumentException("maxPacketSize too small");
+        }
+        mMaxPayloadSize = maxPacketSize - RTP_HEADER_SIZE;
+        mPayloadType = payloadType;
+        mSsrc = ssrc;
+        mPacket = ByteBuffer.allocateDirect(maxPacketSize).order(ByteOrder.BIG_ENDIAN);
+    }
+
+    /**
+     * Packetize the Annex-B access unit between position and limit of {@code accessUnit},
+     * leaving its position untouched.
+     */
+    public void packetize(ByteBuffer accessUnit, long presentationTimeUs, PacketSink sink) {
+        int timestamp = (int) (presentationTimeUs * 90 / 1000);
+        splitNalUnits(accessUnit);
+
+        int i = 0;
+        while (i < mNalCount) {
+            int size = mNalEnds[i] - mNalStarts[i];
+            if (size > mMaxPayloadSize) {
+                sendFragments(accessUnit, i, timestamp, sink);
+                i++;
+                continue;
+            }
+
+            int aggregateSize = 1;
+            int j = i;
+            while (j < mNalCount) {
+                int nalSize = mNalEnds[j] - mNalStarts[j];
+                if (aggregateSize + 2 + nalSize > mMaxPayloadSize) {
+                    break;
+                }
+                aggregateSize += 2 + nalSize;
+                j++;
+            }
+            if (j - i >= 2) {
+                sendAggregate(accessUnit, i, j, timestamp, sink);
+                i = j;
+            } else {
+                startPacket(timestamp, i == mNalCount - 1);
+                putRange(accessUnit, mNalStarts[i], mNalEnds[i]);
+                finishPacket(sink);
+                i++;
+            }
+        }
+    }
+
+    private void splitNalUnits(ByteBuffer accessUnit) {
+        mNalCount = 0;
+        int limit = accessUnit.limit();
+        int start = H264.findNalStart(accessUnit, accessUnit.position(), limit);
+        while (start >= 0) {
+            int next = H264.findNalStart(accessUnit, start, limit);
+            int end = next >= 0 ? H264.nalEnd(accessUnit, start, next) : limit;
+            if (end > start) {
+                if (mNalCount == mNalStarts.length) {
+                    mNalStarts = grow(mNalStarts);
+                    mNalEnds = grow(mNalEnds);
+                }
+                mNalStarts[mNalCount] = start;
+                mNalEnds[mNalCount] = end;
+                mNalCount++;
+            }
+            start = next;
+        }
+    }
+
+    private static int[] grow(int[] array) {
+        int[] grown = new int[array.length * 2];
+        System.arraycopy(array, 0, grown, 0, array.length);
+        return grown;
+    }
+
+    private void sendAggregate(ByteBuffer accessUnit, int from, int to, int timestamp, PacketSink sink) {
+        startPacket(timestamp, to == mNalCount);
+        // F bit is the OR of the aggregated units, NRI their maximum.
+        int forbidden = 0;
+        int nri = 0;
+        for (int k = from; k < to; k++) {
+            int header = accessUnit.get(mNalStarts[k]);
+            forbidden |= header & 0x80;
+            nri = Math.max(nri, header & 0x60);
+        }
+        mPacket.put((byte) (forbidden | nri | H264.NAL_STAP_A));
+        for (int k = from; k < to; k++) {
+            mPacket.putShort((short) (mNalEnds[k] - mNalStarts[k]));
+            putRange(accessUnit, mNalStarts[k], mNalEnds[k]);
+        }
+        finishPacket(sink);
+    }
+
+    private void sendFragments(ByteBuffer accessUnit, int nal, int timestamp, PacketSink sink) {
+        int header = accessUnit.get(mNalStarts[nal]);
+        int indicator = (header & 0xE0) | H264.NAL_FU_A;
+        int type = header & 0x1F;
+        int fragmentSize = mMaxPayloadSize - 2;
+
+        // The NAL header is carried by the FU indicator and header instead.
+        int offset = mNalStarts[nal] + 1;
+        int end = mNalEnds[nal];
+        boolean first = true;
+        while (offset < end) {
+            int size = Math.min(fragmentSize, end - offset);
+            boolean last = offset + size == end;
+            startPacket(timestamp, last && nal == mNalCount - 1);
+            mPacket.put((byte) indicator);
+            mPacket.put((byte) ((first ? 0x80 : 0) | (last ? 0x40 : 0) | type));
+            putRange(accessUnit, offset, offset + size);
+            finishPacket(sink);
+            offset += size;
+            first = false;
+        }
+    }
+
+    private void startPacket(int timestamp, boolean marker) {
+        mPacket.clear();
+        mPacket.put((byte) 0x80);
+        mPacket.put((byte) ((marker ? 0x80 : 0) | mPayloadType));
+        mPacket.putShort((short) mSequenceNumber);
+        mPacket.putInt(timestamp);
+        mPacket.putInt(mSsrc);
+        mSequenceNumber = (mSequenceNumber + 1) & 0xFFFF;
+    }
+
+    private void putRange(ByteBuffer src, int from, int to) {
+        int position = src.position();
+        int limit = src.limit();
+        src.limit(to);
+        src.position(from);
+        mPacket.put(src);
+        src.limit(limit);
+        src.position(position);
+    }
+
+    private void finishPacket(PacketSink sink) {
+        mPacket.flip();
+        sink.onPacket(mPacket);
+    }
+
+    public interface PacketSink {
+        void onPacket(ByteBuffer packet);
+    }
+}
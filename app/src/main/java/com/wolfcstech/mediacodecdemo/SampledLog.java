@@ -0,0 +1,64 @@
+package com.wolfcstech.mediacodecdemo;
+
+import android.util.Log;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Logs at most one message per interval, for events that can fire on every packet. Guard the
+ * message with {@link #isLoggable()} so that suppressed messages are never even built:
+ *
+ * <pre>
+ * if (mLog.isLoggable()) {
+ *     mLog.i("Received " + length + " bytes");
+ * }
+ * </pre>
+ *
+ * The next message that gets through says how many were suppressed before it.
+ */
+public class SampledLog {
+    private final String mTag;
+    private final long mIntervalNanos;
+    private final JitterBuffer.Clock mClock;
+    private final AtomicLong mNextNanos;
+    private final AtomicLong mSuppressedCount = new AtomicLong();
+
+    public SampledLog(String tag, long intervalMs) {
+        this(tag, intervalMs, JitterBuffer.Clock.SYSTEM);
+    }
+
+    SampledLog(String tag, long intervalMs, JitterBuffer.Clock clock) {
+        mTag = tag;
+        mIntervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMs);
+        mClock = clock;
+        mNextNanos = new AtomicLong(clock.nanoTime());
+    }
+
+    /**
+     * Whether a message may be logged now. Returns true at most once per interval, so the
+     * caller that gets true must log.
+     */
+    public boolean isLoggable() {
+        long now = mClock.nanoTime();
+        long next = mNextNanos.get();
+        if (now - next >= 0 && mNextNanos.compareAndSet(next, now + mIntervalNanos)) {
+            return true;
+        }
+        mSuppressedCount.incrementAndGet();
+        return false;
+    }
+
+    public void i(String message) {
+        Log.i(mTag, withSuppressedCount(message));
+    }
+
+    public void w(String message) {
+        Log.w(mTag, withSuppressedCount(message));
+    }
+
+    private String withSuppressedCount(String message) {
+        long suppressed = mSuppressedCount.getAndSet(0);
+        return suppressed > 0 ? message + " (" + suppressed + " suppressed)" : message;
+    }
+}
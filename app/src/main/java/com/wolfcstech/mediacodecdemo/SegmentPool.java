@@ -0,0 +1,37 @@
+package com.wolfcstech.mediacodecdemo;
+
+import java.util.ArrayDeque;
+
+/**
+ * Recycles the fixed size segments of {@link SegmentedMediaDataStore}s, so a new stream
+ * reuses the memory of the previous one.
+ */
+public class SegmentPool {
+    private final int mSegmentSize;
+    private final int mMaxPooledSegments;
+    private final ArrayDeque<byte[]> mFreeSegments = new ArrayDeque<>();
+
+    public SegmentPool(int segmentSize, int maxPooledSegments) {
+        mSegmentSize = segmentSize;
+        mMaxPooledSegments = maxPooledSegments;
+    }
+
+    public int getSegmentSize() {
+        return mSegmentSize;
+    }
+
+    public synchronized byte[] acquire() {
+        byte[] segment = mFreeSegments.poll();
+        return segment != null ? segment : new byte[mSegmentSize];
+    }
+
+    public synchronized void release(byte[] segment) {
+        if (segment.length == mSegmentSize && mFreeSegments.size() < mMaxPooledSegments) {
+            mFreeSegments.push(segment);
+        }
+    }
+
+    public synchronized int getPooledCount() {
+        return mFreeSegments.size();
+    }
+}
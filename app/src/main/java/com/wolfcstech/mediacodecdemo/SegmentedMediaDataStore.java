@@ -0,0 +1,157 @@
+package com.wolfcstech.mediacodecdemo;
+
+/**
+ * Stores media data in pooled fixed size segments, growing one segment at a time instead of
+ * reserving the whole stream up front.
+ *
+ * <p>{@link #close()} may be called while the receiving thread is still appending and the
+ * extractor still reading. Later calls find the store closed, and the segments go back to the
+ * pool only once the calls already in progress have returned.
+ */
+public class SegmentedMediaDataStore implements MediaDataStore {
+    public static final int SEGMENT_SIZE = 64 * 1024;
+    private static final int SEGMENT_SHIFT = 16;
+    private static final int SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+    private final SegmentPool mPool;
+
+    // Published through the volatile writes so readers never see a partially grown table.
+    private volatile byte[][] mSegments = new byte[16][];
+    private volatile long mLength = 0;
+
+    private final Object mLock = new Object();
+    private boolean mClosed = false;
+    // Appends and reads in progress.
+    private int mActiveCalls = 0;
+
+    public SegmentedMediaDataStore(SegmentPool pool) {
+        if (pool.getSegmentSize() != SEGMENT_SIZE) {
+            throw new IllegalArgumentException("pool segment size must be " + SEGMENT_SIZE);
+        }
+        mPool = pool;
+    }
+
+    /**
+     * Appending to a closed store discards the data.
+     */
+    @Override
+    public void append(byte[] data, int offset, int size) {
+        if (!enter()) {
+            return;
+        }
+        try {
+            appendSegments(data, offset, size);
+        } finally {
+            exit();
+        }
+    }
+
+    private void appendSegments(byte[] data, int offset, int size) {
+        long length = mLength;
+        byte[][] segments = mSegments;
+        while (size > 0) {
+            int segmentIndex = (int) (length >>> SEGMENT_SHIFT);
+            int segmentOffset = (int) (length & SEGMENT_MASK);
+            if (segmentIndex >= segments.length) {
+                byte[][] grown = new byte[segments.length * 2][];
+                System.arraycopy(segments, 0, grown, 0, segments.length);
+                segments = grown;
+                mSegments = grown;
+            }
+            if (segments[segmentIndex] == null) {
+                segments[segmentIndex] = mPool.acquire();
+            }
+            int count = Math.min(size, SEGMENT_SIZE - segmentOffset);
+            System.arraycopy(data, offset, segments[segmentIndex], segmentOffset, count);
+            offset += count;
+            size -= count;
+            length += count;
+        }
+        mLength = length;
+    }
+
+    /**
+     * Reading from a closed store finds nothing stored.
+     */
+    @Override
+    public int read(long position, byte[] buffer, int offset, int size) {
+        if (!enter()) {
+            return 0;
+        }
+        try {
+            return readSegments(position, buffer, offset, size);
+        } finally {
+            exit();
+        }
+    }
+
+    private int readSegments(long position, byte[] buffer, int offset, int size) {
+        long length = mLength;
+        if (position >= length) {
+            return 0;
+        }
+        byte[][] segments = mSegments;
+        int total = (int) Math.min(size, length - position);
+        int remaining = total;
+        while (remaining > 0) {
+            int segmentIndex = (int) (position >>> SEGMENT_SHIFT);
+            int segmentOffset = (int) (position & SEGMENT_MASK);
+            int count = Math.min(remaining, SEGMENT_SIZE - segmentOffset);
+            System.arraycopy(segments[segmentIndex], segmentOffset, buffer, offset, count);
+            position += count;
+            offset += count;
+            remaining -= count;
+        }
+        return total;
+    }
+
+    @Override
+    public long length() {
+        return mLength;
+    }
+
+    @Override
+    public void close() {
+        synchronized (mLock) {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            if (mActiveCalls > 0) {
+                // The last call to return releases the segments.
+                return;
+            }
+        }
+        releaseSegments();
+    }
+
+    private boolean enter() {
+        synchronized (mLock) {
+            if (mClosed) {
+                return false;
+            }
+            mActiveCalls++;
+            return true;
+        }
+    }
+
+    private void exit() {
+        synchronized (mLock) {
+            if (--mActiveCalls > 0 || !mClosed) {
+                return;
+            }
+        }
+        releaseSegments();
+    }
+
+    private void releaseSegments() {
+        byte[][] segments = mSegments;
+        for (int i = 0; i < segments.length; i++) {
+            if (segments[i] != null) {
+                mPool.release(segments[i]);
+                segments[i] = null;
+            }
+        }
+        mLength = 0;
+    }
+}
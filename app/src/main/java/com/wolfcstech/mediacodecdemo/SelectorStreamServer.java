@@ -0,0 +1,174 @@
+package com.wolfcstech.mediacodecdemo;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The non-blocking selector loop shared by the stream senders. Frames handed to
+ * {@link #sendFrame(FrameBuffer)} from any thread are queued lock-free and fanned out to
+ * subscribers on the loop thread, which owns all channel state.
+ */
+abstract class SelectorStreamServer implements StreamPublisher {
+    private final String mName;
+    private final FrameQueue mOutgoing;
+    private final AtomicLong mRejectedFrameCount = new AtomicLong();
+
+    protected Selector mSelector;
+    private Thread mThread;
+    private volatile boolean mRunning = false;
+    private volatile SyncFrameListener mSyncFrameListener;
+
+    SelectorStreamServer(String name, int queueCapacity) {
+        mName = name;
+        mOutgoing = new BoundedFrameQueue(queueCapacity);
+    }
+
+    @Override
+    public synchronized void start(int port) throws IOException {
+        if (mRunning) {
+            return;
+        }
+        mSelector = Selector.open();
+        try {
+            openChannel(port);
+        } catch (IOException e) {
+            mSelector.close();
+            throw e;
+        }
+        mRunning = true;
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, mName);
+        mThread.start();
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (!mRunning) {
+            return;
+        }
+        mRunning = false;
+        mSelector.wakeup();
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mThread = null;
+    }
+
+    /**
+     * Queue a frame for every subscriber, taking over the caller's reference. Never blocks.
+     *
+     * @return false if the outgoing queue was full and the frame was dropped.
+     */
+    @Override
+    public boolean sendFrame(FrameBuffer frame) {
+        if (!mRunning || !mOutgoing.offer(frame)) {
+            mRejectedFrameCount.incrementAndGet();
+            frame.release();
+            return false;
+        }
+        mSelector.wakeup();
+        return true;
+    }
+
+    @Override
+    public void setSyncFrameListener(SyncFrameListener listener) {
+        mSyncFrameListener = listener;
+    }
+
+    /**
+     * Ask the encoder for a key frame because a subscriber cannot be served from what the
+     * server holds.
+     */
+    protected void requestSyncFrame() {
+        SyncFrameListener listener = mSyncFrameListener;
+        if (listener != null) {
+            listener.onSyncFrameNeeded();
+        }
+    }
+
+    /**
+     * Frames dropped because the loop was not keeping up or not running.
+     */
+    public long getRejectedFrameCount() {
+        return mRejectedFrameCount.get();
+    }
+
+    private void loop() {
+        try {
+            while (mRunning) {
+                mSelector.select();
+                Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    try {
+                        onSelected(key);
+                    } catch (IOException e) {
+                        // One channel failing must not take the others down with it.
+                        onSelectFailed(key, e);
+                    }
+                }
+                FrameBuffer frame;
+                while ((frame = mOutgoing.poll()) != null) {
+                    try {
+                        onFrame(frame);
+                    } catch (IOException e) {
+                        Log.w(mName, "Frame dropped " + e.getMessage());
+                    } finally {
+                        frame.release();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            Log.e(mName, "Selector loop failed", e);
+        } finally {
+            closeAll();
+            FrameBuffer frame;
+            while ((frame = mOutgoing.poll()) != null) {
+                frame.release();
+            }
+            try {
+                mSelector.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Open and register the listening channel.
+     */
+    protected abstract void openChannel(int port) throws IOException;
+
+    protected abstract void onSelected(SelectionKey key) throws IOException;
+
+    /**
+     * Hook for an {@link #onSelected(SelectionKey)} that failed, the loop goes on with the
+     * other keys. Subclasses drop the subscriber behind {@code key}, if any.
+     */
+    protected void onSelectFailed(SelectionKey key, IOException e) {
+        Log.w(mName, "Select failed " + e.getMessage());
+    }
+
+    /**
+     * Fan a frame out to the subscribers, retaining it for as long as it stays queued. The
+     * loop releases its own reference afterwards.
+     */
+    protected abstract void onFrame(FrameBuffer frame) throws IOException;
+
+    protected abstract void closeAll();
+}
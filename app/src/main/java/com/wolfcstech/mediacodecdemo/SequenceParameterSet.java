@@ -0,0 +1,398 @@
+package com.wolfcstech.mediacodecdemo;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The fields of an H.264 sequence parameter set a decoder has to be configured for, parsed from
+ * the NAL unit as specified in ITU-T H.264 7.3.2.1. Width and height already have the
+ * frame cropping applied.
+ */
+public class SequenceParameterSet {
+    private static final int[][] SAMPLE_ASPECT_RATIOS = {
+            {0, 0}, {1, 1}, {12, 11}, {10, 11}, {16, 11}, {40, 33}, {24, 11}, {20, 11},
+            {32, 11}, {80, 33}, {18, 11}, {15, 11}, {64, 33}, {160, 99}, {4, 3}, {3, 2}, {2, 1}};
+    private static final int EXTENDED_SAR = 255;
+
+    private int mProfileIdc;
+    private int mConstraintFlags;
+    private int mLevelIdc;
+    private int mId;
+    private int mChromaFormatIdc = 1;
+    private int mBitDepthLuma = 8;
+    private int mBitDepthChroma = 8;
+    private int mMaxNumRefFrames;
+    private int mWidthInMbs;
+    private int mHeightInMapUnits;
+    private boolean mFrameMbsOnly;
+    private int mCropLeft;
+    private int mCropRight;
+    private int mCropTop;
+    private int mCropBottom;
+    private int mWidth;
+    private int mHeight;
+
+    private int mSarWidth = 1;
+    private int mSarHeight = 1;
+    private boolean mFullRange;
+    private long mNumUnitsInTick;
+    private long mTimeScale;
+    private int mMaxNumReorderFrames = -1;
+
+    private SequenceParameterSet() {
+    }
+
+    /**
+     * Parse the SPS NAL unit between {@code from} and {@code to}, starting at its NAL header.
+     *
+     * @throws IllegalArgumentException if it is not an SPS or is truncated.
+     */
+    public static SequenceParameterSet parse(ByteBuffer nal, int from, int to) {
+        if (to - from < 4 || H264.nalType(nal.get(from)) != H264.NAL_SPS) {
+            throw new IllegalArgumentException("not a sequence parameter set");
+        }
+        RbspReader reader = new RbspReader(nal, from + 1, to);
+        SequenceParameterSet sps = new SequenceParameterSet();
+        try {
+            sps.parse(reader);
+        } catch (IndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("truncated sequence parameter set", e);
+        }
+        return sps;
+    }
+
+    private void parse(RbspReader reader) {
+        mProfileIdc = reader.readBits(8);
+        mConstraintFlags = reader.readBits(8);
+        mLevelIdc = reader.readBits(8);
+        mId = reader.readUe();
+
+        boolean separateColourPlane = false;
+        if (hasChromaInfo(mProfileIdc)) {
+            mChromaFormatIdc = reader.readUe();
+            if (mChromaFormatIdc == 3) {
+                separateColourPlane = reader.readBit();
+            }
+            mBitDepthLuma = 8 + reader.readUe();
+            mBitDepthChroma = 8 + reader.readUe();
+            reader.readBit(); // qpprime_y_zero_transform_bypass_flag
+            if (reader.readBit()) {
+                int lists = mChromaFormatIdc != 3 ? 8 : 12;
+                for (int i = 0; i < lists; i++) {
+                    if (reader.readBit()) {
+                        skipScalingList(reader, i < 6 ? 16 : 64);
+                    }
+                }
+            }
+        }
+
+        reader.readUe(); // log2_max_frame_num_minus4
+        int picOrderCntType = reader.readUe();
+        if (picOrderCntType == 0) {
+            reader.readUe(); // log2_max_pic_order_cnt_lsb_minus4
+        } else if (picOrderCntType == 1) {
+            reader.readBit(); // delta_pic_order_always_zero_flag
+            reader.readSe(); // offset_for_non_ref_pic
+            reader.readSe(); // offset_for_top_to_bottom_field
+            int cycleLength = reader.readUe();
+            for (int i = 0; i < cycleLength; i++) {
+                reader.readSe();
+            }
+        }
+        mMaxNumRefFrames = reader.readUe();
+        reader.readBit(); // gaps_in_frame_num_value_allowed_flag
+        mWidthInMbs = reader.readUe() + 1;
+        mHeightInMapUnits = reader.readUe() + 1;
+        mFrameMbsOnly = reader.readBit();
+        if (!mFrameMbsOnly) {
+            reader.readBit(); // mb_adaptive_frame_field_flag
+        }
+        reader.readBit(); // direct_8x8_inference_flag
+        if (reader.readBit()) {
+            mCropLeft = reader.readUe();
+            mCropRight = reader.readUe();
+            mCropTop = reader.readUe();
+            mCropBottom = reader.readUe();
+        }
+
+        int chromaArrayType = separateColourPlane ? 0 : mChromaFormatIdc;
+        int cropUnitX = 1;
+        int cropUnitY = mFrameMbsOnly ? 1 : 2;
+        if (chromaArrayType != 0) {
+            cropUnitX = chromaArrayType == 3 ? 1 : 2;
+            cropUnitY *= chromaArrayType == 1 ? 2 : 1;
+        }
+        mWidth = mWidthInMbs * 16 - cropUnitX * (mCropLeft + mCropRight);
+        mHeight = (mFrameMbsOnly ? 1 : 2) * mHeightInMapUnits * 16
+                - cropUnitY * (mCropTop + mCropBottom);
+
+        if (reader.readBit()) {
+            parseVui(reader);
+        }
+    }
+
+    private static boolean hasChromaInfo(int profileIdc) {
+        switch (profileIdc) {
+            case 100: case 110: case 122: case 244: case 44: case 83: case 86: case 118:
+            case 128: case 138: case 139: case 134: case 135:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static void skipScalingList(RbspReader reader, int size) {
+        int lastScale = 8;
+        int nextScale = 8;
+        for (int j = 0; j < size && nextScale != 0; j++) {
+            nextScale = (lastScale + reader.readSe() + 256) % 256;
+            if (nextScale != 0) {
+                lastScale = nextScale;
+            }
+        }
+    }
+
+    private void parseVui(RbspReader reader) {
+        if (reader.readBit()) {
+            int aspectRatioIdc = reader.readBits(8);
+            if (aspectRatioIdc == EXTENDED_SAR) {
+                mSarWidth = reader.readBits(16);
+                mSarHeight = reader.readBits(16);
+            } else if (aspectRatioIdc > 0 && aspectRatioIdc < SAMPLE_ASPECT_RATIOS.length) {
+                mSarWidth = SAMPLE_ASPECT_RATIOS[aspectRatioIdc][0];
+                mSarHeight = SAMPLE_ASPECT_RATIOS[aspectRatioIdc][1];
+            }
+        }
+        if (reader.readBit()) {
+            reader.readBit(); // overscan_appropriate_flag
+        }
+        if (reader.readBit()) {
+            reader.readBits(3); // video_format
+            mFullRange = reader.readBit();
+            if (reader.readBit()) {
+                reader.readBits(24); // colour_primaries, transfer and matrix coefficients
+            }
+        }
+        if (reader.readBit()) {
+            reader.readUe(); // chroma_sample_loc_type_top_field
+            reader.readUe(); // chroma_sample_loc_type_bottom_field
+        }
+        if (reader.readBit()) {
+            mNumUnitsInTick = reader.readBits(32) & 0xFFFFFFFFL;
+            mTimeScale = reader.readBits(32) & 0xFFFFFFFFL;
+            reader.readBit(); // fixed_frame_rate_flag
+        }
+        boolean nalHrd = reader.readBit();
+        if (nalHrd) {
+            skipHrdParameters(reader);
+        }
+        boolean vclHrd = reader.readBit();
+        if (vclHrd) {
+            skipHrdParameters(reader);
+        }
+        if (nalHrd || vclHrd) {
+            reader.readBit(); // low_delay_hrd_flag
+        }
+        reader.readBit(); // pic_struct_present_flag
+        if (reader.readBit()) {
+            reader.readBit(); // motion_vectors_over_pic_boundaries_flag
+            reader.readUe(); // max_bytes_per_pic_denom
+            reader.readUe(); // max_bits_per_mb_denom
+            reader.readUe(); // log2_max_mv_length_horizontal
+            reader.readUe(); // log2_max_mv_length_vertical
+            mMaxNumReorderFrames = reader.readUe();
+            reader.readUe(); // max_dec_frame_buffering
+        }
+    }
+
+    private static void skipHrdParameters(RbspReader reader) {
+        int cpbCount = reader.readUe() + 1;
+        reader.readBits(8); // bit_rate_scale, cpb_size_scale
+        for (int i = 0; i < cpbCount; i++) {
+            reader.readUe(); // bit_rate_value_minus1
+            reader.readUe(); // cpb_size_value_minus1
+            reader.readBit(); // cbr_flag
+        }
+        reader.readBits(20); // four delay and length fields of 5 bits each
+    }
+
+    /**
+     * Whether a decoder configured for this SPS has to be reconfigured to decode {@code other},
+     * because the picture size, profile, chroma format or bit depth differ or the level rises.
+     */
+    public boolean requiresReconfigure(SequenceParameterSet other) {
+        return mWidth != other.mWidth || mHeight != other.mHeight
+                || mProfileIdc != other.mProfileIdc || mChromaFormatIdc != other.mChromaFormatIdc
+                || mBitDepthLuma != other.mBitDepthLuma || mBitDepthChroma != other.mBitDepthChroma
+                || mFrameMbsOnly != other.mFrameMbsOnly || other.mLevelIdc > mLevelIdc;
+    }
+
+    public int getProfileIdc() {
+        return mProfileIdc;
+    }
+
+    public int getConstraintFlags() {
+        return mConstraintFlags;
+    }
+
+    public int getLevelIdc() {
+        return mLevelIdc;
+    }
+
+    public int getId() {
+        return mId;
+    }
+
+    public int getChromaFormatIdc() {
+        return mChromaFormatIdc;
+    }
+
+    public int getBitDepthLuma() {
+        return mBitDepthLuma;
+    }
+
+    public int getBitDepthChroma() {
+        return mBitDepthChroma;
+    }
+
+    public int getMaxNumRefFrames() {
+        return mMaxNumRefFrames;
+    }
+
+    public boolean isFrameMbsOnly() {
+        return mFrameMbsOnly;
+    }
+
+    /**
+     * The coded width in pixels before cropping.
+     */
+    public int getCodedWidth() {
+        return mWidthInMbs * 16;
+    }
+
+    /**
+     * The coded height in pixels before cropping.
+     */
+    public int getCodedHeight() {
+        return (mFrameMbsOnly ? 1 : 2) * mHeightInMapUnits * 16;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public int getCropLeft() {
+        return mCropLeft;
+    }
+
+    public int getCropRight() {
+        return mCropRight;
+    }
+
+    public int getCropTop() {
+        return mCropTop;
+    }
+
+    public int getCropBottom() {
+        return mCropBottom;
+    }
+
+    public int getSarWidth() {
+        return mSarWidth;
+    }
+
+    public int getSarHeight() {
+        return mSarHeight;
+    }
+
+    public boolean isFullRange() {
+        return mFullRange;
+    }
+
+    /**
+     * The frame rate from the VUI timing info, or 0 if the SPS carries none.
+     */
+    public double getFrameRate() {
+        return mNumUnitsInTick > 0 ? mTimeScale / (2.0 * mNumUnitsInTick) : 0;
+    }
+
+    /**
+     * max_num_reorder_frames from the VUI, or -1 if the SPS does not restrict it.
+     */
+    public int getMaxNumReorderFrames() {
+        return mMaxNumReorderFrames;
+    }
+
+    /**
+     * Reads the bits of an RBSP, skipping the emulation prevention byte of every
+     * {@code 00 00 03} sequence.
+     */
+    private static final class RbspReader {
+        private final ByteBuffer mData;
+        private final int mEnd;
+        private int mPosition;
+        private int mZeroCount = 0;
+        private int mCurrentByte;
+        private int mBitsLeft = 0;
+
+        RbspReader(ByteBuffer data, int from, int to) {
+            mData = data;
+            mPosition = from;
+            mEnd = to;
+        }
+
+        private void nextByte() {
+            if (mPosition >= mEnd) {
+                throw new IndexOutOfBoundsException();
+            }
+            int b = mData.get(mPosition++) & 0xFF;
+            if (mZeroCount >= 2 && b == 3) {
+                mZeroCount = 0;
+                if (mPosition >= mEnd) {
+                    throw new IndexOutOfBoundsException();
+                }
+                b = mData.get(mPosition++) & 0xFF;
+            }
+            mZeroCount = b == 0 ? mZeroCount + 1 : 0;
+            mCurrentByte = b;
+            mBitsLeft = 8;
+        }
+
+        boolean readBit() {
+            if (mBitsLeft == 0) {
+                nextByte();
+            }
+            mBitsLeft--;
+            return ((mCurrentByte >> mBitsLeft) & 1) != 0;
+        }
+
+        /**
+         * Read up to 32 bits as an unsigned value, bit 31 ends up in the sign.
+         */
+        int readBits(int count) {
+            int value = 0;
+            for (int i = 0; i < count; i++) {
+                value = (value << 1) | (readBit() ? 1 : 0);
+            }
+            return value;
+        }
+
+        int readUe() {
+            int leadingZeros = 0;
+            while (!readBit()) {
+                if (++leadingZeros > 31) {
+                    throw new IllegalArgumentException("invalid exp-Golomb code");
+                }
+            }
+            return (int) ((1L << leadingZeros) - 1 + (readBits(leadingZeros) & 0xFFFFFFFFL));
+        }
+
+        int readSe() {
+            int codeNum = readUe();
+            return (codeNum & 1) != 0 ? (codeNum + 1) / 2 : -(codeNum / 2);
+        }
+    }
+}
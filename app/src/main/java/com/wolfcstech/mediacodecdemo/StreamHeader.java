@@ -0,0 +1,40 @@
+package com.wolfcstech.mediacodecdemo;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The 4-byte big-endian header both stream formats put in front of their payload: the packet
+ * index of a datagram and the frame length of a TCP message. When both ends enable it, a TCP
+ * message follows it with the frame's 8-byte presentation time in microseconds, the capture
+ * time of the frame, so the receiving end can tell which frame it got. Decoded in place,
+ * without wrapping the bytes in a buffer.
+ */
+public final class StreamHeader {
+    public static final int SIZE = 4;
+    /** Length and presentation time of a TCP message that carries one. */
+    public static final int TIMESTAMPED_SIZE = SIZE + 8;
+
+    private StreamHeader() {
+    }
+
+    public static int read(byte[] data, int offset) {
+        return (data[offset] & 0xFF) << 24 | (data[offset + 1] & 0xFF) << 16
+                | (data[offset + 2] & 0xFF) << 8 | (data[offset + 3] & 0xFF);
+    }
+
+    /**
+     * Read the header at absolute {@code index}, regardless of the buffer's byte order.
+     */
+    public static int read(ByteBuffer buffer, int index) {
+        return (buffer.get(index) & 0xFF) << 24 | (buffer.get(index + 1) & 0xFF) << 16
+                | (buffer.get(index + 2) & 0xFF) << 8 | (buffer.get(index + 3) & 0xFF);
+    }
+
+    /**
+     * Read the presentation time of the TCP message whose header starts at absolute
+     * {@code index}.
+     */
+    public static long readPresentationTimeUs(ByteBuffer buffer, int index) {
+        return (long) read(buffer, index + SIZE) << 32 | read(buffer, index + SIZE + 4) & 0xFFFFFFFFL;
+    }
+}
@@ -0,0 +1,35 @@
+package com.wolfcstech.mediacodecdemo;
+
+import java.io.IOException;
+
+/**
+ * The sending end of a stream transport. Encoded frames handed to a publisher reach every
+ * {@link StreamTransport} subscribed to it.
+ */
+public interface StreamPublisher {
+    void start(int port) throws IOException;
+
+    void stop();
+
+    /**
+     * The port actually bound, useful when started on port 0.
+     */
+    int getLocalPort();
+
+    /**
+     * Queue a frame for every subscriber, taking over the caller's reference. Never blocks.
+     *
+     * @return false if the frame was dropped.
+     */
+    boolean sendFrame(FrameBuffer frame);
+
+    void setSyncFrameListener(SyncFrameListener listener);
+
+    interface SyncFrameListener {
+        /**
+         * Called when a new subscriber needs a key frame to start decoding, on the
+         * publisher's thread.
+         */
+        void onSyncFrameNeeded();
+    }
+}
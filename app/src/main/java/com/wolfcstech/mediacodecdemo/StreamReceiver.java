@@ -6,11 +6,14 @@ import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 
 /**
  * Created by hanpfei0306 on 17-7-14.
@@ -20,32 +23,144 @@ public class StreamReceiver {
     private static final String TAG = "StreamReceiver";
 
     private static final int MAX_UDP_PACKET_SIZE = 65536;
+    // Resend the subscription this often, the sender forgets receivers it has not heard from.
+    static final long SUBSCRIPTION_REFRESH_MS = 2000;
+    private static final byte[] SUBSCRIPTION = "Hello! I'm Client".getBytes();
 
     private volatile boolean mStop = false;
+    private final Object mStopLock = new Object();
+
+    private int mBatchSize = 0;
+    private int mReceiveBufferSize = 0;
+    private volatile Selector mSelector;
+    private volatile DatagramSocket mSocket;
 
     private byte[] mRecvBuf = new byte[MAX_UDP_PACKET_SIZE];
 
     private StreamDataReceivedListener mDataReceivedListener;
+    private StreamDataBatchListener mDataBatchListener;
+    private FrameBufferPool mFrameBufferPool;
+    private FrameBufferPool.FrameReceivedListener mFrameReceivedListener;
+    private RtpH264Depacketizer mDepacketizer;
+    private NackRequester mNackRequester;
+    private final ByteBuffer mNackBuf = ByteBuffer.allocate(NackRequester.MAX_NACK_SIZE);
+
+    private volatile long mDroppedFrameCount = 0;
+    private ConnectionSupervisor mSupervisor = new ConnectionSupervisor();
+
+    /**
+     * The packets dropped because every buffer of the frame pool was still held downstream.
+     */
+    public long getDroppedFrameCount() {
+        return mDroppedFrameCount;
+    }
+
+    /**
+     * Paces resubscribing after a socket error in batch receive mode and reports it to its
+     * listener.
+     */
+    public void setConnectionSupervisor(ConnectionSupervisor supervisor) {
+        mSupervisor = supervisor;
+    }
+
+    public ConnectionSupervisor getConnectionSupervisor() {
+        return mSupervisor;
+    }
 
     public void setDataReceivedListener(StreamDataReceivedListener dataReceivedListener) {
         mDataReceivedListener = dataReceivedListener;
     }
 
+    /**
+     * Copy each datagram payload into a buffer from {@code pool}, tagged with the packet
+     * index, and hand it to {@code listener}. Takes precedence over the
+     * {@link StreamDataReceivedListener}.
+     */
+    public void setFrameReceivedListener(FrameBufferPool pool,
+                                         FrameBufferPool.FrameReceivedListener listener) {
+        mFrameBufferPool = pool;
+        mFrameReceivedListener = listener;
+    }
+
+    /**
+     * Treat every datagram as an RTP/H.264 packet and hand it to {@code depacketizer}, which
+     * delivers whole access units. Takes precedence over the other listeners.
+     */
+    public void setDepacketizer(RtpH264Depacketizer depacketizer) {
+        mDepacketizer = depacketizer;
+    }
+
+    /**
+     * Hand whole batches of datagrams to {@code listener} instead of one packet at a time.
+     * Only used in batch receive mode.
+     */
+    public void setDataBatchListener(StreamDataBatchListener listener) {
+        mDataBatchListener = listener;
+    }
+
+    /**
+     * Receive through a non-blocking {@link DatagramChannel}, draining up to
+     * {@code batchSize} datagrams per wakeup into preallocated direct buffers.
+     *
+     * @param batchSize the most datagrams per batch, 0 to use a blocking DatagramSocket.
+     * @param receiveBufferSize the SO_RCVBUF to ask for, 0 to keep the system default.
+     */
+    public void setBatchReceive(int batchSize, int receiveBufferSize) {
+        mBatchSize = batchSize;
+        mReceiveBufferSize = receiveBufferSize;
+    }
+
+    /**
+     * Send the NACKs {@code requester} builds back to the sender over the receiving socket.
+     * The requester must also sit in the listener chain, after any {@link FecDecoder}, to see
+     * the packets arrive.
+     */
+    public void setNackRequester(NackRequester requester) {
+        mNackRequester = requester;
+    }
+
+    /**
+     * How long a receive may block, short enough to send the NACKs on time.
+     */
+    private int receiveTimeoutMs() {
+        return mNackRequester != null ? (int) Math.max(1, mNackRequester.getIntervalMs())
+                : (int) SUBSCRIPTION_REFRESH_MS;
+    }
+
     public void stop() {
         mStop = true;
+        synchronized (mStopLock) {
+            mStopLock.notifyAll();
+        }
+        Selector selector = mSelector;
+        if (selector != null) {
+            selector.wakeup();
+        }
+        // Unblocks a receive() in socket mode.
+        DatagramSocket socket = mSocket;
+        if (socket != null) {
+            socket.close();
+        }
     }
 
     public void requestStreamData(String serverAddr, int port) {
+        if (mBatchSize > 0) {
+            requestStreamDataBatched(serverAddr, port);
+            return;
+        }
         DatagramSocket client = null;
         try {
             client = new DatagramSocket();
-            client.setSoTimeout(5000);
+            mSocket = client;
+            if (mStop) {
+                client.close();
+                return;
+            }
+            client.setSoTimeout(receiveTimeoutMs());
         } catch (SocketException e) {
             e.printStackTrace();
         }
 
-        String sendStr = "Hello! I'm Client";
-        byte[] sendBuf = sendStr.getBytes();
         InetAddress addr = null;
         try {
             addr = InetAddress.getByName(serverAddr);
@@ -53,7 +168,9 @@ public class StreamReceiver {
             e.printStackTrace();
         }
 
-        DatagramPacket sendPacket = new DatagramPacket(sendBuf, sendBuf.length, addr, port);
+        DatagramPacket sendPacket = new DatagramPacket(SUBSCRIPTION, SUBSCRIPTION.length, addr,
+                port);
+        long subscribedNanos = System.nanoTime();
         try {
             client.send(sendPacket);
         } catch (IOException e) {
@@ -61,34 +178,221 @@ public class StreamReceiver {
         }
 
         DatagramPacket recvPacket = new DatagramPacket(mRecvBuf, mRecvBuf.length);
+        DatagramPacket nackPacket = new DatagramPacket(mNackBuf.array(), 0, addr, port);
         while (!mStop) {
             try {
                 client.receive(recvPacket);
-                if (mDataReceivedListener != null) {
-                    int index = getIndex(recvPacket.getData(), recvPacket.getOffset());
+                if (mDepacketizer != null) {
+                    mDepacketizer.onPacket(recvPacket.getData(), recvPacket.getOffset(),
+                            recvPacket.getLength());
+                } else if (mFrameReceivedListener != null && mFrameBufferPool != null) {
+                    int index = StreamHeader.read(recvPacket.getData(), recvPacket.getOffset());
+                    FrameBuffer frameBuffer = mFrameBufferPool.tryAcquire(recvPacket.getLength() - 4);
+                    if (frameBuffer == null) {
+                        mDroppedFrameCount++;
+                    } else {
+                        ByteBuffer data = frameBuffer.data();
+                        data.put(recvPacket.getData(), recvPacket.getOffset() + 4, recvPacket.getLength() - 4);
+                        data.flip();
+                        frameBuffer.setIndex(index);
+                        mFrameReceivedListener.onFrameReceived(frameBuffer);
+                    }
+                } else if (mDataReceivedListener != null) {
+                    int index = StreamHeader.read(recvPacket.getData(), recvPacket.getOffset());
                     mDataReceivedListener.onStreamDataReceived(index, recvPacket.getData(),
                             recvPacket.getOffset() + 4, recvPacket.getLength() - 4);
                 }
             } catch (SocketTimeoutException ste) {
             } catch (IOException e) {
-                e.printStackTrace();
+                if (!mStop) {
+                    e.printStackTrace();
+                }
+            }
+            if (mNackRequester != null && mNackRequester.buildNack(mNackBuf)) {
+                try {
+                    nackPacket.setLength(mNackBuf.limit());
+                    client.send(nackPacket);
+                } catch (IOException e) {
+                    if (!mStop) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+            if (System.nanoTime() - subscribedNanos > SUBSCRIPTION_REFRESH_MS * 1000000L) {
+                subscribedNanos = System.nanoTime();
+                try {
+                    client.send(sendPacket);
+                } catch (IOException e) {
+                    if (!mStop) {
+                        e.printStackTrace();
+                    }
+                }
             }
         }
+        mSocket = null;
         String recvStr = new String(recvPacket.getData(), 0, recvPacket.getLength());
 //        Log.i(TAG, "收到:" + recvStr);
         client.close();
     }
 
-    private int getIndex(byte[] data, int offset) {
-        ByteBuffer bb = ByteBuffer.wrap(data, offset, 4);
-        bb.order(ByteOrder.BIG_ENDIAN);
-        bb.asIntBuffer();
-        int index = bb.getInt();
+    /**
+     * Receive until {@link #stop()}. A socket error no longer ends the stream: the channel is
+     * reopened and the subscription renewed, with backoff, under the supervisor, whose listener
+     * hears about each loss.
+     */
+    private void requestStreamDataBatched(String serverAddr, int port) {
+        ConnectionSupervisor supervisor = mSupervisor;
+        // A byte array listener is handed the received bytes in place, which needs heap buffers.
+        boolean direct = mDepacketizer != null || mDataBatchListener != null
+                || (mFrameReceivedListener != null && mFrameBufferPool != null);
+        DatagramBatch batch = new DatagramBatch(mBatchSize, MAX_UDP_PACKET_SIZE, direct);
+        while (!mStop) {
+            supervisor.onConnecting();
+            try {
+                receiveBatches(new InetSocketAddress(InetAddress.getByName(serverAddr), port),
+                        batch, supervisor);
+            } catch (IOException e) {
+                if (mStop) {
+                    break;
+                }
+                long delayMs = supervisor.onDisconnected();
+                Log.w(TAG, "Receiving from " + serverAddr + ":" + port + " failed ("
+                        + e.getMessage() + "), resubscribing in " + delayMs + " ms");
+                backOff(delayMs);
+            }
+        }
+        supervisor.onStopped();
+    }
 
-        return index;
+    private void receiveBatches(InetSocketAddress socketAddress, DatagramBatch batch,
+                                ConnectionSupervisor supervisor) throws IOException {
+        DatagramChannel channel = null;
+        Selector selector = null;
+        try {
+            channel = DatagramChannel.open();
+            if (mReceiveBufferSize > 0) {
+                channel.socket().setReceiveBufferSize(mReceiveBufferSize);
+            }
+            channel.configureBlocking(false);
+            selector = Selector.open();
+            channel.register(selector, SelectionKey.OP_READ);
+            mSelector = selector;
+            if (mStop) {
+                return;
+            }
+
+            channel.send(ByteBuffer.wrap(SUBSCRIPTION), socketAddress);
+            long subscribedNanos = System.nanoTime();
+            supervisor.onConnected();
+
+            int timeout = receiveTimeoutMs();
+            while (!mStop) {
+                if (mNackRequester != null && mNackRequester.buildNack(mNackBuf)) {
+                    channel.send(mNackBuf, socketAddress);
+                }
+                if (System.nanoTime() - subscribedNanos > SUBSCRIPTION_REFRESH_MS * 1000000L) {
+                    subscribedNanos = System.nanoTime();
+                    channel.send(ByteBuffer.wrap(SUBSCRIPTION), socketAddress);
+                }
+                if (selector.select(timeout) == 0) {
+                    continue;
+                }
+                selector.selectedKeys().clear();
+                // Keep draining while the socket fills whole batches.
+                do {
+                    batch.clear();
+                    while (!batch.isFull()) {
+                        if (channel.receive(batch.nextPacketBuffer()) == null) {
+                            break;
+                        }
+                        batch.commit();
+                    }
+                    if (batch.size() > 0) {
+                        dispatchBatch(batch);
+                    }
+                } while (batch.isFull() && !mStop);
+            }
+        } finally {
+            mSelector = null;
+            if (selector != null) {
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private void backOff(long delayMs) {
+        long deadline = System.currentTimeMillis() + delayMs;
+        synchronized (mStopLock) {
+            long remaining = delayMs;
+            while (!mStop && remaining > 0) {
+                try {
+                    mStopLock.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    mStop = true;
+                    return;
+                }
+                remaining = deadline - System.currentTimeMillis();
+            }
+        }
+    }
+
+    private void dispatchBatch(DatagramBatch batch) {
+        if (mDepacketizer != null) {
+            for (int i = 0; i < batch.size(); i++) {
+                mDepacketizer.onPacket(batch.getDatagram(i));
+            }
+            return;
+        }
+        if (mDataBatchListener != null) {
+            mDataBatchListener.onStreamDataBatch(batch);
+            return;
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            ByteBuffer payload = batch.getPayload(i);
+            int size = payload.remaining();
+            if (mFrameReceivedListener != null && mFrameBufferPool != null) {
+                FrameBuffer frameBuffer = mFrameBufferPool.tryAcquire(size);
+                if (frameBuffer == null) {
+                    mDroppedFrameCount++;
+                    continue;
+                }
+                ByteBuffer data = frameBuffer.data();
+                data.put(payload);
+                data.flip();
+                frameBuffer.setIndex(batch.getIndex(i));
+                mFrameReceivedListener.onFrameReceived(frameBuffer);
+            } else if (mDataReceivedListener != null) {
+                if (payload.hasArray()) {
+                    mDataReceivedListener.onStreamDataReceived(batch.getIndex(i), payload.array(),
+                            payload.arrayOffset() + payload.position(), size);
+                } else {
+                    payload.get(mRecvBuf, 0, size);
+                    mDataReceivedListener.onStreamDataReceived(batch.getIndex(i), mRecvBuf, 0, size);
+                }
+            }
+        }
     }
 
     public interface StreamDataReceivedListener {
         void onStreamDataReceived(int index, byte[]data, int offset, int size);
     }
+
+    public interface StreamDataBatchListener {
+        /**
+         * The batch and its buffers are reused once this returns.
+         */
+        void onStreamDataBatch(DatagramBatch batch);
+    }
 }
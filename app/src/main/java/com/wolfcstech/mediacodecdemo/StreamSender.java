@@ -0,0 +1,382 @@
+package com.wolfcstech.mediacodecdemo;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.util.ArrayList;
+
+/**
+ * Publishes a byte stream to {@link StreamReceiver}s as datagrams carrying a 4-byte
+ * big-endian packet index. A receiver subscribes by sending any datagram to the server port,
+ * and everything it gets is sent from that port, so it passes the same NAT binding and
+ * firewall pinhole the subscription opened. A subscriber not heard from within the
+ * subscriber timeout is dropped, {@link StreamReceiver} renews its subscription well before.
+ *
+ * <p>Indices are shared by all subscribers, the same payload always carries the same index.
+ * With {@link #setFec(int, int)} parity packets follow each block of data packets, for a
+ * {@link FecDecoder} on the receiving side. With {@link #setRetransmitHistory(int)} the
+ * recent packets are kept and sent again to a subscriber whose {@link NackRequester} asks for
+ * them. With {@link #setChecksum(boolean)} every indexed datagram ends in a CRC-32C of the
+ * rest, for a {@link StreamVerifier} on the receiving side to check. With
+ * {@link #setPacketizer(RtpH264Packetizer)} frames go out as RTP packets instead.
+ */
+public class StreamSender extends SelectorStreamServer {
+    private static final String TAG = "StreamSender";
+
+    public static final int DEFAULT_MAX_PAYLOAD_SIZE = 1400;
+    public static final long DEFAULT_SUBSCRIBER_TIMEOUT_MS =
+            5 * StreamReceiver.SUBSCRIPTION_REFRESH_MS;
+    static final int CHECKSUM_SIZE = 4;
+
+    private final int mMaxPayloadSize;
+    private DatagramChannel mServerChannel;
+    private final ArrayList<Subscriber> mSubscribers = new ArrayList<>();
+    private final ByteBuffer mRecvBuf = ByteBuffer.allocateDirect(2048);
+    private final ByteBuffer mSendBuf;
+
+    private int mNextIndex = 0;
+    private RtpH264Packetizer mPacketizer;
+    private FecEncoder mFecEncoder;
+    private RetransmitHistory mRetransmitHistory;
+    private boolean mChecksum = false;
+    private long mSubscriberTimeoutNanos = DEFAULT_SUBSCRIBER_TIMEOUT_MS * 1000000L;
+    private long mLastExpiryCheckNanos = 0;
+    private final RtpH264Packetizer.PacketSink mPacketSink = new RtpH264Packetizer.PacketSink() {
+        @Override
+        public void onPacket(ByteBuffer packet) {
+            for (int i = mSubscribers.size() - 1; i >= 0; i--) {
+                sendDatagram(mSubscribers.get(i), packet);
+            }
+        }
+    };
+    private final RtpH264Packetizer.PacketSink mParitySink = new RtpH264Packetizer.PacketSink() {
+        @Override
+        public void onPacket(ByteBuffer packet) {
+            if (mChecksum) {
+                mSendBuf.clear();
+                mSendBuf.put(packet.duplicate());
+                mSendBuf.flip();
+                packet = appendChecksum(mSendBuf);
+            }
+            mPacketSink.onPacket(packet);
+        }
+    };
+
+    private volatile int mSubscriberCount = 0;
+    private volatile long mSentPacketCount = 0;
+    private volatile long mDroppedPacketCount = 0;
+    private volatile long mRetransmittedPacketCount = 0;
+    private volatile long mExpiredRequestCount = 0;
+    private volatile long mTimedOutSubscriberCount = 0;
+
+    public StreamSender() {
+        this(DEFAULT_MAX_PAYLOAD_SIZE);
+    }
+
+    public StreamSender(int maxPayloadSize) {
+        super(TAG, 64);
+        mMaxPayloadSize = maxPayloadSize;
+        // Room for a parity packet, the largest indexed datagram.
+        mSendBuf = ByteBuffer.allocateDirect(FecEncoder.PARITY_HEADER_SIZE + FecEncoder.LENGTH_SIZE
+                + maxPayloadSize + CHECKSUM_SIZE).order(ByteOrder.BIG_ENDIAN);
+    }
+
+    /**
+     * Send each frame as RTP/H.264 packets built by {@code packetizer} rather than as indexed
+     * chunks of the byte stream. Must be called before {@link #start(int)}.
+     */
+    public void setPacketizer(RtpH264Packetizer packetizer) {
+        mPacketizer = packetizer;
+    }
+
+    /**
+     * Follow every {@code blockSize} data packets with {@code parityCount} parity packets, so
+     * receivers can rebuild up to that many lost packets per block. A frame always ends its
+     * block, so no parity waits for the next frame. Must be called before {@link #start(int)}.
+     */
+    public void setFec(int blockSize, int parityCount) {
+        mFecEncoder = new FecEncoder(blockSize, parityCount, mMaxPayloadSize);
+    }
+
+    /**
+     * Keep the last {@code packets} data packets to answer NACKs with. Must be called before
+     * {@link #start(int)}.
+     */
+    public void setRetransmitHistory(int packets) {
+        mRetransmitHistory = new RetransmitHistory(packets, mMaxPayloadSize);
+    }
+
+    /**
+     * End every data, parity and retransmitted packet with a 4-byte big-endian CRC-32C of
+     * the index and payload, so the receiver can tell a packet damaged in transit from the
+     * one that was sent. RTP packets are left as they are. Must be called before
+     * {@link #start(int)}.
+     */
+    public void setChecksum(boolean checksum) {
+        mChecksum = checksum;
+    }
+
+    /**
+     * Drop a subscriber that sent nothing for {@code timeoutMs}, a receiver that went away
+     * without a word. Must be called before {@link #start(int)}.
+     */
+    public void setSubscriberTimeout(long timeoutMs) {
+        mSubscriberTimeoutNanos = timeoutMs * 1000000L;
+    }
+
+    @Override
+    protected void openChannel(int port) throws IOException {
+        mServerChannel = DatagramChannel.open();
+        mServerChannel.socket().setReuseAddress(true);
+        mServerChannel.socket().bind(new InetSocketAddress(port));
+        mServerChannel.configureBlocking(false);
+        mServerChannel.register(mSelector, SelectionKey.OP_READ);
+    }
+
+    @Override
+    public int getLocalPort() {
+        return mServerChannel.socket().getLocalPort();
+    }
+
+    @Override
+    protected void onSelected(SelectionKey key) throws IOException {
+        SocketAddress from;
+        mRecvBuf.clear();
+        while ((from = mServerChannel.receive(mRecvBuf)) != null) {
+            mRecvBuf.flip();
+            onDatagram(from, mRecvBuf);
+            mRecvBuf.clear();
+        }
+    }
+
+    /**
+     * Handle a datagram a receiver sent to the server port. Anything from an unknown address
+     * subscribes it, and asks for a key frame so the new subscriber can start decoding soon.
+     * Anything from a subscriber keeps it alive, and a NACK is answered from the retransmit
+     * history.
+     */
+    protected void onDatagram(SocketAddress from, ByteBuffer datagram) throws IOException {
+        long now = System.nanoTime();
+        Subscriber subscriber = findSubscriber(from);
+        if (subscriber == null) {
+            mSubscribers.add(new Subscriber(from, now));
+            mSubscriberCount = mSubscribers.size();
+            requestSyncFrame();
+            return;
+        }
+        subscriber.mLastSeenNanos = now;
+        if (mRetransmitHistory != null && NackRequester.isNack(datagram)) {
+            onNack(subscriber, datagram);
+        }
+    }
+
+    /**
+     * Drop the subscribers not heard from within the timeout, looking at most once a second.
+     */
+    private void expireSubscribers(long now) {
+        if (now - mLastExpiryCheckNanos < Math.min(1000000000L, mSubscriberTimeoutNanos)) {
+            return;
+        }
+        mLastExpiryCheckNanos = now;
+        for (int i = mSubscribers.size() - 1; i >= 0; i--) {
+            Subscriber subscriber = mSubscribers.get(i);
+            if (now - subscriber.mLastSeenNanos > mSubscriberTimeoutNanos) {
+                Log.i(TAG, "Subscriber " + subscriber.mAddress + " timed out");
+                mSubscribers.remove(i);
+                mTimedOutSubscriberCount++;
+            }
+        }
+        mSubscriberCount = mSubscribers.size();
+    }
+
+    private void onNack(Subscriber subscriber, ByteBuffer nack) {
+        nack.position(nack.position() + 4);
+        int ranges = nack.get() & 0xFF;
+        // Never resend more than the history holds, whatever the NACK says.
+        int budget = mRetransmitHistory.capacity();
+        for (int r = 0; r < ranges && nack.remaining() >= NackRequester.RANGE_SIZE; r++) {
+            int first = nack.getInt();
+            int count = nack.getShort() & 0xFFFF;
+            for (int i = 0; i < count && budget > 0; i++, budget--) {
+                ByteBuffer payload = mRetransmitHistory.get(first + i);
+                if (payload == null) {
+                    mExpiredRequestCount++;
+                    continue;
+                }
+                sendPacket(subscriber, first + i, payload);
+                mRetransmittedPacketCount++;
+            }
+        }
+    }
+
+    protected Subscriber findSubscriber(SocketAddress address) {
+        for (int i = 0; i < mSubscribers.size(); i++) {
+            if (mSubscribers.get(i).mAddress.equals(address)) {
+                return mSubscribers.get(i);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    protected void onFrame(FrameBuffer frame) {
+        expireSubscribers(System.nanoTime());
+        ByteBuffer data = frame.data();
+        if (mPacketizer != null) {
+            if (!mSubscribers.isEmpty()) {
+                mPacketizer.packetize(data, frame.getPresentationTimeUs(), mPacketSink);
+            }
+            return;
+        }
+        int start = data.position();
+        int limit = data.limit();
+        try {
+            for (int offset = start; offset < limit; offset += mMaxPayloadSize) {
+                int index = mNextIndex++;
+                data.limit(Math.min(limit, offset + mMaxPayloadSize));
+                for (int i = mSubscribers.size() - 1; i >= 0; i--) {
+                    data.position(offset);
+                    sendPacket(mSubscribers.get(i), index, data);
+                }
+                if (mFecEncoder != null && !mSubscribers.isEmpty()) {
+                    data.position(offset);
+                    mFecEncoder.addPacket(index, data, mParitySink);
+                }
+                if (mRetransmitHistory != null && !mSubscribers.isEmpty()) {
+                    data.position(offset);
+                    mRetransmitHistory.add(index, data);
+                }
+                data.limit(limit);
+            }
+            if (mFecEncoder != null) {
+                mFecEncoder.flush(mParitySink);
+            }
+        } finally {
+            data.limit(limit);
+            data.position(start);
+        }
+    }
+
+    /**
+     * Send one indexed datagram to one subscriber, leaving {@code payload} untouched. An
+     * unconnected send takes no gathering write, so header and payload are put together in
+     * the send buffer, a copy of at most one payload.
+     */
+    protected void sendPacket(Subscriber subscriber, int index, ByteBuffer payload) {
+        int position = payload.position();
+        mSendBuf.clear();
+        mSendBuf.putInt(index);
+        mSendBuf.put(payload);
+        mSendBuf.flip();
+        payload.position(position);
+        send(subscriber, appendChecksum(mSendBuf));
+    }
+
+    /**
+     * Append the checksum to the flipped {@code packet}, if enabled.
+     */
+    private ByteBuffer appendChecksum(ByteBuffer packet) {
+        if (mChecksum) {
+            int end = packet.limit();
+            int crc = Crc32c.update(0, packet);
+            packet.limit(end + CHECKSUM_SIZE);
+            packet.putInt(end, crc);
+        }
+        return packet;
+    }
+
+    /**
+     * Send {@code packet} as is to one subscriber, leaving it untouched.
+     */
+    protected void sendDatagram(Subscriber subscriber, ByteBuffer packet) {
+        send(subscriber, packet);
+    }
+
+    /**
+     * Send from the server port, which a subscriber's NAT binding already lets through.
+     */
+    private void send(Subscriber subscriber, ByteBuffer packet) {
+        int position = packet.position();
+        try {
+            // A non-blocking datagram send sends everything or nothing.
+            if (mServerChannel.send(packet, subscriber.mAddress) > 0) {
+                mSentPacketCount++;
+            } else {
+                mDroppedPacketCount++;
+            }
+        } catch (IOException e) {
+            dropSubscriber(subscriber, e);
+        } finally {
+            packet.position(position);
+        }
+    }
+
+    private void dropSubscriber(Subscriber subscriber, IOException e) {
+        Log.w(TAG, "Dropping subscriber " + e.getMessage());
+        mSubscribers.remove(subscriber);
+        mSubscriberCount = mSubscribers.size();
+    }
+
+    @Override
+    protected void closeAll() {
+        mSubscribers.clear();
+        mSubscriberCount = 0;
+        try {
+            mServerChannel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public int getSubscriberCount() {
+        return mSubscriberCount;
+    }
+
+    public long getSentPacketCount() {
+        return mSentPacketCount;
+    }
+
+    /**
+     * Datagrams not sent because the socket send buffer was full.
+     */
+    public long getDroppedPacketCount() {
+        return mDroppedPacketCount;
+    }
+
+    /**
+     * Packets sent again in answer to a NACK.
+     */
+    public long getRetransmittedPacketCount() {
+        return mRetransmittedPacketCount;
+    }
+
+    /**
+     * Packets asked for that had already left the retransmit history.
+     */
+    public long getExpiredRequestCount() {
+        return mExpiredRequestCount;
+    }
+
+    /**
+     * Subscribers dropped because nothing came from them within the subscriber timeout.
+     */
+    public long getTimedOutSubscriberCount() {
+        return mTimedOutSubscriberCount;
+    }
+
+    protected static class Subscriber {
+        final SocketAddress mAddress;
+        long mLastSeenNanos;
+
+        Subscriber(SocketAddress address, long lastSeenNanos) {
+            mAddress = address;
+            mLastSeenNanos = lastSeenNanos;
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package com.wolfcstech.mediacodecdemo;
+
+/**
+ * The receiving end of a stream transport. Whatever the wire format, a transport delivers
+ * whole access units in pooled {@link FrameBuffer}s to one frame sink, so transports can be
+ * swapped or benchmarked against each other without touching their consumer.
+ */
+public interface StreamTransport {
+    String getName();
+
+    /**
+     * Deliver frames acquired from {@code pool} to {@code sink}, which takes over each
+     * frame's reference. Must be called before {@link #receive(String, int)}.
+     */
+    void setFrameSink(FrameBufferPool pool, FrameBufferPool.FrameReceivedListener sink);
+
+    void setConnectionListener(ConnectionSupervisor.Listener listener);
+
+    /**
+     * Mark every frame {@link LatencyTracer#STAGE_RECEIVED} in {@code tracer} as it comes off
+     * the wire, on the receiving thread.
+     */
+    void setLatencyTracer(LatencyTracer tracer);
+
+    /**
+     * Receive from the publisher at {@code host} and {@code port} on the calling thread until
+     * {@link #stop()}.
+     */
+    void receive(String host, int port);
+
+    /**
+     * Stop receiving, from any thread.
+     */
+    void stop();
+
+    long getReceivedFrameCount();
+
+    long getReceivedBytes();
+}
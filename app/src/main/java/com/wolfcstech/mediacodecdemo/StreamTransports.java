@@ -0,0 +1,59 @@
+package com.wolfcstech.mediacodecdemo;
+
+import java.util.Random;
+
+/**
+ * Creates matching publishers and transports by name, so the transport can be chosen at
+ * runtime.
+ */
+public final class StreamTransports {
+    public static final String TCP = "tcp";
+    /** TCP framing that carries each frame's presentation time, both ends must use it. */
+    public static final String TCP_TIMESTAMPED = "tcp-pts";
+    public static final String UDP = "udp";
+    public static final String LOOPBACK = "loopback";
+
+    // Must stay below the TCP sender's per subscriber queue limit. Past this many frames into
+    // a GOP a late subscriber gets the codec config and waits for a requested key frame.
+    private static final int GOP_CACHE_MAX_FRAMES = 48;
+    private static final long GOP_CACHE_MAX_BYTES = 4 * 1024 * 1024;
+    private static final int RTP_MAX_PACKET_SIZE = 1400;
+
+    private StreamTransports() {
+    }
+
+    /**
+     * @throws IllegalArgumentException for an unknown transport name.
+     */
+    public static StreamTransport createTransport(String name) {
+        if (TCP.equals(name)) {
+            return new TcpStreamTransport(TCP, false);
+        } else if (TCP_TIMESTAMPED.equals(name)) {
+            return new TcpStreamTransport(TCP_TIMESTAMPED, true);
+        } else if (UDP.equals(name)) {
+            return new UdpStreamTransport();
+        } else if (LOOPBACK.equals(name)) {
+            return new LoopbackStreamTransport();
+        }
+        throw new IllegalArgumentException("Unknown transport " + name);
+    }
+
+    /**
+     * @throws IllegalArgumentException for an unknown transport name.
+     */
+    public static StreamPublisher createPublisher(String name) {
+        if (TCP.equals(name) || TCP_TIMESTAMPED.equals(name)) {
+            TCPStreamSender sender = new TCPStreamSender();
+            sender.setGopCache(new GopCache(GOP_CACHE_MAX_FRAMES, GOP_CACHE_MAX_BYTES));
+            sender.setPresentationTimes(TCP_TIMESTAMPED.equals(name));
+            return sender;
+        } else if (UDP.equals(name)) {
+            StreamSender sender = new StreamSender();
+            sender.setPacketizer(new RtpH264Packetizer(RTP_MAX_PACKET_SIZE, new Random().nextInt()));
+            return sender;
+        } else if (LOOPBACK.equals(name)) {
+            return new LoopbackStreamPublisher();
+        }
+        throw new IllegalArgumentException("Unknown transport " + name);
+    }
+}
@@ -0,0 +1,66 @@
+package com.wolfcstech.mediacodecdemo;
+
+/**
+ * Checks the CRC-32C a {@link StreamSender} with {@link StreamSender#setChecksum(boolean)}
+ * ends every indexed datagram with, against the bytes that arrived. A packet that fails is
+ * reported and dropped, so parity or a NACK replaces it like a lost one; the others go
+ * downstream without their checksum. Data and parity packets alike carry one, so put it first,
+ * straight behind the {@link StreamReceiver}.
+ *
+ * <p>Not thread safe, meant to be called from the receiving thread only.
+ */
+public class StreamVerifier implements StreamReceiver.StreamDataReceivedListener {
+    private final StreamReceiver.StreamDataReceivedListener mDownstream;
+    private final Listener mListener;
+
+    private volatile long mCheckedCount = 0;
+    private volatile long mCorruptCount = 0;
+
+    public StreamVerifier(StreamReceiver.StreamDataReceivedListener downstream,
+                          Listener listener) {
+        mDownstream = downstream;
+        mListener = listener;
+    }
+
+    @Override
+    public void onStreamDataReceived(int index, byte[] data, int offset, int size) {
+        int payloadSize = size - StreamSender.CHECKSUM_SIZE;
+        mCheckedCount++;
+        if (payloadSize < 0 || checksum(index, data, offset, payloadSize)
+                != StreamHeader.read(data, offset + payloadSize)) {
+            mCorruptCount++;
+            mListener.onCorruption(index, size);
+            return;
+        }
+        mDownstream.onStreamDataReceived(index, data, offset, payloadSize);
+    }
+
+    /**
+     * The CRC-32C the sender computed over the big-endian index followed by the payload.
+     */
+    static int checksum(int index, byte[] data, int offset, int size) {
+        int crc = Crc32c.update(0, index >>> 24);
+        crc = Crc32c.update(crc, index >>> 16);
+        crc = Crc32c.update(crc, index >>> 8);
+        crc = Crc32c.update(crc, index);
+        return Crc32c.update(crc, data, offset, size);
+    }
+
+    public long getCheckedCount() {
+        return mCheckedCount;
+    }
+
+    /**
+     * Packets dropped because they arrived with different bytes than were sent.
+     */
+    public long getCorruptCount() {
+        return mCorruptCount;
+    }
+
+    public interface Listener {
+        /**
+         * Packet {@code index}, as it arrived, failed its checksum and was dropped.
+         */
+        void onCorruption(int index, int size);
+    }
+}
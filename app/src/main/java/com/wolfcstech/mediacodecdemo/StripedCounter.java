@@ -0,0 +1,60 @@
+package com.wolfcstech.mediacodecdemo;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A sum that many threads add to without contending, in the manner of
+ * {@code java.util.concurrent.atomic.LongAdder}, which needs API 24. Each thread adds to one of
+ * several cells, each on its own cache line, and {@link #sum()} adds the cells up.
+ *
+ * <p>Unlike LongAdder the cell is picked from the thread id rather than on contention, which
+ * suits the few long-lived threads of a media pipeline.
+ */
+public class StripedCounter {
+    // Longs per 64-byte cache line, so neighbouring cells never share a line.
+    private static final int CELL_STRIDE = 8;
+    private static final int MAX_CELLS = 64;
+
+    private final int mMask;
+    private final AtomicLongArray mCells;
+
+    public StripedCounter() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param cells how many cells to spread additions over, rounded up to a power of two.
+     */
+    public StripedCounter(int cells) {
+        int count = Integer.highestOneBit(Math.max(1, Math.min(cells, MAX_CELLS)) * 2 - 1);
+        mMask = count - 1;
+        mCells = new AtomicLongArray(count * CELL_STRIDE);
+    }
+
+    public void increment() {
+        add(1);
+    }
+
+    public void add(long x) {
+        // Threads are numbered in creation order, so consecutive ids land in different cells.
+        int cell = (int) Thread.currentThread().getId() & mMask;
+        mCells.getAndAdd(cell * CELL_STRIDE, x);
+    }
+
+    /**
+     * The current total. Additions made meanwhile may or may not be included.
+     */
+    public long sum() {
+        long sum = 0;
+        for (int cell = 0; cell <= mMask; cell++) {
+            sum += mCells.get(cell * CELL_STRIDE);
+        }
+        return sum;
+    }
+
+    public void reset() {
+        for (int cell = 0; cell <= mMask; cell++) {
+            mCells.set(cell * CELL_STRIDE, 0);
+        }
+    }
+}
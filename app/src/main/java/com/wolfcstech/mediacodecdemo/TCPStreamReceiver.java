@@ -1,9 +1,8 @@
 package com.wolfcstech.mediacodecdemo;
 
-import android.system.ErrnoException;
-import android.system.OsConstants;
 import android.util.Log;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -11,10 +10,13 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketAddress;
-import java.net.SocketException;
+import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
 
 /**
  * Created by hanpfei0306 on 17-7-18.
@@ -24,34 +26,121 @@ public class TCPStreamReceiver {
     private static final String TAG = "TCPStreamReceiver";
 
     private static final int MAX_UDP_PACKET_SIZE = 128 * 1024;
+    private static final int CHANNEL_RECV_BUF_SIZE = 2 * MAX_UDP_PACKET_SIZE;
 
     private volatile boolean mStop = false;
+    private final Object mStopLock = new Object();
+    private volatile Socket mSocket;
+    private volatile Selector mSelector;
+
+    private ConnectionSupervisor mSupervisor = new ConnectionSupervisor();
 
     private byte[] mRecvBuf = new byte[MAX_UDP_PACKET_SIZE];
     private byte[] mTmpSwapBuf = new byte[MAX_UDP_PACKET_SIZE];
+    private final ByteBuffer mRecvView = ByteBuffer.wrap(mRecvBuf);
+
+    private boolean mUseSocketChannel = false;
+    private ByteBuffer mChannelRecvBuf;
+    private ByteBuffer mFrameView;
 
     private StreamReceivedListener mDataReceivedListener;
+    private FrameBufferPool mFrameBufferPool;
+    private FrameBufferPool.FrameReceivedListener mFrameReceivedListener;
+    private AccessUnitAssembler mAccessUnitAssembler;
+    private int mHeaderSize = StreamHeader.SIZE;
 
     private long mTotalRecvBytes = 0;
+    private volatile long mDroppedFrameCount = 0;
+    private final MetricsRegistry.Meter mReceivedBytes =
+            MetricsRegistry.getDefault().meter("tcp.received.bytes");
+    private final MetricsRegistry.Meter mReceivedFrames =
+            MetricsRegistry.getDefault().meter("tcp.received.frames");
 
     public void setDataReceivedListener(StreamReceivedListener dataReceivedListener) {
         mDataReceivedListener = dataReceivedListener;
     }
 
+    /**
+     * Copy each frame into a buffer from {@code pool} and hand it to {@code listener}, so the
+     * listener may keep the frame after the callback returns. A frame that arrives while
+     * every buffer is out is dropped, the receive thread never waits on the listener. Takes
+     * precedence over the {@link StreamReceivedListener}.
+     */
+    public void setFrameReceivedListener(FrameBufferPool pool,
+                                         FrameBufferPool.FrameReceivedListener listener) {
+        mFrameBufferPool = pool;
+        mFrameReceivedListener = listener;
+    }
+
+    /**
+     * Treat the payloads as an Annex-B byte stream and let {@code assembler} regroup them into
+     * access units, instead of trusting every length-prefixed payload to be one. Takes
+     * precedence over the other listeners.
+     */
+    public void setAccessUnitAssembler(AccessUnitAssembler assembler) {
+        mAccessUnitAssembler = assembler;
+    }
+
+    /**
+     * Expect each length to be followed by the frame's presentation time, as sent by a
+     * {@link TCPStreamSender} with {@link TCPStreamSender#setPresentationTimes(boolean)}.
+     * Frames then carry the sender's time instead of none.
+     */
+    public void setPresentationTimes(boolean presentationTimes) {
+        mHeaderSize = presentationTimes ? StreamHeader.TIMESTAMPED_SIZE : StreamHeader.SIZE;
+    }
+
+    /**
+     * Replace the default supervisor, for other timeouts, backoff or a health listener.
+     */
+    public void setConnectionSupervisor(ConnectionSupervisor supervisor) {
+        mSupervisor = supervisor;
+    }
+
+    public ConnectionSupervisor getConnectionSupervisor() {
+        return mSupervisor;
+    }
+
+    /**
+     * Stop receiving from any thread, interrupting a pending connect, read or backoff.
+     */
     public void stop() {
         mStop = true;
+        synchronized (mStopLock) {
+            mStopLock.notifyAll();
+        }
+        Selector selector = mSelector;
+        if (selector != null) {
+            selector.wakeup();
+        }
+        Socket socket = mSocket;
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Receive through a {@link SocketChannel} into a direct buffer, parsing frames in place
+     * instead of copying them through the intermediate arrays.
+     */
+    public void setUseSocketChannel(boolean useSocketChannel) {
+        mUseSocketChannel = useSocketChannel;
     }
 
     private void connectAndRequestStream(SocketAddress socketAddress) throws IOException {
-        Socket client = null;
-        try {
-            client = new Socket();
-            client.setSoTimeout(0);
-        } catch (SocketException e) {
-            e.printStackTrace();
+        Socket client = new Socket();
+        mSocket = client;
+        if (mStop) {
+            client.close();
+            return;
         }
-
-        client.connect(socketAddress);
+        client.setSoTimeout(mSupervisor.getReadTimeoutMs());
+        client.connect(socketAddress, mSupervisor.getConnectTimeoutMs());
+        mSupervisor.onConnected();
 
         String sendStr = "Hello! I'm Client";
         byte[] sendBuf = sendStr.getBytes();
@@ -63,44 +152,46 @@ public class TCPStreamReceiver {
 
         inputStream = client.getInputStream();
 
-        boolean remainBytes = false;
         int bytesRead = 0;
         try {
             while (!mStop) {
-                int readcount = 0;
-                if (!remainBytes) {
+                int readcount;
+                // Whatever is left of the last read may not even hold the next header.
+                while (bytesRead < mHeaderSize) {
                     readcount = inputStream.read(mRecvBuf, bytesRead, MAX_UDP_PACKET_SIZE - bytesRead);
-                    bytesRead = readcount;
+                    if (readcount < 0) {
+                        throw new EOFException("Server closed the stream");
+                    }
+                    bytesRead += readcount;
                 }
 
-                int bytesToRead = getFrameLength(mRecvBuf, 0) + 4;
-                if (bytesToRead < 0 || bytesToRead > MAX_UDP_PACKET_SIZE) {
-                    break;
+                int bytesToRead = StreamHeader.read(mRecvBuf, 0) + mHeaderSize;
+                if (bytesToRead < mHeaderSize || bytesToRead > MAX_UDP_PACKET_SIZE) {
+                    throw new IOException("Invalid frame length " + bytesToRead);
                 }
-                Log.i(TAG, "bytesToRead " + bytesToRead);
 
                 while (bytesRead < bytesToRead) {
                     readcount = inputStream.read(mRecvBuf, bytesRead, bytesToRead - bytesRead);
+                    if (readcount < 0) {
+                        throw new EOFException("Server closed the stream");
+                    }
                     bytesRead += readcount;
                 }
 
-                mTotalRecvBytes += bytesToRead - 4;
-                Log.i(TAG, "bytesRead " + bytesRead + " mTotalRecvBytes " + mTotalRecvBytes);
-                if (mDataReceivedListener != null) {
-                    ByteBuffer byteBuffer = ByteBuffer.wrap(mRecvBuf, 4, bytesToRead - 4);
-                    mDataReceivedListener.onDataReceived(byteBuffer);
-
-                    if (bytesRead > bytesToRead) {
-                        System.arraycopy(mRecvBuf, bytesToRead, mTmpSwapBuf, 0, bytesRead - bytesToRead);
-                        System.arraycopy(mTmpSwapBuf, 0, mRecvBuf, 0, bytesRead - bytesToRead);
+                mTotalRecvBytes += bytesToRead - mHeaderSize;
+                if (mDataReceivedListener != null || mFrameReceivedListener != null
+                        || mAccessUnitAssembler != null) {
+                    mRecvView.limit(bytesToRead);
+                    mRecvView.position(mHeaderSize);
+                    dispatchFrame(mRecvView, readPresentationTimeUs(mRecvView, 0));
+                }
 
-                        bytesRead = bytesRead - bytesToRead;
-                        remainBytes = true;
-                    } else {
-                        bytesRead = 0;
-                        remainBytes = false;
-                    }
+                // Consumed or not, the frame is done with, move the next one to the front.
+                if (bytesRead > bytesToRead) {
+                    System.arraycopy(mRecvBuf, bytesToRead, mTmpSwapBuf, 0, bytesRead - bytesToRead);
+                    System.arraycopy(mTmpSwapBuf, 0, mRecvBuf, 0, bytesRead - bytesToRead);
                 }
+                bytesRead -= bytesToRead;
 //                    String recvStr = new String(mRecvBuf, 0, readcount);
 //                    Log.i(TAG, "收到:" + recvStr);
             }
@@ -119,6 +210,7 @@ public class TCPStreamReceiver {
                     e.printStackTrace();
                 }
             }
+            mSocket = null;
             try {
                 client.close();
             } catch (IOException e) {
@@ -128,44 +220,188 @@ public class TCPStreamReceiver {
 
     }
 
-    private boolean recover(IOException e) {
-        boolean recover = false;
-        Throwable cause = e.getCause();
-        if (cause instanceof ErrnoException) {
-            ErrnoException errnoException = (ErrnoException) cause;
-            if (errnoException.errno == OsConstants.ECONNRESET) {
-                recover = true;
-            }
+    private void connectAndRequestStreamWithChannel(SocketAddress socketAddress) throws IOException {
+        if (mChannelRecvBuf == null) {
+            mChannelRecvBuf = ByteBuffer.allocateDirect(CHANNEL_RECV_BUF_SIZE);
+            mChannelRecvBuf.order(ByteOrder.BIG_ENDIAN);
+            // Shares content with the receive buffer, the listener only sees the current frame.
+            mFrameView = mChannelRecvBuf.asReadOnlyBuffer();
         }
-        return recover;
-    }
+        ByteBuffer recvBuf = mChannelRecvBuf;
+        recvBuf.clear();
 
-    public void requestStreamData(String serverAddr, int port) {
+        SocketChannel channel = SocketChannel.open();
+        Selector selector = null;
+        mSocket = channel.socket();
         try {
-            InetAddress addr = InetAddress.getByName(serverAddr);
-            SocketAddress socketAddress = new InetSocketAddress(addr, port);
+            if (mStop) {
+                return;
+            }
+            // Connect blocking for the timeout, stop() interrupts it by closing the socket.
+            channel.socket().connect(socketAddress, mSupervisor.getConnectTimeoutMs());
+            mSupervisor.onConnected();
+            channel.write(ByteBuffer.wrap("Hello! I'm Client".getBytes()));
+
+            channel.configureBlocking(false);
+            selector = Selector.open();
+            channel.register(selector, SelectionKey.OP_READ);
+            mSelector = selector;
+            int readTimeoutMs = mSupervisor.getReadTimeoutMs();
             while (!mStop) {
+                if (selector.select(readTimeoutMs) == 0) {
+                    if (mStop) {
+                        break;
+                    }
+                    throw new SocketTimeoutException("Nothing received for " + readTimeoutMs + " ms");
+                }
+                selector.selectedKeys().clear();
+                int read;
+                while ((read = channel.read(recvBuf)) > 0) {
+                    recvBuf.flip();
+                    boolean validStream = parseFrames(recvBuf);
+                    recvBuf.compact();
+                    if (!validStream) {
+                        throw new IOException("Invalid frame length");
+                    }
+                }
+                if (read < 0) {
+                    throw new EOFException("Server closed the stream");
+                }
+            }
+        } finally {
+            mSelector = null;
+            mSocket = null;
+            if (selector != null) {
                 try {
-                    mTotalRecvBytes = 0;
-                    connectAndRequestStream(socketAddress);
+                    selector.close();
                 } catch (IOException e) {
                     e.printStackTrace();
-                    if (!recover(e)) {
-                        mStop = true;
-                    }
                 }
             }
-        } catch (UnknownHostException e) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Deliver every complete frame in {@code recvBuf}, leaving its position at the first
+     * byte of the trailing partial frame.
+     *
+     * @return false if a frame header carries an invalid length.
+     */
+    private boolean parseFrames(ByteBuffer recvBuf) {
+        while (recvBuf.remaining() >= mHeaderSize) {
+            int frameStart = recvBuf.position();
+            int frameLength = StreamHeader.read(recvBuf, frameStart);
+            if (frameLength < 0 || frameLength > MAX_UDP_PACKET_SIZE - mHeaderSize) {
+                return false;
+            }
+            int frameEnd = frameStart + mHeaderSize + frameLength;
+            if (frameEnd > recvBuf.limit()) {
+                break;
+            }
+
+            mTotalRecvBytes += frameLength;
+            mFrameView.limit(frameEnd);
+            mFrameView.position(frameStart + mHeaderSize);
+            dispatchFrame(mFrameView, readPresentationTimeUs(recvBuf, frameStart));
+            recvBuf.position(frameEnd);
         }
+        return true;
+    }
+
+    private long readPresentationTimeUs(ByteBuffer buffer, int frameStart) {
+        return mHeaderSize == StreamHeader.TIMESTAMPED_SIZE
+                ? StreamHeader.readPresentationTimeUs(buffer, frameStart) : 0;
     }
 
-    private int getFrameLength(byte[] data, int offset) {
-        ByteBuffer bb = ByteBuffer.wrap(data, offset, 4);
-        bb.order(ByteOrder.BIG_ENDIAN);
-        bb.asIntBuffer();
-        int frameLength = bb.getInt();
+    private void dispatchFrame(ByteBuffer frame, long presentationTimeUs) {
+        mReceivedBytes.mark(frame.remaining());
+        mReceivedFrames.mark();
+        if (mAccessUnitAssembler != null) {
+            mAccessUnitAssembler.feed(frame, presentationTimeUs);
+        } else if (mFrameReceivedListener != null && mFrameBufferPool != null) {
+            FrameBuffer frameBuffer = mFrameBufferPool.tryAcquire(frame.remaining());
+            if (frameBuffer == null) {
+                mDroppedFrameCount++;
+                return;
+            }
+            ByteBuffer data = frameBuffer.data();
+            data.put(frame);
+            data.flip();
+            frameBuffer.setPresentationTimeUs(presentationTimeUs);
+            mFrameReceivedListener.onFrameReceived(frameBuffer);
+        } else if (mDataReceivedListener != null) {
+            mDataReceivedListener.onDataReceived(frame);
+        }
+    }
 
-        return frameLength;
+    /**
+     * Frames dropped because the frame listener held every pooled buffer.
+     */
+    public long getDroppedFrameCount() {
+        return mDroppedFrameCount;
+    }
+
+    /**
+     * Receive until {@link #stop()}, reconnecting with backoff whenever the connection cannot
+     * be established or is lost.
+     */
+    public void requestStreamData(String serverAddr, int port) {
+        ConnectionSupervisor supervisor = mSupervisor;
+        while (!mStop) {
+            supervisor.onConnecting();
+            try {
+                // Resolve on every attempt, the server may have moved.
+                SocketAddress socketAddress = new InetSocketAddress(InetAddress.getByName(serverAddr), port);
+                mTotalRecvBytes = 0;
+                if (mAccessUnitAssembler != null) {
+                    // Whatever was cut off by the last connection cannot be completed.
+                    mAccessUnitAssembler.reset();
+                }
+                if (mUseSocketChannel) {
+                    connectAndRequestStreamWithChannel(socketAddress);
+                } else {
+                    connectAndRequestStream(socketAddress);
+                }
+                if (mStop) {
+                    break;
+                }
+                throw new EOFException("Connection ended");
+            } catch (UnknownHostException e) {
+                Log.w(TAG, "Cannot resolve " + serverAddr);
+                backOff(supervisor.onDisconnected());
+            } catch (IOException e) {
+                if (mStop) {
+                    break;
+                }
+                long delayMs = supervisor.onDisconnected();
+                Log.w(TAG, "Connection to " + serverAddr + ":" + port + " lost (" + e.getMessage()
+                        + "), retrying in " + delayMs + " ms");
+                backOff(delayMs);
+            }
+        }
+        supervisor.onStopped();
+    }
+
+    private void backOff(long delayMs) {
+        long deadline = System.currentTimeMillis() + delayMs;
+        synchronized (mStopLock) {
+            long remaining = delayMs;
+            while (!mStop && remaining > 0) {
+                try {
+                    mStopLock.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    mStop = true;
+                    return;
+                }
+                remaining = deadline - System.currentTimeMillis();
+            }
+        }
     }
 
     public interface StreamReceivedListener {
@@ -0,0 +1,328 @@
+package com.wolfcstech.mediacodecdemo;
+
+import android.media.MediaCodec;
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+/**
+ * Publishes frames to {@link TCPStreamReceiver}s using its 4-byte big-endian length prefixed
+ * framing, optionally followed by the presentation time, see {@link StreamHeader}. Header and
+ * payload go out in one gathering write, straight from the frame buffer.
+ * A subscriber that falls behind by more than its queue limit misses frames rather than
+ * holding back the others: its backlog is dropped and it resumes at a key frame, since a
+ * P-frame after a gap would only decode to garbage.
+ *
+ * <p>With a {@link GopCache} a subscriber that connects mid-stream is first sent the codec
+ * config and the current GOP, so it can start decoding right away.
+ */
+public class TCPStreamSender extends SelectorStreamServer {
+    private static final String TAG = "TCPStreamSender";
+
+    private static final int MAX_PENDING_FRAMES = 64;
+
+    private ServerSocketChannel mServerChannel;
+    private final ArrayList<Subscriber> mSubscribers = new ArrayList<>();
+    private final ByteBuffer mDiscardBuf = ByteBuffer.allocateDirect(1024);
+    private GopCache mGopCache;
+    private int mHeaderSize = StreamHeader.SIZE;
+
+    private volatile int mSubscriberCount = 0;
+    private volatile long mSentFrameCount = 0;
+    private volatile long mSentBytes = 0;
+    private volatile long mDroppedFrameCount = 0;
+
+    public TCPStreamSender() {
+        super(TAG, 64);
+    }
+
+    /**
+     * Replay {@code cache} to new subscribers. Its frame limit must stay below the per
+     * subscriber queue limit of 64 frames. Must be called before {@link #start(int)}.
+     */
+    public void setGopCache(GopCache cache) {
+        mGopCache = cache;
+    }
+
+    /**
+     * Follow each length with the frame's 8-byte presentation time. Receivers must be set up
+     * to expect it with {@link TCPStreamReceiver#setPresentationTimes(boolean)}. Must be
+     * called before {@link #start(int)}.
+     */
+    public void setPresentationTimes(boolean presentationTimes) {
+        mHeaderSize = presentationTimes ? StreamHeader.TIMESTAMPED_SIZE : StreamHeader.SIZE;
+    }
+
+    @Override
+    protected void openChannel(int port) throws IOException {
+        mServerChannel = ServerSocketChannel.open();
+        mServerChannel.socket().setReuseAddress(true);
+        mServerChannel.socket().bind(new InetSocketAddress(port));
+        mServerChannel.configureBlocking(false);
+        mServerChannel.register(mSelector, SelectionKey.OP_ACCEPT);
+    }
+
+    /**
+     * The port actually bound, useful when started on port 0.
+     */
+    @Override
+    public int getLocalPort() {
+        return mServerChannel.socket().getLocalPort();
+    }
+
+    @Override
+    protected void onSelected(SelectionKey key) throws IOException {
+        if (key.isAcceptable()) {
+            SocketChannel channel = mServerChannel.accept();
+            if (channel == null) {
+                return;
+            }
+            Subscriber subscriber = new Subscriber(channel);
+            try {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                subscriber.mKey = channel.register(mSelector, SelectionKey.OP_READ, subscriber);
+            } catch (IOException e) {
+                subscriber.close();
+                throw e;
+            }
+            mSubscribers.add(subscriber);
+            mSubscriberCount = mSubscribers.size();
+            onSubscriberAdded(subscriber);
+            return;
+        }
+
+        Subscriber subscriber = (Subscriber) key.attachment();
+        try {
+            if (key.isReadable()) {
+                // Only the greeting and the close are expected from a receiver.
+                mDiscardBuf.clear();
+                if (subscriber.mChannel.read(mDiscardBuf) < 0) {
+                    removeSubscriber(subscriber);
+                    return;
+                }
+            }
+            if (key.isValid() && key.isWritable()) {
+                flush(subscriber);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Dropping subscriber " + e.getMessage());
+            removeSubscriber(subscriber);
+        }
+    }
+
+    /**
+     * Hook for a freshly connected subscriber, before any frame is queued for it. Sends the
+     * cached GOP, or asks for a key frame when there is none to send. With a cache whose GOP
+     * cannot be sent, the subscriber gets the codec config alone and skips everything up to
+     * that key frame.
+     */
+    protected void onSubscriberAdded(Subscriber subscriber) {
+        GopCache cache = mGopCache;
+        if (cache == null) {
+            requestSyncFrame();
+            return;
+        }
+        if (cache.isComplete() && cache.size() + 1 <= MAX_PENDING_FRAMES) {
+            replayGop(subscriber, cache);
+            return;
+        }
+        subscriber.mAwaitingKeyFrame = true;
+        if (cache.getConfig() != null) {
+            enqueue(subscriber, cache.getConfig());
+        }
+        requestSyncFrame();
+    }
+
+    private void replayGop(Subscriber subscriber, GopCache cache) {
+        enqueue(subscriber, cache.getConfig());
+        for (int i = 0; i < cache.size() && subscriber.mChannel.isOpen(); i++) {
+            enqueue(subscriber, cache.get(i));
+        }
+    }
+
+    @Override
+    protected void onFrame(FrameBuffer frame) {
+        if (mGopCache != null) {
+            mGopCache.add(frame);
+        }
+        for (int i = mSubscribers.size() - 1; i >= 0; i--) {
+            enqueue(mSubscribers.get(i), frame);
+        }
+    }
+
+    /**
+     * Queue a frame for one subscriber and try to write it right away.
+     */
+    protected void enqueue(Subscriber subscriber, FrameBuffer frame) {
+        int flags = frame.getFlags();
+        if (subscriber.mAwaitingKeyFrame) {
+            if ((flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0) {
+                subscriber.mAwaitingKeyFrame = false;
+            } else if ((flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
+                mDroppedFrameCount++;
+                return;
+            }
+        }
+        if (subscriber.mPending.size() >= MAX_PENDING_FRAMES) {
+            dropBacklog(subscriber);
+            GopCache cache = mGopCache;
+            // Config, GOP and a frame left partly written must fit in the queue.
+            if (cache != null && cache.isComplete() && cache.size() + 2 <= MAX_PENDING_FRAMES) {
+                // onFrame() cached this frame already, the GOP brings the subscriber up to it.
+                replayGop(subscriber, cache);
+                return;
+            }
+            subscriber.mAwaitingKeyFrame = true;
+            requestSyncFrame();
+            enqueue(subscriber, frame);
+            return;
+        }
+        subscriber.mPending.add(frame.retain());
+        try {
+            flush(subscriber);
+        } catch (IOException e) {
+            Log.w(TAG, "Dropping subscriber " + e.getMessage());
+            removeSubscriber(subscriber);
+        }
+    }
+
+    private void flush(Subscriber subscriber) throws IOException {
+        FrameBuffer frame;
+        while ((frame = subscriber.mPending.peek()) != null) {
+            ByteBuffer data = frame.data();
+            int start = data.position();
+            int size = data.remaining();
+            if (!subscriber.mFrameStarted) {
+                subscriber.mHeader.clear();
+                subscriber.mHeader.limit(mHeaderSize);
+                subscriber.mHeader.putInt(0, size);
+                if (mHeaderSize == StreamHeader.TIMESTAMPED_SIZE) {
+                    subscriber.mHeader.putLong(StreamHeader.SIZE, frame.getPresentationTimeUs());
+                }
+                subscriber.mPayloadSent = 0;
+                subscriber.mFrameStarted = true;
+            }
+
+            // The frame is shared by all subscribers, only move its position for this write.
+            data.position(start + subscriber.mPayloadSent);
+            subscriber.mVector[1] = data;
+            long written;
+            try {
+                written = subscriber.mChannel.write(subscriber.mVector);
+            } finally {
+                subscriber.mPayloadSent = data.position() - start;
+                data.position(start);
+                subscriber.mVector[1] = null;
+            }
+            mSentBytes += written;
+
+            if (subscriber.mHeader.hasRemaining() || subscriber.mPayloadSent < size) {
+                // Socket buffer full, resume once it drains.
+                subscriber.mKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                return;
+            }
+            subscriber.mPending.poll();
+            subscriber.mFrameStarted = false;
+            frame.release();
+            mSentFrameCount++;
+        }
+        subscriber.mKey.interestOps(SelectionKey.OP_READ);
+    }
+
+    /**
+     * Drop every queued frame but one already partly written, which has to be finished to
+     * keep the framing intact.
+     */
+    private void dropBacklog(Subscriber subscriber) {
+        FrameBuffer started = subscriber.mFrameStarted ? subscriber.mPending.poll() : null;
+        FrameBuffer frame;
+        while ((frame = subscriber.mPending.poll()) != null) {
+            frame.release();
+            mDroppedFrameCount++;
+        }
+        if (started != null) {
+            subscriber.mPending.add(started);
+        }
+    }
+
+    private void removeSubscriber(Subscriber subscriber) {
+        mSubscribers.remove(subscriber);
+        mSubscriberCount = mSubscribers.size();
+        subscriber.close();
+    }
+
+    @Override
+    protected void closeAll() {
+        if (mGopCache != null) {
+            mGopCache.clear();
+        }
+        for (Subscriber subscriber : mSubscribers) {
+            subscriber.close();
+        }
+        mSubscribers.clear();
+        mSubscriberCount = 0;
+        try {
+            mServerChannel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public int getSubscriberCount() {
+        return mSubscriberCount;
+    }
+
+    public long getSentFrameCount() {
+        return mSentFrameCount;
+    }
+
+    public long getSentBytes() {
+        return mSentBytes;
+    }
+
+    /**
+     * Frames skipped for subscribers that had too many frames queued, including the frames
+     * skipped until the key frame they resumed at.
+     */
+    public long getDroppedFrameCount() {
+        return mDroppedFrameCount;
+    }
+
+    protected static class Subscriber {
+        final SocketChannel mChannel;
+        final ArrayDeque<FrameBuffer> mPending = new ArrayDeque<>();
+        final ByteBuffer mHeader = ByteBuffer.allocateDirect(StreamHeader.TIMESTAMPED_SIZE).order(ByteOrder.BIG_ENDIAN);
+        final ByteBuffer[] mVector = new ByteBuffer[2];
+        SelectionKey mKey;
+        boolean mFrameStarted = false;
+        int mPayloadSent = 0;
+        // Fell behind and waits for a key frame to resume at.
+        boolean mAwaitingKeyFrame = false;
+
+        Subscriber(SocketChannel channel) {
+            mChannel = channel;
+            mVector[0] = mHeader;
+        }
+
+        void close() {
+            FrameBuffer frame;
+            while ((frame = mPending.poll()) != null) {
+                frame.release();
+            }
+            try {
+                mChannel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package com.wolfcstech.mediacodecdemo;
+
+/**
+ * Length-prefixed frames from a {@link TCPStreamSender}, regrouped into access units and
+ * reconnected under a {@link ConnectionSupervisor}. With presentation times in the framing
+ * each access unit keeps the sender's.
+ */
+public class TcpStreamTransport extends BaseStreamTransport {
+    private static final int ACCESS_UNIT_CAPACITY = 128 * 1024;
+
+    private final TCPStreamReceiver mReceiver = new TCPStreamReceiver();
+
+    public TcpStreamTransport() {
+        this(StreamTransports.TCP, false);
+    }
+
+    TcpStreamTransport(String name, boolean presentationTimes) {
+        super(name);
+        mReceiver.setUseSocketChannel(true);
+        mReceiver.setPresentationTimes(presentationTimes);
+    }
+
+    public ConnectionSupervisor getConnectionSupervisor() {
+        return mReceiver.getConnectionSupervisor();
+    }
+
+    @Override
+    public void receive(String host, int port) {
+        AccessUnitAssembler assembler = new AccessUnitAssembler(mPool, this, ACCESS_UNIT_CAPACITY);
+        // TCPStreamSender sends every encoder output buffer as one message.
+        assembler.setFlushOnChunkEnd(true);
+        mReceiver.setAccessUnitAssembler(assembler);
+        mReceiver.getConnectionSupervisor().setListener(mConnectionListener);
+        mReceiver.requestStreamData(host, port);
+        assembler.reset();
+    }
+
+    @Override
+    public void stop() {
+        mReceiver.stop();
+    }
+}
@@ -0,0 +1,37 @@
+package com.wolfcstech.mediacodecdemo;
+
+/**
+ * RTP/H.264 datagrams from a {@link StreamSender} in RTP mode, received in batches and
+ * depacketized into access units, resubscribing under a {@link ConnectionSupervisor} after a
+ * socket error.
+ */
+public class UdpStreamTransport extends BaseStreamTransport {
+    private static final int RECEIVE_BATCH_SIZE = 32;
+    private static final int RECEIVE_BUFFER_SIZE = 2 * 1024 * 1024;
+
+    private final StreamReceiver mReceiver = new StreamReceiver();
+    private RtpH264Depacketizer mDepacketizer;
+
+    public UdpStreamTransport() {
+        super(StreamTransports.UDP);
+        mReceiver.setBatchReceive(RECEIVE_BATCH_SIZE, RECEIVE_BUFFER_SIZE);
+    }
+
+    public RtpH264Depacketizer getDepacketizer() {
+        return mDepacketizer;
+    }
+
+    @Override
+    public void receive(String host, int port) {
+        mDepacketizer = new RtpH264Depacketizer(mPool, this);
+        mReceiver.setDepacketizer(mDepacketizer);
+        // Datagrams have no connection, subscribing is as connected as it gets.
+        mReceiver.getConnectionSupervisor().setListener(mConnectionListener);
+        mReceiver.requestStreamData(host, port);
+    }
+
+    @Override
+    public void stop() {
+        mReceiver.stop();
+    }
+}
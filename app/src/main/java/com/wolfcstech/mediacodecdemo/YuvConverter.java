@@ -0,0 +1,262 @@
+package com.wolfcstech.mediacodecdemo;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Converts NV21 camera frames to the planar (I420) or semi-planar (NV12) layout an encoder
+ * expects, padding rows to the encoder's stride and planes to its slice height.
+ *
+ * <p>The frame is split into bands of rows that run in parallel on a fork-join pool. The band
+ * tasks are created once and reinitialized for every frame, so converting allocates nothing.
+ * A direct destination, such as a codec input buffer, is written in place: luma rows are bulk
+ * copied on the calling thread and the bands fill in the chroma planes. Width and height must
+ * be even.
+ */
+public class YuvConverter {
+    public static final int FORMAT_I420 = 0;
+    public static final int FORMAT_NV12 = 1;
+
+    private final int mWidth;
+    private final int mHeight;
+    private final int mStride;
+    private final int mSliceHeight;
+    private final int mOutputFormat;
+
+    private final ForkJoinPool mPool;
+    private final boolean mOwnsPool;
+    private final BandTask[] mBands;
+    private final FrameTask mFrameTask;
+
+    private byte[] mSrc;
+    private byte[] mDst;
+    private int mDstOffset;
+    private ByteBuffer mDstBuffer;
+
+    public YuvConverter(int width, int height, int outputFormat) {
+        this(width, height, width, height, outputFormat, null,
+                Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param pool the pool to run bands on, or null to create one sized to {@code bandCount}.
+     * @param bandCount how many bands of rows the frame is split into.
+     */
+    public YuvConverter(int width, int height, int stride, int sliceHeight, int outputFormat,
+                        ForkJoinPool pool, int bandCount) {
+        if ((width & 1) != 0 || (height & 1) != 0) {
+            throw new IllegalArgumentException("width and height must be even");
+        }
+        if (stride < width || sliceHeight < height) {
+            throw new IllegalArgumentException("stride and sliceHeight must cover the frame");
+        }
+        mWidth = width;
+        mHeight = height;
+        mStride = stride;
+        mSliceHeight = sliceHeight;
+        mOutputFormat = outputFormat;
+
+        int chromaRows = height / 2;
+        bandCount = Math.max(1, Math.min(bandCount, chromaRows));
+        mOwnsPool = pool == null;
+        mPool = pool != null ? pool : new ForkJoinPool(bandCount);
+        mBands = new BandTask[bandCount];
+        for (int i = 0; i < bandCount; i++) {
+            int chromaStart = chromaRows * i / bandCount;
+            int chromaEnd = chromaRows * (i + 1) / bandCount;
+            mBands[i] = new BandTask(chromaStart, chromaEnd);
+        }
+        mFrameTask = new FrameTask();
+    }
+
+    public int getInputSize() {
+        return mWidth * mHeight * 3 / 2;
+    }
+
+    public int getOutputSize() {
+        return mStride * mSliceHeight * 3 / 2;
+    }
+
+    /**
+     * Convert {@code nv21} into {@code out}, which must hold {@link #getOutputSize()} bytes.
+     * Padding bytes are left untouched. Not reentrant.
+     */
+    public void convert(byte[] nv21, byte[] out) {
+        if (nv21.length < getInputSize() || out.length < getOutputSize()) {
+            throw new IllegalArgumentException("buffer too small");
+        }
+        convert(nv21, out, 0, null);
+    }
+
+    /**
+     * Convert {@code nv21} into {@code out} from its position on, which must leave room for
+     * {@link #getOutputSize()} bytes. The position and limit of {@code out} are left as they
+     * were, padding bytes are left untouched. Not reentrant.
+     */
+    public void convert(byte[] nv21, ByteBuffer out) {
+        if (nv21.length < getInputSize() || out.remaining() < getOutputSize()) {
+            throw new IllegalArgumentException("buffer too small");
+        }
+        if (out.hasArray()) {
+            convert(nv21, out.array(), out.arrayOffset() + out.position(), null);
+            return;
+        }
+        int base = out.position();
+        int width = mWidth;
+        if (mStride == width) {
+            out.put(nv21, 0, width * mHeight);
+        } else {
+            for (int row = 0; row < mHeight; row++) {
+                out.position(base + row * mStride);
+                out.put(nv21, row * width, width);
+            }
+        }
+        out.position(base);
+        convert(nv21, null, base, out);
+    }
+
+    private void convert(byte[] nv21, byte[] out, int outOffset, ByteBuffer outBuffer) {
+        mSrc = nv21;
+        mDst = out;
+        mDstOffset = outOffset;
+        mDstBuffer = outBuffer;
+        if (mBands.length == 1) {
+            mBands[0].compute();
+        } else {
+            mFrameTask.reinitialize();
+            mPool.invoke(mFrameTask);
+        }
+        mSrc = null;
+        mDst = null;
+        mDstBuffer = null;
+    }
+
+    /**
+     * Shut down the pool if the converter created it.
+     */
+    public void release() {
+        if (mOwnsPool) {
+            mPool.shutdown();
+        }
+    }
+
+    private class FrameTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected void compute() {
+            for (BandTask band : mBands) {
+                band.reinitialize();
+            }
+            ForkJoinTask.invokeAll(mBands);
+        }
+    }
+
+    private class BandTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int mChromaStart;
+        private final int mChromaEnd;
+
+        BandTask(int chromaStart, int chromaEnd) {
+            mChromaStart = chromaStart;
+            mChromaEnd = chromaEnd;
+        }
+
+        @Override
+        protected void compute() {
+            if (mDstBuffer != null) {
+                convertChroma(mSrc, mDstBuffer, mDstOffset);
+            } else {
+                convertBand(mSrc, mDst, mDstOffset);
+            }
+        }
+
+        void convertBand(byte[] src, byte[] dst, int dstOffset) {
+            int width = mWidth;
+            int stride = mStride;
+
+            // Two luma rows for every chroma row.
+            int lumaStart = mChromaStart * 2;
+            int lumaEnd = mChromaEnd * 2;
+            if (stride == width) {
+                System.arraycopy(src, lumaStart * width, dst, dstOffset + lumaStart * width,
+                        (lumaEnd - lumaStart) * width);
+            } else {
+                for (int row = lumaStart; row < lumaEnd; row++) {
+                    System.arraycopy(src, row * width, dst, dstOffset + row * stride, width);
+                }
+            }
+
+            int srcChroma = width * mHeight;
+            int dstChroma = dstOffset + stride * mSliceHeight;
+            if (mOutputFormat == FORMAT_NV12) {
+                for (int row = mChromaStart; row < mChromaEnd; row++) {
+                    int s = srcChroma + row * width;
+                    int d = dstChroma + row * stride;
+                    int end = s + width;
+                    // NV21 interleaves V before U, NV12 U before V.
+                    while (s < end) {
+                        dst[d] = src[s + 1];
+                        dst[d + 1] = src[s];
+                        s += 2;
+                        d += 2;
+                    }
+                }
+            } else {
+                int chromaStride = stride / 2;
+                int dstU = dstChroma;
+                int dstV = dstChroma + chromaStride * (mSliceHeight / 2);
+                int chromaWidth = width / 2;
+                for (int row = mChromaStart; row < mChromaEnd; row++) {
+                    int s = srcChroma + row * width;
+                    int u = dstU + row * chromaStride;
+                    int v = dstV + row * chromaStride;
+                    for (int x = 0; x < chromaWidth; x++) {
+                        dst[v + x] = src[s + 2 * x];
+                        dst[u + x] = src[s + 2 * x + 1];
+                    }
+                }
+            }
+        }
+
+        /**
+         * The chroma rows of the band, with absolute puts so the bands can share the buffer.
+         */
+        void convertChroma(byte[] src, ByteBuffer dst, int base) {
+            int width = mWidth;
+            int stride = mStride;
+            int srcChroma = width * mHeight;
+            int dstChroma = base + stride * mSliceHeight;
+            if (mOutputFormat == FORMAT_NV12) {
+                for (int row = mChromaStart; row < mChromaEnd; row++) {
+                    int s = srcChroma + row * width;
+                    int d = dstChroma + row * stride;
+                    int end = s + width;
+                    while (s < end) {
+                        dst.put(d, src[s + 1]);
+                        dst.put(d + 1, src[s]);
+                        s += 2;
+                        d += 2;
+                    }
+                }
+            } else {
+                int chromaStride = stride / 2;
+                int dstU = dstChroma;
+                int dstV = dstChroma + chromaStride * (mSliceHeight / 2);
+                int chromaWidth = width / 2;
+                for (int row = mChromaStart; row < mChromaEnd; row++) {
+                    int s = srcChroma + row * width;
+                    int u = dstU + row * chromaStride;
+                    int v = dstV + row * chromaStride;
+                    for (int x = 0; x < chromaWidth; x++) {
+                        dst.put(v + x, src[s + 2 * x]);
+                        dst.put(u + x, src[s + 2 * x + 1]);
+                    }
+                }
+            }
+        }
+    }
+}
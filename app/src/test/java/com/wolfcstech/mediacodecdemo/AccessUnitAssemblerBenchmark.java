@@ -0,0 +1,95 @@
+package com.wolfcstech.mediacodecdemo;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Throughput of scanning and assembling a synthetic Annex-B stream fed in socket-sized chunks,
+ * against a byte-at-a-time start code search over the same data. Run with {@code main}, it is
+ * not part of the unit tests.
+ */
+public class AccessUnitAssemblerBenchmark {
+    private static final int STREAM_SIZE = 32 * 1024 * 1024;
+    private static final int FRAME_SIZE = 40 * 1024;
+    private static final int ROUNDS = 10;
+
+    public static void main(String[] args) {
+        ByteBuffer stream = buildStream(new Random(1));
+        for (int chunkSize : new int[] {1400, 16 * 1024, 256 * 1024}) {
+            for (boolean direct : new boolean[] {false, true}) {
+                runAssembler(stream, chunkSize, direct);
+            }
+        }
+        runByteScan(stream);
+    }
+
+    private static ByteBuffer buildStream(Random random) {
+        byte[] data = new byte[STREAM_SIZE];
+        random.nextBytes(data);
+        for (int i = 0; i + 1 < data.length; i++) {
+            if (data[i] == 0 && data[i + 1] == 0) {
+                data[i + 1] = 1;
+            }
+        }
+        for (int offset = 0; offset + FRAME_SIZE <= data.length; offset += FRAME_SIZE) {
+            data[offset] = 0;
+            data[offset + 1] = 0;
+            data[offset + 2] = 0;
+            data[offset + 3] = 1;
+            data[offset + 4] = 0x41;
+            data[offset + 5] = (byte) 0x88;
+        }
+        return ByteBuffer.wrap(data);
+    }
+
+    private static void runAssembler(ByteBuffer stream, int chunkSize, boolean direct) {
+        final long[] frames = new long[1];
+        FrameBufferPool pool = new FrameBufferPool(8, 2 * FRAME_SIZE, direct);
+        AccessUnitAssembler assembler = new AccessUnitAssembler(pool,
+                new FrameBufferPool.FrameReceivedListener() {
+                    @Override
+                    public void onFrameReceived(FrameBuffer frame) {
+                        frames[0]++;
+                        frame.release();
+                    }
+                }, 2 * FRAME_SIZE);
+
+        ByteBuffer source = stream;
+        if (direct) {
+            source = ByteBuffer.allocateDirect(stream.capacity());
+            source.put(stream.duplicate());
+            source.flip();
+        }
+        long bestNanos = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            ByteBuffer view = source.duplicate();
+            long start = System.nanoTime();
+            for (int offset = 0; offset < view.capacity(); offset += chunkSize) {
+                view.limit(Math.min(view.capacity(), offset + chunkSize));
+                view.position(offset);
+                assembler.feed(view);
+            }
+            assembler.flush();
+            bestNanos = Math.min(bestNanos, System.nanoTime() - start);
+        }
+        System.out.printf("assembler chunk=%-7d %-6s %8.1f MB/s, %d units%n", chunkSize,
+                direct ? "direct" : "heap", STREAM_SIZE * 1e3 / bestNanos, frames[0] / ROUNDS);
+    }
+
+    private static void runByteScan(ByteBuffer stream) {
+        long bestNanos = Long.MAX_VALUE;
+        int found = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            found = 0;
+            long start = System.nanoTime();
+            for (int i = 0; i + 2 < stream.limit(); i++) {
+                if (stream.get(i) == 0 && stream.get(i + 1) == 0 && stream.get(i + 2) == 1) {
+                    found++;
+                }
+            }
+            bestNanos = Math.min(bestNanos, System.nanoTime() - start);
+        }
+        System.out.printf("byte scan                     %8.1f MB/s, %d start codes%n",
+                STREAM_SIZE * 1e3 / bestNanos, found);
+    }
+}
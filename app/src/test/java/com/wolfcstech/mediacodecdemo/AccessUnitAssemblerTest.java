@@ -0,0 +1,170 @@
+package com.wolfcstech.mediacodecdemo;
+
+import android.media.MediaCodec;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class AccessUnitAssemblerTest {
+    private static class Collector implements FrameBufferPool.FrameReceivedListener {
+        final List<byte[]> mUnits = new ArrayList<>();
+        final List<Integer> mFlags = new ArrayList<>();
+
+        @Override
+        public void onFrameReceived(FrameBuffer frame) {
+            byte[] unit = new byte[frame.size()];
+            frame.data().get(unit);
+            mUnits.add(unit);
+            mFlags.add(frame.getFlags());
+            frame.release();
+        }
+    }
+
+    /**
+     * A NAL unit with a four-byte start code. Slices get first_mb_in_slice 0 when
+     * {@code firstSlice}, otherwise a nonzero value.
+     */
+    private static byte[] nal(int header, int size, boolean firstSlice, Random random) {
+        byte[] nal = new byte[4 + size];
+        nal[3] = 1;
+        nal[4] = (byte) header;
+        for (int i = 5; i < nal.length; i++) {
+            // Zeros are allowed but never two in a row, so no start code is emulated.
+            nal[i] = (byte) (nal[i - 1] == 0 ? 1 + random.nextInt(255) : random.nextInt(256));
+        }
+        nal[5] = (byte) (firstSlice ? 0x88 : 0x48);
+        nal[nal.length - 1] = (byte) 0x80;
+        return nal;
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+        return out.toByteArray();
+    }
+
+    private static Collector feed(byte[] stream, int maxChunk, Random random) {
+        Collector collector = new Collector();
+        AccessUnitAssembler assembler = new AccessUnitAssembler(
+                new FrameBufferPool(4, 256, false), collector, 256);
+        int offset = 0;
+        while (offset < stream.length) {
+            int size = Math.min(stream.length - offset, 1 + random.nextInt(maxChunk));
+            assembler.feed(ByteBuffer.wrap(stream, offset, size));
+            offset += size;
+        }
+        assembler.flush();
+        return collector;
+    }
+
+    @Test
+    public void findStartCodeMatchesByteScan() {
+        Random random = new Random(7);
+        for (int round = 0; round < 200; round++) {
+            byte[] data = new byte[1 + random.nextInt(100)];
+            for (int i = 0; i < data.length; i++) {
+                data[i] = (byte) (random.nextInt(4) == 0 ? random.nextInt(2) : random.nextInt(256));
+            }
+            ByteBuffer buf = ByteBuffer.wrap(data);
+            int from = random.nextInt(data.length);
+            int expected = -1;
+            for (int i = from; i + 2 < data.length; i++) {
+                if (data[i] == 0 && data[i + 1] == 0 && data[i + 2] == 1) {
+                    expected = i;
+                    break;
+                }
+            }
+            assertEquals(expected, H264.findStartCode(buf, from, data.length));
+        }
+    }
+
+    @Test
+    public void groupsNalUnitsIntoFlaggedAccessUnits() {
+        Random random = new Random(1);
+        byte[] sps = nal(0x67, 10, false, random);
+        byte[] pps = nal(0x68, 4, false, random);
+        byte[] idr = concat(nal(0x06, 12, false, random), nal(0x65, 3000, true, random),
+                nal(0x65, 2000, false, random));
+        byte[] p1 = nal(0x41, 700, true, random);
+        byte[] p2 = concat(nal(0x09, 2, false, random), nal(0x41, 900, true, random),
+                nal(0x41, 50, false, random));
+        byte[] stream = concat(new byte[] {5, 6, 7}, sps, pps, idr, p1, p2);
+
+        for (int maxChunk : new int[] {1, 3, 17, 1000, stream.length}) {
+            Collector collector = feed(stream, maxChunk, random);
+            assertEquals(4, collector.mUnits.size());
+            assertArrayEquals(concat(sps, pps), withFourByteStart(collector.mUnits.get(0)));
+            assertArrayEquals(idr, withFourByteStart(collector.mUnits.get(1)));
+            assertArrayEquals(p1, withFourByteStart(collector.mUnits.get(2)));
+            assertArrayEquals(p2, withFourByteStart(collector.mUnits.get(3)));
+            assertEquals(MediaCodec.BUFFER_FLAG_CODEC_CONFIG, (int) collector.mFlags.get(0));
+            assertEquals(MediaCodec.BUFFER_FLAG_KEY_FRAME, (int) collector.mFlags.get(1));
+            assertEquals(0, (int) collector.mFlags.get(2));
+            assertEquals(0, (int) collector.mFlags.get(3));
+        }
+    }
+
+    @Test
+    public void flushOnChunkEndDeliversWithoutWaiting() {
+        Random random = new Random(2);
+        Collector collector = new Collector();
+        AccessUnitAssembler assembler = new AccessUnitAssembler(
+                new FrameBufferPool(4, 256, false), collector, 256);
+        assembler.setFlushOnChunkEnd(true);
+
+        assembler.feed(ByteBuffer.wrap(concat(nal(0x67, 10, false, random), nal(0x68, 4, false, random))));
+        assertEquals(0, collector.mUnits.size());
+        assembler.feed(ByteBuffer.wrap(nal(0x65, 500, true, random)));
+        assertEquals(2, collector.mUnits.size());
+        assembler.feed(ByteBuffer.wrap(nal(0x41, 300, true, random)));
+        assertEquals(3, collector.mUnits.size());
+        assertEquals(MediaCodec.BUFFER_FLAG_CODEC_CONFIG, (int) collector.mFlags.get(0));
+        assertEquals(MediaCodec.BUFFER_FLAG_KEY_FRAME, (int) collector.mFlags.get(1));
+    }
+
+    @Test
+    public void exhaustedPoolDropsInsteadOfBlocking() {
+        Random random = new Random(3);
+        final List<FrameBuffer> held = new ArrayList<>();
+        AccessUnitAssembler assembler = new AccessUnitAssembler(new FrameBufferPool(2, 256, false),
+                new FrameBufferPool.FrameReceivedListener() {
+                    @Override
+                    public void onFrameReceived(FrameBuffer frame) {
+                        held.add(frame);
+                    }
+                }, 256);
+        assembler.setFlushOnChunkEnd(true);
+
+        assembler.feed(ByteBuffer.wrap(nal(0x65, 100, true, random)));
+        assembler.feed(ByteBuffer.wrap(nal(0x41, 100, true, random)));
+        assertEquals(2, held.size());
+        byte[] dropped = nal(0x41, 100, true, random);
+        assembler.feed(ByteBuffer.wrap(dropped));
+        assertEquals(2, held.size());
+        assertEquals(dropped.length, assembler.getDroppedBytes());
+
+        held.remove(0).release();
+        byte[] next = nal(0x41, 100, true, random);
+        assembler.feed(ByteBuffer.wrap(next));
+        assertEquals(2, held.size());
+        byte[] unit = new byte[held.get(1).size()];
+        held.get(1).data().get(unit);
+        assertArrayEquals(next, withFourByteStart(unit));
+    }
+
+    /**
+     * Units begin at the three-byte start code, the extra leading zero is dropped.
+     */
+    private static byte[] withFourByteStart(byte[] unit) {
+        return unit[0] == 0 && unit[1] == 0 && unit[2] == 1 ? concat(new byte[] {0}, unit) : unit;
+    }
+}
@@ -0,0 +1,194 @@
+package com.wolfcstech.mediacodecdemo;
+
+import org.junit.Test;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class ConnectionSupervisorTest {
+    private static class FakeClock implements JitterBuffer.Clock {
+        long mNanos = 0;
+
+        @Override
+        public long nanoTime() {
+            return mNanos;
+        }
+    }
+
+    @Test
+    public void backoffGrowsUpToTheCapAndResetsAfterStableConnection() {
+        FakeClock clock = new FakeClock();
+        ConnectionSupervisor supervisor = new ConnectionSupervisor(100, 1000, 0, 5000, clock,
+                new Random(1));
+        long[] expected = {100, 200, 400, 800, 1000, 1000};
+        for (long delay : expected) {
+            supervisor.onConnecting();
+            assertEquals(delay, supervisor.onDisconnected());
+        }
+        assertEquals(expected.length, supervisor.getFailedAttemptCount());
+
+        // A connection that drops right away does not reset the backoff.
+        supervisor.onConnecting();
+        supervisor.onConnected();
+        clock.mNanos += 1000000000L;
+        assertEquals(1000, supervisor.onDisconnected());
+
+        supervisor.onConnecting();
+        clock.mNanos += 300000000L;
+        supervisor.onConnected();
+        assertEquals(300, supervisor.getLastReconnectLatencyMs());
+        clock.mNanos += 6000000000L;
+        assertEquals(100, supervisor.onDisconnected());
+    }
+
+    @Test
+    public void jitterStaysWithinTheConfiguredFraction() {
+        ConnectionSupervisor supervisor = new ConnectionSupervisor(1000, 1000, 0.25, 5000,
+                new FakeClock(), new Random(3));
+        for (int i = 0; i < 100; i++) {
+            long delay = supervisor.onDisconnected();
+            assertTrue(delay > 750 && delay <= 1000);
+        }
+    }
+
+    /**
+     * Accepts connections until closed, sends each one a couple of frames and drops it. The
+     * third connection gets nothing at all, so only the read timeout can end it.
+     */
+    private static Thread startFlakyServer(final ServerSocket server) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int c = 0; !server.isClosed(); c++) {
+                    try {
+                        Socket socket = server.accept();
+                        try {
+                            InputStream in = socket.getInputStream();
+                            in.read(new byte[64]);
+                            if (c == 2) {
+                                Thread.sleep(500);
+                                continue;
+                            }
+                            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                            for (int f = 0; f < 2; f++) {
+                                out.writeInt(3);
+                                out.write(new byte[] {(byte) c, (byte) f, 0});
+                            }
+                            out.flush();
+                        } finally {
+                            socket.close();
+                        }
+                    } catch (IOException e) {
+                        // Server closed by the test, or the client already gave up.
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    @Test
+    public void receiverReconnectsThroughDropsAndStalls() throws Exception {
+        for (boolean useChannel : new boolean[] {false, true}) {
+            ServerSocket server = new ServerSocket(0);
+            Thread serverThread = startFlakyServer(server);
+
+            final TCPStreamReceiver receiver = new TCPStreamReceiver();
+            receiver.setUseSocketChannel(useChannel);
+            ConnectionSupervisor supervisor = new ConnectionSupervisor(20, 100, 0.5, 10000,
+                    JitterBuffer.Clock.SYSTEM, new Random(5));
+            supervisor.setTimeouts(1000, 200);
+            final List<Integer> states = new CopyOnWriteArrayList<>();
+            supervisor.setListener(new ConnectionSupervisor.Listener() {
+                @Override
+                public void onHealthChanged(int previousState, int state) {
+                    states.add(state);
+                }
+            });
+            receiver.setConnectionSupervisor(supervisor);
+
+            final CountDownLatch frames = new CountDownLatch(6);
+            final AtomicInteger received = new AtomicInteger();
+            receiver.setDataReceivedListener(new TCPStreamReceiver.StreamReceivedListener() {
+                @Override
+                public void onDataReceived(ByteBuffer byteBuffer) {
+                    received.incrementAndGet();
+                    frames.countDown();
+                }
+            });
+            final int port = server.getLocalPort();
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    receiver.requestStreamData("127.0.0.1", port);
+                }
+            });
+            thread.start();
+
+            assertTrue(frames.await(10, TimeUnit.SECONDS));
+            server.close();
+            // The server is gone, the receiver keeps backing off until stopped.
+            Thread.sleep(100);
+            long stopStart = System.nanoTime();
+            receiver.stop();
+            thread.join(2000);
+            assertFalse(thread.isAlive());
+            assertTrue(System.nanoTime() - stopStart < 1000000000L);
+            serverThread.join(2000);
+
+            // Connections queued while the server stalled may have been given up on already.
+            assertTrue(received.get() >= 6);
+            assertTrue(supervisor.getReconnectCount() >= 3);
+            assertTrue(supervisor.getMaxReconnectLatencyMs() < 2000);
+            assertTrue(states.contains(ConnectionSupervisor.STATE_BACKOFF));
+            assertEquals(ConnectionSupervisor.STATE_STOPPED, supervisor.getState());
+        }
+    }
+
+    @Test
+    public void batchReceiverResubscribesAfterSocketError() throws Exception {
+        final StreamReceiver receiver = new StreamReceiver();
+        receiver.setBatchReceive(16, 0);
+        ConnectionSupervisor supervisor = new ConnectionSupervisor(10, 20, 0, 10000,
+                JitterBuffer.Clock.SYSTEM, new Random(5));
+        final CountDownLatch retries = new CountDownLatch(3);
+        supervisor.setListener(new ConnectionSupervisor.Listener() {
+            @Override
+            public void onHealthChanged(int previousState, int state) {
+                if (state == ConnectionSupervisor.STATE_BACKOFF) {
+                    retries.countDown();
+                }
+            }
+        });
+        receiver.setConnectionSupervisor(supervisor);
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                // Nothing can be sent to port 0, so every subscription fails.
+                receiver.requestStreamData("127.0.0.1", 0);
+            }
+        });
+        thread.start();
+        assertTrue(retries.await(5, TimeUnit.SECONDS));
+        receiver.stop();
+        thread.join(5000);
+        assertFalse(thread.isAlive());
+        assertTrue(supervisor.getFailedAttemptCount() >= 3);
+        assertEquals(ConnectionSupervisor.STATE_STOPPED, supervisor.getState());
+    }
+}
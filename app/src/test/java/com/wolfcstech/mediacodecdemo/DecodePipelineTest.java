@@ -0,0 +1,163 @@
+package com.wolfcstech.mediacodecdemo;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class DecodePipelineTest {
+    /**
+     * Two input slots, decoded output becomes available as soon as input is queued.
+     */
+    private static class FakeCodec implements CodecAdapter {
+        private final ByteBuffer[] mInputBuffers = {ByteBuffer.allocate(64), ByteBuffer.allocate(64)};
+        private final ArrayDeque<Integer> mFreeInputs = new ArrayDeque<>();
+        private final ArrayDeque<Integer> mPendingOutputs = new ArrayDeque<>();
+        private final long[] mInputTimestamps = new long[2];
+        private long mOutputTimestamp;
+        final List<Long> mQueuedTimestamps = new ArrayList<>();
+        final CountDownLatch mRendered;
+
+        FakeCodec(int expectedFrames) {
+            mFreeInputs.add(0);
+            mFreeInputs.add(1);
+            mRendered = new CountDownLatch(expectedFrames);
+        }
+
+        @Override
+        public synchronized int dequeueInputBuffer(long timeoutUs) {
+            Integer index = mFreeInputs.poll();
+            return index != null ? index : INFO_TRY_AGAIN_LATER;
+        }
+
+        @Override
+        public ByteBuffer getInputBuffer(int index) {
+            return mInputBuffers[index];
+        }
+
+        @Override
+        public synchronized void queueInputBuffer(int index, int offset, int size,
+                                                  long presentationTimeUs, int flags) {
+            mQueuedTimestamps.add(presentationTimeUs);
+            mInputTimestamps[index] = presentationTimeUs;
+            mPendingOutputs.add(index);
+        }
+
+        @Override
+        public synchronized int dequeueOutputBuffer(long timeoutUs) {
+            Integer index = mPendingOutputs.poll();
+            if (index == null) {
+                return INFO_TRY_AGAIN_LATER;
+            }
+            mOutputTimestamp = mInputTimestamps[index];
+            return index;
+        }
+
+        @Override
+        public synchronized long getOutputPresentationTimeUs() {
+            return mOutputTimestamp;
+        }
+
+        @Override
+        public synchronized void releaseOutputBuffer(int index, boolean render) {
+            mFreeInputs.add(index);
+            mRendered.countDown();
+        }
+    }
+
+    private static FrameBuffer frame(FrameBufferPool pool, long pts) {
+        FrameBuffer frame = pool.acquire(16);
+        frame.data().put(new byte[16]).flip();
+        frame.setPresentationTimeUs(pts);
+        return frame;
+    }
+
+    @Test
+    public void framesAreDecodedInOrder() throws Exception {
+        FrameBufferPool pool = new FrameBufferPool(8, 16, false);
+        FakeCodec codec = new FakeCodec(50);
+        DecodePipeline pipeline = new DecodePipeline(codec, new BoundedFrameQueue(64),
+                DropPolicy.DROP_NEWEST);
+        // Room for all 50 frames in flight; with 64 slots three of them share a slot.
+        LatencyTracer tracer = new LatencyTracer(128);
+        pipeline.setLatencyTracer(tracer);
+        pipeline.start();
+        for (int i = 0; i < 50; i++) {
+            // Apart by more than a 90 kHz tick, and marked received as the transport would.
+            tracer.mark(LatencyTracer.frameId(i * 1000), LatencyTracer.STAGE_RECEIVED);
+            assertTrue(pipeline.submit(frame(pool, i * 1000)));
+        }
+        assertTrue(codec.mRendered.await(5, TimeUnit.SECONDS));
+        pipeline.stop();
+
+        synchronized (codec) {
+            for (int i = 0; i < 50; i++) {
+                assertEquals(Long.valueOf(i * 1000), codec.mQueuedTimestamps.get(i));
+            }
+        }
+        assertEquals(50, pipeline.getRenderedCount());
+        assertEquals(0, pipeline.getDroppedCount());
+        assertEquals(0, pool.getOutstandingCount());
+        // Every frame, plus the input loop task itself.
+        assertEquals(51, pipeline.getInputThreadStats().getQueueLatencyCount());
+        assertEquals("DecodeInput", pipeline.getInputThreadStats().getName());
+        assertEquals(50, tracer.getStageHistogram(LatencyTracer.STAGE_DECODER_INPUT).getCount());
+        assertEquals(50, tracer.getSpanHistogram(LatencyTracer.SPAN_RECEIVE).getCount());
+    }
+
+    @Test
+    public void dropOldestKeepsNewestFrames() throws Exception {
+        FrameBufferPool pool = new FrameBufferPool(16, 16, false);
+        FakeCodec codec = new FakeCodec(4);
+        DecodePipeline pipeline = new DecodePipeline(codec, new BoundedFrameQueue(4),
+                DropPolicy.DROP_OLDEST);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(pipeline.submit(frame(pool, i)));
+        }
+        assertEquals(6, pipeline.getDroppedCount());
+        assertEquals(4, pool.getOutstandingCount());
+
+        pipeline.start();
+        assertTrue(codec.mRendered.await(5, TimeUnit.SECONDS));
+        pipeline.stop();
+        synchronized (codec) {
+            assertEquals(Long.valueOf(6), codec.mQueuedTimestamps.get(0));
+            assertEquals(Long.valueOf(9), codec.mQueuedTimestamps.get(3));
+        }
+    }
+
+    @Test
+    public void dropNewestRejectsIncomingAndSignalsBackpressure() {
+        FrameBufferPool pool = new FrameBufferPool(16, 16, false);
+        DecodePipeline pipeline = new DecodePipeline(new FakeCodec(0), new BoundedFrameQueue(4),
+                DropPolicy.DROP_NEWEST);
+        final List<Boolean> congestion = new ArrayList<>();
+        final List<FrameBuffer> dropped = new ArrayList<>();
+        pipeline.setListener(new DecodePipeline.Listener() {
+            @Override
+            public void onFrameDropped(FrameBuffer frame) {
+                dropped.add(frame);
+            }
+
+            @Override
+            public void onBackpressureChanged(boolean congested) {
+                congestion.add(congested);
+            }
+        });
+        for (int i = 0; i < 4; i++) {
+            assertTrue(pipeline.submit(frame(pool, i)));
+        }
+        FrameBuffer rejected = frame(pool, 4);
+        assertFalse(pipeline.submit(rejected));
+        assertSame(rejected, dropped.get(0));
+        assertEquals(1, congestion.size());
+        assertTrue(congestion.get(0));
+        assertEquals(4, pipeline.getQueueDepth());
+    }
+}
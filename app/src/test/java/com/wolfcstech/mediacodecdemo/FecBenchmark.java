@@ -0,0 +1,89 @@
+package com.wolfcstech.mediacodecdemo;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Throughput of computing parity over 1400-byte packets, and of rebuilding the most packets
+ * per block the parity allows. Run with {@code main}, it is not part of the unit tests.
+ */
+public class FecBenchmark {
+    private static final int PAYLOAD_SIZE = 1400;
+    private static final int PACKETS = 200000;
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) {
+        byte[][] payloads = new byte[64][PAYLOAD_SIZE];
+        Random random = new Random(1);
+        for (byte[] payload : payloads) {
+            random.nextBytes(payload);
+        }
+        for (int[] code : new int[][] {{16, 1}, {16, 2}, {16, 4}, {32, 4}}) {
+            run(payloads, code[0], code[1]);
+        }
+    }
+
+    private static void run(final byte[][] payloads, int blockSize, final int parityCount) {
+        final long[] delivered = new long[1];
+        final FecDecoder decoder = new FecDecoder(blockSize, parityCount, PAYLOAD_SIZE,
+                new StreamReceiver.StreamDataReceivedListener() {
+                    @Override
+                    public void onStreamDataReceived(int index, byte[] data, int offset, int size) {
+                        delivered[0]++;
+                    }
+                });
+        final byte[] datagram = new byte[FecEncoder.PARITY_HEADER_SIZE + 2 + PAYLOAD_SIZE];
+        final boolean[] decode = new boolean[1];
+        RtpH264Packetizer.PacketSink paritySink = new RtpH264Packetizer.PacketSink() {
+            @Override
+            public void onPacket(ByteBuffer packet) {
+                if (decode[0]) {
+                    int size = packet.remaining();
+                    packet.get(datagram, 0, size);
+                    packet.position(0);
+                    decoder.onStreamDataReceived(StreamHeader.read(datagram, 0), datagram,
+                            StreamHeader.SIZE, size - StreamHeader.SIZE);
+                }
+            }
+        };
+        FecEncoder encoder = new FecEncoder(blockSize, parityCount, PAYLOAD_SIZE);
+        ByteBuffer[] buffers = new ByteBuffer[payloads.length];
+        for (int i = 0; i < payloads.length; i++) {
+            buffers[i] = ByteBuffer.wrap(payloads[i]);
+        }
+
+        int index = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            decode[0] = false;
+            long start = System.nanoTime();
+            for (int i = 0; i < PACKETS; i++) {
+                encoder.addPacket(index++, buffers[i % buffers.length], paritySink);
+            }
+            encoder.flush(paritySink);
+            long encodeNs = System.nanoTime() - start;
+
+            // Lose the first parityCount packets of every block.
+            decode[0] = true;
+            delivered[0] = 0;
+            index = (index + blockSize) / blockSize * blockSize;
+            start = System.nanoTime();
+            for (int i = 0; i < PACKETS; i++) {
+                int packetIndex = index++;
+                if (i % blockSize >= parityCount) {
+                    byte[] payload = payloads[i % payloads.length];
+                    decoder.onStreamDataReceived(packetIndex, payload, 0, payload.length);
+                }
+                encoder.addPacket(packetIndex, buffers[i % buffers.length], paritySink);
+            }
+            encoder.flush(paritySink);
+            long decodeNs = System.nanoTime() - start;
+            index = (index + blockSize) / blockSize * blockSize;
+
+            double megabytes = (double) PACKETS * PAYLOAD_SIZE / 1e6;
+            System.out.printf("k=%d m=%d  encode %7.1f MB/s  encode+rebuild %d/%d lost %7.1f MB/s"
+                            + " (%d delivered)%n", blockSize, parityCount,
+                    megabytes / (encodeNs / 1e9), parityCount, blockSize,
+                    megabytes / (decodeNs / 1e9), delivered[0]);
+        }
+    }
+}
@@ -0,0 +1,284 @@
+package com.wolfcstech.mediacodecdemo;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class FecDecoderTest {
+    private static final int PAYLOAD_SIZE = 1000;
+
+    /**
+     * Collects the stream a {@link PacketReorderBuffer} puts back in order.
+     */
+    private static class StreamCollector implements StreamReceiver.StreamDataReceivedListener {
+        final ByteArrayOutputStream mStream = new ByteArrayOutputStream();
+        int mPackets = 0;
+
+        @Override
+        public void onStreamDataReceived(int index, byte[] data, int offset, int size) {
+            mStream.write(data, offset, size);
+            mPackets++;
+        }
+    }
+
+    private static byte[] randomBytes(Random random, int size) {
+        byte[] bytes = new byte[size];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    @Test
+    public void fieldArithmetic() {
+        for (int a = 1; a < 256; a++) {
+            assertEquals(1, GaloisField.mul(a, GaloisField.inv(a)));
+            assertEquals(0, GaloisField.mul(a, 0));
+        }
+        // Carry-less multiplication reduced by the polynomial, bit by bit.
+        for (int a = 0; a < 256; a += 7) {
+            for (int b = 0; b < 256; b += 5) {
+                int product = 0;
+                int x = a;
+                for (int bit = 0; bit < 8; bit++) {
+                    if ((b & (1 << bit)) != 0) {
+                        product ^= x;
+                    }
+                    x <<= 1;
+                    if ((x & 0x100) != 0) {
+                        x ^= 0x11D;
+                    }
+                }
+                assertEquals(product, GaloisField.mul(a, b));
+            }
+        }
+        byte[][] matrix = GaloisField.parityMatrix(4, 16);
+        byte[][] larger = GaloisField.parityMatrix(8, 32);
+        for (int column = 0; column < 16; column++) {
+            assertEquals(1, matrix[0][column]);
+            for (int row = 0; row < 4; row++) {
+                assertEquals(matrix[row][column], larger[row][column]);
+            }
+        }
+    }
+
+    /**
+     * Encode a stream of frames, drop packets per {@code lost}, decode, and return what came
+     * out of the reorder buffer.
+     */
+    private static StreamCollector runWithLoss(byte[] stream, int frameSize, int blockSize,
+                                               int parityCount, final boolean[] lost,
+                                               FecDecoder[] decoderOut) {
+        return runWithLoss(stream, frameSize, blockSize, parityCount, blockSize, parityCount,
+                lost, decoderOut);
+    }
+
+    /**
+     * Like the above, with a decoder built for up to {@code maxBlockSize} data and
+     * {@code maxParityCount} parity packets per block.
+     */
+    private static StreamCollector runWithLoss(byte[] stream, int frameSize, int blockSize,
+                                               int parityCount, int maxBlockSize,
+                                               int maxParityCount, final boolean[] lost,
+                                               FecDecoder[] decoderOut) {
+        StreamCollector collector = new StreamCollector();
+        final PacketReorderBuffer reorder = new PacketReorderBuffer(256, PAYLOAD_SIZE, collector);
+        final FecDecoder decoder = new FecDecoder(maxBlockSize, maxParityCount, PAYLOAD_SIZE,
+                reorder);
+        decoderOut[0] = decoder;
+        FecEncoder encoder = new FecEncoder(blockSize, parityCount, PAYLOAD_SIZE);
+        final int[] packetNumber = {0};
+        final byte[] datagram = new byte[StreamHeader.SIZE + PAYLOAD_SIZE + 16];
+        RtpH264Packetizer.PacketSink sink = new RtpH264Packetizer.PacketSink() {
+            @Override
+            public void onPacket(ByteBuffer packet) {
+                int size = packet.remaining();
+                packet.duplicate().get(datagram, 0, size);
+                if (!lost[packetNumber[0]++ % lost.length]) {
+                    decoder.onStreamDataReceived(StreamHeader.read(datagram, 0), datagram,
+                            StreamHeader.SIZE, size - StreamHeader.SIZE);
+                }
+            }
+        };
+        ByteBuffer packet = ByteBuffer.allocate(StreamHeader.SIZE + PAYLOAD_SIZE);
+        int index = 0;
+        for (int frame = 0; frame < stream.length; frame += frameSize) {
+            int frameEnd = Math.min(stream.length, frame + frameSize);
+            for (int offset = frame; offset < frameEnd; offset += PAYLOAD_SIZE) {
+                int length = Math.min(PAYLOAD_SIZE, frameEnd - offset);
+                packet.clear();
+                packet.putInt(index).put(stream, offset, length).flip();
+                sink.onPacket(packet);
+                packet.position(StreamHeader.SIZE);
+                encoder.addPacket(index++, packet, sink);
+            }
+            encoder.flush(sink);
+        }
+        reorder.flush();
+        return collector;
+    }
+
+    @Test
+    public void lossesWithinParityAreRebuilt() {
+        Random random = new Random(3);
+        byte[] stream = randomBytes(random, 400 * 1000 + 123);
+        // Blocks of 8 data and 2 parity packets, losing two of every ten packets.
+        boolean[] lost = new boolean[10];
+        lost[1] = true;
+        lost[6] = true;
+        FecDecoder[] decoder = new FecDecoder[1];
+        StreamCollector collector = runWithLoss(stream, 8 * PAYLOAD_SIZE, 8, 2, lost, decoder);
+
+        assertArrayEquals(stream, collector.mStream.toByteArray());
+        assertTrue(decoder[0].getRecoveredCount() >= 70);
+        assertEquals(0, decoder[0].getUnrecoverableCount());
+    }
+
+    @Test
+    public void shortFramesAndLostParityAreRebuilt() {
+        Random random = new Random(5);
+        byte[] stream = randomBytes(random, 300 * 1000);
+        // Frames of 3.5 packets, so blocks are short and end in a partial packet. Losing the
+        // XOR parity forces the Reed-Solomon rows to do the work.
+        boolean[] lost = new boolean[13];
+        // The reorder buffer starts at the first index it sees, so never lose the very first.
+        lost[1] = true;
+        lost[5] = true;
+        lost[10] = true;
+        FecDecoder[] decoder = new FecDecoder[1];
+        StreamCollector collector = runWithLoss(stream, 3500, 16, 4, lost, decoder);
+
+        assertArrayEquals(stream, collector.mStream.toByteArray());
+        assertTrue(decoder[0].getRecoveredCount() > 0);
+    }
+
+    @Test
+    public void decoderBuiltForMoreParityRebuildsASmallerCode() {
+        Random random = new Random(7);
+        byte[] stream = randomBytes(random, 200 * 1000);
+        // Blocks of 8 data and 2 parity packets, losing two data packets of each.
+        boolean[] lost = new boolean[10];
+        lost[2] = true;
+        lost[5] = true;
+        FecDecoder[] decoder = new FecDecoder[1];
+        StreamCollector collector = runWithLoss(stream, 8 * PAYLOAD_SIZE, 8, 2, 32, 4, lost,
+                decoder);
+
+        assertArrayEquals(stream, collector.mStream.toByteArray());
+        assertEquals(50, decoder[0].getRecoveredCount());
+        assertEquals(0, decoder[0].getUnrecoverableCount());
+    }
+
+    @Test
+    public void tooManyLossesLeaveTheBlockAlone() {
+        Random random = new Random(9);
+        byte[] stream = randomBytes(random, 8 * PAYLOAD_SIZE);
+        boolean[] lost = new boolean[12];
+        lost[0] = true;
+        lost[1] = true;
+        lost[2] = true;
+        FecDecoder[] decoder = new FecDecoder[1];
+        StreamCollector collector = runWithLoss(stream, stream.length, 8, 2, lost, decoder);
+
+        assertEquals(0, decoder[0].getRecoveredCount());
+        assertEquals(5, collector.mPackets);
+        // Counted once the block is given up for a newer one.
+        assertEquals(0, decoder[0].getUnrecoverableCount());
+        assertArrayEquals(Arrays.copyOfRange(stream, 3 * PAYLOAD_SIZE, stream.length),
+                collector.mStream.toByteArray());
+    }
+
+    /**
+     * Drops a fixed pattern of the datagrams it sends, parity included.
+     */
+    private static class LossyStreamSender extends StreamSender {
+        private final boolean[] mLost;
+        private int mPacketNumber = 0;
+
+        LossyStreamSender(int maxPayloadSize, boolean[] lost) {
+            super(maxPayloadSize);
+            mLost = lost;
+        }
+
+        @Override
+        protected void sendPacket(Subscriber subscriber, int index, ByteBuffer payload) {
+            if (!mLost[mPacketNumber++ % mLost.length]) {
+                super.sendPacket(subscriber, index, payload);
+            }
+        }
+
+        @Override
+        protected void sendDatagram(Subscriber subscriber, ByteBuffer packet) {
+            if (!mLost[mPacketNumber++ % mLost.length]) {
+                super.sendDatagram(subscriber, packet);
+            }
+        }
+    }
+
+    @Test
+    public void loopbackStreamSurvivesInjectedLoss() throws Exception {
+        boolean[] lost = new boolean[20];
+        lost[3] = true;
+        lost[11] = true;
+        lost[19] = true;
+        LossyStreamSender sender = new LossyStreamSender(PAYLOAD_SIZE, lost);
+        sender.setFec(16, 3);
+        sender.start(0);
+
+        Random random = new Random(11);
+        final int frames = 40;
+        final int frameSize = 12 * PAYLOAD_SIZE + 300;
+        final byte[] stream = randomBytes(random, frames * frameSize);
+
+        final StreamReceiver receiver = new StreamReceiver();
+        receiver.setBatchReceive(16, 4 * 1024 * 1024);
+        final CountDownLatch done = new CountDownLatch(1);
+        final StreamCollector collector = new StreamCollector() {
+            @Override
+            public void onStreamDataReceived(int index, byte[] data, int offset, int size) {
+                super.onStreamDataReceived(index, data, offset, size);
+                if (mStream.size() == stream.length) {
+                    receiver.stop();
+                    done.countDown();
+                }
+            }
+        };
+        FecDecoder decoder = new FecDecoder(16, 3, PAYLOAD_SIZE,
+                new PacketReorderBuffer(64, PAYLOAD_SIZE, collector));
+        receiver.setDataReceivedListener(decoder);
+        final int port = sender.getLocalPort();
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                receiver.requestStreamData("127.0.0.1", port);
+            }
+        });
+        thread.start();
+        for (int i = 0; i < 500 && sender.getSubscriberCount() == 0; i++) {
+            Thread.sleep(10);
+        }
+
+        FrameBufferPool pool = new FrameBufferPool(8, frameSize, true);
+        for (int i = 0; i < frames; i++) {
+            FrameBuffer frame = pool.acquire(frameSize);
+            frame.data().put(stream, i * frameSize, frameSize).flip();
+            assertTrue(sender.sendFrame(frame));
+            Thread.sleep(2);
+        }
+        boolean complete = done.await(10, TimeUnit.SECONDS);
+        assertTrue(complete);
+        sender.stop();
+        thread.join(5000);
+
+        assertArrayEquals(stream, collector.mStream.toByteArray());
+        assertTrue(decoder.getRecoveredCount() > 0);
+    }
+}
@@ -0,0 +1,92 @@
+package com.wolfcstech.mediacodecdemo;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class FrameBufferPoolTest {
+    @Test
+    public void releasedBuffersAreReused() {
+        FrameBufferPool pool = new FrameBufferPool(2, 1024, false);
+        FrameBuffer first = pool.acquire(100);
+        FrameBuffer other = pool.acquire(100);
+        assertEquals(0, pool.getMissCount());
+        assertEquals(2, pool.getOutstandingCount());
+
+        first.release();
+        assertEquals(1, pool.getPooledCount());
+        assertEquals(1, pool.getOutstandingCount());
+
+        FrameBuffer second = pool.acquire(200);
+        assertSame(first, second);
+        assertEquals(3, pool.getHitCount());
+        assertEquals(0, second.data().position());
+        assertEquals(1, second.refCount());
+    }
+
+    @Test
+    public void bufferReturnsOnlyAfterLastReference() {
+        FrameBufferPool pool = new FrameBufferPool(2, 1024, false);
+        FrameBuffer frame = pool.acquire(10).retain();
+        frame.release();
+        assertEquals(1, pool.getPooledCount());
+        frame.release();
+        assertEquals(2, pool.getPooledCount());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void releasingTwiceFails() {
+        FrameBufferPool pool = new FrameBufferPool(2, 1024, false);
+        FrameBuffer frame = pool.acquire(10);
+        frame.release();
+        frame.release();
+    }
+
+    @Test
+    public void outstandingBuffersAreCapped() {
+        FrameBufferPool pool = new FrameBufferPool(2, 16, false);
+        FrameBuffer a = pool.tryAcquire(10);
+        FrameBuffer b = pool.tryAcquire(10);
+        assertNotNull(a);
+        assertNotNull(b);
+        assertNull(pool.tryAcquire(10));
+        assertEquals(1, pool.getExhaustedCount());
+        assertEquals(2, pool.getOutstandingCount());
+
+        b.release();
+        assertSame(b, pool.tryAcquire(10));
+        a.release();
+        b.release();
+        assertEquals(2, pool.getPooledCount());
+    }
+
+    @Test
+    public void acquireWaitsForARelease() throws Exception {
+        FrameBufferPool pool = new FrameBufferPool(1, 16, false);
+        final FrameBuffer held = pool.acquire(10);
+        Thread releaser = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                held.release();
+            }
+        });
+        releaser.start();
+        assertSame(held, pool.acquire(10));
+        assertEquals(1, pool.getMissCount());
+        releaser.join();
+    }
+
+    @Test
+    public void reusedBufferGrowsForLargerFrames() {
+        FrameBufferPool pool = new FrameBufferPool(1, 16, true);
+        pool.acquire(10).release();
+        FrameBuffer frame = pool.acquire(4096);
+        assertTrue(frame.data().capacity() >= 4096);
+        assertTrue(frame.data().isDirect());
+    }
+}
@@ -0,0 +1,163 @@
+package com.wolfcstech.mediacodecdemo;
+
+import android.media.MediaCodec;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class JitterBufferTest {
+    private static final long FRAME_INTERVAL_NANOS = 1000000000L / 30;
+
+    private static class FakeClock implements JitterBuffer.Clock {
+        long mNow = 1000000000L;
+
+        @Override
+        public long nanoTime() {
+            return mNow;
+        }
+    }
+
+    private final FrameBufferPool mPool = new FrameBufferPool(64, 16, false);
+
+    @Test
+    public void steadyArrivalsGetEvenTimestampsAndNoDelay() {
+        FakeClock clock = new FakeClock();
+        JitterBuffer buffer = new JitterBuffer(8, 30, JitterBuffer.TARGET_LOW_LATENCY, clock);
+        for (int i = 0; i < 10; i++) {
+            FrameBuffer frame = mPool.acquire(16);
+            assertTrue(buffer.offer(frame));
+            assertEquals(i * FRAME_INTERVAL_NANOS / 1000, frame.getPresentationTimeUs());
+            assertSame(frame, buffer.poll());
+            frame.release();
+            clock.mNow += FRAME_INTERVAL_NANOS;
+        }
+        assertEquals(0, buffer.getTargetDepth());
+        assertEquals(0, buffer.getLateCount());
+        assertEquals(0, buffer.getUnderrunCount());
+    }
+
+    @Test
+    public void delayGrowsWithJitterAndSmoothTargetHoldsMore() {
+        FakeClock lowClock = new FakeClock();
+        FakeClock smoothClock = new FakeClock();
+        JitterBuffer low = new JitterBuffer(16, 30, JitterBuffer.TARGET_LOW_LATENCY, lowClock);
+        JitterBuffer smooth = new JitterBuffer(16, 30, JitterBuffer.TARGET_SMOOTH, smoothClock);
+        for (int i = 0; i < 100; i++) {
+            // Alternate early and late arrivals around the nominal interval.
+            long interval = i % 2 == 0 ? FRAME_INTERVAL_NANOS / 3 : FRAME_INTERVAL_NANOS * 5 / 3;
+            lowClock.mNow += interval;
+            smoothClock.mNow += interval;
+            low.offer(mPool.acquire(16));
+            smooth.offer(mPool.acquire(16));
+            releaseAll(low);
+            releaseAll(smooth);
+        }
+        assertTrue(low.getJitterUs() > 10000);
+        assertTrue(low.getTargetDelayUs() > 0);
+        assertTrue(smooth.getTargetDelayUs() > low.getTargetDelayUs());
+        assertTrue(smooth.getTargetDepth() >= 2);
+    }
+
+    @Test
+    public void countsUnderrunsAndLateFrames() {
+        FakeClock clock = new FakeClock();
+        JitterBuffer buffer = new JitterBuffer(8, 30, JitterBuffer.TARGET_LOW_LATENCY, clock);
+        buffer.offer(mPool.acquire(16));
+        releaseAll(buffer);
+
+        // The next frame is overdue and nothing is queued.
+        clock.mNow += 3 * FRAME_INTERVAL_NANOS;
+        assertNull(buffer.poll());
+        assertNull(buffer.poll());
+        assertEquals(1, buffer.getUnderrunCount());
+
+        buffer.offer(mPool.acquire(16));
+        assertEquals(1, buffer.getLateCount());
+        releaseAll(buffer);
+    }
+
+    @Test
+    public void fullBufferReleasesHeadEarly() {
+        FakeClock clock = new FakeClock();
+        JitterBuffer buffer = new JitterBuffer(2, 30, JitterBuffer.TARGET_SMOOTH, clock);
+        FrameBuffer first = mPool.acquire(16);
+        assertTrue(buffer.offer(first));
+        assertTrue(buffer.offer(mPool.acquire(16)));
+        assertFalse(buffer.offer(mPool.acquire(16)));
+        assertSame(first, buffer.poll());
+        assertEquals(1, buffer.size());
+    }
+
+    @Test
+    public void lostFrameLeavesAGapInArrivalTimestamps() {
+        FakeClock clock = new FakeClock();
+        JitterBuffer buffer = new JitterBuffer(8, 30, JitterBuffer.TARGET_LOW_LATENCY, clock);
+        for (int i = 0; i < 60; i++) {
+            // Frame 10 never arrives.
+            clock.mNow += i == 10 ? 2 * FRAME_INTERVAL_NANOS : FRAME_INTERVAL_NANOS;
+            buffer.offer(mPool.acquire(16));
+            releaseAll(buffer);
+        }
+        FrameBuffer frame = mPool.acquire(16);
+        clock.mNow += FRAME_INTERVAL_NANOS;
+        buffer.offer(frame);
+        // Sixty-one intervals after the first frame, not sixty.
+        assertEquals(61 * FRAME_INTERVAL_NANOS / 1000, frame.getPresentationTimeUs(), 2000);
+        releaseAll(buffer);
+    }
+
+    @Test
+    public void senderTimestampsDrivePlayoutAndAreKept() {
+        FakeClock clock = new FakeClock();
+        JitterBuffer buffer = new JitterBuffer(8, 30, JitterBuffer.TARGET_LOW_LATENCY, clock);
+        long senderBaseUs = 123456789L;
+        FrameBuffer first = mPool.acquire(16);
+        first.setPresentationTimeUs(senderBaseUs);
+        buffer.offer(first);
+        assertSame(first, buffer.poll());
+        assertEquals(senderBaseUs, first.getPresentationTimeUs());
+        first.release();
+
+        // The second frame arrives early, it still plays a frame interval after the first.
+        clock.mNow += FRAME_INTERVAL_NANOS / 4;
+        FrameBuffer second = mPool.acquire(16);
+        second.setPresentationTimeUs(senderBaseUs + FRAME_INTERVAL_NANOS / 1000);
+        buffer.offer(second);
+        assertNull(buffer.poll());
+        clock.mNow += FRAME_INTERVAL_NANOS;
+        assertSame(second, buffer.poll());
+        assertEquals(senderBaseUs + FRAME_INTERVAL_NANOS / 1000, second.getPresentationTimeUs());
+        second.release();
+    }
+
+    @Test
+    public void configUnitsPassThroughUnstampedAndUncounted() {
+        FakeClock clock = new FakeClock();
+        JitterBuffer buffer = new JitterBuffer(8, 30, JitterBuffer.TARGET_LOW_LATENCY, clock);
+        for (int i = 0; i < 5; i++) {
+            FrameBuffer config = mPool.acquire(16);
+            config.setFlags(MediaCodec.BUFFER_FLAG_CODEC_CONFIG);
+            assertTrue(buffer.offer(config));
+            assertSame(config, buffer.poll());
+            assertEquals(0, config.getPresentationTimeUs());
+            config.release();
+
+            FrameBuffer frame = mPool.acquire(16);
+            assertTrue(buffer.offer(frame));
+            assertEquals(i * FRAME_INTERVAL_NANOS / 1000, frame.getPresentationTimeUs());
+            assertSame(frame, buffer.poll());
+            frame.release();
+            clock.mNow += FRAME_INTERVAL_NANOS;
+        }
+        assertEquals(0, buffer.getJitterUs());
+        assertEquals(0, buffer.getLateCount());
+    }
+
+    private static void releaseAll(JitterBuffer buffer) {
+        FrameBuffer frame;
+        while ((frame = buffer.poll()) != null) {
+            frame.release();
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.wolfcstech.mediacodecdemo;
+
+import android.media.MediaCodec;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class KeyFrameGateTest {
+    private static class FakeClock implements JitterBuffer.Clock {
+        long mNanos = 0;
+
+        @Override
+        public long nanoTime() {
+            return mNanos;
+        }
+    }
+
+    private static FrameBuffer frame(FrameBufferPool pool, int flags, byte... payload) {
+        FrameBuffer frame = pool.acquire(payload.length);
+        frame.data().put(payload).flip();
+        frame.setFlags(flags);
+        return frame;
+    }
+
+    @Test
+    public void dropsUntilKeyFrameAndReportsTimeToFirstFrame() {
+        FakeClock clock = new FakeClock();
+        KeyFrameGate gate = new KeyFrameGate(clock);
+        FrameBufferPool pool = new FrameBufferPool(8, 16, false);
+        gate.startJoin();
+
+        clock.mNanos = 5000000;
+        assertTrue(gate.admit(frame(pool, MediaCodec.BUFFER_FLAG_CODEC_CONFIG)));
+        assertFalse(gate.admit(frame(pool, 0, (byte) 0, (byte) 0, (byte) 1, (byte) 0x41)));
+        assertEquals(-1, gate.getTimeToFirstFrameUs());
+
+        clock.mNanos = 40000000;
+        // Unflagged, but carries an IDR slice.
+        assertTrue(gate.admit(frame(pool, 0, (byte) 0, (byte) 0, (byte) 1, (byte) 0x65)));
+        assertTrue(gate.admit(frame(pool, 0, (byte) 0, (byte) 0, (byte) 1, (byte) 0x41)));
+        assertEquals(40000, gate.getTimeToFirstFrameUs());
+        assertEquals(1, gate.getDroppedCount());
+
+        gate.close();
+        assertFalse(gate.admit(frame(pool, 0, (byte) 0, (byte) 0, (byte) 1, (byte) 0x41)));
+        assertTrue(gate.admit(frame(pool, MediaCodec.BUFFER_FLAG_KEY_FRAME)));
+        // A close is not a new join.
+        assertEquals(40000, gate.getTimeToFirstFrameUs());
+        assertEquals(1, gate.getJoinCount());
+    }
+
+    @Test
+    public void gopCacheKeepsConfigAndCurrentGop() {
+        FrameBufferPool pool = new FrameBufferPool(16, 16, false);
+        GopCache cache = new GopCache(3, 1024);
+
+        FrameBuffer early = frame(pool, 0);
+        cache.add(early);
+        early.release();
+        assertFalse(cache.isComplete());
+
+        int[] flags = {MediaCodec.BUFFER_FLAG_CODEC_CONFIG, MediaCodec.BUFFER_FLAG_KEY_FRAME, 0,
+                MediaCodec.BUFFER_FLAG_KEY_FRAME, 0};
+        for (int flag : flags) {
+            FrameBuffer frame = frame(pool, flag, (byte) 1);
+            cache.add(frame);
+            frame.release();
+        }
+        assertTrue(cache.isComplete());
+        assertEquals(2, cache.size());
+        assertEquals(MediaCodec.BUFFER_FLAG_KEY_FRAME, cache.get(0).getFlags());
+        assertEquals(3, pool.getOutstandingCount());
+
+        for (int i = 0; i < 2; i++) {
+            FrameBuffer frame = frame(pool, 0, (byte) 1);
+            cache.add(frame);
+            frame.release();
+        }
+        // The GOP outgrew three frames and is abandoned until the next key frame.
+        assertFalse(cache.isComplete());
+        assertEquals(1, cache.getOverflowCount());
+
+        cache.clear();
+        assertEquals(0, pool.getOutstandingCount());
+    }
+}
@@ -0,0 +1,111 @@
+package com.wolfcstech.mediacodecdemo;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class LatencyTracerTest {
+    @Test
+    public void bucketsKeepValuesWithinThreePercent() {
+        Random random = new Random(7);
+        for (int i = 0; i < 100000; i++) {
+            long value = (long) Math.exp(random.nextDouble() * 27);
+            int index = LatencyHistogram.bucketIndex(value);
+            long high = LatencyHistogram.highestEquivalentValue(index);
+            assertTrue(value + " -> " + high, high >= value);
+            assertTrue(value + " -> " + high, high - value <= Math.max(1, value / 32));
+        }
+        assertEquals(LatencyHistogram.BUCKET_COUNT - 1,
+                LatencyHistogram.bucketIndex(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void percentilesOfUniformLatencies() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 10000; i++) {
+            histogram.record(i * 1000L);
+        }
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(10000, snapshot.getCount());
+        assertEquals(10000000, snapshot.getMax());
+        assertEquals(5000500, snapshot.getMean());
+        assertEquals(5000000, snapshot.getValueAtPercentile(50), 5000000 / 32);
+        assertEquals(9900000, snapshot.getValueAtPercentile(99), 9900000 / 32);
+        assertEquals(10000000, snapshot.getValueAtPercentile(100));
+        assertEquals(0, new LatencyHistogram().snapshot().getValueAtPercentile(99));
+    }
+
+    @Test
+    public void stagesOfTheSameFrameAreLinked() {
+        LatencyTracer tracer = new LatencyTracer(64);
+        for (long frame = 0; frame < 30; frame++) {
+            long id = frame * 33333;
+            long t = frame * 1000000000L;
+            tracer.mark(id, LatencyTracer.STAGE_CAPTURE, t);
+            tracer.mark(id, LatencyTracer.STAGE_ENCODER_INPUT, t + 2000000);
+            tracer.mark(id, LatencyTracer.STAGE_ENCODED, t + 12000000);
+            tracer.mark(id, LatencyTracer.STAGE_SENT, t + 13000000);
+            tracer.mark(id, LatencyTracer.STAGE_RECEIVED, t + 40000000);
+            tracer.mark(id, LatencyTracer.STAGE_DECODER_INPUT, t + 45000000);
+            tracer.mark(id, LatencyTracer.STAGE_RENDERED, t + 60000000);
+        }
+        LatencyHistogram.Snapshot encode =
+                tracer.getStageHistogram(LatencyTracer.STAGE_ENCODED).snapshot();
+        assertEquals(30, encode.getCount());
+        assertEquals(10000000, encode.getValueAtPercentile(50), 10000000 / 32);
+        assertEquals(13000000, tracer.getSpanHistogram(LatencyTracer.SPAN_SEND).snapshot().getMax());
+        assertEquals(20000000,
+                tracer.getSpanHistogram(LatencyTracer.SPAN_RECEIVE).snapshot().getMax());
+        // Both ends marked the same ids, so the network hop and the whole way are measured.
+        assertEquals(27000000,
+                tracer.getStageHistogram(LatencyTracer.STAGE_RECEIVED).snapshot().getMax());
+        assertEquals(60000000,
+                tracer.getSpanHistogram(LatencyTracer.SPAN_END_TO_END).snapshot().getMax());
+        assertTrue(tracer.dump().contains("encoder input -> encoded: n=30"));
+
+        tracer.reset();
+        assertEquals(0, tracer.getStageHistogram(LatencyTracer.STAGE_ENCODED).getCount());
+    }
+
+    @Test
+    public void frameWhoseSlotWasReusedIsNotLinked() {
+        LatencyTracer tracer = new LatencyTracer(4);
+        tracer.mark(1, LatencyTracer.STAGE_CAPTURE, 0);
+        for (long id = 2; id < 200; id++) {
+            tracer.mark(id, LatencyTracer.STAGE_CAPTURE, id);
+        }
+        tracer.mark(1, LatencyTracer.STAGE_ENCODER_INPUT, 1000);
+        tracer.mark(199, LatencyTracer.STAGE_ENCODER_INPUT, 1199);
+        LatencyHistogram.Snapshot snapshot =
+                tracer.getStageHistogram(LatencyTracer.STAGE_ENCODER_INPUT).snapshot();
+        assertEquals(1, snapshot.getCount());
+        assertEquals(1000, snapshot.getMax());
+    }
+
+    @Test
+    public void stagesMarkedFromDifferentThreads() throws Exception {
+        final LatencyTracer tracer = new LatencyTracer(256);
+        final int frames = 20000;
+        Thread capture = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (long id = 0; id < frames; id++) {
+                    tracer.mark(id, LatencyTracer.STAGE_CAPTURE, id * 10);
+                }
+            }
+        });
+        capture.start();
+        for (long id = 0; id < frames; id++) {
+            tracer.mark(id, LatencyTracer.STAGE_ENCODER_INPUT, id * 10 + 5);
+        }
+        capture.join();
+        // Whatever was linked must have been linked to the right frame.
+        LatencyHistogram.Snapshot snapshot =
+                tracer.getStageHistogram(LatencyTracer.STAGE_ENCODER_INPUT).snapshot();
+        if (snapshot.getCount() > 0) {
+            assertEquals(5, snapshot.getMax());
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package com.wolfcstech.mediacodecdemo;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+public class MappedFileMediaDataStoreTest {
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private static byte[] pattern(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i * 13 + i / 256);
+        }
+        return data;
+    }
+
+    @Test
+    public void readsFlushedAndWindowedData() throws Exception {
+        File dir = mFolder.getRoot();
+        MappedFileMediaDataStore store = new MappedFileMediaDataStore(dir, 4096, 16384, 2, 0);
+        byte[] data = pattern(100000);
+        for (int pos = 0; pos < data.length; pos += 1400) {
+            store.append(data, pos, Math.min(1400, data.length - pos));
+        }
+        assertEquals(data.length, store.length());
+
+        // Spans two regions, then reads the unflushed tail out of the heap window.
+        long[] positions = {0, 16000, 50000, data.length - 3000};
+        byte[] out = new byte[3000];
+        for (long position : positions) {
+            assertEquals(3000, store.read(position, out, 0, 3000));
+            for (int i = 0; i < 3000; i++) {
+                assertEquals(data[(int) position + i], out[i]);
+            }
+        }
+        assertTrue(store.getMappedRegionCount() <= 2);
+        store.close();
+        assertEquals(0, dir.list().length);
+    }
+
+    @Test
+    public void dropsConsumedRegions() throws Exception {
+        MappedFileMediaDataStore store = new MappedFileMediaDataStore(mFolder.getRoot(), 1024,
+                8192, 8, 8192);
+        byte[] data = pattern(8192 * 6);
+        store.append(data, 0, data.length);
+        byte[] out = new byte[1024];
+        for (long pos = 0; pos < 8192 * 5; pos += 1024) {
+            store.read(pos, out, 0, out.length);
+        }
+        // Only the region being read and the one retained behind it stay mapped.
+        assertTrue(store.getMappedRegionCount() <= 2);
+        assertTrue(store.getEvictedRegionCount() >= 3);
+
+        assertEquals(1024, store.read(0, out, 0, 1024));
+        assertEquals(data[100], out[100]);
+        store.close();
+    }
+
+    @Test
+    public void remapsRegionThatGrew() throws Exception {
+        MappedFileMediaDataStore store = new MappedFileMediaDataStore(mFolder.getRoot(), 1000,
+                8192, 2, 0);
+        byte[] data = pattern(5000);
+        store.append(data, 0, 2000);
+        byte[] out = new byte[1000];
+        store.read(0, out, 0, 1000);
+        store.append(data, 2000, 3000);
+        assertEquals(1000, store.read(3000, out, 0, 1000));
+        assertEquals(data[3500], out[500]);
+        store.close();
+    }
+}
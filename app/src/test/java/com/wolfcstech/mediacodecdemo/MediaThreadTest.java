@@ -0,0 +1,136 @@
+package com.wolfcstech.mediacodecdemo;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class MediaThreadTest {
+    /**
+     * Blocks like a receive loop until cancelled.
+     */
+    private static class BlockingTask implements MediaThread.Cancellable {
+        final CountDownLatch mStarted = new CountDownLatch(1);
+        final CountDownLatch mCancelled = new CountDownLatch(1);
+        final AtomicBoolean mRan = new AtomicBoolean();
+
+        @Override
+        public void run() {
+            mRan.set(true);
+            mStarted.countDown();
+            try {
+                mCancelled.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void cancel() {
+            mCancelled.countDown();
+        }
+    }
+
+    @Test
+    public void tasksRunInOrderOnTheNamedThread() throws Exception {
+        MediaThread thread = new MediaThread("Worker", MediaThread.PRIORITY_CODEC);
+        thread.start();
+        final List<Integer> order = new CopyOnWriteArrayList<>();
+        final List<String> names = new CopyOnWriteArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            final int n = i;
+            assertTrue(thread.post(new Runnable() {
+                @Override
+                public void run() {
+                    order.add(n);
+                    names.add(Thread.currentThread().getName());
+                }
+            }));
+        }
+        thread.quit();
+        // quit() cancels what is still queued, so some tasks may not have run.
+        for (int i = 0; i < order.size(); i++) {
+            assertEquals(i, (int) order.get(i));
+            assertEquals("Worker", names.get(i));
+        }
+        assertEquals(order.size(), thread.getStats().getQueueLatencyCount());
+    }
+
+    @Test
+    public void queueLatencyCoversTimeBehindABusyTask() throws Exception {
+        MediaThread thread = new MediaThread("Worker", MediaThread.PRIORITY_NETWORK);
+        thread.start();
+        final CountDownLatch done = new CountDownLatch(1);
+        thread.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        thread.post(new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        thread.quit();
+
+        MediaThread.Stats stats = thread.getStats();
+        assertEquals(2, stats.getQueueLatencyCount());
+        assertTrue(stats.getMaxQueueLatencyNanos() >= TimeUnit.MILLISECONDS.toNanos(40));
+        assertEquals(MediaThread.PRIORITY_NETWORK, stats.getPriority());
+    }
+
+    @Test
+    public void quitCancelsRunningAndQueuedTasks() throws Exception {
+        MediaThread thread = new MediaThread("Receive", MediaThread.PRIORITY_NETWORK);
+        thread.start();
+        BlockingTask running = new BlockingTask();
+        BlockingTask queued = new BlockingTask();
+        thread.post(running);
+        thread.post(queued);
+        assertTrue(running.mStarted.await(5, TimeUnit.SECONDS));
+
+        thread.quit();
+        assertFalse(thread.getThread().isAlive());
+        assertEquals(0, running.mCancelled.getCount());
+        // Never ran, but was still told to release its resources.
+        assertFalse(queued.mRan.get());
+        assertEquals(0, queued.mCancelled.getCount());
+
+        BlockingTask late = new BlockingTask();
+        assertFalse(thread.post(late));
+        assertEquals(0, late.mCancelled.getCount());
+    }
+
+    @Test
+    public void failingTaskDoesNotKillTheThread() throws Exception {
+        MediaThread thread = new MediaThread("Worker", MediaThread.PRIORITY_RENDER);
+        thread.start();
+        final CountDownLatch done = new CountDownLatch(1);
+        thread.post(new Runnable() {
+            @Override
+            public void run() {
+                throw new IllegalStateException("codec gone");
+            }
+        });
+        thread.post(new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        thread.quit();
+    }
+}
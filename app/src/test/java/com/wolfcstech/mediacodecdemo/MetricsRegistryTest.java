@@ -0,0 +1,105 @@
+package com.wolfcstech.mediacodecdemo;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class MetricsRegistryTest {
+    private static class FakeClock implements JitterBuffer.Clock {
+        long mNanos = 1000;
+
+        @Override
+        public long nanoTime() {
+            return mNanos;
+        }
+
+        void advanceMs(long ms) {
+            mNanos += TimeUnit.MILLISECONDS.toNanos(ms);
+        }
+    }
+
+    @Test
+    public void stripedCounterSumsAcrossThreads() throws Exception {
+        final StripedCounter counter = new StripedCounter(4);
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 100000; j++) {
+                        counter.increment();
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(800000, counter.sum());
+        counter.reset();
+        assertEquals(0, counter.sum());
+    }
+
+    @Test
+    public void meterReportsRateOfTheLastInterval() {
+        FakeClock clock = new FakeClock();
+        MetricsRegistry registry = new MetricsRegistry(clock);
+        MetricsRegistry.Meter meter = registry.meter("bytes");
+        assertSame(meter, registry.meter("bytes"));
+
+        meter.mark(1000);
+        clock.advanceMs(1000);
+        registry.tick();
+        assertEquals(1000, meter.getRatePerSecond(), 0.001);
+
+        meter.mark(500);
+        clock.advanceMs(250);
+        registry.tick();
+        assertEquals(2000, meter.getRatePerSecond(), 0.001);
+        assertEquals(1500, meter.getCount());
+        assertEquals(1200, meter.getMeanRatePerSecond(), 0.001);
+    }
+
+    @Test
+    public void dumpListsEveryMetricInNameOrder() {
+        FakeClock clock = new FakeClock();
+        MetricsRegistry registry = new MetricsRegistry(clock);
+        registry.counter("b.count").add(3);
+        registry.meter("a.frames").mark(30);
+        registry.gauge("c.depth", new MetricsRegistry.Gauge() {
+            @Override
+            public long getValue() {
+                return 7;
+            }
+        });
+        clock.advanceMs(1000);
+        registry.tick();
+        assertEquals("a.frames 30 (30/s, mean 30/s)\nb.count 3\nc.depth 7\n", registry.dump());
+
+        try {
+            registry.meter("b.count");
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void sampledLogLetsOneMessageThroughPerInterval() {
+        FakeClock clock = new FakeClock();
+        SampledLog log = new SampledLog("Test", 1000, clock);
+        assertTrue(log.isLoggable());
+        log.i("first");
+        int allowed = 0;
+        for (int i = 0; i < 100; i++) {
+            clock.advanceMs(50);
+            if (log.isLoggable()) {
+                allowed++;
+            }
+        }
+        // 5 seconds of calls every 50ms.
+        assertEquals(5, allowed);
+    }
+}
@@ -0,0 +1,250 @@
+package com.wolfcstech.mediacodecdemo;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class NackRequesterTest {
+    private static final long MS = 1000000L;
+    private static final int PAYLOAD_SIZE = 1000;
+
+    private static class FakeClock implements JitterBuffer.Clock {
+        long mNow = 1000000000L;
+
+        @Override
+        public long nanoTime() {
+            return mNow;
+        }
+    }
+
+    private static final StreamReceiver.StreamDataReceivedListener DISCARD =
+            new StreamReceiver.StreamDataReceivedListener() {
+                @Override
+                public void onStreamDataReceived(int index, byte[] data, int offset, int size) {
+                }
+            };
+
+    private static final byte[] PAYLOAD = new byte[4];
+
+    private static void receive(NackRequester requester, int... indices) {
+        for (int index : indices) {
+            requester.onStreamDataReceived(index, PAYLOAD, 0, PAYLOAD.length);
+        }
+    }
+
+    /**
+     * The ranges of a NACK as first, count pairs.
+     */
+    private static int[] ranges(ByteBuffer nack) {
+        assertTrue(NackRequester.isNack(nack));
+        int count = nack.get(4) & 0xFF;
+        int[] ranges = new int[count * 2];
+        for (int r = 0; r < count; r++) {
+            int at = NackRequester.NACK_HEADER_SIZE + r * NackRequester.RANGE_SIZE;
+            ranges[r * 2] = nack.getInt(at);
+            ranges[r * 2 + 1] = nack.getShort(at + 4) & 0xFFFF;
+        }
+        assertEquals(NackRequester.NACK_HEADER_SIZE + count * NackRequester.RANGE_SIZE,
+                nack.remaining());
+        return ranges;
+    }
+
+    @Test
+    public void batchesGapsIntoRangesAfterReorderDelay() {
+        FakeClock clock = new FakeClock();
+        NackRequester requester = new NackRequester(64, 10, 40, 200, DISCARD, clock);
+        ByteBuffer nack = ByteBuffer.allocate(NackRequester.MAX_NACK_SIZE);
+
+        receive(requester, 0, 1, 4, 5, 6, 9, 10);
+        assertEquals(4, requester.getMissingCount());
+        // Give reordering a chance first.
+        assertFalse(requester.buildNack(nack));
+
+        clock.mNow += 10 * MS;
+        assertTrue(requester.buildNack(nack));
+        assertArrayEquals(new int[]{2, 2, 7, 2}, ranges(nack));
+        assertEquals(4, requester.getRequestedCount());
+        assertEquals(1, requester.getNackCount());
+
+        // Nothing new is due before the retry interval.
+        clock.mNow += 10 * MS;
+        assertFalse(requester.buildNack(nack));
+
+        receive(requester, 2, 8);
+        clock.mNow += 30 * MS;
+        assertTrue(requester.buildNack(nack));
+        assertArrayEquals(new int[]{3, 1, 7, 1}, ranges(nack));
+        assertEquals(2, requester.getRecoveredCount());
+        assertEquals(2, requester.getMissingCount());
+    }
+
+    @Test
+    public void reorderedPacketIsNotRequestedOrCountedRecovered() {
+        FakeClock clock = new FakeClock();
+        NackRequester requester = new NackRequester(64, 10, 40, 200, DISCARD, clock);
+        ByteBuffer nack = ByteBuffer.allocate(NackRequester.MAX_NACK_SIZE);
+
+        receive(requester, 0, 2, 1, 3);
+        clock.mNow += 10 * MS;
+        assertFalse(requester.buildNack(nack));
+        assertEquals(0, requester.getMissingCount());
+        assertEquals(0, requester.getRecoveredCount());
+        assertEquals(0, requester.getRequestedCount());
+    }
+
+    @Test
+    public void abandonsPastDeadlineAndCountsLateArrivals() {
+        FakeClock clock = new FakeClock();
+        NackRequester requester = new NackRequester(64, 10, 40, 100, DISCARD, clock);
+        ByteBuffer nack = ByteBuffer.allocate(NackRequester.MAX_NACK_SIZE);
+
+        receive(requester, 0, 3);
+        clock.mNow += 10 * MS;
+        assertTrue(requester.buildNack(nack));
+        assertArrayEquals(new int[]{1, 2}, ranges(nack));
+
+        clock.mNow += 100 * MS;
+        assertFalse(requester.buildNack(nack));
+        assertEquals(2, requester.getAbandonedCount());
+        assertEquals(0, requester.getMissingCount());
+
+        receive(requester, 1);
+        assertEquals(1, requester.getLateCount());
+        assertEquals(0, requester.getRecoveredCount());
+        // A duplicate of a late packet is not late twice.
+        receive(requester, 1);
+        assertEquals(1, requester.getLateCount());
+    }
+
+    @Test
+    public void gapWiderThanCapacityAbandonsOldest() {
+        FakeClock clock = new FakeClock();
+        NackRequester requester = new NackRequester(16, 10, 40, 200, DISCARD, clock);
+        ByteBuffer nack = ByteBuffer.allocate(NackRequester.MAX_NACK_SIZE);
+
+        receive(requester, 0, 101);
+        assertEquals(16, requester.getMissingCount());
+        assertEquals(84, requester.getAbandonedCount());
+        clock.mNow += 10 * MS;
+        assertTrue(requester.buildNack(nack));
+        assertArrayEquals(new int[]{85, 16}, ranges(nack));
+    }
+
+    @Test
+    public void parityPacketsPassWithoutTracking() {
+        final int[] delivered = new int[1];
+        NackRequester requester = new NackRequester(16, 10, 40, 200,
+                new StreamReceiver.StreamDataReceivedListener() {
+                    @Override
+                    public void onStreamDataReceived(int index, byte[] data, int offset,
+                                                     int size) {
+                        delivered[0]++;
+                    }
+                }, new FakeClock());
+        receive(requester, 0, FecEncoder.PARITY_FLAG, 1);
+        assertEquals(3, delivered[0]);
+        assertEquals(0, requester.getMissingCount());
+    }
+
+    /**
+     * Stands in for a lossy path: the first transmission of every packet whose index ends in
+     * 3 or 7 is lost, retransmissions get through.
+     */
+    private static class FirstLossStreamSender extends StreamSender {
+        private final boolean[] mDroppedOnce = new boolean[4096];
+
+        FirstLossStreamSender(int maxPayloadSize) {
+            super(maxPayloadSize);
+        }
+
+        @Override
+        protected void sendPacket(Subscriber subscriber, int index, ByteBuffer payload) {
+            if ((index % 10 == 3 || index % 10 == 7) && !mDroppedOnce[index]) {
+                mDroppedOnce[index] = true;
+                return;
+            }
+            super.sendPacket(subscriber, index, payload);
+        }
+    }
+
+    private static void assertLoopbackRecovers(int batchSize) throws Exception {
+        FirstLossStreamSender sender = new FirstLossStreamSender(PAYLOAD_SIZE);
+        sender.setRetransmitHistory(512);
+        sender.start(0);
+
+        Random random = new Random(5);
+        final int frames = 40;
+        // Ten packets a frame, so the last packet is never one that gets lost.
+        final int frameSize = 10 * PAYLOAD_SIZE;
+        final byte[] stream = new byte[frames * frameSize];
+        random.nextBytes(stream);
+
+        final StreamReceiver receiver = new StreamReceiver();
+        if (batchSize > 0) {
+            receiver.setBatchReceive(batchSize, 4 * 1024 * 1024);
+        }
+        final CountDownLatch done = new CountDownLatch(1);
+        final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        StreamReceiver.StreamDataReceivedListener collector =
+                new StreamReceiver.StreamDataReceivedListener() {
+                    @Override
+                    public void onStreamDataReceived(int index, byte[] data, int offset,
+                                                     int size) {
+                        received.write(data, offset, size);
+                        if (received.size() == stream.length) {
+                            receiver.stop();
+                            done.countDown();
+                        }
+                    }
+                };
+        NackRequester requester = new NackRequester(256, 5, 20, 1000,
+                new PacketReorderBuffer(256, PAYLOAD_SIZE, collector));
+        receiver.setDataReceivedListener(requester);
+        receiver.setNackRequester(requester);
+        final int port = sender.getLocalPort();
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                receiver.requestStreamData("127.0.0.1", port);
+            }
+        });
+        thread.start();
+        for (int i = 0; i < 500 && sender.getSubscriberCount() == 0; i++) {
+            Thread.sleep(10);
+        }
+
+        FrameBufferPool pool = new FrameBufferPool(8, frameSize, true);
+        for (int i = 0; i < frames; i++) {
+            FrameBuffer frame = pool.acquire(frameSize);
+            frame.data().put(stream, i * frameSize, frameSize).flip();
+            assertTrue(sender.sendFrame(frame));
+            Thread.sleep(2);
+        }
+        boolean complete = done.await(10, TimeUnit.SECONDS);
+        receiver.stop();
+        sender.stop();
+        thread.join(5000);
+        assertTrue(complete);
+
+        assertArrayEquals(stream, received.toByteArray());
+        assertEquals(frames * 2, requester.getRecoveredCount());
+        assertEquals(0, requester.getAbandonedCount());
+        assertTrue(sender.getRetransmittedPacketCount() >= frames * 2);
+    }
+
+    @Test
+    public void loopbackSocketReceiverRecoversLossByRetransmission() throws Exception {
+        assertLoopbackRecovers(0);
+    }
+
+    @Test
+    public void loopbackBatchReceiverRecoversLossByRetransmission() throws Exception {
+        assertLoopbackRecovers(16);
+    }
+}
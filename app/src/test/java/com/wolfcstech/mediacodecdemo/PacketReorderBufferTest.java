@@ -0,0 +1,139 @@
+package com.wolfcstech.mediacodecdemo;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class PacketReorderBufferTest {
+    private static class Recorder implements StreamReceiver.StreamDataReceivedListener {
+        final List<Integer> mIndices = new ArrayList<>();
+        final List<Byte> mFirstBytes = new ArrayList<>();
+
+        @Override
+        public void onStreamDataReceived(int index, byte[] data, int offset, int size) {
+            mIndices.add(index);
+            mFirstBytes.add(data[offset]);
+        }
+    }
+
+    private static void receive(PacketReorderBuffer buffer, int index) {
+        byte[] packet = {0, 0, 0, 0, (byte) index, 1, 2};
+        buffer.onStreamDataReceived(index, packet, 4, 3);
+    }
+
+    @Test
+    public void reordersOutOfOrderPackets() {
+        Recorder recorder = new Recorder();
+        PacketReorderBuffer buffer = new PacketReorderBuffer(8, 16, recorder);
+        int[] arrival = {0, 2, 3, 1, 5, 4, 6};
+        for (int index : arrival) {
+            receive(buffer, index);
+        }
+        for (int i = 0; i <= 6; i++) {
+            assertEquals(Integer.valueOf(i), recorder.mIndices.get(i));
+            assertEquals(Byte.valueOf((byte) i), recorder.mFirstBytes.get(i));
+        }
+        assertEquals(2, buffer.getReorderedCount());
+        assertEquals(2, buffer.getMaxReorderDepth());
+        assertEquals(0, buffer.getLostCount());
+        assertEquals(0, buffer.getBufferedCount());
+    }
+
+    @Test
+    public void countsDuplicates() {
+        Recorder recorder = new Recorder();
+        PacketReorderBuffer buffer = new PacketReorderBuffer(8, 16, recorder);
+        receive(buffer, 10);
+        receive(buffer, 10);
+        receive(buffer, 12);
+        receive(buffer, 12);
+        assertEquals(2, buffer.getDuplicateCount());
+        assertEquals(1, recorder.mIndices.size());
+    }
+
+    @Test
+    public void givesUpOnGapOnceWindowIsExceeded() {
+        Recorder recorder = new Recorder();
+        PacketReorderBuffer buffer = new PacketReorderBuffer(4, 16, recorder);
+        receive(buffer, 0);
+        for (int i = 2; i <= 4; i++) {
+            receive(buffer, i);
+        }
+        assertEquals(1, recorder.mIndices.size());
+        receive(buffer, 5);
+        assertEquals(1, buffer.getLostCount());
+        assertEquals(5, recorder.mIndices.size());
+        assertEquals(Integer.valueOf(2), recorder.mIndices.get(1));
+
+        receive(buffer, 1);
+        assertEquals(1, buffer.getDuplicateCount());
+    }
+
+    @Test
+    public void handlesIndexWrapAround() {
+        Recorder recorder = new Recorder();
+        PacketReorderBuffer buffer = new PacketReorderBuffer(8, 16, recorder);
+        receive(buffer, Integer.MAX_VALUE - 1);
+        receive(buffer, Integer.MIN_VALUE);
+        receive(buffer, Integer.MAX_VALUE);
+        assertEquals(3, recorder.mIndices.size());
+        assertEquals(Integer.valueOf(Integer.MIN_VALUE), recorder.mIndices.get(2));
+    }
+
+    @Test
+    public void flushDeliversHeldPackets() {
+        Recorder recorder = new Recorder();
+        PacketReorderBuffer buffer = new PacketReorderBuffer(8, 2, recorder);
+        receive(buffer, 0);
+        receive(buffer, 3);
+        buffer.flush();
+        assertEquals(2, recorder.mIndices.size());
+        assertEquals(2, buffer.getLostCount());
+    }
+
+    @Test
+    public void firstPacketOvertakenIsNotADuplicate() {
+        Recorder recorder = new Recorder();
+        PacketReorderBuffer buffer = new PacketReorderBuffer(64, 16, recorder);
+        int[] arrival = {1, 0, 3, 2};
+        for (int index : arrival) {
+            receive(buffer, index);
+        }
+        // Held until the stream is a few packets along.
+        assertEquals(0, recorder.mIndices.size());
+        for (int index = 4; index <= 8; index++) {
+            receive(buffer, index);
+        }
+        assertEquals(9, recorder.mIndices.size());
+        for (int i = 0; i <= 8; i++) {
+            assertEquals(Integer.valueOf(i), recorder.mIndices.get(i));
+        }
+        assertEquals(0, buffer.getDuplicateCount());
+        assertEquals(0, buffer.getLostCount());
+    }
+
+    @Test
+    public void largeIndexJumpsStartOver() {
+        Recorder recorder = new Recorder();
+        PacketReorderBuffer buffer = new PacketReorderBuffer(8, 16, recorder);
+        receive(buffer, 0);
+        receive(buffer, 1);
+        receive(buffer, 3);
+        // A sender restarted far ahead, then one restarted from scratch.
+        receive(buffer, 100000000);
+        receive(buffer, 100000001);
+        receive(buffer, 5);
+        receive(buffer, 6);
+        buffer.flush();
+
+        assertEquals(2, buffer.getResyncCount());
+        assertEquals(1, buffer.getLostCount());
+        assertEquals(0, buffer.getDuplicateCount());
+        assertEquals(Arrays.asList(0, 1, 3, 100000000, 100000001, 5, 6),
+                recorder.mIndices);
+    }
+}
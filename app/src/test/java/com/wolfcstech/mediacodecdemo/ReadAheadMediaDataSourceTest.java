@@ -0,0 +1,172 @@
+package com.wolfcstech.mediacodecdemo;
+
+import android.media.MediaDataSource;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ReadAheadMediaDataSourceTest {
+    private static final int BLOCK = 4096;
+
+    /**
+     * Serves a byte array, only as far as has been made available, counting the reads.
+     */
+    private static class ArrayDataSource extends MediaDataSource {
+        final byte[] mData;
+        volatile int mAvailable;
+        volatile int mReads = 0;
+        volatile boolean mClosed = false;
+
+        ArrayDataSource(byte[] data) {
+            mData = data;
+            mAvailable = data.length;
+        }
+
+        @Override
+        public synchronized int readAt(long position, byte[] buffer, int offset, int size) {
+            mReads++;
+            if (position >= mAvailable) {
+                return -1;
+            }
+            int length = (int) Math.min(size, mAvailable - position);
+            System.arraycopy(mData, (int) position, buffer, offset, length);
+            return length;
+        }
+
+        @Override
+        public long getSize() {
+            return mAvailable == mData.length ? mData.length : -1;
+        }
+
+        @Override
+        public void close() {
+            mClosed = true;
+        }
+    }
+
+    private static byte[] data(int length) {
+        byte[] data = new byte[length];
+        new Random(1).nextBytes(data);
+        return data;
+    }
+
+    private static void assertReads(MediaDataSource source, byte[] data, long position, int size)
+            throws IOException {
+        byte[] buffer = new byte[size];
+        int read = source.readAt(position, buffer, 0, size);
+        int expected = (int) Math.min(size, data.length - position);
+        assertEquals(expected, read);
+        for (int i = 0; i < read; i++) {
+            assertEquals(data[(int) position + i], buffer[i]);
+        }
+    }
+
+    @Test
+    public void repeatedSmallReadsHitTheCache() throws IOException {
+        byte[] data = data(BLOCK * 10);
+        ArrayDataSource upstream = new ArrayDataSource(data);
+        ReadAheadMediaDataSource source = new ReadAheadMediaDataSource(upstream, BLOCK, 4, 0, null);
+        // Box headers parsed back and forth within one block.
+        for (int i = 0; i < 20; i++) {
+            assertReads(source, data, BLOCK * 3 + (i * 37) % 1000, 8);
+            assertReads(source, data, BLOCK * 3 + 16, 8);
+        }
+        assertEquals(1, upstream.mReads);
+        assertEquals(1, source.getMissCount());
+        assertEquals(39, source.getHitCount());
+        assertEquals(39.0 / 40, source.getHitRatio(), 1e-9);
+        assertEquals(0, source.getPrefetchedBytes());
+    }
+
+    @Test
+    public void readsSpanBlocksAndStopAtTheEnd() throws IOException {
+        byte[] data = data(BLOCK * 3 + 100);
+        ReadAheadMediaDataSource source = new ReadAheadMediaDataSource(
+                new ArrayDataSource(data), BLOCK, 4, 0, null);
+        assertReads(source, data, BLOCK - 10, BLOCK + 20);
+        assertReads(source, data, BLOCK * 3 + 50, 200);
+        assertEquals(-1, source.readAt(data.length, new byte[16], 0, 16));
+        assertEquals(data.length, source.getSize());
+    }
+
+    @Test
+    public void hotBlockSurvivesASequentialScan() throws IOException {
+        byte[] data = data(BLOCK * 40);
+        ArrayDataSource upstream = new ArrayDataSource(data);
+        ReadAheadMediaDataSource source = new ReadAheadMediaDataSource(upstream, BLOCK, 4, 0, null);
+        // The moov atom, looked at twice.
+        assertReads(source, data, 100, 64);
+        assertReads(source, data, BLOCK * 20, 64);
+        assertReads(source, data, 200, 64);
+        // Sample data streams past in small reads.
+        for (long position = BLOCK * 21; position < BLOCK * 30; position += 512) {
+            assertReads(source, data, position, 512);
+        }
+        int reads = upstream.mReads;
+        assertReads(source, data, 300, 64);
+        assertEquals(reads, upstream.mReads);
+    }
+
+    @Test
+    public void sequentialReadsArePrefetched() throws Exception {
+        byte[] data = data(BLOCK * 64);
+        ArrayDataSource upstream = new ArrayDataSource(data);
+        MediaThread thread = new MediaThread("ReadAhead", MediaThread.PRIORITY_CODEC);
+        thread.start();
+        try {
+            ReadAheadMediaDataSource source =
+                    new ReadAheadMediaDataSource(upstream, BLOCK, 8, 4, thread);
+            for (long position = 0; position < data.length; position += 1024) {
+                assertReads(source, data, position, 1024);
+                if (position % BLOCK == 0) {
+                    // Let the prefetcher keep ahead, as decoding would.
+                    Thread.sleep(1);
+                }
+            }
+            assertTrue(source.getPrefetchedBytes() > data.length / 2);
+            assertTrue(source.getHitRatio() > 0.9);
+            assertEquals(data.length, source.getPrefetchedBytes()
+                    + source.getMissCount() * (long) BLOCK, BLOCK * 4);
+        } finally {
+            thread.quit();
+        }
+    }
+
+    @Test
+    public void randomReadsAreNotPrefetched() throws Exception {
+        byte[] data = data(BLOCK * 64);
+        MediaThread thread = new MediaThread("ReadAhead", MediaThread.PRIORITY_CODEC);
+        thread.start();
+        try {
+            ReadAheadMediaDataSource source = new ReadAheadMediaDataSource(
+                    new ArrayDataSource(data), BLOCK, 8, 4, thread);
+            Random random = new Random(2);
+            for (int i = 0; i < 200; i++) {
+                assertReads(source, data, random.nextInt(data.length - 64), 64);
+            }
+            assertEquals(0, source.getPrefetchedBytes());
+        } finally {
+            thread.quit();
+        }
+    }
+
+    @Test
+    public void readingBehindAGrowingStreamFetchesOnlyWhatArrived() throws IOException {
+        byte[] data = data(BLOCK * 2);
+        ArrayDataSource upstream = new ArrayDataSource(data);
+        upstream.mAvailable = 1000;
+        ReadAheadMediaDataSource source = new ReadAheadMediaDataSource(upstream, BLOCK, 4, 0, null);
+        assertReads(source, data, 0, 500);
+        assertEquals(-1, source.readAt(1000, new byte[10], 0, 10));
+
+        upstream.mAvailable = data.length;
+        assertReads(source, data, 900, 2000);
+        assertReads(source, data, 0, BLOCK * 2);
+        source.close();
+        assertTrue(upstream.mClosed);
+    }
+}
@@ -0,0 +1,165 @@
+package com.wolfcstech.mediacodecdemo;
+
+import android.media.MediaCodec;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class RtpH264PacketizerTest {
+    private static final int MAX_PACKET_SIZE = 200;
+
+    private static byte[] nal(int header, int size) {
+        byte[] nal = new byte[size];
+        nal[0] = (byte) header;
+        for (int i = 1; i < size; i++) {
+            // Keep payload bytes nonzero so no start code is emulated.
+            nal[i] = (byte) (1 + (i * 7 + header) % 250);
+        }
+        return nal;
+    }
+
+    private static ByteBuffer accessUnit(byte[]... nals) {
+        int size = 0;
+        for (byte[] nal : nals) {
+            size += 4 + nal.length;
+        }
+        ByteBuffer au = ByteBuffer.allocate(size);
+        for (byte[] nal : nals) {
+            au.putInt(1).put(nal);
+        }
+        au.flip();
+        return au;
+    }
+
+    private static List<byte[]> packetize(RtpH264Packetizer packetizer, ByteBuffer au, long ptsUs) {
+        final List<byte[]> packets = new ArrayList<>();
+        packetizer.packetize(au, ptsUs, new RtpH264Packetizer.PacketSink() {
+            @Override
+            public void onPacket(ByteBuffer packet) {
+                byte[] copy = new byte[packet.remaining()];
+                packet.get(copy);
+                packets.add(copy);
+            }
+        });
+        return packets;
+    }
+
+    private static class Collector implements FrameBufferPool.FrameReceivedListener {
+        final List<byte[]> mFrames = new ArrayList<>();
+        final List<FrameBuffer> mBuffers = new ArrayList<>();
+
+        @Override
+        public void onFrameReceived(FrameBuffer frame) {
+            byte[] copy = new byte[frame.size()];
+            frame.data().duplicate().get(copy);
+            mFrames.add(copy);
+            mBuffers.add(frame);
+        }
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        byte[] array = new byte[buffer.remaining()];
+        buffer.duplicate().get(array);
+        return array;
+    }
+
+    @Test
+    public void packetsStayWithinMaxSizeAndUseAllModes() {
+        RtpH264Packetizer packetizer = new RtpH264Packetizer(MAX_PACKET_SIZE, 1234);
+        ByteBuffer au = accessUnit(nal(0x67, 12), nal(0x68, 4), nal(0x65, 1000));
+        List<byte[]> packets = packetize(packetizer, au, 0);
+
+        assertEquals(0, au.position());
+        // One STAP-A for SPS and PPS, then FU-A fragments of the IDR slice.
+        assertEquals(H264.NAL_STAP_A, packets.get(0)[12] & 0x1F);
+        for (int i = 1; i < packets.size(); i++) {
+            assertEquals(H264.NAL_FU_A, packets.get(i)[12] & 0x1F);
+        }
+        assertEquals(0x80, packets.get(1)[13] & 0xC0);
+        assertEquals(0x40, packets.get(packets.size() - 1)[13] & 0xC0);
+        for (int i = 0; i < packets.size(); i++) {
+            byte[] packet = packets.get(i);
+            assertTrue(packet.length <= MAX_PACKET_SIZE);
+            assertEquals(i, ((packet[2] & 0xFF) << 8) | (packet[3] & 0xFF));
+            boolean marker = (packet[1] & 0x80) != 0;
+            assertEquals(i == packets.size() - 1, marker);
+        }
+    }
+
+    @Test
+    public void roundTripRestoresAccessUnits() {
+        RtpH264Packetizer packetizer = new RtpH264Packetizer(MAX_PACKET_SIZE, 1234);
+        FrameBufferPool pool = new FrameBufferPool(4, 4096, false);
+        Collector collector = new Collector();
+        RtpH264Depacketizer depacketizer = new RtpH264Depacketizer(pool, collector, 4096);
+
+        ByteBuffer config = accessUnit(nal(0x67, 12), nal(0x68, 4));
+        ByteBuffer idr = accessUnit(nal(0x06, 20), nal(0x65, 1000));
+        ByteBuffer slice = accessUnit(nal(0x41, 150));
+        long[] pts = {0, 0, 100000};
+        ByteBuffer[] aus = {config, idr, slice};
+        for (int i = 0; i < aus.length; i++) {
+            for (byte[] packet : packetize(packetizer, aus[i], pts[i])) {
+                depacketizer.onPacket(packet, 0, packet.length);
+            }
+        }
+
+        assertEquals(3, collector.mFrames.size());
+        for (int i = 0; i < aus.length; i++) {
+            assertArrayEquals(toArray(aus[i]), collector.mFrames.get(i));
+        }
+        assertEquals(MediaCodec.BUFFER_FLAG_CODEC_CONFIG, collector.mBuffers.get(0).getFlags());
+        assertEquals(MediaCodec.BUFFER_FLAG_KEY_FRAME, collector.mBuffers.get(1).getFlags());
+        assertEquals(0, collector.mBuffers.get(2).getFlags());
+        assertEquals(100000, collector.mBuffers.get(2).getPresentationTimeUs());
+        assertEquals(0, depacketizer.getLostPacketCount());
+    }
+
+    @Test
+    public void presentationTimeMapsBackToTheSendersFrameId() {
+        RtpH264Packetizer packetizer = new RtpH264Packetizer(MAX_PACKET_SIZE, 5);
+        FrameBufferPool pool = new FrameBufferPool(8, 4096, false);
+        Collector collector = new Collector();
+        RtpH264Depacketizer depacketizer = new RtpH264Depacketizer(pool, collector, 4096);
+        // Capture times in microseconds, some far past the 32-bit RTP clock's wrap.
+        long[] pts = {1, 11, 12, 33333, 47721858835L, 123456789012L, 987654321098765L};
+        for (long ptsUs : pts) {
+            for (byte[] packet : packetize(packetizer, accessUnit(nal(0x41, 150)), ptsUs)) {
+                depacketizer.onPacket(packet, 0, packet.length);
+            }
+        }
+
+        assertEquals(pts.length, collector.mBuffers.size());
+        for (int i = 0; i < pts.length; i++) {
+            assertEquals(LatencyTracer.frameId(pts[i]),
+                    LatencyTracer.frameId(collector.mBuffers.get(i).getPresentationTimeUs()));
+        }
+    }
+
+    @Test
+    public void lostFragmentDropsOnlyThatNal() {
+        RtpH264Packetizer packetizer = new RtpH264Packetizer(MAX_PACKET_SIZE, 1);
+        FrameBufferPool pool = new FrameBufferPool(4, 4096, false);
+        Collector collector = new Collector();
+        RtpH264Depacketizer depacketizer = new RtpH264Depacketizer(pool, collector, 4096);
+
+        byte[] sei = nal(0x06, 20);
+        ByteBuffer au = accessUnit(sei, nal(0x65, 1000));
+        List<byte[]> packets = packetize(packetizer, au, 0);
+        for (int i = 0; i < packets.size(); i++) {
+            if (i != 2) {
+                depacketizer.onPacket(packets.get(i), 0, packets.get(i).length);
+            }
+        }
+
+        assertEquals(1, depacketizer.getLostPacketCount());
+        assertEquals(1, collector.mFrames.size());
+        assertArrayEquals(toArray(accessUnit(sei)), collector.mFrames.get(0));
+        assertEquals(0, collector.mBuffers.get(0).getFlags() & MediaCodec.BUFFER_FLAG_KEY_FRAME);
+    }
+}
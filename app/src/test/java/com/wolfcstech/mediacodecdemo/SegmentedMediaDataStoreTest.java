@@ -0,0 +1,138 @@
+package com.wolfcstech.mediacodecdemo;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class SegmentedMediaDataStoreTest {
+    private static final int SEGMENT = SegmentedMediaDataStore.SEGMENT_SIZE;
+
+    private static byte[] pattern(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i * 31 + 7);
+        }
+        return data;
+    }
+
+    @Test
+    public void readsBackAcrossSegmentBoundaries() {
+        SegmentPool pool = new SegmentPool(SEGMENT, 8);
+        SegmentedMediaDataStore store = new SegmentedMediaDataStore(pool);
+        byte[] data = pattern(SEGMENT * 40 + 123);
+        // Uneven appends so packets straddle segments and the segment table has to grow.
+        int pos = 0;
+        while (pos < data.length) {
+            int size = Math.min(1400, data.length - pos);
+            store.append(data, pos, size);
+            pos += size;
+        }
+        assertEquals(data.length, store.length());
+
+        byte[] out = new byte[5000];
+        long position = SEGMENT - 2500;
+        assertEquals(5000, store.read(position, out, 0, 5000));
+        for (int i = 0; i < 5000; i++) {
+            assertEquals(data[(int) position + i], out[i]);
+        }
+    }
+
+    @Test
+    public void readReturnsWhatIsStoredSoFar() {
+        SegmentedMediaDataStore store = new SegmentedMediaDataStore(new SegmentPool(SEGMENT, 8));
+        store.append(pattern(100), 0, 100);
+        byte[] out = new byte[64];
+        assertEquals(40, store.read(60, out, 0, 64));
+        assertEquals(0, store.read(100, out, 0, 64));
+    }
+
+    @Test
+    public void closeReturnsSegmentsToPool() {
+        SegmentPool pool = new SegmentPool(SEGMENT, 8);
+        SegmentedMediaDataStore store = new SegmentedMediaDataStore(pool);
+        byte[] data = pattern(SEGMENT * 3);
+        store.append(data, 0, data.length);
+        store.close();
+        assertEquals(3, pool.getPooledCount());
+        assertEquals(0, store.length());
+
+        SegmentedMediaDataStore next = new SegmentedMediaDataStore(pool);
+        next.append(data, 0, 10);
+        assertEquals(2, pool.getPooledCount());
+    }
+
+    @Test
+    public void closedStoreIgnoresAppendsAndReads() {
+        SegmentPool pool = new SegmentPool(SEGMENT, 8);
+        SegmentedMediaDataStore store = new SegmentedMediaDataStore(pool);
+        store.append(pattern(100), 0, 100);
+        store.close();
+        store.close();
+        assertEquals(1, pool.getPooledCount());
+
+        store.append(pattern(100), 0, 100);
+        assertEquals(0, store.length());
+        assertEquals(0, store.read(0, new byte[10], 0, 10));
+        assertEquals(1, pool.getPooledCount());
+    }
+
+    @Test
+    public void closeWhileReadingAndAppendingReleasesSegmentsOnce() throws Exception {
+        for (int round = 0; round < 20; round++) {
+            SegmentPool pool = new SegmentPool(SEGMENT, 64);
+            final SegmentedMediaDataStore store = new SegmentedMediaDataStore(pool);
+            final byte[] data = pattern(SEGMENT * 8);
+            final AtomicReference<Throwable> failure = new AtomicReference<>();
+            final CountDownLatch started = new CountDownLatch(2);
+            Thread writer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    started.countDown();
+                    for (int pos = 0; pos < data.length; pos += 1400) {
+                        store.append(data, pos, Math.min(1400, data.length - pos));
+                    }
+                }
+            });
+            Thread reader = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    started.countDown();
+                    byte[] out = new byte[4096];
+                    try {
+                        for (int i = 0; i < 2000; i++) {
+                            store.read((i * 7919L) % data.length, out, 0, out.length);
+                        }
+                    } catch (Throwable t) {
+                        failure.set(t);
+                    }
+                }
+            });
+            writer.start();
+            reader.start();
+            started.await();
+            store.close();
+            writer.join();
+            reader.join();
+
+            assertNull(failure.get());
+            assertEquals(0, store.length());
+            // Every segment the writer took came back, none of them twice.
+            assertEquals(pool.getPooledCount(), countDistinct(pool));
+        }
+    }
+
+    private static int countDistinct(SegmentPool pool) {
+        Set<byte[]> segments = Collections.newSetFromMap(new IdentityHashMap<byte[], Boolean>());
+        int count = pool.getPooledCount();
+        for (int i = 0; i < count; i++) {
+            segments.add(pool.acquire());
+        }
+        return segments.size();
+    }
+}
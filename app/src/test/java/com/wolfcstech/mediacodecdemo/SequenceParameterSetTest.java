@@ -0,0 +1,221 @@
+package com.wolfcstech.mediacodecdemo;
+
+import android.media.MediaCodec;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SequenceParameterSetTest {
+    /**
+     * Writes RBSP bits and encapsulates them into a NAL unit with emulation prevention.
+     */
+    private static class BitWriter {
+        private final ByteArrayOutputStream mBytes = new ByteArrayOutputStream();
+        private int mCurrent;
+        private int mBitCount;
+
+        BitWriter bits(long value, int count) {
+            for (int i = count - 1; i >= 0; i--) {
+                bit(((value >> i) & 1) != 0);
+            }
+            return this;
+        }
+
+        BitWriter bit(boolean set) {
+            mCurrent = (mCurrent << 1) | (set ? 1 : 0);
+            if (++mBitCount == 8) {
+                mBytes.write(mCurrent);
+                mCurrent = 0;
+                mBitCount = 0;
+            }
+            return this;
+        }
+
+        BitWriter ue(int value) {
+            long codeNum = value + 1L;
+            int length = 64 - Long.numberOfLeadingZeros(codeNum);
+            bits(0, length - 1);
+            return bits(codeNum, length);
+        }
+
+        BitWriter se(int value) {
+            return ue(value > 0 ? 2 * value - 1 : -2 * value);
+        }
+
+        byte[] toNal(int header) {
+            bit(true); // rbsp_stop_one_bit
+            while (mBitCount != 0) {
+                bit(false);
+            }
+            byte[] rbsp = mBytes.toByteArray();
+            ByteArrayOutputStream nal = new ByteArrayOutputStream();
+            nal.write(header);
+            int zeros = 0;
+            for (byte b : rbsp) {
+                if (zeros >= 2 && (b & 0xFF) <= 3) {
+                    nal.write(3);
+                    zeros = 0;
+                }
+                nal.write(b);
+                zeros = b == 0 ? zeros + 1 : 0;
+            }
+            return nal.toByteArray();
+        }
+    }
+
+    /**
+     * A baseline SPS for a frame-coded picture, cropped at the bottom and right.
+     */
+    private static byte[] baselineSps(int widthInMbs, int heightInMbs, int cropRight, int cropBottom) {
+        BitWriter w = new BitWriter();
+        w.bits(66, 8).bits(0xC0, 8).bits(31, 8).ue(0);
+        w.ue(0); // log2_max_frame_num_minus4
+        w.ue(2); // pic_order_cnt_type
+        w.ue(1).bit(false);
+        w.ue(widthInMbs - 1).ue(heightInMbs - 1);
+        w.bit(true).bit(true); // frame_mbs_only, direct_8x8_inference
+        boolean cropping = cropRight != 0 || cropBottom != 0;
+        w.bit(cropping);
+        if (cropping) {
+            w.ue(0).ue(cropRight).ue(0).ue(cropBottom);
+        }
+        w.bit(false); // vui_parameters_present_flag
+        return w.toNal(0x67);
+    }
+
+    private static SequenceParameterSet parse(byte[] nal) {
+        return SequenceParameterSet.parse(ByteBuffer.wrap(nal), 0, nal.length);
+    }
+
+    @Test
+    public void parsesBaselineWithCropping() {
+        SequenceParameterSet sps = parse(baselineSps(80, 45, 0, 0));
+        assertEquals(66, sps.getProfileIdc());
+        assertEquals(31, sps.getLevelIdc());
+        assertEquals(1280, sps.getWidth());
+        assertEquals(720, sps.getHeight());
+
+        sps = parse(baselineSps(120, 68, 0, 4));
+        assertEquals(1920, sps.getWidth());
+        assertEquals(1088, sps.getCodedHeight());
+        assertEquals(1080, sps.getHeight());
+        assertEquals(-1, sps.getMaxNumReorderFrames());
+        assertEquals(0, sps.getFrameRate(), 0);
+    }
+
+    @Test
+    public void parsesHighProfileWithScalingListsAndVui() {
+        BitWriter w = new BitWriter();
+        w.bits(100, 8).bits(0, 8).bits(40, 8).ue(0);
+        w.ue(1); // chroma_format_idc 4:2:0
+        w.ue(0).ue(0).bit(false);
+        w.bit(true); // seq_scaling_matrix_present_flag
+        for (int i = 0; i < 8; i++) {
+            w.bit(i == 0 || i == 6);
+            if (i == 0) {
+                for (int j = 0; j < 16; j++) {
+                    w.se(j == 0 ? 8 : 1);
+                }
+            } else if (i == 6) {
+                // A delta that makes the next scale 0 ends the list early.
+                w.se(-8);
+            }
+        }
+        w.ue(4).ue(0).ue(4); // frame_num, poc type 0, poc lsb
+        w.ue(4).bit(false);
+        w.ue(59).ue(33); // 960 x 544 coded
+        w.bit(true).bit(true);
+        w.bit(true).ue(0).ue(0).ue(0).ue(2); // crop to 540 lines
+        w.bit(true); // vui_parameters_present_flag
+        w.bit(true).bits(255, 8).bits(4, 16).bits(3, 16); // extended SAR
+        w.bit(false); // overscan
+        w.bit(true).bits(5, 3).bit(true).bit(true).bits(1, 8).bits(1, 8).bits(1, 8);
+        w.bit(false); // chroma location
+        w.bit(true).bits(1001, 32).bits(60000, 32).bit(true);
+        w.bit(true); // nal_hrd_parameters_present_flag
+        w.ue(0).bits(0, 4).bits(0, 4).ue(1000).ue(1000).bit(false).bits(0, 20);
+        w.bit(false); // vcl_hrd
+        w.bit(false); // low_delay_hrd_flag
+        w.bit(false); // pic_struct_present
+        w.bit(true).bit(true).ue(0).ue(0).ue(16).ue(16).ue(2).ue(4);
+
+        SequenceParameterSet sps = parse(w.toNal(0x67));
+        assertEquals(100, sps.getProfileIdc());
+        assertEquals(1, sps.getChromaFormatIdc());
+        assertEquals(960, sps.getWidth());
+        assertEquals(540, sps.getHeight());
+        assertEquals(4, sps.getSarWidth());
+        assertEquals(3, sps.getSarHeight());
+        assertTrue(sps.isFullRange());
+        assertEquals(29.97, sps.getFrameRate(), 0.01);
+        assertEquals(2, sps.getMaxNumReorderFrames());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsTruncatedSps() {
+        byte[] nal = baselineSps(80, 45, 0, 0);
+        SequenceParameterSet.parse(ByteBuffer.wrap(nal), 0, 6);
+    }
+
+    private static FrameBuffer frame(FrameBufferPool pool, int flags, byte[]... nals) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] nal : nals) {
+            out.write(0);
+            out.write(0);
+            out.write(0);
+            out.write(1);
+            out.write(nal, 0, nal.length);
+        }
+        byte[] bytes = out.toByteArray();
+        FrameBuffer frame = pool.acquire(bytes.length);
+        frame.data().put(bytes).flip();
+        frame.setFlags(flags);
+        return frame;
+    }
+
+    @Test
+    public void configuratorReconfiguresOnlyWhenParametersChange() {
+        final List<SequenceParameterSet> configs = new ArrayList<>();
+        DecoderConfigurator configurator = new DecoderConfigurator(new DecoderConfigurator.Listener() {
+            @Override
+            public void onConfigurationChanged(SequenceParameterSet sps, ByteBuffer csd0, ByteBuffer csd1) {
+                assertEquals(1, csd0.get(3));
+                assertEquals(0x67, csd0.get(4));
+                assertEquals(0x68, csd1.get(4));
+                configs.add(sps);
+            }
+        });
+        FrameBufferPool pool = new FrameBufferPool(8, 64, false);
+        byte[] pps = {0x68, (byte) 0xCE, 0x3C, (byte) 0x80};
+        byte[] slice = {0x41, (byte) 0x9A, 0x10};
+        byte[] idr = {0x65, (byte) 0x88, 0x10};
+        int config = MediaCodec.BUFFER_FLAG_CODEC_CONFIG;
+
+        assertFalse(configurator.onFrame(frame(pool, 0, slice)));
+        assertTrue(configurator.onFrame(frame(pool, config, baselineSps(80, 45, 0, 0), pps)));
+        assertEquals(1, configs.size());
+        assertEquals(1280, configs.get(0).getWidth());
+
+        // Repeated parameter sets are passed on in-band.
+        assertTrue(configurator.onFrame(frame(pool, MediaCodec.BUFFER_FLAG_KEY_FRAME,
+                baselineSps(80, 45, 0, 0), pps, idr)));
+        assertTrue(configurator.onFrame(frame(pool, 0, slice)));
+        assertEquals(1, configs.size());
+
+        assertTrue(configurator.onFrame(frame(pool, config, baselineSps(120, 68, 0, 4), pps)));
+        assertEquals(2, configs.size());
+        assertEquals(1080, configs.get(1).getHeight());
+        assertEquals(1, configurator.getRejectedCount());
+
+        // Transports without flags still announce a resolution change.
+        assertTrue(configurator.onFrame(frame(pool, 0, baselineSps(80, 45, 0, 0), pps, idr)));
+        assertEquals(3, configs.size());
+        assertEquals(720, configs.get(2).getHeight());
+    }
+}
@@ -0,0 +1,72 @@
+package com.wolfcstech.mediacodecdemo;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Loopback throughput of the blocking DatagramSocket receive path against the batched
+ * DatagramChannel path. Run with {@code main}, it is not part of the unit tests.
+ */
+public class StreamReceiverBenchmark {
+    private static final int PACKETS = 200000;
+    private static final int PAYLOAD_SIZE = 1400;
+    private static final int END_INDEX = -1;
+
+    public static void main(String[] args) throws Exception {
+        for (int round = 0; round < 3; round++) {
+            run("DatagramSocket", 0);
+            run("DatagramChannel", 32);
+        }
+    }
+
+    private static void run(String name, int batchSize) throws Exception {
+        final DatagramSocket server = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        final StreamReceiver receiver = new StreamReceiver();
+        final AtomicLong received = new AtomicLong();
+        receiver.setBatchReceive(batchSize, 4 * 1024 * 1024);
+        receiver.setDataReceivedListener(new StreamReceiver.StreamDataReceivedListener() {
+            @Override
+            public void onStreamDataReceived(int index, byte[] data, int offset, int size) {
+                if (index == END_INDEX) {
+                    receiver.stop();
+                } else {
+                    received.incrementAndGet();
+                }
+            }
+        });
+        Thread receiveThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                receiver.requestStreamData("127.0.0.1", server.getLocalPort());
+            }
+        });
+        receiveThread.start();
+
+        DatagramPacket hello = new DatagramPacket(new byte[64], 64);
+        server.receive(hello);
+
+        byte[] packet = new byte[4 + PAYLOAD_SIZE];
+        ByteBuffer header = ByteBuffer.wrap(packet);
+        DatagramPacket sendPacket = new DatagramPacket(packet, packet.length, hello.getSocketAddress());
+        long start = System.nanoTime();
+        for (int i = 0; i < PACKETS; i++) {
+            header.putInt(0, i);
+            server.send(sendPacket);
+        }
+        header.putInt(0, END_INDEX);
+        for (int i = 0; i < 10 && receiveThread.isAlive(); i++) {
+            server.send(sendPacket);
+            receiveThread.join(100);
+        }
+        long elapsedNanos = System.nanoTime() - start;
+        receiver.stop();
+        receiveThread.join();
+        server.close();
+
+        System.out.printf("%-16s %9.0f packets/s received, %5.2f%% lost%n", name,
+                received.get() * 1e9 / elapsedNanos, 100.0 * (PACKETS - received.get()) / PACKETS);
+    }
+}
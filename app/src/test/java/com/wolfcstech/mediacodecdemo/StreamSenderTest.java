@@ -0,0 +1,402 @@
+package com.wolfcstech.mediacodecdemo;
+
+import android.media.MediaCodec;
+
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+/**
+ * Loopback end-to-end runs of the senders against the receivers they pair with.
+ */
+public class StreamSenderTest {
+    private static FrameBuffer frame(FrameBufferPool pool, int size, int seed) {
+        FrameBuffer frame = pool.acquire(size);
+        ByteBuffer data = frame.data();
+        for (int i = 0; i < size; i++) {
+            data.put((byte) (seed + i));
+        }
+        data.flip();
+        return frame;
+    }
+
+    private static void waitForSubscribers(int count, TCPStreamSender sender) throws InterruptedException {
+        for (int i = 0; i < 500 && sender.getSubscriberCount() < count; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, sender.getSubscriberCount());
+    }
+
+    @Test
+    public void tcpFramesReachEverySubscriberIntact() throws Exception {
+        final int frames = 500;
+        final int frameSize = 60 * 1024;
+        TCPStreamSender sender = new TCPStreamSender();
+        sender.start(0);
+
+        final CountDownLatch done = new CountDownLatch(2);
+        final AtomicInteger corrupt = new AtomicInteger();
+        final AtomicLong receivedBytes = new AtomicLong();
+        Thread[] threads = new Thread[2];
+        final TCPStreamReceiver[] receivers = new TCPStreamReceiver[2];
+        for (int r = 0; r < 2; r++) {
+            final TCPStreamReceiver receiver = new TCPStreamReceiver();
+            receivers[r] = receiver;
+            receiver.setUseSocketChannel(true);
+            receiver.setDataReceivedListener(new TCPStreamReceiver.StreamReceivedListener() {
+                int mCount = 0;
+
+                @Override
+                public void onDataReceived(ByteBuffer byteBuffer) {
+                    if (byteBuffer.remaining() != frameSize
+                            || byteBuffer.get(byteBuffer.position() + 1) != (byte) (mCount + 1)) {
+                        corrupt.incrementAndGet();
+                    }
+                    receivedBytes.addAndGet(byteBuffer.remaining());
+                    if (++mCount == frames) {
+                        receiver.stop();
+                        done.countDown();
+                    }
+                }
+            });
+            final int port = sender.getLocalPort();
+            threads[r] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    receiver.requestStreamData("127.0.0.1", port);
+                }
+            });
+            threads[r].start();
+        }
+        waitForSubscribers(2, sender);
+
+        FrameBufferPool pool = new FrameBufferPool(80, frameSize, true);
+        long start = System.nanoTime();
+        for (int i = 0; i < frames; i++) {
+            while (pool.getOutstandingCount() > 48) {
+                Thread.sleep(1);
+            }
+            assertTrue(sender.sendFrame(frame(pool, frameSize, i)));
+        }
+        assertTrue(done.await(20, TimeUnit.SECONDS));
+        long elapsedNanos = System.nanoTime() - start;
+        sender.stop();
+        for (Thread thread : threads) {
+            thread.join(5000);
+        }
+
+        assertEquals(0, corrupt.get());
+        assertEquals(0, sender.getDroppedFrameCount());
+        assertEquals(2L * frames, sender.getSentFrameCount());
+        assertEquals(0, pool.getOutstandingCount());
+        System.out.printf("TCP loopback: %.1f MB/s to 2 subscribers%n",
+                receivedBytes.get() * 1e3 / elapsedNanos);
+    }
+
+    @Test
+    public void udpPacketsCarryConsecutiveIndices() throws Exception {
+        StreamSender sender = new StreamSender(1000);
+        sender.start(0);
+
+        final StreamReceiver receiver = new StreamReceiver();
+        receiver.setBatchReceive(16, 4 * 1024 * 1024);
+        final int frames = 50;
+        final int frameSize = 9500;
+        final int expectedPackets = frames * 10;
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicInteger outOfOrder = new AtomicInteger();
+        receiver.setDataReceivedListener(new StreamReceiver.StreamDataReceivedListener() {
+            int mNextIndex = 0;
+
+            @Override
+            public void onStreamDataReceived(int index, byte[] data, int offset, int size) {
+                int expectedSize = index % 10 == 9 ? 500 : 1000;
+                if (index != mNextIndex || size != expectedSize) {
+                    outOfOrder.incrementAndGet();
+                }
+                mNextIndex = index + 1;
+                if (mNextIndex == expectedPackets) {
+                    receiver.stop();
+                    done.countDown();
+                }
+            }
+        });
+        final int port = sender.getLocalPort();
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                receiver.requestStreamData("127.0.0.1", port);
+            }
+        });
+        thread.start();
+        for (int i = 0; i < 500 && sender.getSubscriberCount() == 0; i++) {
+            Thread.sleep(10);
+        }
+
+        FrameBufferPool pool = new FrameBufferPool(8, frameSize, true);
+        for (int i = 0; i < frames; i++) {
+            assertTrue(sender.sendFrame(frame(pool, frameSize, i)));
+            Thread.sleep(2);
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        sender.stop();
+        thread.join(5000);
+
+        assertEquals(0, outOfOrder.get());
+        assertEquals(expectedPackets, sender.getSentPacketCount());
+    }
+
+    @Test
+    public void udpPacketsAndRetransmitsLeaveFromTheServerPort() throws Exception {
+        StreamSender sender = new StreamSender(1000);
+        sender.setRetransmitHistory(16);
+        sender.start(0);
+        InetSocketAddress server = new InetSocketAddress("127.0.0.1", sender.getLocalPort());
+        DatagramSocket socket = new DatagramSocket();
+        socket.setSoTimeout(5000);
+        try {
+            socket.send(new DatagramPacket(new byte[1], 1, server));
+            for (int i = 0; i < 500 && sender.getSubscriberCount() == 0; i++) {
+                Thread.sleep(10);
+            }
+            FrameBufferPool pool = new FrameBufferPool(2, 1500, true);
+            assertTrue(sender.sendFrame(frame(pool, 1500, 0)));
+
+            DatagramPacket packet = new DatagramPacket(new byte[2048], 2048);
+            for (int expected : new int[] {0, 1}) {
+                socket.receive(packet);
+                assertEquals(server.getPort(), packet.getPort());
+                assertEquals(expected, ByteBuffer.wrap(packet.getData()).getInt());
+            }
+
+            ByteBuffer nack = ByteBuffer.allocate(NackRequester.NACK_HEADER_SIZE
+                    + NackRequester.RANGE_SIZE);
+            nack.putInt(NackRequester.NACK_MAGIC).put((byte) 1).putInt(1).putShort((short) 1);
+            socket.send(new DatagramPacket(nack.array(), nack.capacity(), server));
+            socket.receive(packet);
+            assertEquals(server.getPort(), packet.getPort());
+            assertEquals(1, ByteBuffer.wrap(packet.getData()).getInt());
+            assertEquals(504, packet.getLength());
+            // Counted on the sender thread after the send.
+            for (int i = 0; i < 500 && sender.getRetransmittedPacketCount() == 0; i++) {
+                Thread.sleep(10);
+            }
+            assertEquals(1, sender.getRetransmittedPacketCount());
+        } finally {
+            socket.close();
+            sender.stop();
+        }
+    }
+
+    @Test
+    public void udpSubscriberThatGoesQuietTimesOut() throws Exception {
+        StreamSender sender = new StreamSender(1000);
+        sender.setSubscriberTimeout(300);
+        sender.start(0);
+        InetSocketAddress server = new InetSocketAddress("127.0.0.1", sender.getLocalPort());
+        DatagramSocket quiet = new DatagramSocket();
+        DatagramSocket alive = new DatagramSocket();
+        try {
+            quiet.send(new DatagramPacket(new byte[1], 1, server));
+            alive.send(new DatagramPacket(new byte[1], 1, server));
+            for (int i = 0; i < 500 && sender.getSubscriberCount() < 2; i++) {
+                Thread.sleep(10);
+            }
+            assertEquals(2, sender.getSubscriberCount());
+
+            FrameBufferPool pool = new FrameBufferPool(16, 100, true);
+            for (int i = 0; i < 12; i++) {
+                alive.send(new DatagramPacket(new byte[1], 1, server));
+                assertTrue(sender.sendFrame(frame(pool, 100, i)));
+                Thread.sleep(100);
+            }
+            assertEquals(1, sender.getSubscriberCount());
+            assertEquals(1, sender.getTimedOutSubscriberCount());
+        } finally {
+            quiet.close();
+            alive.close();
+            sender.stop();
+        }
+    }
+
+    @Test
+    public void stalledTcpSubscriberResumesAtAKeyFrame() throws Exception {
+        final int frameSize = 64 * 1024;
+        final int keyFrame = 200;
+        TCPStreamSender sender = new TCPStreamSender();
+        final AtomicInteger syncRequests = new AtomicInteger();
+        sender.setSyncFrameListener(new StreamPublisher.SyncFrameListener() {
+            @Override
+            public void onSyncFrameNeeded() {
+                syncRequests.incrementAndGet();
+            }
+        });
+        sender.start(0);
+
+        Socket socket = new Socket();
+        // A small window, so the subscriber stalls long before the frames are all sent.
+        socket.setReceiveBufferSize(8 * 1024);
+        socket.connect(new InetSocketAddress("127.0.0.1", sender.getLocalPort()));
+        socket.setSoTimeout(5000);
+        try {
+            waitForSubscribers(1, sender);
+            FrameBufferPool pool = new FrameBufferPool(keyFrame + 2, frameSize, true);
+            for (int i = 0; i < keyFrame + 2; i++) {
+                FrameBuffer frame = frame(pool, frameSize, i);
+                frame.setFlags(i == 0 || i == keyFrame ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+                // The loop may be busy writing, offer the frame until it is taken.
+                while (!sender.sendFrame(frame.retain())) {
+                    Thread.sleep(1);
+                }
+                frame.release();
+            }
+
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            byte[] payload = new byte[frameSize];
+            int expected = 0;
+            boolean skipped = false;
+            int seed;
+            do {
+                assertEquals(frameSize, in.readInt());
+                in.readFully(payload);
+                seed = payload[0] & 0xFF;
+                if (seed != expected) {
+                    // Nothing but the key frame may follow a gap.
+                    assertFalse(skipped);
+                    assertEquals(keyFrame, seed);
+                    skipped = true;
+                }
+                expected = seed + 1;
+            } while (seed != keyFrame + 1);
+            assertTrue(skipped);
+            assertTrue(sender.getDroppedFrameCount() > 0);
+            // One for the join without a cached GOP, one for the stall.
+            assertEquals(2, syncRequests.get());
+        } finally {
+            socket.close();
+            sender.stop();
+        }
+    }
+
+    @Test
+    public void lateTcpSubscriberStartsWithCachedGop() throws Exception {
+        TCPStreamSender sender = new TCPStreamSender();
+        sender.setGopCache(new GopCache(16, 1024 * 1024));
+        final AtomicInteger syncRequests = new AtomicInteger();
+        sender.setSyncFrameListener(new StreamPublisher.SyncFrameListener() {
+            @Override
+            public void onSyncFrameNeeded() {
+                syncRequests.incrementAndGet();
+            }
+        });
+        sender.start(0);
+
+        FrameBufferPool pool = new FrameBufferPool(16, 1024, true);
+        int[] flags = {MediaCodec.BUFFER_FLAG_CODEC_CONFIG, MediaCodec.BUFFER_FLAG_KEY_FRAME, 0, 0};
+        for (int i = 0; i < flags.length; i++) {
+            FrameBuffer frame = frame(pool, 100 + i, i);
+            frame.setFlags(flags[i]);
+            assertTrue(sender.sendFrame(frame));
+        }
+
+        final TCPStreamReceiver receiver = new TCPStreamReceiver();
+        receiver.setUseSocketChannel(true);
+        final CountDownLatch done = new CountDownLatch(flags.length);
+        final StringBuilder sizes = new StringBuilder();
+        receiver.setDataReceivedListener(new TCPStreamReceiver.StreamReceivedListener() {
+            @Override
+            public void onDataReceived(ByteBuffer byteBuffer) {
+                sizes.append(byteBuffer.remaining()).append(' ');
+                done.countDown();
+            }
+        });
+        final int port = sender.getLocalPort();
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                receiver.requestStreamData("127.0.0.1", port);
+            }
+        });
+        thread.start();
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        receiver.stop();
+        sender.stop();
+        thread.join(5000);
+        assertEquals("100 101 102 103 ", sizes.toString());
+        assertEquals(0, syncRequests.get());
+        assertEquals(0, pool.getOutstandingCount());
+    }
+
+    @Test
+    public void lateTcpSubscriberGetsConfigAndWaitsForAKeyFrameWhenTheGopOverflowed()
+            throws Exception {
+        TCPStreamSender sender = new TCPStreamSender();
+        sender.setGopCache(new GopCache(2, 1024 * 1024));
+        final AtomicInteger syncRequests = new AtomicInteger();
+        sender.setSyncFrameListener(new StreamPublisher.SyncFrameListener() {
+            @Override
+            public void onSyncFrameNeeded() {
+                syncRequests.incrementAndGet();
+            }
+        });
+        sender.start(0);
+
+        FrameBufferPool pool = new FrameBufferPool(16, 1024, true);
+        // One P-frame more than the cache holds.
+        int[] flags = {MediaCodec.BUFFER_FLAG_CODEC_CONFIG, MediaCodec.BUFFER_FLAG_KEY_FRAME, 0, 0};
+        for (int i = 0; i < flags.length; i++) {
+            FrameBuffer frame = frame(pool, 100 + i, i);
+            frame.setFlags(flags[i]);
+            assertTrue(sender.sendFrame(frame));
+        }
+
+        final TCPStreamReceiver receiver = new TCPStreamReceiver();
+        receiver.setUseSocketChannel(true);
+        final CountDownLatch done = new CountDownLatch(3);
+        final StringBuilder sizes = new StringBuilder();
+        receiver.setDataReceivedListener(new TCPStreamReceiver.StreamReceivedListener() {
+            @Override
+            public void onDataReceived(ByteBuffer byteBuffer) {
+                sizes.append(byteBuffer.remaining()).append(' ');
+                done.countDown();
+            }
+        });
+        final int port = sender.getLocalPort();
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                receiver.requestStreamData("127.0.0.1", port);
+            }
+        });
+        thread.start();
+        waitForSubscribers(1, sender);
+
+        // The P-frame cannot be decoded without the GOP, the requested key frame can.
+        int[] later = {0, MediaCodec.BUFFER_FLAG_KEY_FRAME, 0};
+        for (int i = 0; i < later.length; i++) {
+            FrameBuffer frame = frame(pool, 200 + i, i);
+            frame.setFlags(later[i]);
+            assertTrue(sender.sendFrame(frame));
+        }
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        receiver.stop();
+        sender.stop();
+        thread.join(5000);
+        assertEquals("100 201 202 ", sizes.toString());
+        assertEquals(1, syncRequests.get());
+        assertEquals(0, pool.getOutstandingCount());
+    }
+}
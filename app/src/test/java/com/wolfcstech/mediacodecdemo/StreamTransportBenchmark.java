@@ -0,0 +1,86 @@
+package com.wolfcstech.mediacodecdemo;
+
+import android.media.MediaCodec;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Frames per second and payload throughput of each transport pushing the same access units
+ * from its publisher to its receiver on this host. UDP has no flow control, so it also reports
+ * how many frames arrived. The sender keeps at most a small window of frames in flight. Run with {@code main}, it is not part of the unit tests.
+ */
+public class StreamTransportBenchmark {
+    private static final int FRAME_SIZE = 40 * 1024;
+    private static final int FRAMES = 5000;
+    private static final int WINDOW = 8;
+    private static final int LOOPBACK_PORT = 42002;
+
+    public static void main(String[] args) throws Exception {
+        for (String name : new String[] {StreamTransports.LOOPBACK, StreamTransports.TCP,
+                StreamTransports.UDP}) {
+            run(name);
+        }
+    }
+
+    private static void run(String name) throws Exception {
+        StreamPublisher publisher = StreamTransports.createPublisher(name);
+        publisher.start(StreamTransports.LOOPBACK.equals(name) ? LOOPBACK_PORT : 0);
+        final StreamTransport transport = StreamTransports.createTransport(name);
+        final AtomicLong frames = new AtomicLong();
+        transport.setFrameSink(new FrameBufferPool(16, 2 * FRAME_SIZE, true),
+                new FrameBufferPool.FrameReceivedListener() {
+                    @Override
+                    public void onFrameReceived(FrameBuffer frame) {
+                        frames.incrementAndGet();
+                        frame.release();
+                    }
+                });
+        final int port = publisher.getLocalPort();
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                transport.receive("127.0.0.1", port);
+            }
+        });
+        thread.start();
+        Thread.sleep(300);
+
+        FrameBufferPool sendPool = new FrameBufferPool(16, FRAME_SIZE, true);
+        byte[] key = StreamTransportTest.accessUnit(0x65, FRAME_SIZE, 0);
+        byte[] delta = StreamTransportTest.accessUnit(0x41, FRAME_SIZE, 1);
+        long start = System.nanoTime();
+        for (int i = 0; i < FRAMES; i++) {
+            // Publishers drop frames for a lagging subscriber, so keep a bounded number in flight.
+            long windowDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(50);
+            while (i - frames.get() > WINDOW && System.nanoTime() < windowDeadline) {
+                Thread.yield();
+            }
+            FrameBuffer frame = sendPool.acquire(FRAME_SIZE);
+            boolean keyFrame = i % 30 == 0;
+            frame.data().put(keyFrame ? key : delta).flip();
+            frame.setFlags(keyFrame ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+            frame.setPresentationTimeUs(i * 33333L);
+            publisher.sendFrame(frame);
+        }
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        long last = -1;
+        while (frames.get() < FRAMES && System.nanoTime() < deadline) {
+            long now = frames.get();
+            if (now == last && now > 0) {
+                break;
+            }
+            last = now;
+            Thread.sleep(100);
+        }
+        long elapsedNs = System.nanoTime() - start;
+        transport.stop();
+        thread.join(5000);
+        publisher.stop();
+
+        double seconds = elapsedNs / 1e9;
+        long received = frames.get();
+        System.out.printf("%-8s %6d/%d frames  %8.0f frames/s  %8.1f MB/s%n", name, received,
+                FRAMES, received / seconds, received * (double) FRAME_SIZE / seconds / 1e6);
+    }
+}
@@ -0,0 +1,139 @@
+package com.wolfcstech.mediacodecdemo;
+
+import android.media.MediaCodec;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Every transport against its own publisher, delivering the same access units.
+ */
+public class StreamTransportTest {
+    private static final int LOOPBACK_PORT = 42001;
+
+    static byte[] accessUnit(int nalHeader, int size, int seed) {
+        byte[] au = new byte[size];
+        au[3] = 1;
+        au[4] = (byte) nalHeader;
+        au[5] = (byte) 0x88;
+        for (int i = 6; i < size; i++) {
+            // Never zero, so no start code is emulated.
+            au[i] = (byte) (1 + (i + seed) % 251);
+        }
+        return au;
+    }
+
+    private static byte[] fromFirstStartCode(byte[] bytes) {
+        int i = 0;
+        while (bytes[i] == 0 && bytes[i + 1] == 0 && bytes[i + 2] == 0) {
+            i++;
+        }
+        return Arrays.copyOfRange(bytes, i, bytes.length);
+    }
+
+    private void roundTrip(String name, int port) throws Exception {
+        StreamPublisher publisher = StreamTransports.createPublisher(name);
+        publisher.start(port);
+        final StreamTransport transport = StreamTransports.createTransport(name);
+        final List<byte[]> units = new CopyOnWriteArrayList<>();
+        final List<Integer> flags = new CopyOnWriteArrayList<>();
+        final List<Long> timestamps = new CopyOnWriteArrayList<>();
+        FrameBufferPool pool = new FrameBufferPool(8, 64 * 1024, true);
+        transport.setFrameSink(pool, new FrameBufferPool.FrameReceivedListener() {
+            @Override
+            public void onFrameReceived(FrameBuffer frame) {
+                byte[] unit = new byte[frame.size()];
+                frame.data().get(unit);
+                units.add(unit);
+                flags.add(frame.getFlags());
+                timestamps.add(frame.getPresentationTimeUs());
+                frame.release();
+            }
+        });
+        final List<Integer> states = new CopyOnWriteArrayList<>();
+        transport.setConnectionListener(new ConnectionSupervisor.Listener() {
+            @Override
+            public void onHealthChanged(int previousState, int state) {
+                states.add(state);
+            }
+        });
+        final int boundPort = publisher.getLocalPort();
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                transport.receive("127.0.0.1", boundPort);
+            }
+        });
+        thread.start();
+        for (int i = 0; i < 500 && !states.contains(ConnectionSupervisor.STATE_CONNECTED); i++) {
+            Thread.sleep(10);
+        }
+        // Give a datagram subscription time to reach the sender.
+        Thread.sleep(100);
+
+        byte[][] sent = {accessUnit(0x67, 40, 0), accessUnit(0x65, 20000, 1),
+                accessUnit(0x41, 3000, 2), accessUnit(0x41, 5000, 3)};
+        int[] sentFlags = {MediaCodec.BUFFER_FLAG_CODEC_CONFIG, MediaCodec.BUFFER_FLAG_KEY_FRAME, 0, 0};
+        FrameBufferPool sendPool = new FrameBufferPool(8, 32 * 1024, true);
+        for (int i = 0; i < sent.length; i++) {
+            FrameBuffer frame = sendPool.acquire(sent[i].length);
+            frame.data().put(sent[i]).flip();
+            frame.setFlags(sentFlags[i]);
+            frame.setPresentationTimeUs(i * 33000);
+            assertTrue(publisher.sendFrame(frame));
+        }
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (units.size() < sent.length && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        transport.stop();
+        thread.join(5000);
+        publisher.stop();
+
+        assertEquals(name, sent.length, units.size());
+        for (int i = 0; i < sent.length; i++) {
+            assertArrayEquals(name, fromFirstStartCode(sent[i]), fromFirstStartCode(units.get(i)));
+            assertEquals(name, sentFlags[i], (int) flags.get(i));
+            if (StreamTransports.TCP_TIMESTAMPED.equals(name)) {
+                assertEquals(name, i * 33000, (long) timestamps.get(i));
+            }
+        }
+        assertEquals(sent.length, transport.getReceivedFrameCount());
+        assertEquals(0, sendPool.getOutstandingCount());
+    }
+
+    @Test
+    public void tcpTransportDeliversAccessUnits() throws Exception {
+        roundTrip(StreamTransports.TCP, 0);
+    }
+
+    @Test
+    public void timestampedTcpTransportDeliversAccessUnitsWithTheirTimes() throws Exception {
+        roundTrip(StreamTransports.TCP_TIMESTAMPED, 0);
+    }
+
+    @Test
+    public void udpTransportDeliversAccessUnits() throws Exception {
+        roundTrip(StreamTransports.UDP, 0);
+    }
+
+    @Test
+    public void loopbackTransportDeliversAccessUnits() throws Exception {
+        roundTrip(StreamTransports.LOOPBACK, LOOPBACK_PORT);
+    }
+
+    @Test
+    public void headerDecodesBigEndianWithoutWrapping() {
+        byte[] data = {9, (byte) 0x80, 0x01, 0x02, (byte) 0xFF};
+        assertEquals(0x800102FF, StreamHeader.read(data, 1));
+        ByteBuffer buffer = ByteBuffer.wrap(data).order(java.nio.ByteOrder.LITTLE_ENDIAN);
+        assertEquals(0x800102FF, StreamHeader.read(buffer, 1));
+    }
+}
@@ -0,0 +1,154 @@
+package com.wolfcstech.mediacodecdemo;
+
+import org.junit.Test;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.Assert.*;
+
+public class StreamVerifierTest {
+    @Test
+    public void crc32cMatchesKnownVectors() {
+        assertEquals(0xE3069283, Crc32c.compute("123456789".getBytes(), 0, 9));
+        byte[] data = new byte[32];
+        assertEquals(0x8A9136AA, Crc32c.compute(data, 0, 32));
+        for (int i = 0; i < 32; i++) {
+            data[i] = (byte) 0xFF;
+        }
+        assertEquals(0x62A8AB43, Crc32c.compute(data, 0, 32));
+        for (int i = 0; i < 32; i++) {
+            data[i] = (byte) i;
+        }
+        assertEquals(0x46DD794E, Crc32c.compute(data, 0, 32));
+    }
+
+    @Test
+    public void crc32cIsIndependentOfHowDataIsSplit() {
+        Random random = new Random(3);
+        byte[] data = new byte[10000];
+        random.nextBytes(data);
+        int whole = Crc32c.compute(data, 0, data.length);
+
+        Crc32c crc = new Crc32c();
+        int position = 0;
+        while (position < data.length) {
+            int length = Math.min(random.nextInt(40), data.length - position);
+            if (length == 0) {
+                crc.update(data[position++]);
+            } else {
+                crc.update(data, position, length);
+                position += length;
+            }
+        }
+        assertEquals(whole & 0xFFFFFFFFL, crc.getValue());
+        crc.reset();
+        assertEquals(0, crc.getValue());
+    }
+
+    @Test
+    public void crc32cOfABufferLeavesItUntouched() {
+        byte[] data = new byte[1000];
+        new Random(5).nextBytes(data);
+        ByteBuffer direct = ByteBuffer.allocateDirect(1200);
+        direct.position(100);
+        direct.put(data).flip().position(100);
+        assertEquals(Crc32c.compute(data, 0, data.length), Crc32c.update(0, direct));
+        assertEquals(100, direct.position());
+        ByteBuffer heap = ByteBuffer.wrap(new byte[1200], 50, 1000).slice();
+        heap.put(data).flip();
+        assertEquals(Crc32c.compute(data, 0, data.length), Crc32c.update(0, heap));
+    }
+
+    /**
+     * Keeps the data packets that came through, by index.
+     */
+    private static class Recorder implements StreamReceiver.StreamDataReceivedListener,
+            StreamVerifier.Listener {
+        final Map<Integer, byte[]> mPackets = new TreeMap<>();
+        final List<Integer> mCorrupt = new ArrayList<>();
+
+        @Override
+        public void onStreamDataReceived(int index, byte[] data, int offset, int size) {
+            mPackets.put(index, Arrays.copyOfRange(data, offset, offset + size));
+        }
+
+        @Override
+        public void onCorruption(int index, int size) {
+            mCorrupt.add(index);
+        }
+    }
+
+    @Test
+    public void packetDamagedInTransitIsDroppedAndRebuilt() throws Exception {
+        StreamSender sender = new StreamSender(1000);
+        sender.setChecksum(true);
+        sender.setFec(4, 1);
+        sender.start(0);
+        InetSocketAddress server = new InetSocketAddress("127.0.0.1", sender.getLocalPort());
+        DatagramSocket socket = new DatagramSocket();
+        socket.setSoTimeout(5000);
+        Recorder recorder = new Recorder();
+        StreamVerifier verifier = new StreamVerifier(new FecDecoder(4, 1, 1000, recorder),
+                recorder);
+        byte[] sent = new byte[1500];
+        new Random(9).nextBytes(sent);
+        try {
+            socket.send(new DatagramPacket(new byte[1], 1, server));
+            for (int i = 0; i < 500 && sender.getSubscriberCount() == 0; i++) {
+                Thread.sleep(10);
+            }
+            FrameBufferPool pool = new FrameBufferPool(1, sent.length, true);
+            FrameBuffer frame = pool.acquire(sent.length);
+            frame.data().put(sent).flip();
+            assertTrue(sender.sendFrame(frame));
+
+            // Two data packets and the parity of their block.
+            DatagramPacket packet = new DatagramPacket(new byte[2048], 2048);
+            for (int i = 0; i < 3; i++) {
+                socket.receive(packet);
+                byte[] data = packet.getData();
+                if (i == 0) {
+                    data[StreamHeader.SIZE + 10] ^= 0x01;
+                }
+                verifier.onStreamDataReceived(StreamHeader.read(data, 0), data,
+                        StreamHeader.SIZE, packet.getLength() - StreamHeader.SIZE);
+            }
+        } finally {
+            socket.close();
+            sender.stop();
+        }
+
+        assertEquals(Arrays.asList(0), recorder.mCorrupt);
+        assertEquals(3, verifier.getCheckedCount());
+        assertEquals(1, verifier.getCorruptCount());
+        assertEquals(2, recorder.mPackets.size());
+        assertArrayEquals(Arrays.copyOfRange(sent, 0, 1000), recorder.mPackets.get(0));
+        assertArrayEquals(Arrays.copyOfRange(sent, 1000, 1500), recorder.mPackets.get(1));
+    }
+
+    @Test
+    public void packetTooShortForAChecksumIsDropped() {
+        Recorder recorder = new Recorder();
+        StreamVerifier verifier = new StreamVerifier(recorder, recorder);
+        byte[] data = {1, 2, 3, 0, 0, 0, 0};
+        int crc = StreamVerifier.checksum(7, data, 0, 3);
+        ByteBuffer.wrap(data).putInt(3, crc);
+        verifier.onStreamDataReceived(7, data, 0, 7);
+        verifier.onStreamDataReceived(8, data, 0, 7);
+        verifier.onStreamDataReceived(9, data, 0, 3);
+
+        assertEquals(1, recorder.mPackets.size());
+        assertArrayEquals(new byte[] {1, 2, 3}, recorder.mPackets.get(7));
+        // A damaged index fails the checksum as well.
+        assertEquals(Arrays.asList(8, 9), recorder.mCorrupt);
+    }
+}
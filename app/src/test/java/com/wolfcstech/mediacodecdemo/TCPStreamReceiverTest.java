@@ -0,0 +1,197 @@
+package com.wolfcstech.mediacodecdemo;
+
+import android.media.MediaCodec;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TCPStreamReceiverTest {
+    private static byte[] frame(int length, int seed) {
+        byte[] frame = new byte[length];
+        for (int i = 0; i < length; i++) {
+            frame[i] = (byte) (seed + i);
+        }
+        return frame;
+    }
+
+    @Test
+    public void channelMode_deliversFramesSplitAcrossReads() throws Exception {
+        final List<byte[]> frames = new ArrayList<>();
+        int[] sizes = {1, 1500, 70000, 4, 120 * 1024, 333};
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(wire);
+        for (int i = 0; i < sizes.length; i++) {
+            byte[] f = frame(sizes[i], i);
+            frames.add(f);
+            out.writeInt(f.length);
+            out.write(f);
+        }
+        final byte[] stream = wire.toByteArray();
+
+        final ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        Thread serverThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Socket socket = server.accept();
+                    InputStream in = socket.getInputStream();
+                    in.read(new byte[64]);
+                    OutputStream os = socket.getOutputStream();
+                    // Odd chunk sizes so headers and payloads straddle reads.
+                    int pos = 0;
+                    int chunk = 7;
+                    while (pos < stream.length) {
+                        int len = Math.min(chunk, stream.length - pos);
+                        os.write(stream, pos, len);
+                        os.flush();
+                        pos += len;
+                        chunk = chunk * 3 + 1;
+                    }
+                    socket.close();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        serverThread.start();
+
+        final TCPStreamReceiver receiver = new TCPStreamReceiver();
+        final List<byte[]> received = new ArrayList<>();
+        receiver.setUseSocketChannel(true);
+        receiver.setDataReceivedListener(new TCPStreamReceiver.StreamReceivedListener() {
+            @Override
+            public void onDataReceived(ByteBuffer byteBuffer) {
+                assertTrue(byteBuffer.isReadOnly());
+                byte[] copy = new byte[byteBuffer.remaining()];
+                byteBuffer.get(copy);
+                received.add(copy);
+                if (received.size() == frames.size()) {
+                    receiver.stop();
+                }
+            }
+        });
+        receiver.requestStreamData("127.0.0.1", server.getLocalPort());
+        serverThread.join(5000);
+        server.close();
+
+        assertEquals(frames.size(), received.size());
+        for (int i = 0; i < frames.size(); i++) {
+            assertArrayEquals(frames.get(i), received.get(i));
+        }
+    }
+
+    private static byte[] nal(int header, int size) {
+        byte[] nal = frame(4 + size, header);
+        nal[0] = 0;
+        nal[1] = 0;
+        nal[2] = 0;
+        nal[3] = 1;
+        nal[4] = (byte) header;
+        for (int i = 5; i < nal.length; i++) {
+            if (nal[i] == 0) {
+                nal[i] = 1;
+            }
+        }
+        // first_mb_in_slice 0, and a stop bit to end on.
+        nal[5] = (byte) 0x88;
+        nal[nal.length - 1] = (byte) 0x80;
+        return nal;
+    }
+
+    @Test(timeout = 10000)
+    public void streamMode_feedsTheAssemblerWithoutOtherListeners() throws Exception {
+        ByteArrayOutputStream config = new ByteArrayOutputStream();
+        config.write(nal(0x67, 12));
+        config.write(nal(0x68, 4));
+        byte[][] payloads = {config.toByteArray(), nal(0x65, 3000), nal(0x41, 700)};
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(wire);
+        for (int i = 0; i < payloads.length; i++) {
+            byte[] payload = payloads[i];
+            out.writeInt(payload.length);
+            out.writeLong(i * 33333L);
+            out.write(payload);
+        }
+        final byte[] stream = wire.toByteArray();
+
+        final ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        Thread serverThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Socket socket = server.accept();
+                    socket.getInputStream().read(new byte[64]);
+                    // One write, so a read ends in the middle of a later frame.
+                    socket.getOutputStream().write(stream);
+                    socket.getOutputStream().flush();
+                    socket.getInputStream().read();
+                    socket.close();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        serverThread.start();
+
+        final TCPStreamReceiver receiver = new TCPStreamReceiver();
+        receiver.setPresentationTimes(true);
+        final List<Integer> flags = new ArrayList<>();
+        final List<Integer> sizes = new ArrayList<>();
+        final List<Long> timestamps = new ArrayList<>();
+        FrameBufferPool pool = new FrameBufferPool(4, 4096, false);
+        AccessUnitAssembler assembler = new AccessUnitAssembler(pool,
+                new FrameBufferPool.FrameReceivedListener() {
+                    @Override
+                    public void onFrameReceived(FrameBuffer frame) {
+                        flags.add(frame.getFlags());
+                        sizes.add(frame.size());
+                        timestamps.add(frame.getPresentationTimeUs());
+                        frame.release();
+                        if (flags.size() == 3) {
+                            receiver.stop();
+                        }
+                    }
+                }, 4096);
+        assembler.setFlushOnChunkEnd(true);
+        receiver.setAccessUnitAssembler(assembler);
+        receiver.requestStreamData("127.0.0.1", server.getLocalPort());
+        serverThread.join(5000);
+        server.close();
+
+        assertEquals(3, flags.size());
+        assertEquals(MediaCodec.BUFFER_FLAG_CODEC_CONFIG, (int) flags.get(0));
+        assertEquals(MediaCodec.BUFFER_FLAG_KEY_FRAME, (int) flags.get(1));
+        assertEquals(0, (int) flags.get(2));
+        // Each unit keeps the presentation time of the frame it arrived in.
+        assertEquals(Arrays.asList(0L, 33333L, 66666L), timestamps);
+        // The same units as feeding the payloads to an assembler directly.
+        final List<Integer> expectedSizes = new ArrayList<>();
+        AccessUnitAssembler direct = new AccessUnitAssembler(pool,
+                new FrameBufferPool.FrameReceivedListener() {
+                    @Override
+                    public void onFrameReceived(FrameBuffer frame) {
+                        expectedSizes.add(frame.size());
+                        frame.release();
+                    }
+                }, 4096);
+        direct.setFlushOnChunkEnd(true);
+        for (byte[] payload : payloads) {
+            direct.feed(ByteBuffer.wrap(payload));
+        }
+        assertEquals(expectedSizes, sizes);
+        assertEquals(0, pool.getOutstandingCount());
+    }
+}
@@ -0,0 +1,45 @@
+package com.wolfcstech.mediacodecdemo;
+
+/**
+ * Megapixels per second of NV21 conversion at common camera sizes, single band against one
+ * band per core. Run with {@code main}, it is not part of the unit tests.
+ */
+public class YuvConverterBenchmark {
+    private static final int WARMUP_ITERATIONS = 200;
+    private static final int MEASURED_ITERATIONS = 500;
+
+    private static final int[][] SIZES = {{1280, 720}, {1280, 960}, {1920, 1080}};
+
+    public static void main(String[] args) {
+        int cores = Runtime.getRuntime().availableProcessors();
+        for (int[] size : SIZES) {
+            for (int format : new int[] {YuvConverter.FORMAT_I420, YuvConverter.FORMAT_NV12}) {
+                run(size[0], size[1], format, 1);
+                run(size[0], size[1], format, cores);
+            }
+        }
+    }
+
+    private static void run(int width, int height, int format, int bands) {
+        YuvConverter converter = new YuvConverter(width, height, width, height, format, null, bands);
+        byte[] in = new byte[converter.getInputSize()];
+        byte[] out = new byte[converter.getOutputSize()];
+        for (int i = 0; i < in.length; i++) {
+            in[i] = (byte) i;
+        }
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            converter.convert(in, out);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+            converter.convert(in, out);
+        }
+        long elapsedNanos = System.nanoTime() - start;
+        converter.release();
+
+        double megapixels = (double) width * height * MEASURED_ITERATIONS / 1e6;
+        System.out.printf("%4dx%-4d %s bands=%-2d %8.1f MP/s %7.3f ms/frame%n", width, height,
+                format == YuvConverter.FORMAT_NV12 ? "NV12" : "I420", bands,
+                megapixels * 1e9 / elapsedNanos, elapsedNanos / 1e6 / MEASURED_ITERATIONS);
+    }
+}
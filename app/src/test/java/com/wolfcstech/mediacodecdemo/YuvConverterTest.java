@@ -0,0 +1,116 @@
+package com.wolfcstech.mediacodecdemo;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class YuvConverterTest {
+    private static final int WIDTH = 16;
+    private static final int HEIGHT = 12;
+    private static final int STRIDE = 20;
+    private static final int SLICE_HEIGHT = 16;
+
+    private static byte[] nv21() {
+        byte[] frame = new byte[WIDTH * HEIGHT * 3 / 2];
+        for (int i = 0; i < frame.length; i++) {
+            frame[i] = (byte) (i * 7 + 3);
+        }
+        return frame;
+    }
+
+    private static byte v(byte[] nv21, int row, int x) {
+        return nv21[WIDTH * HEIGHT + row * WIDTH + 2 * x];
+    }
+
+    private static byte u(byte[] nv21, int row, int x) {
+        return nv21[WIDTH * HEIGHT + row * WIDTH + 2 * x + 1];
+    }
+
+    private static void assertLuma(byte[] nv21, byte[] out) {
+        for (int row = 0; row < HEIGHT; row++) {
+            for (int x = 0; x < WIDTH; x++) {
+                assertEquals(nv21[row * WIDTH + x], out[row * STRIDE + x]);
+            }
+        }
+    }
+
+    @Test
+    public void convertsToPaddedI420() {
+        byte[] nv21 = nv21();
+        for (int bands : new int[] {1, 4}) {
+            YuvConverter converter = new YuvConverter(WIDTH, HEIGHT, STRIDE, SLICE_HEIGHT,
+                    YuvConverter.FORMAT_I420, null, bands);
+            byte[] out = new byte[converter.getOutputSize()];
+            converter.convert(nv21, out);
+            converter.release();
+
+            assertLuma(nv21, out);
+            int uPlane = STRIDE * SLICE_HEIGHT;
+            int vPlane = uPlane + (STRIDE / 2) * (SLICE_HEIGHT / 2);
+            for (int row = 0; row < HEIGHT / 2; row++) {
+                for (int x = 0; x < WIDTH / 2; x++) {
+                    assertEquals(u(nv21, row, x), out[uPlane + row * STRIDE / 2 + x]);
+                    assertEquals(v(nv21, row, x), out[vPlane + row * STRIDE / 2 + x]);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void convertsToPaddedNv12() {
+        byte[] nv21 = nv21();
+        YuvConverter converter = new YuvConverter(WIDTH, HEIGHT, STRIDE, SLICE_HEIGHT,
+                YuvConverter.FORMAT_NV12, null, 3);
+        byte[] out = new byte[converter.getOutputSize()];
+        converter.convert(nv21, out);
+        converter.release();
+
+        assertLuma(nv21, out);
+        int uvPlane = STRIDE * SLICE_HEIGHT;
+        for (int row = 0; row < HEIGHT / 2; row++) {
+            for (int x = 0; x < WIDTH / 2; x++) {
+                assertEquals(u(nv21, row, x), out[uvPlane + row * STRIDE + 2 * x]);
+                assertEquals(v(nv21, row, x), out[uvPlane + row * STRIDE + 2 * x + 1]);
+            }
+        }
+    }
+
+    @Test
+    public void convertsIntoInputBuffers() {
+        byte[] nv21 = nv21();
+        for (int bands : new int[] {1, 4}) {
+            YuvConverter converter = new YuvConverter(WIDTH, HEIGHT, STRIDE, SLICE_HEIGHT,
+                    YuvConverter.FORMAT_NV12, null, bands);
+            byte[] expected = new byte[converter.getOutputSize()];
+            converter.convert(nv21, expected);
+
+            ByteBuffer direct = ByteBuffer.allocateDirect(converter.getOutputSize() + 8);
+            direct.position(8);
+            converter.convert(nv21, direct);
+            assertEquals(8, direct.position());
+            ByteBuffer heap = ByteBuffer.allocate(converter.getOutputSize() + 8);
+            heap.position(8);
+            converter.convert(nv21, heap.slice());
+            converter.release();
+
+            for (int i = 0; i < expected.length; i++) {
+                assertEquals(expected[i], direct.get(8 + i));
+                assertEquals(expected[i], heap.get(8 + i));
+            }
+        }
+    }
+
+    @Test
+    public void unpaddedOutputIsSameSizeAsInput() {
+        YuvConverter converter = new YuvConverter(WIDTH, HEIGHT, YuvConverter.FORMAT_NV12);
+        assertEquals(converter.getInputSize(), converter.getOutputSize());
+        converter.release();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsOddDimensions() {
+        new YuvConverter(15, 12, YuvConverter.FORMAT_I420);
+    }
+}